@@ -0,0 +1,93 @@
+/***
+ Copyright (c) 2016 CommonsWare, LLC
+
+ Licensed under the Apache License, Version 2.0 (the "License"); you may
+ not use this file except in compliance with the License. You may obtain
+ a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+package com.commonsware.cwac.cam2;
+
+import org.junit.Assume;
+import org.junit.Test;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.openjdk.jmh.runner.options.TimeValue;
+
+import java.io.File;
+
+/**
+ * Runs the JMH benchmarks as part of the unit tests of the
+ * benchmark build type, when asked:
+ *
+ * CWAC_CAM2_BENCHMARK=1 ./gradlew :cam2:testBenchmarkUnitTest --tests '*BenchmarkSuite'
+ *
+ * Results go to cam2/build/reports/benchmarks/, as JSON, for
+ * comparing one run (or one commit) against another. Without
+ * the environment variable, the suite is skipped, so ordinary
+ * test runs stay quick.
+ *
+ * The benchmarks run in the test JVM (no forks), as that is
+ * where Gradle has set up the classpath, including the stand-in
+ * android.jar.
+ */
+public class BenchmarkSuite {
+  static final String ENV_BENCHMARK="CWAC_CAM2_BENCHMARK";
+  static final File RESULTS_DIR=new File("build/reports/benchmarks");
+
+  @Test
+  public void capture() throws Exception {
+    run(CaptureBenchmark.class);
+  }
+
+  @Test
+  public void processorChain() throws Exception {
+    run(ProcessorChainBenchmark.class);
+  }
+
+  @Test
+  public void jpegWriter() throws Exception {
+    run(JPEGWriterBenchmark.class);
+  }
+
+  @Test
+  public void chooseSize() throws Exception {
+    run(ChooseSizeBenchmark.class);
+  }
+
+  @Test
+  public void dispatch() throws Exception {
+    run(DispatchBenchmark.class);
+  }
+
+  static void run(Class<?> benchmark) throws Exception {
+    Assume.assumeTrue(System.getenv(ENV_BENCHMARK)!=null);
+
+    RESULTS_DIR.mkdirs();
+
+    Options opts=new OptionsBuilder()
+      .include(benchmark.getName()+".*")
+      .forks(0)
+      .warmupIterations(3)
+      .warmupTime(TimeValue.seconds(1))
+      .measurementIterations(5)
+      .measurementTime(TimeValue.seconds(1))
+      .addProfiler(GCProfiler.class)
+      .shouldFailOnError(true)
+      .resultFormat(ResultFormatType.JSON)
+      .result(new File(RESULTS_DIR,
+        benchmark.getSimpleName()+".json").getPath())
+      .build();
+
+    new Runner(opts).run();
+  }
+}
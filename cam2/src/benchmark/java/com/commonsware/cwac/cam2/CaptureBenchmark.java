@@ -0,0 +1,232 @@
+/***
+ Copyright (c) 2016 CommonsWare, LLC
+
+ Licensed under the Apache License, Version 2.0 (the "License"); you may
+ not use this file except in compliance with the License. You may obtain
+ a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+package com.commonsware.cwac.cam2;
+
+import android.content.Context;
+import android.content.ContextWrapper;
+
+import com.commonsware.cwac.cam2.util.BufferPool;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import de.greenrobot.event.EventBus;
+
+/**
+ * Benchmarks the capture path on FakeCameraEngine, so the
+ * library's own overhead (command queues, thread pools,
+ * buffers, and events) can be measured without a device. The
+ * fake hardware is set to respond instantly.
+ *
+ * Run with the GC profiler (as BenchmarkSuite does) to get
+ * bytes allocated per operation, which for shotMemory() is
+ * the ImageContext memory per shot.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class CaptureBenchmark {
+  private static final int PICTURE_WIDTH=1920;
+  private static final int PICTURE_HEIGHT=1080;
+  private final Context ctxt=new ContextWrapper(null) {
+    // sessions and ImageContexts hold the application context,
+    // which a bare ContextWrapper does not have off-device
+    @Override
+    public Context getApplicationContext() {
+      return(this);
+    }
+  };
+  private final Events events=new Events();
+  private FakeCameraEngine engine;
+  private EventBus bus;
+  private CameraDescriptor camera;
+  private CameraSession session;
+  private PictureTransaction xact;
+  private byte[] jpeg;
+  private BufferPool pool;
+  private CameraEngine.PictureTakenEvent pictureTaken;
+
+  @Setup
+  public void setUp() throws Exception {
+    jpeg=SyntheticImages.buildJpeg(PICTURE_WIDTH, PICTURE_HEIGHT);
+    pool=new BufferPool();
+    bus=new EventBus();
+    bus.register(events);
+    engine=new FakeCameraEngine(1);
+    engine.setBus(bus);
+    engine.setPictureData(jpeg);
+    engine.loadCameraDescriptors(null);
+    camera=((CameraEngine.CameraDescriptorsEvent)events.next())
+      .descriptors.get(0);
+
+    session=engine.buildSession(ctxt, camera).build();
+    engine.open(session, null);
+    events.next();
+
+    xact=new PictureTransaction.Builder()
+      .append(new NoOpProcessor("checksum"))
+      .build();
+    pictureTaken=new CameraEngine.PictureTakenEvent(xact,
+      new ImageContext(ctxt, jpeg));
+  }
+
+  @TearDown
+  public void tearDown() throws Exception {
+    engine.close(session);
+    events.next();
+    bus.unregister(events);
+  }
+
+  /**
+   * A picture, from takePicture() to PictureTakenEvent: the
+   * command queue, the IMAGE_PROCESSING pool, a one-processor
+   * chain, and the event.
+   */
+  @Benchmark
+  public int takePicture() throws InterruptedException {
+    engine.takePicture(session, xact);
+
+    CameraEngine.PictureTakenEvent event=
+      (CameraEngine.PictureTakenEvent)events.next();
+    int length=event.getImageContext().getJpegLength();
+
+    event.getImageContext().release();
+
+    return(length);
+  }
+
+  /**
+   * What a camera2 picture costs in ImageContext terms when the
+   * camera is short of buffers (e.g., in a burst): wrap the
+   * camera's buffer, copy it onto the heap (from the
+   * BufferPool), and release it. Otherwise, there is no copy.
+   */
+  @Benchmark
+  public int shotMemory() {
+    ImageContext imageContext=new ImageContext(ctxt,
+      ByteBuffer.wrap(jpeg), null, pool);
+
+    imageContext.detach();
+
+    int length=imageContext.getJpegLength();
+
+    imageContext.release();
+
+    return(length);
+  }
+
+  /**
+   * Posting a PictureTakenEvent to one subscriber.
+   */
+  @Benchmark
+  public void postEvent() {
+    bus.post(pictureTaken);
+    events.poll();
+  }
+
+  /**
+   * Opening and closing a session, each waiting for its event.
+   */
+  @Benchmark
+  public void openCloseCycle() throws InterruptedException {
+    CameraSession cycled=engine.buildSession(ctxt, camera).build();
+
+    engine.open(cycled, null);
+    events.next();
+    engine.close(cycled);
+    events.next();
+  }
+
+  /**
+   * Collects the engine's events. EventBus only calls public
+   * methods on public classes.
+   */
+  public static class Events {
+    private final LinkedBlockingQueue<Object> queue=
+      new LinkedBlockingQueue<Object>();
+
+    public void onEvent(CameraEngine.CameraDescriptorsEvent event) {
+      queue.add(event);
+    }
+
+    public void onEvent(CameraEngine.OpenedEvent event) {
+      queue.add(event);
+    }
+
+    public void onEvent(CameraEngine.ClosedEvent event) {
+      queue.add(event);
+    }
+
+    public void onEvent(CameraEngine.PictureTakenEvent event) {
+      queue.add(event);
+    }
+
+    Object next() throws InterruptedException {
+      Object result=queue.poll(5, TimeUnit.SECONDS);
+
+      if (result==null) {
+        throw new IllegalStateException("Timed out waiting for an event");
+      }
+
+      return(result);
+    }
+
+    Object poll() {
+      return(queue.poll());
+    }
+  }
+
+  /**
+   * An ImageProcessor that touches every byte, standing in for
+   * one that does real work.
+   */
+  static class NoOpProcessor implements ImageProcessor {
+    private final String tag;
+
+    NoOpProcessor(String tag) {
+      this.tag=tag;
+    }
+
+    @Override
+    public void process(PictureTransaction xact,
+                        ImageContext imageContext) {
+      byte[] bytes=imageContext.getJpegBuffer();
+      int sum=0;
+
+      for (int i=0;i<imageContext.getJpegLength();i++) {
+        sum+=bytes[i];
+      }
+
+      if (sum==Integer.MIN_VALUE) {
+        throw new IllegalStateException("unlikely checksum");
+      }
+    }
+
+    @Override
+    public String getTag() {
+      return(tag);
+    }
+  }
+}
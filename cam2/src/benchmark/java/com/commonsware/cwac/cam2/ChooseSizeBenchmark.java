@@ -0,0 +1,86 @@
+/***
+ Copyright (c) 2016 CommonsWare, LLC
+
+ Licensed under the Apache License, Version 2.0 (the "License"); you may
+ not use this file except in compliance with the License. You may obtain
+ a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+
+package com.commonsware.cwac.cam2;
+
+import com.commonsware.cwac.cam2.util.Size;
+import com.commonsware.cwac.cam2.util.Utils;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks Utils.chooseOptimalSize() over the sort of size
+ * list that a current back camera reports for its YUV/JPEG
+ * outputs.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class ChooseSizeBenchmark {
+  private static final int[][] SIZES={
+    {4032, 3024}, {4000, 3000}, {3840, 2160}, {3264, 2448},
+    {3200, 2400}, {2976, 2976}, {2592, 1944}, {2688, 1512},
+    {2048, 1536}, {1920, 1440}, {1920, 1080}, {1600, 1200},
+    {1440, 1080}, {1280, 960}, {1280, 768}, {1280, 720},
+    {1024, 768}, {800, 600}, {800, 480}, {720, 480},
+    {640, 480}, {640, 360}, {352, 288}, {320, 240},
+    {176, 144}
+  };
+  private static final Size FOUR_THREE=new Size(4, 3);
+  private static final Size SIXTEEN_NINE=new Size(16, 9);
+  private static final Size SQUARE=new Size(1, 1);
+  private final List<Size> choices=new ArrayList<Size>();
+
+  public ChooseSizeBenchmark() {
+    for (int[] size : SIZES) {
+      choices.add(new Size(size[0], size[1]));
+    }
+  }
+
+  /**
+   * 1080p preview, which has several matches.
+   */
+  @Benchmark
+  public Size preview1080p() {
+    return(Utils.chooseOptimalSize(choices, 1920, 1080, SIXTEEN_NINE));
+  }
+
+  /**
+   * Full-resolution 4:3 picture, which has one match, at the
+   * top of the list.
+   */
+  @Benchmark
+  public Size fullResolution() {
+    return(Utils.chooseOptimalSize(choices, 4032, 3024, FOUR_THREE));
+  }
+
+  /**
+   * A request nothing fits, which falls back to the largest
+   * size.
+   */
+  @Benchmark
+  public Size noMatch() {
+    return(Utils.chooseOptimalSize(choices, 5000, 5000, SQUARE));
+  }
+}
@@ -0,0 +1,152 @@
+/***
+ Copyright (c) 2016 CommonsWare, LLC
+
+ Licensed under the Apache License, Version 2.0 (the "License"); you may
+ not use this file except in compliance with the License. You may obtain
+ a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+
+package com.commonsware.cwac.cam2;
+
+import android.content.Context;
+import android.content.ContextWrapper;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks JPEGWriter file writes under each Durability mode,
+ * to tmpfs and to disk. What is measured is how long the
+ * ImageProcessor chain is held up per picture; the deferred
+ * GROUP_COMMIT and ASYNC work is bounded by a fixed number of
+ * file slots, so a mode cannot run ahead of its storage for
+ * long, and is drained at the end of each iteration.
+ *
+ * "tmpfs" is /dev/shm, falling back to java.io.tmpdir where
+ * there is no /dev/shm. "disk" is under build/.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class JPEGWriterBenchmark {
+  private static final int PICTURE_WIDTH=1920;
+  private static final int PICTURE_HEIGHT=1080;
+  private static final int SLOTS=16;
+  private static final long GROUP_COMMIT_WINDOW_MS=20;
+
+  @Param({"FSYNC_PER_FILE", "GROUP_COMMIT", "ASYNC"})
+  public JPEGWriter.Durability durability;
+
+  @Param({"tmpfs", "disk"})
+  public String storage;
+
+  private final Context ctxt=new ContextWrapper(null) {
+    @Override
+    public Context getApplicationContext() {
+      return(this);
+    }
+  };
+  private final ArrayBlockingQueue<Integer> freeSlots=
+    new ArrayBlockingQueue<Integer>(SLOTS);
+  private final HashMap<String, Integer> slotsByPath=
+    new HashMap<String, Integer>();
+  private File[] files;
+  private File dir;
+  private JPEGWriter writer;
+  private byte[] jpeg;
+
+  @Setup
+  public void setUp() throws IOException {
+    jpeg=SyntheticImages.buildJpeg(PICTURE_WIDTH, PICTURE_HEIGHT);
+
+    File root;
+
+    if ("tmpfs".equals(storage)) {
+      root=new File("/dev/shm");
+
+      if (!root.isDirectory()) {
+        root=new File(System.getProperty("java.io.tmpdir"));
+      }
+    }
+    else {
+      root=new File("build");
+    }
+
+    dir=new File(root, "cwac-cam2-bench-"+durability);
+    dir.mkdirs();
+    files=new File[SLOTS];
+
+    for (int i=0;i<SLOTS;i++) {
+      files[i]=new File(dir, "shot-"+i+".jpg");
+      slotsByPath.put(files[i].getAbsolutePath(), i);
+      freeSlots.add(i);
+    }
+
+    writer=new JPEGWriter(ctxt, null, durability,
+      new JPEGWriter.Callback() {
+        @Override
+        public void onWriteComplete(String path, Exception e) {
+          freeSlots.add(slotsByPath.get(path));
+        }
+      });
+    writer.setGroupCommitWindow(GROUP_COMMIT_WINDOW_MS);
+  }
+
+  /**
+   * Waits for the deferred writes, so one iteration's backlog
+   * does not land in the next.
+   */
+  @TearDown(Level.Iteration)
+  public void drain() throws InterruptedException {
+    long deadline=System.currentTimeMillis()+30000;
+
+    while (freeSlots.size()<SLOTS) {
+      if (System.currentTimeMillis()>deadline) {
+        throw new IllegalStateException("Timed out waiting for writes");
+      }
+
+      Thread.sleep(5);
+    }
+  }
+
+  @TearDown
+  public void tearDown() {
+    for (File f : files) {
+      f.delete();
+    }
+
+    dir.delete();
+  }
+
+  @Benchmark
+  public void write() throws Exception {
+    int slot=freeSlots.take();
+
+    writer.writeFile(files[slot], new ImageContext(ctxt, jpeg), false);
+
+    if (durability==JPEGWriter.Durability.FSYNC_PER_FILE) {
+      freeSlots.add(slot); // no callback for synchronous writes
+    }
+  }
+}
@@ -0,0 +1,114 @@
+/***
+ Copyright (c) 2016 CommonsWare, LLC
+
+ Licensed under the Apache License, Version 2.0 (the "License"); you may
+ not use this file except in compliance with the License. You may obtain
+ a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+
+package com.commonsware.cwac.cam2;
+
+import android.content.Context;
+import android.content.ContextWrapper;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks the ImageProcessor chain itself: running a
+ * PictureTransaction over chains of various lengths, and
+ * looking up processors by tag, as PictureTransaction.Builder
+ * and the engines do. The processors do next to nothing, so
+ * what is measured is the cost of the chain.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class ProcessorChainBenchmark {
+  @Param({"1", "5", "20"})
+  public int processorCount;
+
+  private final Context ctxt=new ContextWrapper(null) {
+    @Override
+    public Context getApplicationContext() {
+      return(this);
+    }
+  };
+  private PictureTransaction xact;
+  private ImageContext imageContext;
+  private String lastTag;
+
+  @Setup
+  public void setUp() {
+    PictureTransaction.Builder b=new PictureTransaction.Builder();
+
+    for (int i=0;i<processorCount;i++) {
+      lastTag="processor-"+i;
+      b.append(new CountingProcessor(lastTag));
+    }
+
+    xact=b.build();
+    imageContext=new ImageContext(ctxt, new byte[4096]);
+  }
+
+  @Benchmark
+  public ImageContext process() {
+    return(xact.process(imageContext));
+  }
+
+  /**
+   * Worst case for a hit: the tag is on the last processor.
+   */
+  @Benchmark
+  public ImageProcessor findLastByTag() {
+    return(xact.findProcessorByTag(lastTag));
+  }
+
+  /**
+   * A miss, as when PictureTransaction.Builder.toUri() checks
+   * for an existing JPEGWriter.
+   */
+  @Benchmark
+  public ImageProcessor findMissingByTag() {
+    return(xact.findProcessorByTag(JPEGWriter.class.getCanonicalName()));
+  }
+
+  /**
+   * An ImageProcessor that reads a byte of the picture and
+   * counts it, so the JIT cannot skip it.
+   */
+  static class CountingProcessor implements ImageProcessor {
+    private final String tag;
+    private long sum=0;
+
+    CountingProcessor(String tag) {
+      this.tag=tag;
+    }
+
+    @Override
+    public void process(PictureTransaction xact,
+                        ImageContext imageContext) {
+      sum+=imageContext.getJpegBuffer()[imageContext.getFrameIndex()];
+    }
+
+    @Override
+    public String getTag() {
+      return(tag);
+    }
+  }
+}
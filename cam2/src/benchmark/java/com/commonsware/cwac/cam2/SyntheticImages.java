@@ -0,0 +1,62 @@
+/***
+ Copyright (c) 2016 CommonsWare, LLC
+
+ Licensed under the Apache License, Version 2.0 (the "License"); you may
+ not use this file except in compliance with the License. You may obtain
+ a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+package com.commonsware.cwac.cam2;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Random;
+
+import javax.imageio.ImageIO;
+
+/**
+ * Builds stand-ins for camera output on a plain JVM, where
+ * android.graphics is not available.
+ */
+class SyntheticImages {
+  private SyntheticImages() {
+    // static methods only
+  }
+
+  /**
+   * Builds a real JPEG, noisy enough that it compresses about
+   * as badly as a photo, so it is about the size of one.
+   *
+   * @param width width, in pixels
+   * @param height height, in pixels
+   * @return the JPEG
+   */
+  static byte[] buildJpeg(int width, int height) throws IOException {
+    BufferedImage image=
+      new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+    Random random=new Random(width*31+height);
+
+    for (int y=0;y<height;y++) {
+      for (int x=0;x<width;x++) {
+        int base=(x+y)&0xFF;
+        int noise=random.nextInt(64);
+
+        image.setRGB(x, y, ((base+noise)&0xFF)<<16 |
+          ((base/2+noise)&0xFF)<<8 | (noise&0xFF));
+      }
+    }
+
+    ByteArrayOutputStream out=new ByteArrayOutputStream();
+
+    ImageIO.write(image, "jpg", out);
+
+    return(out.toByteArray());
+  }
+}
@@ -163,9 +163,25 @@ abstract public class AbstractCameraActivity extends Activity {
    */
   public static final String EXTRA_FOCUS_MODE="cwac_cam2_focus_mode";
 
+  /**
+   * If set to true, the session for the other camera is
+   * prepared while the current one is previewing, so switching
+   * cameras takes less time. Defaults to false.
+   */
+  public static final String EXTRA_FAST_SWITCH="cwac_cam2_fast_switch";
+
+  /**
+   * Number of recent frames to keep for zero-shutter-lag
+   * pictures, on devices using the camera2 API. Defaults to 0,
+   * meaning that zero-shutter-lag capture is not used.
+   */
+  public static final String EXTRA_ZSL_RING_SIZE="cwac_cam2_zsl_ring_size";
+
   protected static final String TAG_CAMERA=CameraFragment.class.getCanonicalName();
   private static final int REQUEST_PERMS=13401;
   protected CameraFragment cameraFrag;
+  private EventBus bus;
+  private boolean isStarted=false;
 
   /**
    * Standard lifecycle method, serving as the main entry
@@ -250,7 +266,11 @@ abstract public class AbstractCameraActivity extends Activity {
   public void onStart() {
     super.onStart();
 
-    EventBus.getDefault().register(this);
+    isStarted=true;
+
+    if (bus!=null) {
+      bus.register(this);
+    }
   }
 
   /**
@@ -259,7 +279,11 @@ abstract public class AbstractCameraActivity extends Activity {
    */
   @Override
   public void onStop() {
-    EventBus.getDefault().unregister(this);
+    isStarted=false;
+
+    if (bus!=null) {
+      bus.unregister(this);
+    }
 
     if (isChangingConfigurations()) {
       cameraFrag.stopVideoRecording();
@@ -297,6 +321,23 @@ abstract public class AbstractCameraActivity extends Activity {
     finish();
   }
 
+  /**
+   * Moves our event registration to the bus of a new
+   * controller, which may happen after onStart() if we had to
+   * ask for permissions.
+   */
+  private void subscribeTo(EventBus newBus) {
+    if (isStarted && bus!=null) {
+      bus.unregister(this);
+    }
+
+    bus=newBus;
+
+    if (isStarted) {
+      bus.register(this);
+    }
+  }
+
   protected Uri getOutputUri() {
     Uri output=null;
 
@@ -336,7 +377,12 @@ abstract public class AbstractCameraActivity extends Activity {
       new CameraController(focusMode, onError,
         allowChangeFlashMode, isVideo());
 
+    ctrl.setFastSwitch(getIntent()
+      .getBooleanExtra(EXTRA_FAST_SWITCH, false));
+    ctrl.setZslRingSize(getIntent()
+      .getIntExtra(EXTRA_ZSL_RING_SIZE, 0));
     cameraFrag.setController(ctrl);
+    subscribeTo(ctrl.getBus());
     cameraFrag
       .setMirrorPreview(getIntent()
         .getBooleanExtra(EXTRA_MIRROR_PREVIEW, false));
@@ -574,6 +620,32 @@ abstract public class AbstractCameraActivity extends Activity {
       return((T)this);
     }
 
+    /**
+     * Prepares the other camera while the current one is
+     * previewing, for faster switching between cameras.
+     *
+     * @return the builder, for further configuration
+     */
+    public T fastSwitch() {
+      result.putExtra(EXTRA_FAST_SWITCH, true);
+
+      return((T)this);
+    }
+
+    /**
+     * Takes pictures from recently-streamed frames, where the
+     * device supports it, for less delay between pressing the
+     * shutter and the picture being taken.
+     *
+     * @param frames how many recent frames to keep (e.g., 3)
+     * @return the builder, for further configuration
+     */
+    public T zeroShutterLag(int frames) {
+      result.putExtra(EXTRA_ZSL_RING_SIZE, frames);
+
+      return((T)this);
+    }
+
     /**
      * Sets the desired focus mode. Default is CONTINUOUS.
      *
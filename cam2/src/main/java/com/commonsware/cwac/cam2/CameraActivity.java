@@ -17,6 +17,7 @@ package com.commonsware.cwac.cam2;
 import android.Manifest;
 import android.content.Context;
 import android.content.Intent;
+import android.graphics.Bitmap;
 import android.net.Uri;
 import android.provider.MediaStore;
 
@@ -130,6 +131,7 @@ public class CameraActivity extends AbstractCameraActivity
 
   @Override
   public void retakePicture() {
+    confirmFrag.setImage(null, null);
     getFragmentManager()
         .beginTransaction()
         .hide(confirmFrag)
@@ -140,24 +142,24 @@ public class CameraActivity extends AbstractCameraActivity
   @Override
   public void completeRequest(ImageContext imageContext, boolean isOK) {
     if (!isOK) {
+      imageContext.release();
       setResult(RESULT_CANCELED);
       finish();
     }
     else {
       if (needsThumbnail) {
-        final Intent result=new Intent();
-
-        result.putExtra("data", imageContext.buildResultThumbnail());
-
-        findViewById(android.R.id.content).post(new Runnable() {
+        imageContext.buildResultThumbnail(new ImageContext.ThumbnailCallback() {
           @Override
-          public void run() {
-            setResult(RESULT_OK, result);
+          public void onThumbnail(ImageContext imageContext,
+                                  Bitmap thumbnail) {
+            setResult(RESULT_OK, new Intent().putExtra("data", thumbnail));
             removeFragments();
           }
         });
+        imageContext.release();
       }
       else {
+        imageContext.release();
         findViewById(android.R.id.content).post(new Runnable() {
           @Override
           public void run() {
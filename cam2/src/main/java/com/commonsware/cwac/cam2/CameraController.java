@@ -20,12 +20,14 @@ import android.graphics.SurfaceTexture;
 import android.os.Build;
 import android.os.Bundle;
 import android.os.ResultReceiver;
+import android.os.SystemClock;
 import android.view.View;
 
 import com.commonsware.cwac.cam2.plugin.FlashModePlugin;
 import com.commonsware.cwac.cam2.plugin.FocusModePlugin;
 import com.commonsware.cwac.cam2.plugin.OrientationPlugin;
 import com.commonsware.cwac.cam2.plugin.SizeAndFormatPlugin;
+import com.commonsware.cwac.cam2.util.MainThreadExecutor;
 import com.commonsware.cwac.cam2.util.Size;
 import com.commonsware.cwac.cam2.util.Utils;
 
@@ -34,6 +36,7 @@ import java.io.StringWriter;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Queue;
+import java.util.concurrent.Executor;
 
 import de.greenrobot.event.EventBus;
 
@@ -58,6 +61,36 @@ public class CameraController implements CameraView.StateCallback {
   private int zoomLevel=0;
   private int quality=0;
   private final ResultReceiver onError;
+  private boolean fastSwitch=false;
+  private int zslRingSize=0;
+  private PreparedSession prepared=null;
+  private long switchStartedAt=-1L;
+  private long switchCloseMillis=-1L;
+  private boolean switchUsedPrepared=false;
+  private final EventChannel channel=new EventChannel(new EventBus());
+  private Executor listenerExecutor=null;
+  private final CameraEngine.Listener engineListener=
+    new CameraEngine.SimpleListener() {
+      @Override
+      public void onCameraDescriptors(CameraEngine.CameraDescriptorsEvent event) {
+        CameraController.this.onCameraDescriptors(event);
+      }
+
+      @Override
+      public void onOpened(CameraEngine.OpenedEvent event) {
+        CameraController.this.onOpened(event);
+      }
+
+      @Override
+      public void onClosed(CameraEngine.ClosedEvent event) {
+        CameraController.this.onClosed(event);
+      }
+
+      @Override
+      public void onDeepImpact(CameraEngine.DeepImpactEvent event) {
+        postError(ErrorConstants.ERROR_MISC, event.exception);
+      }
+    };
 
   public CameraController(FocusMode focusMode,
                           ResultReceiver onError,
@@ -78,6 +111,17 @@ public class CameraController implements CameraView.StateCallback {
     return(engine);
   }
 
+  /**
+   * @return the bus for this controller's events, and those of
+   * its camera sessions. Register here, rather than on the
+   * default EventBus, so that other controllers (e.g., another
+   * CameraFragment in the same process) do not see your events
+   * nor you theirs.
+   */
+  public EventBus getBus() {
+    return(channel.getBus());
+  }
+
   /**
    * Setter for the engine. Must be called before onCreateView()
    * is called, preferably shortly after constructing the
@@ -89,9 +133,25 @@ public class CameraController implements CameraView.StateCallback {
   public void setEngine(CameraEngine engine, CameraSelectionCriteria criteria) {
     this.engine=engine;
 
-    EventBus.getDefault().register(this);
+    // engine events for our sessions come straight to us, then
+    // go on our bus for the fragment and activity; the bus is
+    // also where our OrientationPlugin reports
+
+    channel.addListener(engineListener, listenerExecutor==null ?
+      new MainThreadExecutor() : listenerExecutor);
+    getBus().register(this);
 
-    engine.loadCameraDescriptors(criteria);
+    engine.loadCameraDescriptors(criteria, channel);
+  }
+
+  /**
+   * Where engine events get handled; the main application thread
+   * if not set. Must be called before setEngine(). For tests.
+   *
+   * @param executor the Executor for engine events
+   */
+  void setListenerExecutor(Executor executor) {
+    this.listenerExecutor=executor;
   }
 
   public int getNumberOfCameras() {
@@ -121,6 +181,8 @@ public class CameraController implements CameraView.StateCallback {
    * the camera preview to stop.
    */
   public void stop() throws Exception {
+    discardPrepared();
+
     if (session!=null) {
       stopVideoRecording(true);
 
@@ -139,8 +201,14 @@ public class CameraController implements CameraView.StateCallback {
    * be created if you want to use the camera again in the future.
    */
   public void destroy() {
-    EventBus.getDefault().post(new ControllerDestroyedEvent(this));
-    EventBus.getDefault().unregister(this);
+    discardPrepared();
+
+    channel.removeListener(engineListener);
+    getBus().post(new ControllerDestroyedEvent(this));
+
+    if (getBus().isRegistered(this)) {
+      getBus().unregister(this);
+    }
   }
 
   /**
@@ -148,15 +216,85 @@ public class CameraController implements CameraView.StateCallback {
    * devices have only two cameras, and so calling this will
    * switch the preview and pictures to the camera other than
    * the one presently being used.
+   *
+   * Posts a CameraSwitchedEvent once the other camera is open.
    */
   public void switchCamera() throws Exception {
     if (session!=null) {
+      PreparedSession next=prepared;
+
+      prepared=null;
+      switchStartedAt=SystemClock.elapsedRealtime();
+      switchCloseMillis=-1L;
+      switchUsedPrepared=false;
       getPreview(session.getDescriptor()).setVisibility(View.INVISIBLE);
-      switchPending=true;
-      stop();
+
+      if (fastSwitch) {
+        // the engine opens the next camera as soon as this one
+        // is closed, so there is no need to wait for the
+        // ClosedEvent here
+
+        stop();
+        prepared=next;
+        showNextCamera();
+      }
+      else {
+        switchPending=true;
+        stop();
+      }
     }
   }
 
+  /**
+   * Opts into (or out of) fast camera switching. When enabled,
+   * the session for the next camera (sizes, plugins, and so on)
+   * is worked out while the current camera is streaming, and
+   * switchCamera() asks for the next camera to be opened right
+   * away, rather than after the current one reports that it is
+   * closed. That leaves only the hardware handoff between the
+   * switch request and the new preview.
+   *
+   * @param fastSwitch true to switch cameras quickly, false
+   *                   otherwise (the default)
+   */
+  public void setFastSwitch(boolean fastSwitch) {
+    this.fastSwitch=fastSwitch;
+
+    if (!fastSwitch) {
+      discardPrepared();
+    }
+  }
+
+  /**
+   * @return true if fast camera switching is enabled, false
+   * otherwise
+   */
+  public boolean isFastSwitch() {
+    return(fastSwitch);
+  }
+
+  /**
+   * Opts into zero-shutter-lag capture, for sessions opened
+   * after this call. See the SizeAndFormatPlugin constructor
+   * for details; memory use is capped at
+   * SizeAndFormatPlugin.DEFAULT_ZSL_MAX_BYTES.
+   *
+   * @param zslRingSize how many recent frames to keep, or 0
+   *                    to take pictures normally (the default)
+   */
+  public void setZslRingSize(int zslRingSize) {
+    this.zslRingSize=zslRingSize;
+    discardPrepared();
+  }
+
+  /**
+   * @return how many recent frames are kept for
+   * zero-shutter-lag capture, or 0 if it is not in use
+   */
+  public int getZslRingSize() {
+    return(zslRingSize);
+  }
+
   /**
    * Supplies CameraView objects for each camera. After this,
    * we can open() the camera.
@@ -213,6 +351,26 @@ public class CameraController implements CameraView.StateCallback {
     }
   }
 
+  /**
+   * Takes a burst of pictures, each handled in accordance with
+   * the details supplied in the PictureTransaction. Subscribe
+   * to the PictureTakenEvent to get the results, one event
+   * per picture.
+   *
+   * @param count the number of pictures to take
+   * @param framesPerSecond the desired rate of pictures, or 0
+   *                        for as fast as the camera can
+   * @param xact a PictureTransaction describing what should be taken
+   * @throws IllegalArgumentException if the burst cannot be
+   * taken; see CameraEngine.takeBurst()
+   */
+  public void takeBurst(int count, float framesPerSecond,
+                        PictureTransaction xact) {
+    if (session!=null) {
+      engine.takeBurst(session, count, framesPerSecond, xact);
+    }
+  }
+
   public void recordVideo(VideoTransaction xact) throws Exception {
     if (session!=null) {
       engine.recordVideo(session, xact);
@@ -295,65 +453,139 @@ public class CameraController implements CameraView.StateCallback {
 
   private void open() {
     if (session==null) {
-      Size previewSize=null;
-      CameraDescriptor camera=cameras.get(currentCamera);
-      CameraView cv=getPreview(camera);
-      Size pictureSize;
+      PreparedSession next=prepared;
 
-      if (quality>0) {
-        pictureSize=Utils.getLargestPictureSize(camera);
+      prepared=null;
+
+      if (next!=null && next.cameraIndex!=currentCamera) {
+        next.session.destroy();
+        next=null;
+      }
+
+      if (next==null) {
+        next=prepareSession(currentCamera, null);
       }
       else {
-        pictureSize=Utils.getSmallestPictureSize(camera);
+        switchUsedPrepared=true;
       }
 
-      if (camera != null && cv.getWidth() > 0 && cv.getHeight() > 0) {
-        previewSize=Utils.chooseOptimalSize(camera.getPreviewSizes(),
-            cv.getWidth(), cv.getHeight(), pictureSize);
+      if (next==null) {
+        return;
       }
 
+      CameraView cv=getPreview(next.session.getDescriptor());
       SurfaceTexture texture=cv.getSurfaceTexture();
 
-      if (previewSize != null && texture != null) {
-        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR1) {
-          texture.setDefaultBufferSize(previewSize.getWidth(),
-              previewSize.getHeight());
-        }
-
-        flashModePlugin=new FlashModePlugin();
-
-        session=engine
-            .buildSession(cv.getContext(), camera)
-            .addPlugin(new SizeAndFormatPlugin(previewSize,
-              pictureSize, ImageFormat.JPEG))
-            .addPlugin(new OrientationPlugin(cv.getContext()))
-            .addPlugin(new FocusModePlugin(cv.getContext(), focusMode, isVideo))
-            .addPlugin(flashModePlugin)
-            .build();
-
-        session.setPreviewSize(previewSize);
-        engine.open(session, texture);
+      if (texture==null) {
+        // try again in onReady()
+
+        prepared=next;
+
+        return;
       }
+
+      Size previewSize=next.session.getPreviewSize();
+
+      if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR1) {
+        texture.setDefaultBufferSize(previewSize.getWidth(),
+            previewSize.getHeight());
+      }
+
+      session=next.session;
+      flashModePlugin=next.flashModePlugin;
+      engine.open(session, texture);
     }
   }
 
-  @SuppressWarnings("unused")
-  public void onEventMainThread(CameraEngine.CameraDescriptorsEvent event) {
+  /**
+   * Works out the session for a camera: its picture and preview
+   * sizes and its plugins. The preview size is based on the
+   * camera's CameraView, or on another one of the same size if
+   * that CameraView has not been laid out yet (e.g., it is still
+   * hidden).
+   *
+   * @param cameraIndex the camera to prepare
+   * @param sizeFrom a CameraView to size the preview for, if
+   *                 the camera's own is not laid out, or null
+   * @return the prepared session, or null if there is nothing
+   * to size the preview from yet
+   */
+  private PreparedSession prepareSession(int cameraIndex,
+                                         CameraView sizeFrom) {
+    CameraDescriptor camera=cameras.get(cameraIndex);
+    CameraView cv=getPreview(camera);
+    CameraView sizing=cv;
+    Size pictureSize;
+
+    if (sizing.getWidth()<=0 || sizing.getHeight()<=0) {
+      sizing=sizeFrom;
+    }
+
+    if (camera==null || sizing==null || sizing.getWidth()<=0 ||
+      sizing.getHeight()<=0 || (sizeFrom==null && !cv.isAvailable())) {
+      return(null);
+    }
+
+    if (quality>0) {
+      pictureSize=Utils.getLargestPictureSize(camera);
+    }
+    else {
+      pictureSize=Utils.getSmallestPictureSize(camera);
+    }
+
+    Size previewSize=Utils.chooseOptimalSize(camera.getPreviewSizes(),
+        sizing.getWidth(), sizing.getHeight(), pictureSize);
+
+    if (previewSize==null) {
+      return(null);
+    }
+
+    FlashModePlugin flash=new FlashModePlugin();
+    CameraSession result=engine
+        .buildSession(cv.getContext(), camera)
+        .addPlugin(new SizeAndFormatPlugin(previewSize,
+          pictureSize, ImageFormat.JPEG, isVideo ? 0 : zslRingSize,
+          SizeAndFormatPlugin.DEFAULT_ZSL_MAX_BYTES))
+        .addPlugin(new OrientationPlugin(cv.getContext(), getBus()))
+        .addPlugin(new FocusModePlugin(cv.getContext(), focusMode, isVideo))
+        .addPlugin(flash)
+        .setEventChannel(channel)
+        .build();
+
+    result.setPreviewSize(previewSize);
+
+    return(new PreparedSession(cameraIndex, result, flash));
+  }
+
+  private void discardPrepared() {
+    if (prepared!=null) {
+      prepared.session.destroy();
+      prepared=null;
+    }
+  }
+
+  private void showNextCamera() {
+    currentCamera=getNextCameraIndex();
+    getPreview(cameras.get(currentCamera))
+      .setVisibility(View.VISIBLE);
+    open();
+  }
+
+  private void onCameraDescriptors(CameraEngine.CameraDescriptorsEvent event) {
     if (event.exception!=null) {
       postError(ErrorConstants.ERROR_LIST_CAMERAS, event.exception);
     }
 
     if (event.descriptors.size()>0) {
       cameras=event.descriptors;
-      EventBus.getDefault().post(new ControllerReadyEvent(this, cameras.size()));
+      getBus().post(new ControllerReadyEvent(this, cameras.size()));
     }
     else {
-      EventBus.getDefault().post(new NoSuchCameraEvent());
+      getBus().post(new NoSuchCameraEvent());
     }
   }
 
-  @SuppressWarnings("unused")
-  public void onEventMainThread(CameraEngine.OpenedEvent event) {
+  private void onOpened(CameraEngine.OpenedEvent event) {
     if (event.exception!=null) {
       // handled at fragment level
     }
@@ -376,22 +608,36 @@ public class CameraController implements CameraView.StateCallback {
       }
 
       cv.setPreviewSize(virtualPreviewSize);
+
+      if (switchStartedAt>=0) {
+        getBus().post(new CameraSwitchedEvent(this,
+          SystemClock.elapsedRealtime()-switchStartedAt,
+          switchCloseMillis, switchUsedPrepared));
+        switchStartedAt=-1L;
+      }
+
+      if (fastSwitch && prepared==null && cameras.size()>1) {
+        // get the next camera's session ready while this one
+        // streams, so a switch only has to swap hardware
+
+        prepared=prepareSession(getNextCameraIndex(), cv);
+      }
     }
   }
 
-  @SuppressWarnings("unused")
-  public void onEventMainThread(CameraEngine.ClosedEvent event) {
+  private void onClosed(CameraEngine.ClosedEvent event) {
     if (event.exception!=null) {
       postError(ErrorConstants.ERROR_CLOSE_CAMERA, event.exception);
-      EventBus.getDefault().post(new NoSuchCameraEvent());
+      getBus().post(new NoSuchCameraEvent());
     }
     else {
+      if (switchStartedAt>=0) {
+        switchCloseMillis=event.getTotalMillis();
+      }
+
       if (switchPending) {
         switchPending=false;
-        currentCamera=getNextCameraIndex();
-        getPreview(cameras.get(currentCamera))
-          .setVisibility(View.VISIBLE);
-        open();
+        showNextCamera();
       }
     }
   }
@@ -403,11 +649,6 @@ public class CameraController implements CameraView.StateCallback {
     }
   }
 
-  @SuppressWarnings("unused")
-  public void onEventMainThread(CameraEngine.DeepImpactEvent event) {
-    postError(ErrorConstants.ERROR_MISC, event.exception);
-  }
-
   void postError(int resultCode, Exception e) {
     if (onError!=null) {
       Bundle resultData=new Bundle();
@@ -458,6 +699,54 @@ public class CameraController implements CameraView.StateCallback {
     }
   }
 
+  /**
+   * Event raised when switchCamera() has completed, with the
+   * other camera open and previewing.
+   */
+  public static class CameraSwitchedEvent {
+    private final CameraController ctlr;
+    private final long switchMillis;
+    private final long closeMillis;
+    private final boolean wasPrepared;
+
+    private CameraSwitchedEvent(CameraController ctlr,
+                                long switchMillis, long closeMillis,
+                                boolean wasPrepared) {
+      this.ctlr=ctlr;
+      this.switchMillis=switchMillis;
+      this.closeMillis=closeMillis;
+      this.wasPrepared=wasPrepared;
+    }
+
+    /**
+     * @return milliseconds from the call to switchCamera() to
+     * the other camera being open
+     */
+    public long getSwitchMillis() {
+      return(switchMillis);
+    }
+
+    /**
+     * @return milliseconds that closing the previous camera
+     * took, or -1 if unknown
+     */
+    public long getCloseMillis() {
+      return(closeMillis);
+    }
+
+    /**
+     * @return true if the session for the other camera had been
+     * prepared in advance (see setFastSwitch()), false otherwise
+     */
+    public boolean wasPrepared() {
+      return(wasPrepared);
+    }
+
+    public boolean isEventForController(CameraController ctlr) {
+      return(this.ctlr==ctlr);
+    }
+  }
+
   /**
    * Event raised when the controller has its cameras
    * and is ready for use. Clients should then turn
@@ -475,4 +764,17 @@ public class CameraController implements CameraView.StateCallback {
       return(ctlr);
     }
   }
+
+  private static class PreparedSession {
+    final int cameraIndex;
+    final CameraSession session;
+    final FlashModePlugin flashModePlugin;
+
+    PreparedSession(int cameraIndex, CameraSession session,
+                    FlashModePlugin flashModePlugin) {
+      this.cameraIndex=cameraIndex;
+      this.session=session;
+      this.flashModePlugin=flashModePlugin;
+    }
+  }
 }
@@ -16,15 +16,21 @@ package com.commonsware.cwac.cam2;
 
 import android.content.Context;
 import android.graphics.SurfaceTexture;
+import android.net.Uri;
 import android.os.Build;
 import android.util.Log;
 
+import com.commonsware.cwac.cam2.util.BufferPool;
+import com.commonsware.cwac.cam2.util.SerialExecutor;
+
 import java.io.File;
 import java.util.ArrayList;
 import java.util.List;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import de.greenrobot.event.EventBus;
 
@@ -34,15 +40,30 @@ import de.greenrobot.event.EventBus;
  * android.hardware.camera2.*).
  */
 abstract public class CameraEngine {
-  private static final int CORE_POOL_SIZE=1;
-  private static final int MAX_POOL_SIZE=Runtime.getRuntime().availableProcessors();
-  private static final int KEEP_ALIVE_SECONDS=60;
   private static volatile CameraEngine singletonClassic=null;
   private static volatile CameraEngine singletonTwo=null;
-  private EventBus bus=EventBus.getDefault();
+  private static final Executor DIRECT_EXECUTOR=new Executor() {
+    @Override
+    public void execute(Runnable task) {
+      task.run();
+    }
+  };
+  private final EventChannel channel=new EventChannel(new EventBus());
   private boolean isDebug=false;
-  private LinkedBlockingQueue<Runnable> queue=new LinkedBlockingQueue<Runnable>();
   private ThreadPoolExecutor pool;
+  private final Executor poolExecutor=new Executor() {
+    @Override
+    public void execute(Runnable task) {
+      getThreadPool().execute(task);
+    }
+  };
+  private final SerialExecutor engineExecutor=
+    new SerialExecutor(poolExecutor);
+  private CommandQueue lastOpenedQueue=null;
+  private BufferPool bufferPool;
+  private volatile ProcessingPipeline processingPipeline;
+  private volatile FrameDispatcher frameDispatcher;
+  private volatile MetricsSink metricsSink;
   private File savePreviewFile=null;
   protected List<FlashMode> preferredFlashModes;
   protected ArrayList<FlashMode> eligibleFlashModes=
@@ -120,12 +141,69 @@ abstract public class CameraEngine {
    * an exception closing the camera.
    */
   public static class ClosedEvent extends CrashableEvent {
+    private final long requestedAt;
+    private final long startedAt;
+    private final long completedAt=System.nanoTime();
+
     public ClosedEvent() {
-      super();
+      this(-1L, -1L);
     }
 
     public ClosedEvent(Exception exception) {
       super(exception);
+      this.requestedAt=-1L;
+      this.startedAt=-1L;
+    }
+
+    /**
+     * Constructor for a close that went fine, with timing.
+     *
+     * @param requestedAt System.nanoTime() when close() was
+     *                    called
+     * @param startedAt System.nanoTime() when the camera
+     *                  started being torn down
+     */
+    public ClosedEvent(long requestedAt, long startedAt) {
+      super();
+      this.requestedAt=requestedAt;
+      this.startedAt=startedAt;
+    }
+
+    /**
+     * @return milliseconds between the call to close() and the
+     * start of the teardown (e.g., waiting for a capture to
+     * finish), or -1 if unknown
+     */
+    public long getWaitMillis() {
+      if (requestedAt<0 || startedAt<0) {
+        return(-1L);
+      }
+
+      return(TimeUnit.NANOSECONDS.toMillis(startedAt-requestedAt));
+    }
+
+    /**
+     * @return milliseconds the teardown took, up to the camera
+     * reporting that it is closed, or -1 if unknown
+     */
+    public long getTeardownMillis() {
+      if (startedAt<0) {
+        return(-1L);
+      }
+
+      return(TimeUnit.NANOSECONDS.toMillis(completedAt-startedAt));
+    }
+
+    /**
+     * @return milliseconds between the call to close() and the
+     * camera being closed, or -1 if unknown
+     */
+    public long getTotalMillis() {
+      if (requestedAt<0) {
+        return(-1L);
+      }
+
+      return(TimeUnit.NANOSECONDS.toMillis(completedAt-requestedAt));
     }
   }
 
@@ -163,16 +241,26 @@ abstract public class CameraEngine {
    * Event raised when picture is taken, as a result of a
    * takePicture() call. May include an exception if there was
    * an exception accessing the camera.
+   *
+   * The ImageContext may hold a buffer leased from the engine's
+   * BufferPool. Call release() on it once you no longer need
+   * the picture, so the buffer can be reused for the next one.
    */
   public static class PictureTakenEvent extends CrashableEvent {
     private ImageContext imageContext;
     private PictureTransaction xact;
+    private int frameIndex=0;
+    private int frameCount=1;
+    private CaptureTimeline timeline;
 
     public PictureTakenEvent(PictureTransaction xact,
                              ImageContext imageContext) {
       super();
       this.xact=xact;
       this.imageContext=imageContext;
+      this.frameIndex=imageContext.getFrameIndex();
+      this.frameCount=imageContext.getFrameCount();
+      this.timeline=imageContext.getTimeline();
     }
 
     public PictureTakenEvent(Exception exception) {
@@ -186,6 +274,30 @@ abstract public class CameraEngine {
     public PictureTransaction getPictureTransaction() {
       return(xact);
     }
+
+    /**
+     * @return the position of this picture within its burst,
+     * starting at 0; always 0 for takePicture()
+     */
+    public int getFrameIndex() {
+      return(frameIndex);
+    }
+
+    /**
+     * @return the number of pictures in the burst that this
+     * picture belongs to; always 1 for takePicture()
+     */
+    public int getFrameCount() {
+      return(frameCount);
+    }
+
+    /**
+     * @return when each stage of taking this picture happened,
+     * or null if there was an exception
+     */
+    public CaptureTimeline getTimeline() {
+      return(timeline);
+    }
   }
 
   /**
@@ -248,6 +360,73 @@ abstract public class CameraEngine {
     extends CameraTwoGenericEvent {
   }
 
+  /**
+   * Typed callbacks for the engine's events, as an alternative
+   * to subscribing to them on the EventBus. Each callback gets
+   * the same event object that is posted to the bus, and is
+   * called directly on the Executor the listener was added
+   * with, with no reflection and no per-event lookups. Extend
+   * SimpleListener to implement only the callbacks you need.
+   */
+  public interface Listener {
+    void onCameraDescriptors(CameraDescriptorsEvent event);
+
+    void onOpened(OpenedEvent event);
+
+    void onClosed(ClosedEvent event);
+
+    void onPictureTaken(PictureTakenEvent event);
+
+    void onVideoTaken(VideoTakenEvent event);
+
+    void onSmoothZoomCompleted(SmoothZoomCompletedEvent event);
+
+    void onDeepImpact(DeepImpactEvent event);
+
+    /**
+     * Called for the CameraTwoGenericEvent subclasses (preview
+     * errors and failures).
+     */
+    void onCameraTwoError(CameraTwoGenericEvent event);
+  }
+
+  /**
+   * Listener with empty implementations of all the callbacks.
+   */
+  public static class SimpleListener implements Listener {
+    @Override
+    public void onCameraDescriptors(CameraDescriptorsEvent event) {
+    }
+
+    @Override
+    public void onOpened(OpenedEvent event) {
+    }
+
+    @Override
+    public void onClosed(ClosedEvent event) {
+    }
+
+    @Override
+    public void onPictureTaken(PictureTakenEvent event) {
+    }
+
+    @Override
+    public void onVideoTaken(VideoTakenEvent event) {
+    }
+
+    @Override
+    public void onSmoothZoomCompleted(SmoothZoomCompletedEvent event) {
+    }
+
+    @Override
+    public void onDeepImpact(DeepImpactEvent event) {
+    }
+
+    @Override
+    public void onCameraTwoError(CameraTwoGenericEvent event) {
+    }
+  }
+
   /**
    * Create a CameraSession.Builder to build a CameraSession
    * for a given CameraDescriptor. On the Builder is where you
@@ -273,6 +452,40 @@ abstract public class CameraEngine {
    */
   abstract public void loadCameraDescriptors(CameraSelectionCriteria criteria);
 
+  /**
+   * Loads a roster of the available cameras for this engine,
+   * ranked based on the supplied criteria, posting the
+   * CameraDescriptorsEvent to the supplied channel.
+   *
+   * By default, this calls loadCameraDescriptors(criteria) and
+   * passes the next CameraDescriptorsEvent on the engine's own
+   * channel along to the supplied one. Engines that can post to
+   * the supplied channel directly should override this.
+   *
+   * @param criteria preferred camera capabilities, or
+   *                 null for a default ranking
+   * @param target where to deliver the CameraDescriptorsEvent,
+   *               or null for the engine's own channel
+   */
+  public void loadCameraDescriptors(CameraSelectionCriteria criteria,
+                                    final EventChannel target) {
+    if (target!=null && target!=channel) {
+      channel.addListener(new SimpleListener() {
+        private final AtomicBoolean isForwarded=new AtomicBoolean(false);
+
+        @Override
+        public void onCameraDescriptors(CameraDescriptorsEvent event) {
+          if (isForwarded.compareAndSet(false, true)) {
+            channel.removeListener(this);
+            target.post(event);
+          }
+        }
+      }, DIRECT_EXECUTOR);
+    }
+
+    loadCameraDescriptors(criteria);
+  }
+
   /**
    * Open the requested camera and show a preview on the supplied
    * surface. Subscribe to the OpenEvent to find out when this
@@ -286,8 +499,9 @@ abstract public class CameraEngine {
 
   /**
    * Close the open camera. Subscribe to the ClosedEvent to
-   * find out when this work is completed. Note that this
-   * method may be synchronous or asynchronous.
+   * find out when this work is completed. This method returns
+   * right away; the camera is closed after any operations
+   * already requested for the session.
    *
    * @param session the session for the camera of interest
    */
@@ -305,6 +519,69 @@ abstract public class CameraEngine {
   abstract public void takePicture(CameraSession session,
                                    PictureTransaction xact);
 
+  /**
+   * Takes a burst of pictures on the supplied camera, using
+   * the picture configuration from the supplied transaction.
+   * Focus and exposure are settled once, for the whole burst.
+   * Each picture goes through the transaction's ImageProcessor
+   * chain and gets its own PictureTakenEvent, whose
+   * getFrameIndex() says where it is in the burst. If a picture
+   * fails, its PictureTakenEvent carries the exception, and the
+   * rest of the burst keeps its frame indices.
+   *
+   * Implementations should call checkBurst() before queuing any
+   * work.
+   *
+   * @param session the session for the camera of interest
+   * @param count the number of pictures to take
+   * @param framesPerSecond the desired rate of pictures, or 0
+   *                        to take them as fast as the camera can
+   * @param xact the configuration of the pictures to take
+   * @throws IllegalArgumentException if count is less than 1, or
+   * if a burst of more than one picture is to be written to a
+   * Uri other than a file:// one
+   */
+  abstract public void takeBurst(CameraSession session, int count,
+                                 float framesPerSecond,
+                                 PictureTransaction xact);
+
+  /**
+   * Takes a burst of pictures as fast as the camera can.
+   *
+   * @param session the session for the camera of interest
+   * @param count the number of pictures to take
+   * @param xact the configuration of the pictures to take
+   */
+  public void takeBurst(CameraSession session, int count,
+                        PictureTransaction xact) {
+    takeBurst(session, count, 0.0f, xact);
+  }
+
+  /**
+   * Validates the arguments to takeBurst(), so a bad request
+   * fails when it is made, rather than partway through the burst.
+   *
+   * @param count the number of pictures to take
+   * @param xact the configuration of the pictures to take
+   * @throws IllegalArgumentException if the burst cannot be taken
+   */
+  protected static void checkBurst(int count, PictureTransaction xact) {
+    if (count<1) {
+      throw new IllegalArgumentException("A burst needs at least one picture, not "+count);
+    }
+
+    if (count>1) {
+      Uri output=
+        xact.getProperties().getParcelable(JPEGWriter.PROP_OUTPUT);
+
+      // only one picture can go to a content Uri
+
+      if (output!=null && !"file".equals(output.getScheme())) {
+        throw new IllegalArgumentException("Bursts can only be written to file:// Uris, not "+output);
+      }
+    }
+  }
+
   abstract public void recordVideo(CameraSession session,
       VideoTransaction xact) throws Exception;
 
@@ -369,20 +646,52 @@ abstract public class CameraEngine {
   }
 
   /**
-   * Sets the event bus to use, where the default is the
-   * default event bus supplied by the EventBus class.
+   * Sets the event bus to use, where the default is one of the
+   * engine's own (see getBus()).
    *
-   * @param bus the bus to use for events
+   * @param bus the bus to use for events, or null to only
+   *            deliver events to listeners
    */
   public void setBus(EventBus bus) {
-    this.bus=bus;
+    channel.setBus(bus);
   }
 
   /**
-   * @return the bus to use for events
+   * @return the bus to use for events, or null if there is none
    */
   public EventBus getBus() {
-    return(bus);
+    return(channel.getBus());
+  }
+
+  /**
+   * Adds a listener for the engine's events. Events go to
+   * listeners first, then to the EventBus (if any). Events for
+   * sessions that have their own EventChannel go there instead.
+   *
+   * @param listener the listener
+   * @param executor where to call the listener, such as a
+   *                 MainThreadExecutor
+   */
+  public void addListener(Listener listener, Executor executor) {
+    channel.addListener(listener, executor);
+  }
+
+  /**
+   * Removes a listener added via addListener(). Events already
+   * handed to its executor may still be delivered.
+   *
+   * @param listener the listener
+   */
+  public void removeListener(Listener listener) {
+    channel.removeListener(listener);
+  }
+
+  /**
+   * @return the channel for events not tied to a session, or
+   * for sessions without an EventChannel of their own
+   */
+  public EventChannel getEventChannel() {
+    return(channel);
   }
 
   /**
@@ -410,19 +719,333 @@ abstract public class CameraEngine {
     return(savePreviewFile);
   }
 
+  /**
+   * @return the pool that camera operations run on, by default
+   * the CameraScheduler's CAMERA_CONTROL pool. Operations for any
+   * one session are fed to the pool one at a time, so the pool
+   * may have several threads without reordering them.
+   */
   public ThreadPoolExecutor getThreadPool() {
     if (pool==null) {
-      pool=new ThreadPoolExecutor(CORE_POOL_SIZE, MAX_POOL_SIZE,
-          KEEP_ALIVE_SECONDS, TimeUnit.SECONDS, queue);
+      pool=CameraScheduler.get()
+        .getExecutor(CameraScheduler.Workload.CAMERA_CONTROL);
     }
 
     return(pool);
   }
 
+  /**
+   * Replaces the pool that camera operations run on.
+   *
+   * @param pool the pool to use
+   */
   public void setThreadPool(ThreadPoolExecutor pool) {
     this.pool=pool;
   }
 
+  /**
+   * @return the pool of buffers used to hold picture data
+   */
+  public BufferPool getBufferPool() {
+    if (bufferPool==null) {
+      bufferPool=new BufferPool();
+    }
+
+    return(bufferPool);
+  }
+
+  /**
+   * Sets the pool of buffers used to hold picture data, such
+   * as to share one pool between engines or to change its
+   * size limit.
+   *
+   * @param bufferPool the pool to use
+   */
+  public void setBufferPool(BufferPool bufferPool) {
+    this.bufferPool=bufferPool;
+  }
+
+  /**
+   * @return the pipeline used for running ImageProcessor chains,
+   * or null if each picture's chain is run in full on one
+   * thread of the IMAGE_PROCESSING pool
+   */
+  public ProcessingPipeline getProcessingPipeline() {
+    return(processingPipeline);
+  }
+
+  /**
+   * Opts into (or out of) pipelined processing of pictures. By
+   * default, there is no pipeline, and the ImageProcessor chain
+   * runs in full on one thread of the IMAGE_PROCESSING pool.
+   *
+   * @param processingPipeline the pipeline to use, or null
+   */
+  public void setProcessingPipeline(ProcessingPipeline processingPipeline) {
+    this.processingPipeline=processingPipeline;
+  }
+
+  /**
+   * Sets the analyzer to be fed preview frames, for sessions
+   * opened after this call. Frames are YUV, at the preview
+   * size, and are analyzed on the CameraScheduler's
+   * FRAME_ANALYSIS pool.
+   *
+   * @param analyzer the analyzer to use, or null for none (the
+   *                 default)
+   */
+  public void setFrameAnalyzer(FrameAnalyzer analyzer) {
+    if (analyzer==null) {
+      frameDispatcher=null;
+    }
+    else {
+      frameDispatcher=new FrameDispatcher(analyzer,
+        CameraScheduler.get()
+          .getExecutor(CameraScheduler.Workload.FRAME_ANALYSIS));
+    }
+  }
+
+  /**
+   * @return the FrameDispatcher feeding the analyzer set via
+   * setFrameAnalyzer(), with its statistics, or null if there
+   * is no analyzer
+   */
+  public FrameDispatcher getFrameDispatcher() {
+    return(frameDispatcher);
+  }
+
+  /**
+   * Sets where the CaptureTimeline of each picture goes as its
+   * PictureTakenEvent is posted, such as a CaptureMetrics
+   * instance.
+   *
+   * @param metricsSink the sink, or null for none (the default)
+   */
+  public void setMetricsSink(MetricsSink metricsSink) {
+    this.metricsSink=metricsSink;
+  }
+
+  /**
+   * @return the sink set via setMetricsSink(), or null
+   */
+  public MetricsSink getMetricsSink() {
+    return(metricsSink);
+  }
+
+  /**
+   * Runs a freshly-taken picture through its transaction's
+   * ImageProcessor chain, then posts the PictureTakenEvent. The
+   * chain runs on the CameraScheduler's IMAGE_PROCESSING pool (or
+   * on the ProcessingPipeline, if there is one), so the camera
+   * thread can move on to the next picture while this one is
+   * processed.
+   *
+   * @param session the session that took the picture
+   * @param xact the transaction for the picture
+   * @param imageContext the picture
+   */
+  void processPicture(CameraSession session,
+                      final PictureTransaction xact,
+                      final ImageContext imageContext) {
+    ProcessingPipeline pipeline=processingPipeline;
+    final EventChannel target=
+      (session.getEventChannel()==null ? channel : session.getEventChannel());
+
+    imageContext.setEventChannel(target);
+
+    if (pipeline==null) {
+      try {
+        CameraScheduler.get().execute(CameraScheduler.Workload.IMAGE_PROCESSING,
+          new Runnable() {
+            @Override
+            public void run() {
+              boolean delivered=false;
+
+              try {
+                xact.process(imageContext);
+                delivered=true;
+                postPictureTaken(target, xact, imageContext);
+              }
+              catch (RuntimeException e) {
+                if (delivered) {
+                  Log.e("CWAC-Cam2", "Exception posting picture", e);
+                }
+                else {
+                  postEvent(target, new PictureTakenEvent(e));
+                }
+              }
+              finally {
+                if (!delivered) {
+                  imageContext.release();
+                }
+              }
+            }
+          });
+      }
+      catch (RejectedExecutionException e) {
+        imageContext.release();
+        postEvent(target, new PictureTakenEvent(e));
+      }
+    }
+    else {
+      pipeline.submit(xact, imageContext,
+        new ProcessingPipeline.Callback() {
+          @Override
+          public void onProcessed(PictureTransaction xact,
+                                  ImageContext imageContext) {
+            postPictureTaken(target, xact, imageContext);
+          }
+
+          @Override
+          public void onError(PictureTransaction xact,
+                              ImageContext imageContext,
+                              Exception e) {
+            imageContext.release();
+            postEvent(target, new PictureTakenEvent(e));
+          }
+        });
+    }
+  }
+
+  /**
+   * Posts the PictureTakenEvent once any writes that processors
+   * left running (see ImageContext.beginWrite()) are complete.
+   */
+  private void postPictureTaken(final EventChannel target,
+                                final PictureTransaction xact,
+                                final ImageContext imageContext) {
+    imageContext.whenWritten(new Runnable() {
+      @Override
+      public void run() {
+        postWrittenPicture(target, xact, imageContext);
+      }
+    });
+  }
+
+  private void postWrittenPicture(EventChannel target,
+                                  PictureTransaction xact,
+                                  ImageContext imageContext) {
+    CaptureTimeline timeline=imageContext.getTimeline();
+    PictureTakenEvent event=new PictureTakenEvent(xact, imageContext);
+
+    if (timeline!=null) {
+      timeline.mark(CaptureTimeline.Stage.EVENT_POSTED);
+      reportMetrics(imageContext, timeline);
+    }
+
+    postEvent(target, event);
+  }
+
+  /**
+   * Hands a picture's timeline to the MetricsSink, once any
+   * writes that processors left running in the background (see
+   * ImageContext.beginBackgroundWrite()) are complete.
+   */
+  private void reportMetrics(ImageContext imageContext,
+                             final CaptureTimeline timeline) {
+    final MetricsSink sink=metricsSink;
+
+    if (sink!=null) {
+      imageContext.whenBackgroundWritten(new Runnable() {
+        @Override
+        public void run() {
+          sink.onPictureTaken(timeline);
+        }
+      });
+    }
+  }
+
+  /**
+   * Raises an event that is not tied to a session on the
+   * engine's own channel.
+   *
+   * @param event the event
+   */
+  void postEvent(Object event) {
+    channel.post(event);
+  }
+
+  /**
+   * Raises an event on the given channel, or on the engine's own
+   * if there is none. Engines raise all of their events this
+   * way (or via postEvent(CameraSession, Object)).
+   *
+   * @param target the channel, or null
+   * @param event the event
+   */
+  void postEvent(EventChannel target, Object event) {
+    (target==null ? channel : target).post(event);
+  }
+
+  /**
+   * Raises an event for a session, on the session's channel if
+   * it has one, otherwise on the engine's own.
+   *
+   * @param session the session the event is about, or null
+   * @param event the event
+   */
+  void postEvent(CameraSession session, Object event) {
+    postEvent(session==null ? null : session.getEventChannel(), event);
+  }
+
+  /**
+   * Returns the queue of camera operations for a session.
+   * Operations for the same session run one at a time, in the
+   * order they were submitted, while operations for different
+   * sessions (and picture processing) can run in parallel on
+   * the thread pool. The queue also has statistics on how long
+   * each kind of operation waits and takes.
+   *
+   * @param session the session for the camera of interest
+   * @return the session's CommandQueue
+   */
+  public CommandQueue getCommandQueue(CameraSession session) {
+    return(session.getCommandQueue(poolExecutor));
+  }
+
+  /**
+   * Holds up a session's queue until the queue of the session
+   * opened before it has run everything submitted to it so far
+   * (normally, ending with its close()), so a camera is not
+   * opened while the last one is still being released. Call
+   * before submitting the open command.
+   *
+   * @param session the session about to be opened
+   */
+  void awaitPreviousSession(CameraSession session) {
+    final CommandQueue queue=getCommandQueue(session);
+    final CommandQueue previous;
+
+    synchronized(this) {
+      previous=lastOpenedQueue;
+      lastOpenedQueue=queue;
+    }
+
+    if (previous!=null && previous!=queue) {
+      queue.submitAsync("handoff", new CommandQueue.AsyncCommand() {
+        @Override
+        public void run(final CommandQueue.Completion done) {
+          previous.submit("handoff", new Runnable() {
+            @Override
+            public void run() {
+              done.complete();
+            }
+          });
+        }
+      });
+    }
+  }
+
+  /**
+   * Runs an operation that is not tied to a session, such as
+   * loading descriptors. These run one at a time, in order.
+   *
+   * @param task the operation
+   */
+  void executeForEngine(Runnable task) {
+    engineExecutor.execute(task);
+  }
+
   void setPreferredFlashModes(List<FlashMode> flashModes) {
     preferredFlashModes=flashModes;
   }
@@ -20,12 +20,9 @@ import android.animation.AnimatorSet;
 import android.animation.ObjectAnimator;
 import android.app.ActionBar;
 import android.app.Fragment;
-import android.content.Context;
-import android.media.MediaScannerConnection;
 import android.net.Uri;
 import android.os.Build;
 import android.os.Bundle;
-import android.os.SystemClock;
 import android.util.Log;
 import android.view.LayoutInflater;
 import android.view.MotionEvent;
@@ -67,6 +64,7 @@ public class CameraFragment extends Fragment {
   private ScaleGestureDetector scaleDetector;
   private boolean inSmoothPinchZoom=false;
   private SeekBar zoomSlider;
+  private EventBus bus;
 
   public static CameraFragment newPictureInstance(Uri output,
                                                   boolean updateMediaStore,
@@ -124,7 +122,7 @@ public class CameraFragment extends Fragment {
   public void onStart() {
     super.onStart();
 
-    EventBus.getDefault().register(this);
+    subscribe();
 
     if (ctlr!=null) {
       ctlr.start();
@@ -176,7 +174,7 @@ public class CameraFragment extends Fragment {
       }
     }
 
-    EventBus.getDefault().unregister(this);
+    unsubscribe();
 
     super.onStop();
   }
@@ -289,8 +287,15 @@ public class CameraFragment extends Fragment {
    * @param ctlr the controller that this fragment delegates to
    */
   public void setController(CameraController ctlr) {
+    boolean isSubscribed=(bus!=null);
+
+    unsubscribe();
     this.ctlr=ctlr;
     ctlr.setQuality(getArguments().getInt(ARG_QUALITY, 1));
+
+    if (isSubscribed) {
+      subscribe();
+    }
   }
 
   /**
@@ -304,6 +309,24 @@ public class CameraFragment extends Fragment {
     this.mirrorPreview=mirror;
   }
 
+  /**
+   * Registers for events on our controller's bus, so we only
+   * hear about our own camera.
+   */
+  private void subscribe() {
+    if (ctlr!=null && bus==null) {
+      bus=ctlr.getBus();
+      bus.register(this);
+    }
+  }
+
+  private void unsubscribe() {
+    if (bus!=null) {
+      bus.unregister(this);
+      bus=null;
+    }
+  }
+
   @SuppressWarnings("unused")
   public void onEventMainThread(CameraController.ControllerReadyEvent event) {
     if (event.isEventForController(ctlr)) {
@@ -350,22 +373,6 @@ public class CameraFragment extends Fragment {
     isVideoRecording=false;
 
     if (event.exception==null) {
-      if (getArguments().getBoolean(ARG_UPDATE_MEDIA_STORE, false)) {
-        final Context app=getActivity().getApplicationContext();
-        Uri output=getArguments().getParcelable(ARG_OUTPUT);
-        final String path=output.getPath();
-
-        new Thread() {
-          @Override
-          public void run() {
-            SystemClock.sleep(2000);
-            MediaScannerConnection.scanFile(app,
-              new String[]{path}, new String[]{"video/mp4"},
-              null);
-          }
-        }.start();
-      }
-
       isVideoRecording=false;
       setVideoFABToNormal();
     }
@@ -421,7 +428,9 @@ public class CameraFragment extends Fragment {
           .quality(getArguments().getInt(ARG_QUALITY, 1))
           .sizeLimit(getArguments().getInt(ARG_SIZE_LIMIT, 0))
           .durationLimit(
-            getArguments().getInt(ARG_DURATION_LIMIT, 0));
+            getArguments().getInt(ARG_DURATION_LIMIT, 0))
+          .updateMediaStore(
+            getArguments().getBoolean(ARG_UPDATE_MEDIA_STORE, false));
 
         ctlr.recordVideo(b.build());
         isVideoRecording=true;
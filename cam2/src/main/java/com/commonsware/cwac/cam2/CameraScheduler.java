@@ -0,0 +1,363 @@
+/***
+ Copyright (c) 2016 CommonsWare, LLC
+
+ Licensed under the Apache License, Version 2.0 (the "License"); you may
+ not use this file except in compliance with the License. You may obtain
+ a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+package com.commonsware.cwac.cam2;
+
+import android.os.Looper;
+import android.util.Log;
+
+import com.commonsware.cwac.cam2.util.LatencyHistogram;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The background threads of this library, as a few bounded
+ * thread pools split by the kind of work they do, so that (for
+ * example) slow disk writes cannot hold up camera operations.
+ *
+ * Each pool is an Executor, which records how long tasks wait in
+ * its queue and how long they take to run. When a pool's queue is
+ * full, a submitter on a background thread waits up to
+ * REJECTION_WAIT_MS for room. If there is still no room, or the
+ * submitter is the main application thread, execute() throws a
+ * RejectedExecutionException, so the submitter can report the
+ * failure. The exception is FRAME_ANALYSIS, whose tasks instead
+ * run on the submitting thread, as the FrameDispatcher already
+ * drops frames rather than queueing them. Either way, each time
+ * the queue is found full is counted as a rejection. Idle
+ * threads exit after a minute, so the pools cost nothing while
+ * the camera is not in use.
+ */
+public class CameraScheduler {
+  /**
+   * The kinds of work that have their own pools.
+   */
+  public enum Workload {
+    /**
+     * Opening, closing, and otherwise operating the camera.
+     * CameraEngine feeds each session's operations to this pool
+     * one at a time, so they stay in order even though the pool
+     * has several threads.
+     */
+    CAMERA_CONTROL("CWAC-Cam2-Control",
+      Math.max(2, Math.min(4, Runtime.getRuntime().availableProcessors())),
+      64, false),
+
+    /**
+     * CPU-bound work on pictures, such as thumbnails
+     */
+    IMAGE_PROCESSING("CWAC-Cam2-Processing",
+      Math.max(1, Runtime.getRuntime().availableProcessors()-1), 16,
+      false),
+
+    /**
+     * Writing files and updating the MediaStore
+     */
+    DISK_IO("CWAC-Cam2-DiskIO", 2, 64, false),
+
+    /**
+     * Running the FrameAnalyzer on preview frames; frames are
+     * dropped rather than queued, so one thread suffices
+     */
+    FRAME_ANALYSIS("CWAC-Cam2-Analysis", 1, 4, true);
+
+    private final String name;
+    private final int threads;
+    private final int queueCapacity;
+    private final boolean callerRuns;
+
+    Workload(String name, int threads, int queueCapacity,
+             boolean callerRuns) {
+      this.name=name;
+      this.threads=threads;
+      this.queueCapacity=queueCapacity;
+      this.callerRuns=callerRuns;
+    }
+  }
+
+  /**
+   * How long a background thread waits for room in a full
+   * queue before its task is rejected, in milliseconds
+   */
+  public static final long REJECTION_WAIT_MS=500;
+  private static final long KEEP_ALIVE_SECONDS=60;
+  private static CameraScheduler INSTANCE=null;
+  private final InstrumentedExecutor[] executors=
+    new InstrumentedExecutor[Workload.values().length];
+  private final ScheduledThreadPoolExecutor timer=
+    new ScheduledThreadPoolExecutor(1, new NamedThreadFactory("CWAC-Cam2-Timer"));
+
+  /**
+   * @return the CameraScheduler for this process
+   */
+  synchronized public static CameraScheduler get() {
+    if (INSTANCE==null) {
+      INSTANCE=new CameraScheduler();
+    }
+
+    return(INSTANCE);
+  }
+
+  private CameraScheduler() {
+    for (Workload workload : Workload.values()) {
+      executors[workload.ordinal()]=new InstrumentedExecutor(workload);
+    }
+  }
+
+  /**
+   * @param workload the kind of work
+   * @return the pool for that kind of work
+   */
+  public InstrumentedExecutor getExecutor(Workload workload) {
+    return(executors[workload.ordinal()]);
+  }
+
+  /**
+   * Runs a task on a workload's pool.
+   *
+   * @param workload the kind of work
+   * @param task the work
+   * @throws RejectedExecutionException if the pool's queue
+   * stayed full
+   */
+  public void execute(Workload workload, Runnable task) {
+    getExecutor(workload).execute(task);
+  }
+
+  /**
+   * Runs a task on a workload's pool after a delay. The delay
+   * is handled by a single timer thread, which only hands the
+   * task over to the pool. If the pool rejects the task, it is
+   * handed over again after another delay, rather than lost.
+   *
+   * @param workload the kind of work
+   * @param task the work
+   * @param delayMs how long to wait first
+   */
+  public void schedule(final Workload workload, final Runnable task,
+                       final long delayMs) {
+    timer.schedule(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          execute(workload, task);
+        }
+        catch (RejectedExecutionException e) {
+          Log.w("CWAC-Cam2", "Rescheduling task for "+workload.name, e);
+          schedule(workload, task, Math.max(delayMs, REJECTION_WAIT_MS));
+        }
+      }
+    }, delayMs, TimeUnit.MILLISECONDS);
+  }
+
+  @Override
+  public String toString() {
+    StringBuilder buf=new StringBuilder("CameraScheduler[");
+
+    for (Workload workload : Workload.values()) {
+      if (workload.ordinal()>0) {
+        buf.append(", ");
+      }
+
+      buf.append(getExecutor(workload));
+    }
+
+    return(buf.append(']').toString());
+  }
+
+  /**
+   * A ThreadPoolExecutor with a bounded queue that keeps track
+   * of how it is doing.
+   */
+  public static class InstrumentedExecutor extends ThreadPoolExecutor {
+    private final String name;
+    private final LatencyHistogram queueLatency=new LatencyHistogram();
+    private final LatencyHistogram runLatency=new LatencyHistogram();
+    private final AtomicLong rejections=new AtomicLong();
+
+    InstrumentedExecutor(Workload workload) {
+      this(workload.name, workload.threads, workload.threads,
+        workload.queueCapacity, workload.callerRuns);
+    }
+
+    InstrumentedExecutor(String name, int coreThreads, int maxThreads,
+                         int queueCapacity, boolean callerRuns) {
+      super(coreThreads, maxThreads, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+        new ArrayBlockingQueue<Runnable>(queueCapacity),
+        new NamedThreadFactory(name));
+      this.name=name;
+      allowCoreThreadTimeOut(true);
+
+      if (callerRuns) {
+        setRejectedExecutionHandler(new CountingCallerRunsPolicy(rejections));
+      }
+      else {
+        setRejectedExecutionHandler(new BoundedWaitPolicy(rejections));
+      }
+    }
+
+    @Override
+    public void execute(Runnable command) {
+      super.execute(new TimedTask(command));
+    }
+
+    /**
+     * @return the pool's name, also used for its threads
+     */
+    public String getName() {
+      return(name);
+    }
+
+    /**
+     * @return number of tasks waiting for a thread
+     */
+    public int getQueueDepth() {
+      return(getQueue().size());
+    }
+
+    /**
+     * @return number of tasks that found the queue full, and
+     * either ran on the submitting thread (FRAME_ANALYSIS) or
+     * had to wait for room (others)
+     */
+    public long getRejectedCount() {
+      return(rejections.get());
+    }
+
+    /**
+     * @return how long tasks waited in the queue
+     */
+    public LatencyHistogram getQueueLatency() {
+      return(queueLatency.snapshot());
+    }
+
+    /**
+     * @return how long tasks took to run
+     */
+    public LatencyHistogram getRunLatency() {
+      return(runLatency.snapshot());
+    }
+
+    @Override
+    public String toString() {
+      return(name+": active="+getActiveCount()+" queued="+getQueueDepth()+
+        " rejected="+getRejectedCount()+" wait=("+queueLatency+
+        ") run=("+runLatency+")");
+    }
+
+    private class TimedTask implements Runnable {
+      private final Runnable task;
+      private final long enqueuedAt=System.nanoTime();
+
+      TimedTask(Runnable task) {
+        this.task=task;
+      }
+
+      @Override
+      public void run() {
+        long start=System.nanoTime();
+
+        queueLatency.record(start-enqueuedAt);
+
+        try {
+          task.run();
+        }
+        finally {
+          runLatency.record(System.nanoTime()-start);
+        }
+      }
+    }
+  }
+
+  private static class CountingCallerRunsPolicy
+    implements RejectedExecutionHandler {
+    private final AtomicLong rejections;
+
+    CountingCallerRunsPolicy(AtomicLong rejections) {
+      this.rejections=rejections;
+    }
+
+    @Override
+    public void rejectedExecution(Runnable r,
+                                  ThreadPoolExecutor executor) {
+      rejections.incrementAndGet();
+
+      if (!executor.isShutdown()) {
+        r.run();
+      }
+    }
+  }
+
+  /**
+   * Has background submitters wait a bit for room in the queue,
+   * then gives up with a RejectedExecutionException. The main
+   * application thread is never made to wait.
+   */
+  private static class BoundedWaitPolicy
+    implements RejectedExecutionHandler {
+    private final AtomicLong rejections;
+
+    BoundedWaitPolicy(AtomicLong rejections) {
+      this.rejections=rejections;
+    }
+
+    @Override
+    public void rejectedExecution(Runnable r,
+                                  ThreadPoolExecutor executor) {
+      rejections.incrementAndGet();
+
+      if (!executor.isShutdown() && !isMainThread()) {
+        try {
+          if (executor.getQueue().offer(r, REJECTION_WAIT_MS,
+            TimeUnit.MILLISECONDS)) {
+            return;
+          }
+        }
+        catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+      }
+
+      throw new RejectedExecutionException(executor+" is saturated");
+    }
+
+    private static boolean isMainThread() {
+      Looper main=Looper.getMainLooper();
+
+      return(main!=null && main.getThread()==Thread.currentThread());
+    }
+  }
+
+  private static class NamedThreadFactory implements ThreadFactory {
+    private final String name;
+    private final AtomicInteger count=new AtomicInteger();
+
+    NamedThreadFactory(String name) {
+      this.name=name;
+    }
+
+    @Override
+    public Thread newThread(Runnable r) {
+      return(new Thread(r, name+"-"+count.incrementAndGet()));
+    }
+  }
+}
@@ -19,6 +19,7 @@ import android.content.Context;
 import com.commonsware.cwac.cam2.util.Size;
 
 import java.util.ArrayList;
+import java.util.concurrent.Executor;
 
 /**
  * Class representing a session with a camera. While
@@ -39,6 +40,8 @@ public class CameraSession {
   private final ArrayList<CameraPlugin> plugins=new ArrayList<CameraPlugin>();
   private Size previewSize;
   private FlashMode currentFlashMode;
+  private CommandQueue commandQueue;
+  private EventChannel eventChannel;
 
   /**
    * Constructor.
@@ -87,6 +90,14 @@ public class CameraSession {
     this.previewSize=previewSize;
   }
 
+  /**
+   * @return where this session's events go, or null if they go
+   * to the engine's own channel
+   */
+  public EventChannel getEventChannel() {
+    return(eventChannel);
+  }
+
   public FlashMode getCurrentFlashMode() {
     return(currentFlashMode);
   }
@@ -95,6 +106,19 @@ public class CameraSession {
     this.currentFlashMode=currentFlashMode;
   }
 
+  /**
+   * @param backing the pool that camera operations run on
+   * @return the queue that runs this session's camera
+   * operations in order, created on first use
+   */
+  synchronized CommandQueue getCommandQueue(Executor backing) {
+    if (commandQueue==null) {
+      commandQueue=new CommandQueue(backing);
+    }
+
+    return(commandQueue);
+  }
+
   /**
    * Class to build an instance of a CameraSession. Get an instance
    * from buildSession() on your chosen CameraEngine.
@@ -120,6 +144,21 @@ public class CameraSession {
       return(this);
     }
 
+    /**
+     * Sends this session's events (opened, closed, pictures,
+     * errors) to the supplied channel, rather than to the
+     * engine's own, so they only reach whoever owns the
+     * session.
+     *
+     * @param eventChannel the channel
+     * @return the Builder, for chained calls
+     */
+    public Builder setEventChannel(EventChannel eventChannel) {
+      session.eventChannel=eventChannel;
+
+      return(this);
+    }
+
     /**
      * @return the CameraSession, configured as you requested
      */
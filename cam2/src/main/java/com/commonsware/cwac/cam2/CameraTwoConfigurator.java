@@ -30,6 +30,16 @@ public interface CameraTwoConfigurator extends CameraConfigurator {
    */
   ImageReader buildImageReader();
 
+  /**
+   * @return an ImageReader for full-resolution YUV_420_888
+   * frames, streamed alongside the preview, from which
+   * zero-shutter-lag pictures are taken; or null if this
+   * configurator does not ask for zero-shutter-lag capture. The
+   * engine keeps up to getMaxImages()-2 recent frames; the rest
+   * of the buffers are for frames on their way in and out.
+   */
+  ImageReader buildZslImageReader();
+
   /**
    * Updates a CaptureRequest to reflect what the plugin needs.
    *
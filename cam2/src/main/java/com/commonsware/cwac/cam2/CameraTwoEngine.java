@@ -19,6 +19,7 @@ import android.content.Context;
 import android.graphics.ImageFormat;
 import android.graphics.Rect;
 import android.graphics.SurfaceTexture;
+import android.graphics.YuvImage;
 import android.hardware.camera2.CameraAccessException;
 import android.hardware.camera2.CameraCaptureSession;
 import android.hardware.camera2.CameraCharacteristics;
@@ -39,19 +40,18 @@ import android.os.HandlerThread;
 import android.util.Log;
 import android.view.Surface;
 
+import com.commonsware.cwac.cam2.util.ExifOrientationWriter;
 import com.commonsware.cwac.cam2.util.Size;
 
+import java.io.ByteArrayOutputStream;
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.List;
-import java.util.concurrent.CountDownLatch;
-import java.util.concurrent.Semaphore;
-import java.util.concurrent.TimeUnit;
-
-import de.greenrobot.event.EventBus;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
 
 /**
  * Implementation of a CameraEngine that supports the
@@ -60,15 +60,26 @@ import de.greenrobot.event.EventBus;
 @SuppressWarnings("ResourceType")
 @TargetApi(Build.VERSION_CODES.LOLLIPOP)
 public class CameraTwoEngine extends CameraEngine {
+  /**
+   * Buffers of a ZSL ImageReader that are not part of the ring,
+   * per CameraTwoConfigurator.buildZslImageReader()
+   */
+  private static final int ZSL_SPARE_IMAGES=2;
+  private static final int ZSL_JPEG_QUALITY=95;
+
+  /**
+   * Buffers for frames to analyze: one being analyzed, one
+   * being filled, and one spare
+   */
+  private static final int ANALYSIS_IMAGES=3;
   private final Context ctxt;
   private CameraManager mgr;
   final private HandlerThread handlerThread=new HandlerThread(getClass().getSimpleName(),
       android.os.Process.THREAD_PRIORITY_BACKGROUND);
   final private Handler handler;
-  final private Semaphore lock=new Semaphore(1);
-  private CountDownLatch closeLatch=null;
   private MediaActionSound shutter=new MediaActionSound();
   private List<Descriptor> descriptors=null;
+  private final DescriptorCache cache;
 
   /**
    * Standard constructor
@@ -79,6 +90,7 @@ public class CameraTwoEngine extends CameraEngine {
     this.ctxt=ctxt.getApplicationContext();
     mgr=(CameraManager)this.ctxt.
         getSystemService(Context.CAMERA_SERVICE);
+    cache=DescriptorCache.forEngine(this.ctxt, "two");
     handlerThread.start();
     handler=new Handler(handlerThread.getLooper());
     shutter.load(MediaActionSound.SHUTTER_CLICK);
@@ -96,51 +108,33 @@ public class CameraTwoEngine extends CameraEngine {
    * {@inheritDoc}
    */
   @Override
-  public void loadCameraDescriptors(final CameraSelectionCriteria criteria) {
-    getThreadPool().execute(new Runnable() {
+  public void loadCameraDescriptors(CameraSelectionCriteria criteria) {
+    loadCameraDescriptors(criteria, null);
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public void loadCameraDescriptors(final CameraSelectionCriteria criteria,
+                                    final EventChannel channel) {
+    executeForEngine(new Runnable() {
       @Override
       public void run() {
         if (descriptors==null) {
-          List<Descriptor> result=new ArrayList<Descriptor>();
-
           try {
-            for (String cameraId : mgr.getCameraIdList()) {
-              CameraCharacteristics cc=
-                mgr.getCameraCharacteristics(cameraId);
-              Descriptor camera=new Descriptor(cameraId, cc);
-              StreamConfigurationMap map=cc.get(
-                CameraCharacteristics.SCALER_STREAM_CONFIGURATION_MAP);
-              android.util.Size[] rawSizes=
-                map.getOutputSizes(SurfaceTexture.class);
-              ArrayList<Size> sizes=new ArrayList<Size>();
-
-              for (android.util.Size size : rawSizes) {
-                if (size.getWidth()<2160 &&
-                  size.getHeight()<2160) {
-                  sizes.add(
-                    new Size(size.getWidth(), size.getHeight()));
-                }
-              }
-
-              camera.setPreviewSizes(sizes);
-              camera.setPictureSizes(Arrays.asList(
-                map.getOutputSizes(ImageFormat.JPEG)));
-              camera.setFacingFront(
-                cc.get(CameraCharacteristics.LENS_FACING)==
-                  CameraCharacteristics.LENS_FACING_FRONT);
-              result.add(camera);
-            }
-
-            descriptors=result;
+            descriptors=loadDescriptors();
           }
-          catch (CameraAccessException e) {
-            getBus().post(
+          catch (Exception e) {
+            postEvent(channel,
               new CameraEngine.CameraDescriptorsEvent(e));
 
             if (isDebug()) {
               Log.e(getClass().getSimpleName(),
                 "Exception accessing camera", e);
             }
+
+            return;
           }
         }
 
@@ -169,7 +163,7 @@ public class CameraTwoEngine extends CameraEngine {
             }
           });
 
-        getBus().post(
+        postEvent(channel,
           new CameraEngine.CameraDescriptorsEvent(result));
       }
     });
@@ -181,18 +175,41 @@ public class CameraTwoEngine extends CameraEngine {
   @Override
   public void open(final CameraSession session,
                    final SurfaceTexture texture) {
-    getThreadPool().execute(new Runnable() {
+    awaitPreviousSession(session);
+    getCommandQueue(session).submitAsync("open",
+      new CommandQueue.AsyncCommand() {
       @Override
-      public void run() {
+      public void run(CommandQueue.Completion done) {
         Descriptor camera=(Descriptor)session.getDescriptor();
 
         try {
           CameraCharacteristics cc=
             mgr.getCameraCharacteristics(camera.getId());
 
+          if (!camera.isValidated()) {
+            revalidate(camera, cc);
+          }
+
+          final Session s=(Session)session;
+
+          s.characteristics=CharacteristicsSnapshot.from(cc);
+          s.zoom=new ZoomController(s.characteristics, handler,
+            ZoomController.DEFAULT_INTERVAL_MS,
+            new ZoomController.Applier() {
+              @Override
+              public void apply(final Rect cropRegion) {
+                getCommandQueue(s).submitCoalesced("zoom",
+                  new Runnable() {
+                    @Override
+                    public void run() {
+                      applyZoom(s, cropRegion);
+                    }
+                  });
+              }
+            });
           eligibleFlashModes.clear();
 
-          int[] availModes=cc.get(CameraCharacteristics.CONTROL_AE_AVAILABLE_MODES);
+          int[] availModes=s.characteristics.getAeModes();
 
           for (FlashMode flashMode : preferredFlashModes) {
             for (int rawFlashMode : availModes) {
@@ -216,22 +233,30 @@ public class CameraTwoEngine extends CameraEngine {
 
           session.setCurrentFlashMode(eligibleFlashModes.get(0));
 
-          if (!lock.tryAcquire(2500, TimeUnit.MILLISECONDS)) {
-            throw new RuntimeException("Time out waiting to lock camera opening.");
-          }
+          // if this times out, a close() that follows has to wait
+          // for the device to turn up, so it can be closed
 
+          s.isOpening=true;
           mgr.openCamera(camera.getId(),
-              new InitPreviewTransaction(session, new Surface(texture)),
+              new InitPreviewTransaction(session, new Surface(texture),
+                done),
               handler);
         }
         catch (Exception e) {
-          getBus().post(new OpenedEvent(e));
+          ((Session)session).isOpening=false;
+          done.complete();
+          postEvent(session, new OpenedEvent(e));
 
           if (isDebug()) {
             Log.e(getClass().getSimpleName(), "Exception opening camera", e);
           }
         }
       }
+
+      @Override
+      void onError(Exception e) {
+        postEvent(session, new OpenedEvent(e));
+      }
     });
   }
 
@@ -241,40 +266,86 @@ public class CameraTwoEngine extends CameraEngine {
   @Override
   public void close(final CameraSession session) {
     final Session s=(Session)session;
+    final long requestedAt=System.nanoTime();
+
+    if (s.zoom!=null) {
+      s.zoom.cancel();
+    }
+
+    getCommandQueue(session).submitAsync("close",
+      new CommandQueue.AsyncCommand() {
+      @Override
+      public void run(final CommandQueue.Completion done) {
+        final long startedAt=System.nanoTime();
+
+        handler.post(new Runnable() {
+          @Override
+          public void run() {
+            teardown(s, new PendingClose(requestedAt, startedAt, done));
+          }
+        });
+      }
+    });
+  }
+
+  /**
+   * Tears down a session on the handler thread: first the
+   * ImageReaders, to hand their buffers back as soon as possible,
+   * then the capture session, then the camera device. The
+   * close finishes when the device reports that it is closed.
+   */
+  private void teardown(Session s, PendingClose pending) {
+    s.setClosed(true);
 
     try {
-      lock.acquire();
+      if (s.reader != null) {
+        s.reader.setOnImageAvailableListener(null, null);
+        s.closeReader();
+      }
+
+      closeZslStream(s);
+      closeAnalysisStream(s);
 
       if (s.captureSession != null) {
-        closeLatch=new CountDownLatch(1);
         s.captureSession.close();
-        closeLatch.await(2, TimeUnit.SECONDS);
         s.captureSession=null;
       }
 
       if (s.cameraDevice != null) {
+        s.pendingClose=pending;
         s.cameraDevice.close();
         s.cameraDevice=null;
       }
+      else if (s.isOpening) {
+        // the open timed out, but the device may still turn up;
+        // it is closed when it does, which finishes this close
 
-      if (s.reader != null) {
-        s.reader.close();
+        s.pendingClose=pending;
+      }
+      else {
+        finishClose(s, pending, null);
       }
-
-      s.setClosed(true);
-
-      Descriptor camera=(Descriptor)session.getDescriptor();
-
-      camera.setDevice(null);
-      session.destroy();
-      getBus().post(new ClosedEvent());
     }
     catch (Exception e) {
-      getBus().post(new ClosedEvent(e));
+      finishClose(s, pending, e);
     }
-    finally {
-      lock.release();
+  }
+
+  private void finishClose(Session s, PendingClose pending,
+                           Exception e) {
+    s.pendingClose=null;
+    ((Descriptor)s.getDescriptor()).setDevice(null);
+    s.destroy();
+
+    if (e==null) {
+      postEvent(s, new ClosedEvent(pending.requestedAt,
+        pending.startedAt));
+    }
+    else {
+      postEvent(s, new ClosedEvent(e));
     }
+
+    pending.done.complete();
   }
 
   /**
@@ -282,34 +353,296 @@ public class CameraTwoEngine extends CameraEngine {
    */
   public void takePicture(CameraSession session,
                           PictureTransaction xact) {
+    takePictures(session, 1, 0.0f, xact);
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public void takeBurst(CameraSession session, int count,
+                        float framesPerSecond,
+                        PictureTransaction xact) {
+    checkBurst(count, xact);
+
+    takePictures(session, count, framesPerSecond, xact);
+  }
+
+  private void takePictures(CameraSession session, final int count,
+                            final float framesPerSecond,
+                            final PictureTransaction xact) {
     final Session s=(Session)session;
+    final CaptureTimeline timeline=new CaptureTimeline();
+    final ZslStream zsl=(count==1 ? s.zsl : null);
+    final long pressedAt=(zsl==null ? -1 : zsl.ring.getLatestTimestamp());
+    long timeout=CommandQueue.ASYNC_TIMEOUT_MS;
+
+    if (framesPerSecond>0.0f) {
+      timeout+=(long)(count*1000.0f/framesPerSecond);
+    }
 
-    s.reader.setOnImageAvailableListener(new TakePictureTransaction(session.getContext(), getBus(), xact),
-        handler);
+    // the capture is done once the last frame is, so zooms and
+    // other commands wait until then, rather than interfering
+    // with the focus lock
 
-    getThreadPool().execute(new Runnable() {
+    getCommandQueue(s).submitAsync("capture", timeout,
+      new CommandQueue.AsyncCommand() {
       @Override
-      public void run() {
+      public void run(CommandQueue.Completion done) {
+        if (zsl!=null &&
+          takeZslPicture(s, zsl, pressedAt, xact, timeline)) {
+          done.complete();
+
+          return;
+        }
+
         try {
+          TakePictureTransaction pictures=
+            new TakePictureTransaction(s, xact, count, timeline);
+
+          s.reader.setOnImageAvailableListener(pictures, handler);
+
           // This is how to tell the camera to lock focus.
           s.previewRequestBuilder.set(CaptureRequest.CONTROL_AF_TRIGGER,
               CameraMetadata.CONTROL_AF_TRIGGER_START);
           s.captureSession.setRepeatingRequest(
             s.previewRequestBuilder.build(),
-            new RequestCaptureTransaction(s),
+            new RequestCaptureTransaction(s, count, framesPerSecond,
+              pictures, done),
             handler);
         }
         catch (Exception e) {
-          getBus().post(new PictureTakenEvent(e));
+          done.complete();
+          postEvent(s, new PictureTakenEvent(e));
 
           if (isDebug()) {
             Log.e(getClass().getSimpleName(), "Exception taking picture", e);
           }
         }
       }
+
+      @Override
+      void onError(Exception e) {
+        postEvent(s, new PictureTakenEvent(e));
+      }
     });
   }
 
+  /**
+   * Turns the best recent frame into a picture, instead of
+   * having the camera capture a new one. Only the copy out of
+   * the camera's buffer happens here; JPEG encoding is done
+   * along with the rest of the picture processing.
+   *
+   * @return true if a frame was used, false if the picture
+   * needs to be taken the normal way
+   */
+  private boolean takeZslPicture(final Session s, ZslStream zsl,
+                                 long pressedAt,
+                                 final PictureTransaction xact,
+                                 final CaptureTimeline timeline) {
+    FlashMode flashMode=s.getCurrentFlashMode();
+
+    // frames from the stream never have flash, so a picture
+    // that needs flash has to be captured for real
+
+    if (s.isClosed() || pressedAt<0 ||
+      flashMode==FlashMode.ALWAYS || flashMode==FlashMode.REDEYE) {
+      return(false);
+    }
+
+    final Image image=zsl.ring.take(pressedAt);
+
+    if (image==null) {
+      if (isDebug()) {
+        Log.d(getClass().getSimpleName(), "No usable ZSL frame: "+zsl.ring);
+      }
+
+      return(false);
+    }
+
+    timeline.mark(CaptureTimeline.Stage.CAPTURE_STARTED);
+
+    final int width=image.getWidth();
+    final int height=image.getHeight();
+    final byte[] nv21;
+    final Integer rotation;
+    final Byte quality;
+
+    try {
+      nv21=toNv21(image);
+
+      // run the plugins as if for a real capture, to find out
+      // how the picture should be oriented and compressed
+
+      CaptureRequest.Builder captureBuilder=
+        s.cameraDevice.createCaptureRequest(CameraDevice.TEMPLATE_STILL_CAPTURE);
+      Descriptor camera=(Descriptor)s.getDescriptor();
+
+      s.addToCaptureRequest(getCharacteristics(s).getCharacteristics(),
+        camera.isFacingFront, captureBuilder);
+      rotation=captureBuilder.get(CaptureRequest.JPEG_ORIENTATION);
+      quality=captureBuilder.get(CaptureRequest.JPEG_QUALITY);
+    }
+    catch (Exception e) {
+      // most likely the session was closed out from under us
+
+      if (isDebug()) {
+        Log.w(getClass().getSimpleName(), "Exception reading ZSL frame", e);
+      }
+
+      return(false);
+    }
+    finally {
+      image.close();
+    }
+
+    shutter.play(MediaActionSound.SHUTTER_CLICK);
+
+    final Context ctxt=s.getContext();
+
+    try {
+      CameraScheduler.get().execute(CameraScheduler.Workload.IMAGE_PROCESSING,
+        new Runnable() {
+          @Override
+          public void run() {
+            byte[] jpeg=encodeJpeg(nv21, width, height,
+              quality==null ? ZSL_JPEG_QUALITY : quality,
+              rotation==null ? 0 : rotation);
+            ImageContext imageContext=new ImageContext(ctxt, jpeg);
+
+            timeline.mark(CaptureTimeline.Stage.IMAGE_AVAILABLE);
+            imageContext.setTimeline(timeline);
+            processPicture(s, xact, imageContext);
+          }
+        });
+    }
+    catch (RejectedExecutionException e) {
+      postEvent(s, new PictureTakenEvent(e));
+    }
+
+    return(true);
+  }
+
+  /**
+   * Stops collecting ZSL frames for a session and hands their
+   * buffers back, on the handler thread.
+   */
+  private void closeZslStream(Session s) {
+    if (s.zslReader != null) {
+      s.zslReader.setOnImageAvailableListener(null, null);
+      s.zsl.ring.clear();
+      s.zslReader.close();
+      s.zslReader=null;
+      s.zsl=null;
+    }
+  }
+
+  /**
+   * Stops streaming frames to the FrameAnalyzer for a session,
+   * on the handler thread. The ImageReader closes once the
+   * analyzer is done with its frames.
+   */
+  private void closeAnalysisStream(Session s) {
+    if (s.analysisReader != null) {
+      s.analysisReader.setOnImageAvailableListener(null, null);
+      s.analysis.close(s.analysisReader);
+      s.analysisReader=null;
+      s.analysis=null;
+    }
+  }
+
+  /**
+   * Creates the capture session for a newly-opened camera, with
+   * outputs for the preview, the pictures, and whichever optional
+   * streams the session has.
+   */
+  private void createCaptureSession(Session s, Surface surface,
+                                    CommandQueue.Completion done)
+    throws CameraAccessException {
+    List<Surface> outputs=new ArrayList<Surface>(
+      Arrays.asList(surface, s.reader.getSurface()));
+
+    if (s.zslReader!=null) {
+      outputs.add(s.zslReader.getSurface());
+    }
+
+    if (s.analysisReader!=null) {
+      outputs.add(s.analysisReader.getSurface());
+    }
+
+    s.cameraDevice.createCaptureSession(outputs,
+      new StartPreviewTransaction(s, surface, done), handler);
+  }
+
+  /**
+   * Copies a YUV_420_888 Image into an NV21 array, the format
+   * that YuvImage can compress.
+   */
+  private static byte[] toNv21(Image image) {
+    int width=image.getWidth();
+    int height=image.getHeight();
+    Image.Plane[] planes=image.getPlanes();
+    byte[] result=new byte[width*height*3/2];
+    ByteBuffer y=planes[0].getBuffer();
+    int yRowStride=planes[0].getRowStride();
+    int yPixelStride=planes[0].getPixelStride();
+    int pos=0;
+
+    if (yPixelStride==1 && yRowStride==width) {
+      y.get(result, 0, width*height);
+      pos=width*height;
+    }
+    else if (yPixelStride==1) {
+      for (int row=0;row<height;row++) {
+        y.position(row*yRowStride);
+        y.get(result, pos, width);
+        pos+=width;
+      }
+    }
+    else {
+      for (int row=0;row<height;row++) {
+        int offset=row*yRowStride;
+
+        for (int col=0;col<width;col++) {
+          result[pos++]=y.get(offset);
+          offset+=yPixelStride;
+        }
+      }
+    }
+
+    ByteBuffer u=planes[1].getBuffer();
+    ByteBuffer v=planes[2].getBuffer();
+    int uvRowStride=planes[1].getRowStride();
+    int uvPixelStride=planes[1].getPixelStride();
+
+    for (int row=0;row<height/2;row++) {
+      int offset=row*uvRowStride;
+
+      for (int col=0;col<width/2;col++) {
+        result[pos++]=v.get(offset);
+        result[pos++]=u.get(offset);
+        offset+=uvPixelStride;
+      }
+    }
+
+    return(result);
+  }
+
+  private static byte[] encodeJpeg(byte[] nv21, int width, int height,
+                                   int quality, int rotation) {
+    ByteArrayOutputStream out=new ByteArrayOutputStream(nv21.length/4);
+
+    new YuvImage(nv21, ImageFormat.NV21, width, height, null)
+      .compressToJpeg(new Rect(0, 0, width, height), quality, out);
+
+    byte[] jpeg=out.toByteArray();
+    byte[] rotated=new ExifOrientationWriter().setOrientation(jpeg,
+      jpeg.length, ExifOrientationWriter.orientationForRotation(rotation));
+
+    return(rotated==null ? jpeg : rotated);
+  }
+
   @Override
   public void handleOrientationChange(CameraSession session,
                                       OrientationChangedEvent event) {
@@ -337,19 +670,15 @@ public class CameraTwoEngine extends CameraEngine {
   @Override
   public boolean supportsZoom(CameraSession session) {
     boolean result=false;
-    Descriptor descriptor=(Descriptor)session.getDescriptor();
 
     try {
-      CameraCharacteristics cc=
-        mgr.getCameraCharacteristics(descriptor.cameraId);
-
-      float maxZoom=cc.get(
-        CameraCharacteristics.SCALER_AVAILABLE_MAX_DIGITAL_ZOOM);
+      float maxZoom=
+        getCharacteristics((Session)session).getMaxDigitalZoom();
 
       result=(maxZoom>=1.0f);
     }
     catch (CameraAccessException e) {
-      getBus().post(new DeepImpactEvent(e));
+      postEvent(session, new DeepImpactEvent(e));
     }
 
     return(result);
@@ -359,66 +688,94 @@ public class CameraTwoEngine extends CameraEngine {
   public boolean zoomTo(CameraSession session,
                          int zoomLevel) {
     final Session s=(Session)session;
-    final Descriptor descriptor=(Descriptor)session.getDescriptor();
 
-    if (s.previewRequest!=null) {
-      try {
-        final CameraCharacteristics cc=
-          mgr.getCameraCharacteristics(descriptor.cameraId);
-        final float maxZoom=
-          cc.get(
-            CameraCharacteristics.SCALER_AVAILABLE_MAX_DIGITAL_ZOOM);
-
-        // if <=1, zoom not possible, so eat the the event
-        if (maxZoom>1.0f) {
-          float zoomTo=1.0f+((float)zoomLevel*(maxZoom-1.0f)/100.0f);
-          Rect zoomRect=cropRegionForZoom(cc, zoomTo);
-
-          s.previewRequestBuilder
-            .set(CaptureRequest.SCALER_CROP_REGION, zoomRect);
-          s.setZoomRect(zoomRect);
-          s.previewRequest=s.previewRequestBuilder.build();
-          s.captureSession.setRepeatingRequest(s.previewRequest,
-            null, handler);
-        }
-      }
-      catch (CameraAccessException e) {
-        getBus().post(new DeepImpactEvent(e));
-      }
+    // if max zoom <=1, zoom not possible, so eat the the event
+
+    if (s.previewRequest!=null && s.zoom!=null &&
+      s.characteristics.supportsZoom()) {
+      s.zoom.zoomTo(zoomLevel);
     }
 
     return(false);
   }
 
-  @TargetApi(Build.VERSION_CODES.LOLLIPOP)
-  private static Rect cropRegionForZoom(CameraCharacteristics cc,
-                                        float zoomTo) {
-    Rect sensor=
-      cc.get(CameraCharacteristics.SENSOR_INFO_ACTIVE_ARRAY_SIZE);
-    int sensorCenterX=sensor.width()/2;
-    int sensorCenterY=sensor.height()/2;
-    int deltaX=(int)(0.5f*sensor.width()/zoomTo);
-    int deltaY=(int)(0.5f*sensor.height()/zoomTo);
+  /**
+   * Returns the ZoomController for an open session, mostly
+   * to find out how many zoom changes were applied or dropped.
+   *
+   * @param session the session
+   * @return the session's ZoomController, or null if the
+   * session has not been opened
+   */
+  public ZoomController getZoomController(CameraSession session) {
+    return(((Session)session).zoom);
+  }
+
+  private void applyZoom(Session s, Rect cropRegion) {
+    if (s.isClosed() || s.captureSession==null) {
+      return;
+    }
+
+    try {
+      s.previewRequestBuilder
+        .set(CaptureRequest.SCALER_CROP_REGION, cropRegion);
+      s.setZoomRect(cropRegion);
+      s.previewRequest=s.previewRequestBuilder.build();
+      s.captureSession.setRepeatingRequest(s.previewRequest,
+        s.zsl, handler);
+    }
+    catch (CameraAccessException e) {
+      postEvent(s, new DeepImpactEvent(e));
+    }
+  }
+
+  /**
+   * Returns the session's snapshot of its camera's
+   * characteristics, normally taken in open(). Only if the
+   * session has not been opened yet is CameraManager consulted.
+   */
+  private CharacteristicsSnapshot getCharacteristics(Session s)
+    throws CameraAccessException {
+    CharacteristicsSnapshot result=s.characteristics;
+
+    if (result==null) {
+      Descriptor descriptor=(Descriptor)s.getDescriptor();
+
+      result=CharacteristicsSnapshot.from(
+        mgr.getCameraCharacteristics(descriptor.cameraId));
+      s.characteristics=result;
+    }
 
-    return(new Rect(
-      sensorCenterX-deltaX,
-      sensorCenterY-deltaY,
-      sensorCenterX+deltaX,
-      sensorCenterY+deltaY));
+    return(result);
   }
 
   private class InitPreviewTransaction extends CameraDevice.StateCallback {
     private final Session s;
     private final Surface surface;
+    private final CommandQueue.Completion done;
 
-    InitPreviewTransaction(CameraSession session, Surface surface) {
+    InitPreviewTransaction(CameraSession session, Surface surface,
+                           CommandQueue.Completion done) {
       this.s=(Session)session;
       this.surface=surface;
+      this.done=done;
     }
 
     @Override
     public void onOpened(CameraDevice cameraDevice) {
-      lock.release();
+      s.isOpening=false;
+
+      if (s.isClosed()) {
+        // the open timed out and close() went ahead without us,
+        // so do not leak the device; onClosed() finishes the
+        // close
+
+        done.complete();
+        cameraDevice.close();
+
+        return;
+      }
+
       s.cameraDevice=cameraDevice;
       s.reader=s.buildImageReader();
 
@@ -427,34 +784,121 @@ public class CameraTwoEngine extends CameraEngine {
       camera.setDevice(cameraDevice);
 
       try {
-        cameraDevice.createCaptureSession(
-            Arrays.asList(surface, s.reader.getSurface()),
-            new StartPreviewTransaction(s, surface), handler);
+        openAnalysisStream(s);
+        openZslStream(s);
+        createCaptureSession(s, surface, done);
       }
       catch (CameraAccessException e) {
-        getBus().post(new OpenedEvent(e));
+        done.complete();
+        postEvent(s, new OpenedEvent(e));
       }
     }
 
     @Override
     public void onDisconnected(CameraDevice cameraDevice) {
-      lock.release();
+      s.isOpening=false;
+      done.complete();
+      forget(cameraDevice);
       cameraDevice.close();
     }
 
     @Override
     public void onError(CameraDevice cameraDevice, int i) {
-      lock.release();
+      s.isOpening=false;
+      done.complete();
+      forget(cameraDevice);
       cameraDevice.close();
-      getBus().post(new CameraTwoPreviewErrorEvent(i));
+      postEvent(s, new CameraTwoPreviewErrorEvent(i));
     }
 
     @Override
-    public void onClosed(CameraDevice camera) {
-      super.onClosed(camera);
+    public void onClosed(CameraDevice cameraDevice) {
+      PendingClose pending=s.pendingClose;
+
+      if (pending!=null) {
+        finishClose(s, pending, null);
+      }
+    }
+
+    /**
+     * Sets up the zero-shutter-lag stream, if a plugin asked for
+     * one, the camera's hardware level allows for it alongside
+     * the other streams, and the camera can deliver YUV frames
+     * of that size.
+     */
+    private void openZslStream(Session s) throws CameraAccessException {
+      ImageReader zslReader=s.buildZslImageReader();
+
+      if (zslReader==null) {
+        return;
+      }
+
+      CharacteristicsSnapshot characteristics=getCharacteristics(s);
+
+      if (!characteristics.supportsZslStream(s.analysisReader!=null)) {
+        if (isDebug()) {
+          Log.w(getClass().getSimpleName(),
+            "Hardware level "+characteristics.getHardwareLevel()+
+              " cannot stream ZSL frames, skipping");
+        }
+
+        zslReader.close();
+
+        return;
+      }
+
+      StreamConfigurationMap map=characteristics
+        .getCharacteristics()
+        .get(CameraCharacteristics.SCALER_STREAM_CONFIGURATION_MAP);
+      android.util.Size size=
+        new android.util.Size(zslReader.getWidth(), zslReader.getHeight());
+
+      if (!Arrays.asList(map.getOutputSizes(zslReader.getImageFormat()))
+        .contains(size)) {
+        if (isDebug()) {
+          Log.w(getClass().getSimpleName(),
+            "Camera cannot stream "+size+" for ZSL, skipping");
+        }
+
+        zslReader.close();
+
+        return;
+      }
+
+      s.zsl=new ZslStream(zslReader.getMaxImages()-ZSL_SPARE_IMAGES);
+      s.zslReader=zslReader;
+      zslReader.setOnImageAvailableListener(s.zsl, handler);
+    }
 
-      if (closeLatch != null) {
-        closeLatch.countDown();
+    /**
+     * Sets up a stream of preview-sized YUV frames for the
+     * FrameAnalyzer, if there is one. Every hardware level
+     * promises a preview-sized YUV stream next to the preview
+     * and JPEG streams, so this goes ahead of the ZSL stream,
+     * which is only added if the hardware level allows for both.
+     */
+    private void openAnalysisStream(Session s) {
+      FrameDispatcher dispatcher=getFrameDispatcher();
+      Size previewSize=s.getPreviewSize();
+
+      if (dispatcher==null || previewSize==null) {
+        return;
+      }
+
+      s.analysis=new AnalysisStream(dispatcher);
+      s.analysisReader=ImageReader.newInstance(previewSize.getWidth(),
+        previewSize.getHeight(), ImageFormat.YUV_420_888,
+        ANALYSIS_IMAGES);
+      s.analysisReader.setOnImageAvailableListener(s.analysis, handler);
+    }
+
+    /**
+     * Drops a device that is closing on its own, so a later
+     * teardown does not wait for it to close again.
+     */
+    private void forget(CameraDevice cameraDevice) {
+      if (s.cameraDevice==cameraDevice) {
+        s.cameraDevice=null;
       }
     }
   }
@@ -462,10 +906,13 @@ public class CameraTwoEngine extends CameraEngine {
   private class StartPreviewTransaction extends CameraCaptureSession.StateCallback {
     private final Surface surface;
     private final Session s;
+    private final CommandQueue.Completion done;
 
-    StartPreviewTransaction(CameraSession session, Surface surface) {
+    StartPreviewTransaction(CameraSession session, Surface surface,
+                            CommandQueue.Completion done) {
       this.s=(Session)session;
       this.surface=surface;
+      this.done=done;
     }
 
     @Override
@@ -476,13 +923,22 @@ public class CameraTwoEngine extends CameraEngine {
 
           s.previewRequestBuilder=session.getDevice().createCaptureRequest(CameraDevice.TEMPLATE_PREVIEW);
           s.previewRequestBuilder.addTarget(surface);
+
+          if (s.zslReader!=null) {
+            s.previewRequestBuilder.addTarget(s.zslReader.getSurface());
+          }
+
+          if (s.analysisReader!=null) {
+            s.previewRequestBuilder.addTarget(s.analysisReader.getSurface());
+          }
+
           s.previewRequestBuilder.set(CaptureRequest.CONTROL_AF_MODE,
               CaptureRequest.CONTROL_AF_MODE_CONTINUOUS_PICTURE);
           s.previewRequestBuilder.set(CaptureRequest.CONTROL_AE_MODE,
               CaptureRequest.CONTROL_AE_MODE_ON_AUTO_FLASH);
 
-          Descriptor camera=(Descriptor)s.getDescriptor();
-          CameraCharacteristics cc=mgr.getCameraCharacteristics(camera.cameraId);
+          CameraCharacteristics cc=
+            getCharacteristics(s).getCharacteristics();
 
           if (s.getZoomRect()!=null) {
             s
@@ -495,35 +951,90 @@ public class CameraTwoEngine extends CameraEngine {
 
           s.previewRequest=s.previewRequestBuilder.build();
 
-          session.setRepeatingRequest(s.previewRequest, null, handler);
+          session.setRepeatingRequest(s.previewRequest, s.zsl, handler);
 
-          getBus().post(new OpenedEvent());
+          postEvent(s, new OpenedEvent());
         }
       }
       catch (CameraAccessException e) {
-        getBus().post(new OpenedEvent(e));
+        postEvent(s, new OpenedEvent(e));
       }
       catch (IllegalStateException e) {
         if (isDebug()) {
           Log.w(getClass().getSimpleName(), "Exception resetting focus", e);
         }
       }
+      finally {
+        done.complete();
+      }
     }
 
+    /**
+     * {@inheritDoc}
+     *
+     * The hardware level does not promise that every device can
+     * stream ZSL or analysis frames next to the preview and the
+     * pictures, so if the session has either stream, try again
+     * without it (ZSL first) before giving up.
+     */
     @Override
     public void onConfigureFailed(CameraCaptureSession session) {
-      getBus().post(new CameraTwoPreviewFailureEvent());
+      if (!s.isClosed() && s.cameraDevice!=null &&
+        (s.zslReader!=null || s.analysisReader!=null)) {
+        if (s.zslReader!=null) {
+          if (isDebug()) {
+            Log.w(getClass().getSimpleName(),
+              "Could not configure session with ZSL, retrying without");
+          }
+
+          closeZslStream(s);
+        }
+        else {
+          if (isDebug()) {
+            Log.w(getClass().getSimpleName(),
+              "Could not configure session for analysis, retrying without");
+          }
+
+          closeAnalysisStream(s);
+        }
+
+        try {
+          createCaptureSession(s, surface, done);
+
+          return;
+        }
+        catch (CameraAccessException e) {
+          done.complete();
+          postEvent(s, new OpenedEvent(e));
+
+          return;
+        }
+      }
+
+      done.complete();
+      postEvent(s, new CameraTwoPreviewFailureEvent());
     }
   }
 
   private class RequestCaptureTransaction extends CameraCaptureSession.CaptureCallback {
     private final Session s;
+    private final int count;
+    private final float framesPerSecond;
+    private final TakePictureTransaction pictures;
+    private final CommandQueue.Completion done;
     boolean isWaitingForFocus=true;
     boolean isWaitingForPrecapture=false;
     boolean haveWeStartedCapture=false;
 
-    RequestCaptureTransaction(CameraSession session) {
+    RequestCaptureTransaction(CameraSession session, int count,
+                              float framesPerSecond,
+                              TakePictureTransaction pictures,
+                              CommandQueue.Completion done) {
       this.s=(Session)session;
+      this.count=count;
+      this.framesPerSecond=framesPerSecond;
+      this.pictures=pictures;
+      this.done=done;
     }
 
     @Override
@@ -534,7 +1045,7 @@ public class CameraTwoEngine extends CameraEngine {
 
     @Override
     public void onCaptureFailed(CameraCaptureSession session, CaptureRequest request, CaptureFailure failure) {
-      getBus().post(new PictureTakenEvent(new RuntimeException("generic camera2 capture failure")));
+      postEvent(s, new PictureTakenEvent(new RuntimeException("generic camera2 capture failure")));
     }
 
     @Override
@@ -550,12 +1061,15 @@ public class CameraTwoEngine extends CameraEngine {
 
         if (CaptureResult.CONTROL_AF_STATE_FOCUSED_LOCKED == autoFocusState ||
             CaptureResult.CONTROL_AF_STATE_NOT_FOCUSED_LOCKED == autoFocusState) {
+          pictures.timeline.mark(CaptureTimeline.Stage.FOCUS_LOCKED);
+
           Integer state=result.get(CaptureResult.CONTROL_AE_STATE);
 
           if (state == null ||
               state == CaptureResult.CONTROL_AE_STATE_CONVERGED) {
             isWaitingForPrecapture=false;
             haveWeStartedCapture=true;
+            pictures.timeline.mark(CaptureTimeline.Stage.EXPOSURE_CONVERGED);
             capture(s);
           } else {
             isWaitingForPrecapture=true;
@@ -578,6 +1092,7 @@ public class CameraTwoEngine extends CameraEngine {
         if (state == null ||
             state != CaptureResult.CONTROL_AE_STATE_PRECAPTURE) {
           haveWeStartedCapture=true;
+          pictures.timeline.mark(CaptureTimeline.Stage.EXPOSURE_CONVERGED);
           capture(s);
         }
       }
@@ -591,7 +1106,8 @@ public class CameraTwoEngine extends CameraEngine {
             handler);
       }
       catch (Exception e) {
-        getBus().post(new PictureTakenEvent(e));
+        done.complete();
+        postEvent(s, new PictureTakenEvent(e));
 
         if (isDebug()) {
           Log.e(getClass().getSimpleName(), "Exception running precapture", e);
@@ -611,7 +1127,8 @@ public class CameraTwoEngine extends CameraEngine {
             CaptureRequest.CONTROL_AE_MODE_ON_AUTO_FLASH);
 
         Descriptor camera=(Descriptor)s.getDescriptor();
-        CameraCharacteristics cc=mgr.getCameraCharacteristics(camera.cameraId);
+        CameraCharacteristics cc=
+          getCharacteristics(s).getCharacteristics();
 
         if (s.getZoomRect()!=null) {
           captureBuilder
@@ -621,12 +1138,46 @@ public class CameraTwoEngine extends CameraEngine {
 
         s.addToCaptureRequest(cc, camera.isFacingFront, captureBuilder);
 
-        s.captureSession.stopRepeating();
-        s.captureSession.capture(captureBuilder.build(),
-            new CapturePictureTransaction(s), null);
+        // each request is tagged with its frame index, so a
+        // picture keeps its index even if an earlier one fails
+
+        List<CaptureRequest> requests=new ArrayList<CaptureRequest>(count);
+
+        for (int i=0;i<count;i++) {
+          captureBuilder.setTag(i);
+          requests.add(captureBuilder.build());
+        }
+
+        CapturePictureTransaction callback=
+          new CapturePictureTransaction(s, count, pictures, done);
+
+        if (count==1) {
+          s.captureSession.stopRepeating();
+          s.captureSession.capture(requests.get(0), callback, null);
+        }
+        else {
+          // focus and exposure are settled, so keep the preview
+          // going (minus the AF trigger) while the burst runs
+
+          s.captureSession.setRepeatingRequest(s.previewRequest, s.zsl,
+            handler);
+
+          if (framesPerSecond<=0.0f) {
+            s.captureSession.captureBurst(requests, callback, null);
+          }
+          else {
+            long interval=(long)(1000.0f/framesPerSecond);
+
+            for (int i=0;i<count;i++) {
+              handler.postDelayed(new BurstFrame(s, requests.get(i),
+                callback), i*interval);
+            }
+          }
+        }
       }
       catch (Exception e) {
-        getBus().post(new PictureTakenEvent(e));
+        done.complete();
+        postEvent(s, new PictureTakenEvent(e));
 
         if (isDebug()) {
           Log.e(getClass().getSimpleName(), "Exception running capture", e);
@@ -635,12 +1186,53 @@ public class CameraTwoEngine extends CameraEngine {
     }
   }
 
+  private class BurstFrame implements Runnable {
+    private final Session s;
+    private final CaptureRequest request;
+    private final CapturePictureTransaction callback;
+
+    BurstFrame(Session s, CaptureRequest request,
+               CapturePictureTransaction callback) {
+      this.s=s;
+      this.request=request;
+      this.callback=callback;
+    }
+
+    @Override
+    public void run() {
+      if (s.isClosed()) {
+        callback.onFrameDone();
+      }
+      else {
+        try {
+          s.captureSession.capture(request, callback, null);
+        }
+        catch (Exception e) {
+          postEvent(s, new PictureTakenEvent(e));
+          callback.onFrameDone();
+
+          if (isDebug()) {
+            Log.e(getClass().getSimpleName(), "Exception capturing burst frame", e);
+          }
+        }
+      }
+    }
+  }
+
   private class CapturePictureTransaction
     extends CameraCaptureSession.CaptureCallback {
     private final Session s;
+    private final TakePictureTransaction pictures;
+    private final CommandQueue.Completion done;
+    private int remaining;
 
-    CapturePictureTransaction(CameraSession session) {
+    CapturePictureTransaction(CameraSession session, int count,
+                              TakePictureTransaction pictures,
+                              CommandQueue.Completion done) {
       this.s=(Session)session;
+      this.remaining=count;
+      this.pictures=pictures;
+      this.done=done;
     }
 
     @Override
@@ -649,6 +1241,7 @@ public class CameraTwoEngine extends CameraEngine {
                                  long timestamp, long frameNumber) {
       super.onCaptureStarted(session, request, timestamp, frameNumber);
 
+      pictures.onCaptureStarted(request.getTag(), timestamp);
       shutter.play(MediaActionSound.SHUTTER_CLICK);
     }
 
@@ -657,15 +1250,24 @@ public class CameraTwoEngine extends CameraEngine {
                                    CaptureRequest request,
                                    TotalCaptureResult result) {
       // TODO: something useful with the picture
-      unlockFocus();
+      onFrameDone();
     }
 
     @Override
     public void onCaptureFailed(CameraCaptureSession session,
                                 CaptureRequest request,
                                 CaptureFailure failure) {
-      getBus()
-        .post(new PictureTakenEvent(new RuntimeException("generic camera2 capture failure")));
+      postEvent(s, new PictureTakenEvent(new RuntimeException("generic camera2 capture failure")));
+      onFrameDone();
+    }
+
+    private synchronized void onFrameDone() {
+      remaining--;
+
+      if (remaining==0) {
+        unlockFocus();
+        done.complete();
+      }
     }
 
     private void unlockFocus() {
@@ -677,18 +1279,18 @@ public class CameraTwoEngine extends CameraEngine {
               CaptureRequest.CONTROL_AE_MODE_ON_AUTO_FLASH);
           s.captureSession.capture(s.previewRequestBuilder.build(), null,
               handler);
-          s.captureSession.setRepeatingRequest(s.previewRequest, null, handler);
+          s.captureSession.setRepeatingRequest(s.previewRequest, s.zsl, handler);
         }
       }
       catch (CameraAccessException e) {
-        getBus().post(new PictureTakenEvent(e));
+        postEvent(s, new PictureTakenEvent(e));
 
         if (isDebug()) {
           Log.e(getClass().getSimpleName(), "Exception resetting focus", e);
         }
       }
       catch (IllegalStateException e) {
-        getBus().post(new DeepImpactEvent(e));
+        postEvent(s, new DeepImpactEvent(e));
 
         if (isDebug()) {
           Log.w(getClass().getSimpleName(), "Exception resetting focus", e);
@@ -697,6 +1299,167 @@ public class CameraTwoEngine extends CameraEngine {
     }
   }
 
+  /**
+   * Feeds the frames of the zero-shutter-lag ImageReader, and
+   * the preview results that say whether each was in focus and
+   * properly exposed, into a ZslRing.
+   */
+  private static class ZslStream extends CameraCaptureSession.CaptureCallback
+    implements ImageReader.OnImageAvailableListener {
+    final ZslRing<Image> ring;
+
+    ZslStream(int capacity) {
+      ring=new ZslRing<Image>(capacity) {
+        @Override
+        void release(Image frame) {
+          frame.close();
+        }
+      };
+    }
+
+    @Override
+    public void onImageAvailable(ImageReader imageReader) {
+      Image image;
+
+      try {
+        image=imageReader.acquireNextImage();
+      }
+      catch (IllegalStateException e) {
+        // every buffer is in use; drop the frame
+
+        return;
+      }
+
+      if (image!=null) {
+        ring.addFrame(image.getTimestamp(), image);
+      }
+    }
+
+    @Override
+    public void onCaptureCompleted(CameraCaptureSession session,
+                                   CaptureRequest request,
+                                   TotalCaptureResult result) {
+      Long timestamp=result.get(CaptureResult.SENSOR_TIMESTAMP);
+
+      if (timestamp!=null) {
+        ring.addResult(timestamp, isFocused(result), isExposed(result));
+      }
+    }
+
+    private static boolean isFocused(CaptureResult result) {
+      Integer mode=result.get(CaptureResult.CONTROL_AF_MODE);
+      Integer state=result.get(CaptureResult.CONTROL_AF_STATE);
+
+      return(state==null ||
+        (mode!=null && mode==CaptureResult.CONTROL_AF_MODE_OFF) ||
+        state==CaptureResult.CONTROL_AF_STATE_PASSIVE_FOCUSED ||
+        state==CaptureResult.CONTROL_AF_STATE_FOCUSED_LOCKED);
+    }
+
+    private static boolean isExposed(CaptureResult result) {
+      Integer state=result.get(CaptureResult.CONTROL_AE_STATE);
+
+      // FLASH_REQUIRED is deliberately not good enough: a frame
+      // from the stream was taken without flash
+
+      return(state==null ||
+        state==CaptureResult.CONTROL_AE_STATE_CONVERGED ||
+        state==CaptureResult.CONTROL_AE_STATE_LOCKED);
+    }
+  }
+
+  /**
+   * Wraps the latest frame of the analysis ImageReader for the
+   * FrameDispatcher, closing it once the analyzer is done with
+   * it, or right away if the frame is dropped. Closing the
+   * ImageReader waits for the analyzer, as that frees the
+   * buffers it may be reading.
+   */
+  private static class AnalysisStream
+    implements ImageReader.OnImageAvailableListener {
+    private final FrameDispatcher dispatcher;
+    private int inFlight=0;
+    private ImageReader pendingClose=null;
+
+    AnalysisStream(FrameDispatcher dispatcher) {
+      this.dispatcher=dispatcher;
+    }
+
+    @Override
+    public void onImageAvailable(ImageReader imageReader) {
+      final Image image;
+
+      try {
+        image=imageReader.acquireLatestImage();
+      }
+      catch (IllegalStateException e) {
+        // every buffer is in use; drop the frame
+
+        return;
+      }
+
+      if (image==null) {
+        return;
+      }
+
+      Image.Plane[] planes=image.getPlanes();
+      Frame.Plane[] framePlanes=new Frame.Plane[planes.length];
+
+      for (int i=0;i<planes.length;i++) {
+        framePlanes[i]=new Frame.Plane(planes[i].getBuffer(),
+          planes[i].getRowStride(), planes[i].getPixelStride());
+      }
+
+      Frame frame=new Frame(image.getWidth(), image.getHeight(),
+        image.getTimestamp(), framePlanes);
+      Runnable done=new Runnable() {
+        @Override
+        public void run() {
+          onAnalyzed(image);
+        }
+      };
+
+      synchronized(this) {
+        inFlight++;
+      }
+
+      if (!dispatcher.offer(frame, done)) {
+        onAnalyzed(image);
+      }
+    }
+
+    void close(ImageReader reader) {
+      synchronized(this) {
+        if (inFlight>0) {
+          pendingClose=reader;
+
+          return;
+        }
+      }
+
+      reader.close();
+    }
+
+    private void onAnalyzed(Image image) {
+      ImageReader toClose;
+
+      image.close();
+
+      synchronized(this) {
+        inFlight--;
+        toClose=(inFlight==0 ? pendingClose : null);
+
+        if (toClose!=null) {
+          pendingClose=null;
+        }
+      }
+
+      if (toClose!=null) {
+        toClose.close();
+      }
+    }
+  }
+
   private static class AreaComparator implements Comparator<Size> {
     @Override
     public int compare(Size lhs, Size rhs) {
@@ -714,10 +1477,21 @@ public class CameraTwoEngine extends CameraEngine {
     private ArrayList<Size> previewSizes;
     private boolean isFacingFront;
     private final Integer facing;
+    private boolean validated=false;
 
-    private Descriptor(String cameraId, CameraCharacteristics cc) {
+    private Descriptor(String cameraId, Integer facing) {
       this.cameraId=cameraId;
-      facing=cc.get(CameraCharacteristics.LENS_FACING);
+      this.facing=facing;
+      isFacingFront=(facing!=null &&
+        facing==CameraCharacteristics.LENS_FACING_FRONT);
+    }
+
+    private boolean isValidated() {
+      return(validated);
+    }
+
+    private void setValidated(boolean validated) {
+      this.validated=validated;
     }
 
     public String getId() {
@@ -751,16 +1525,8 @@ public class CameraTwoEngine extends CameraEngine {
       return(pictureSizes);
     }
 
-    private void setPictureSizes(List<android.util.Size> sizes) {
-      pictureSizes=new ArrayList<Size>(sizes.size());
-
-      for (android.util.Size size : sizes) {
-        pictureSizes.add(new Size(size.getWidth(), size.getHeight()));
-      }
-    }
-
-    private void setFacingFront(boolean isFacingFront) {
-      this.isFacingFront=isFacingFront;
+    private void setPictureSizes(ArrayList<Size> sizes) {
+      pictureSizes=sizes;
     }
 
     private int getScore(CameraSelectionCriteria criteria) {
@@ -779,19 +1545,99 @@ public class CameraTwoEngine extends CameraEngine {
     }
   }
 
+  private static class PendingClose {
+    final long requestedAt;
+    final long startedAt;
+    final CommandQueue.Completion done;
+
+    PendingClose(long requestedAt, long startedAt,
+                 CommandQueue.Completion done) {
+      this.requestedAt=requestedAt;
+      this.startedAt=startedAt;
+      this.done=done;
+    }
+  }
+
   private static class Session extends CameraSession {
     CameraDevice cameraDevice=null;
     CameraCaptureSession captureSession=null;
     CaptureRequest.Builder previewRequestBuilder=null;
     CaptureRequest previewRequest;
     ImageReader reader;
-    boolean isClosed=false;
+    ImageReader zslReader;
+    ImageReader analysisReader;
+    AnalysisStream analysis;
+    volatile ZslStream zsl=null;
+    volatile boolean isClosed=false;
+    volatile boolean isOpening=false;
+    PendingClose pendingClose=null;
     Rect zoomRect=null;
+    volatile CharacteristicsSnapshot characteristics=null;
+    volatile ZoomController zoom=null;
+    private int heldImages=0;
+    private ImageReader readerToClose=null;
 
     private Session(Context ctxt, CameraDescriptor descriptor) {
       super(ctxt, descriptor);
     }
 
+    /**
+     * Notes that a picture from the reader is being handed out
+     * without copying it.
+     *
+     * @return the number of the reader's images now held
+     */
+    synchronized int holdImage() {
+      return(++heldImages);
+    }
+
+    /**
+     * Hands a picture back to the reader, closing the reader if
+     * the session closed while the picture was still in use.
+     */
+    void releaseImage(Image image) {
+      ImageReader toClose=null;
+
+      image.close();
+
+      synchronized(this) {
+        heldImages--;
+
+        if (heldImages==0) {
+          toClose=readerToClose;
+          readerToClose=null;
+        }
+      }
+
+      if (toClose!=null) {
+        toClose.close();
+      }
+    }
+
+    /**
+     * Closes the picture reader, or, if pictures from it are
+     * still in use, arranges for it to be closed once the last
+     * one is released, as closing the reader frees their
+     * buffers.
+     */
+    void closeReader() {
+      ImageReader toClose;
+
+      synchronized(this) {
+        toClose=reader;
+        reader=null;
+
+        if (heldImages>0) {
+          readerToClose=toClose;
+          toClose=null;
+        }
+      }
+
+      if (toClose!=null) {
+        toClose.close();
+      }
+    }
+
     ImageReader buildImageReader() {
       ImageReader result=null;
 
@@ -808,6 +1654,22 @@ public class CameraTwoEngine extends CameraEngine {
       return(result);
     }
 
+    ImageReader buildZslImageReader() {
+      ImageReader result=null;
+
+      for (CameraPlugin plugin : getPlugins()) {
+        CameraTwoConfigurator configurator=plugin.buildConfigurator(CameraTwoConfigurator.class);
+
+        if (configurator!=null) {
+          result=configurator.buildZslImageReader();
+        }
+
+        if (result!=null) break;
+      }
+
+      return(result);
+    }
+
     void addToCaptureRequest(CameraCharacteristics cc,
                              boolean isFacingFront,
                              CaptureRequest.Builder captureBuilder) {
@@ -854,28 +1716,200 @@ public class CameraTwoEngine extends CameraEngine {
     }
   }
 
-  private static class TakePictureTransaction implements ImageReader.OnImageAvailableListener {
-    private final EventBus bus;
-    private final PictureTransaction xact;
-    private final Context ctxt;
+  /**
+   * Builds descriptors from the on-disk cache, if it still
+   * lists the same cameras. This avoids fetching the
+   * characteristics of every camera; those are checked later,
+   * when a camera is opened anyway. Otherwise, fetches the
+   * characteristics of each camera.
+   */
+  private List<Descriptor> loadDescriptors() throws Exception {
+    List<Descriptor> result=new ArrayList<Descriptor>();
+
+    for (DescriptorCache.Entry entry : cache.loadOrProbe(new Source())) {
+      Descriptor camera=new Descriptor(entry.id,
+        entry.facing<0 ? null : entry.facing);
+
+      camera.setPreviewSizes(entry.previewSizes);
+      camera.setPictureSizes(entry.pictureSizes);
+      camera.setValidated(entry.validated);
+      result.add(camera);
+    }
+
+    return(result);
+  }
+
+  private class Source implements DescriptorCache.Source {
+    @Override
+    public List<String> getCameraIds() throws CameraAccessException {
+      return(Arrays.asList(mgr.getCameraIdList()));
+    }
+
+    @Override
+    public boolean matches(DescriptorCache.Entry entry) {
+      // facing is part of the characteristics, which are what
+      // the cache avoids fetching
+
+      return(true);
+    }
+
+    @Override
+    public DescriptorCache.Entry probe(String id)
+      throws CameraAccessException {
+      CameraCharacteristics cc=mgr.getCameraCharacteristics(id);
+      Integer facing=cc.get(CameraCharacteristics.LENS_FACING);
+      StreamConfigurationMap map=cc.get(
+        CameraCharacteristics.SCALER_STREAM_CONFIGURATION_MAP);
+
+      return(new DescriptorCache.Entry(id,
+        facing==null ? -1 : facing, buildPreviewSizes(map),
+        buildPictureSizes(map)));
+    }
+  }
+
+  private void saveDescriptors(List<Descriptor> descriptors) {
+    List<DescriptorCache.Entry> entries=
+      new ArrayList<DescriptorCache.Entry>();
+
+    for (Descriptor camera : descriptors) {
+      entries.add(new DescriptorCache.Entry(camera.getId(),
+        camera.facing==null ? -1 : camera.facing,
+        camera.getPreviewSizes(), camera.getPictureSizes()));
+    }
+
+    if (!cache.save(entries) && isDebug()) {
+      Log.w(getClass().getSimpleName(), "Could not save descriptor cache");
+    }
+  }
+
+  /**
+   * Compares cached sizes against the camera's characteristics,
+   * updating the descriptor and the cache if the cache was wrong.
+   */
+  private void revalidate(Descriptor camera, CameraCharacteristics cc) {
+    StreamConfigurationMap map=
+      cc.get(CameraCharacteristics.SCALER_STREAM_CONFIGURATION_MAP);
+    ArrayList<Size> previewSizes=buildPreviewSizes(map);
+    ArrayList<Size> pictureSizes=buildPictureSizes(map);
+
+    camera.setValidated(true);
+
+    if (!previewSizes.equals(camera.getPreviewSizes()) ||
+      !pictureSizes.equals(camera.getPictureSizes())) {
+      camera.setPreviewSizes(previewSizes);
+      camera.setPictureSizes(pictureSizes);
+
+      if (descriptors!=null) {
+        saveDescriptors(descriptors);
+      }
+    }
+  }
 
-    TakePictureTransaction(Context ctxt, EventBus bus, PictureTransaction xact) {
-      this.bus=bus;
+  private static ArrayList<Size> buildPreviewSizes(StreamConfigurationMap map) {
+    ArrayList<Size> sizes=new ArrayList<Size>();
+
+    for (android.util.Size size : map.getOutputSizes(SurfaceTexture.class)) {
+      if (size.getWidth()<2160 && size.getHeight()<2160) {
+        sizes.add(new Size(size.getWidth(), size.getHeight()));
+      }
+    }
+
+    return(sizes);
+  }
+
+  private static ArrayList<Size> buildPictureSizes(StreamConfigurationMap map) {
+    android.util.Size[] rawSizes=map.getOutputSizes(ImageFormat.JPEG);
+    ArrayList<Size> sizes=new ArrayList<Size>(rawSizes.length);
+
+    for (android.util.Size size : rawSizes) {
+      sizes.add(new Size(size.getWidth(), size.getHeight()));
+    }
+
+    return(sizes);
+  }
+
+  private class TakePictureTransaction implements ImageReader.OnImageAvailableListener {
+    private final CameraSession session;
+    private final PictureTransaction xact;
+    private final int count;
+    final CaptureTimeline timeline;
+    private final ConcurrentHashMap<Long, FrameStart> captureStarts=
+      new ConcurrentHashMap<Long, FrameStart>();
+    private int delivered=0;
+
+    TakePictureTransaction(CameraSession session, PictureTransaction xact,
+                           int count, CaptureTimeline timeline) {
+      this.session=session;
       this.xact=xact;
-      this.ctxt=ctxt.getApplicationContext();
+      this.count=count;
+      this.timeline=timeline;
+    }
+
+    /**
+     * Notes the start of a capture, keyed by its sensor
+     * timestamp, which its image will carry as well.
+     *
+     * @param tag the frame index the request was tagged with
+     * @param timestamp the sensor timestamp of the capture
+     */
+    void onCaptureStarted(Object tag, long timestamp) {
+      int index=(tag instanceof Integer ? (Integer)tag : -1);
+
+      captureStarts.put(timestamp,
+        new FrameStart(index, System.nanoTime()));
     }
 
     @Override
     public void onImageAvailable(ImageReader imageReader) {
-      Image image=imageReader.acquireNextImage();
-      ByteBuffer buffer=image.getPlanes()[0].getBuffer();
-      byte[] bytes=new byte[buffer.remaining()];
+      final Session s=(Session)session;
+      final Image image=imageReader.acquireNextImage();
+      int held=s.holdImage();
+      ImageContext imageContext=
+        new ImageContext(session.getContext(),
+          image.getPlanes()[0].getBuffer(),
+          new Runnable() {
+            @Override
+            public void run() {
+              s.releaseImage(image);
+            }
+          }, getBufferPool());
 
-      buffer.get(bytes);
-      image.close();
+      // the picture stays in the camera's buffer, uncopied, until
+      // its last release(), unless the reader needs the buffer
+      // back for a later picture: the rest of a burst, or the
+      // next shot if this one used the last free buffer
+
+      if (count>1 || held>=imageReader.getMaxImages()) {
+        imageContext.detach();
+      }
+
+      CaptureTimeline frame=
+        (delivered==0 ? timeline : timeline.forFrame());
+      FrameStart start=captureStarts.remove(image.getTimestamp());
+      int index=delivered++;
+
+      if (start!=null) {
+        frame.mark(CaptureTimeline.Stage.CAPTURE_STARTED, start.startedAt);
+
+        if (start.index>=0) {
+          index=start.index;
+        }
+      }
+
+      frame.mark(CaptureTimeline.Stage.IMAGE_AVAILABLE);
+      imageContext.setTimeline(frame);
+      imageContext.setFrame(index, count);
+      processPicture(session, xact, imageContext);
+    }
+  }
+
+  private static class FrameStart {
+    final int index;
+    final long startedAt;
 
-      bus.post(new PictureTakenEvent(xact,
-        xact.process(new ImageContext(ctxt, bytes))));
+    FrameStart(int index, long startedAt) {
+      this.index=index;
+      this.startedAt=startedAt;
     }
   }
 }
@@ -0,0 +1,155 @@
+/***
+ Copyright (c) 2016 CommonsWare, LLC
+
+ Licensed under the Apache License, Version 2.0 (the "License"); you may
+ not use this file except in compliance with the License. You may obtain
+ a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+
+package com.commonsware.cwac.cam2;
+
+import com.commonsware.cwac.cam2.util.LatencyHistogram;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * MetricsSink that aggregates capture latencies, for percentiles
+ * (e.g., p50/p95/p99) across many pictures and sessions:
+ *
+ * - per stage, the time from the request to that stage
+ * - per ImageProcessor tag, the time the processor took
+ *
+ * Percentiles come from LatencyHistogram, so they are the upper
+ * bound of a power-of-two bucket: good for spotting trends and
+ * regressions, not for exact figures.
+ *
+ * Instances are thread-safe.
+ */
+public class CaptureMetrics implements MetricsSink {
+  private final LatencyHistogram[] stages=
+    new LatencyHistogram[CaptureTimeline.Stage.values().length];
+  private final HashMap<String, LatencyHistogram> processors=
+    new HashMap<String, LatencyHistogram>();
+
+  public CaptureMetrics() {
+    for (int i=0;i<stages.length;i++) {
+      stages[i]=new LatencyHistogram();
+    }
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public void onPictureTaken(CaptureTimeline timeline) {
+    for (CaptureTimeline.Stage stage : CaptureTimeline.Stage.values()) {
+      long nanos=
+        timeline.getElapsedNanos(CaptureTimeline.Stage.REQUESTED, stage);
+
+      if (stage!=CaptureTimeline.Stage.REQUESTED && nanos>=0) {
+        stages[stage.ordinal()].record(nanos);
+      }
+    }
+
+    for (CaptureTimeline.ProcessorSpan span : timeline.getProcessorSpans()) {
+      getProcessorHistogram(span.getTag()).record(span.getDurationNanos());
+    }
+  }
+
+  /**
+   * @param stage the stage of interest
+   * @return a snapshot of the times from request to that stage
+   */
+  public LatencyHistogram getStageLatency(CaptureTimeline.Stage stage) {
+    return(stages[stage.ordinal()].snapshot());
+  }
+
+  /**
+   * @param tag an ImageProcessor tag
+   * @return a snapshot of the times that processor took
+   */
+  public LatencyHistogram getProcessorLatency(String tag) {
+    return(getProcessorHistogram(tag).snapshot());
+  }
+
+  /**
+   * @param stage the stage of interest
+   * @param percentile 0-100
+   * @return the given percentile of the time from request to
+   * that stage, in microseconds, or 0 if no picture has reached
+   * that stage
+   */
+  public long getPercentileMicros(CaptureTimeline.Stage stage,
+                                  double percentile) {
+    return(stages[stage.ordinal()].getPercentileMicros(percentile));
+  }
+
+  /**
+   * Drops everything recorded so far, such as after reporting.
+   */
+  public void reset() {
+    for (LatencyHistogram histogram : stages) {
+      histogram.reset();
+    }
+
+    synchronized(processors) {
+      for (LatencyHistogram histogram : processors.values()) {
+        histogram.reset();
+      }
+    }
+  }
+
+  private LatencyHistogram getProcessorHistogram(String tag) {
+    synchronized(processors) {
+      LatencyHistogram result=processors.get(tag);
+
+      if (result==null) {
+        result=new LatencyHistogram();
+        processors.put(tag, result);
+      }
+
+      return(result);
+    }
+  }
+
+  @Override
+  public String toString() {
+    StringBuilder buf=new StringBuilder("CaptureMetrics[");
+
+    for (CaptureTimeline.Stage stage : CaptureTimeline.Stage.values()) {
+      LatencyHistogram histogram=stages[stage.ordinal()];
+
+      if (histogram.getCount()>0) {
+        buf.append(stage)
+          .append(": n=")
+          .append(histogram.getCount())
+          .append(" p50=")
+          .append(histogram.getPercentileMicros(50))
+          .append("us p95=")
+          .append(histogram.getPercentileMicros(95))
+          .append("us p99=")
+          .append(histogram.getPercentileMicros(99))
+          .append("us; ");
+      }
+    }
+
+    synchronized(processors) {
+      for (Map.Entry<String, LatencyHistogram> entry : processors.entrySet()) {
+        buf.append(entry.getKey())
+          .append(": ")
+          .append(entry.getValue())
+          .append("; ");
+      }
+    }
+
+    return(buf.toString().trim()+"]");
+  }
+}
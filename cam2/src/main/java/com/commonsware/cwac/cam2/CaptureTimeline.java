@@ -0,0 +1,253 @@
+/***
+ Copyright (c) 2016 CommonsWare, LLC
+
+ Licensed under the Apache License, Version 2.0 (the "License"); you may
+ not use this file except in compliance with the License. You may obtain
+ a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+
+package com.commonsware.cwac.cam2;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * When each stage of taking a picture happened, from the
+ * takePicture() call to the PictureTakenEvent. Timestamps are
+ * from System.nanoTime(), so they are only meaningful relative
+ * to one another. Get one from PictureTakenEvent.getTimeline(),
+ * or have the engine feed them all to a MetricsSink.
+ *
+ * Not every picture passes every stage: the classic API does
+ * not report focus or exposure, a zero-shutter-lag picture skips
+ * them, and the file stage needs a JPEGWriter writing to a file.
+ * Pictures in a burst share the stages up to and including
+ * EXPOSURE_CONVERGED, and have their own from CAPTURE_STARTED on.
+ */
+public class CaptureTimeline {
+  /**
+   * Stages of taking a picture, in the order they normally
+   * happen.
+   */
+  public enum Stage {
+    /**
+     * takePicture() (or takeBurst()) was called, queuing the
+     * request
+     */
+    REQUESTED,
+
+    /**
+     * Autofocus reported that it locked
+     */
+    FOCUS_LOCKED,
+
+    /**
+     * Auto-exposure converged, after a precapture sequence if
+     * one was needed
+     */
+    EXPOSURE_CONVERGED,
+
+    /**
+     * The camera started capturing the picture (camera2
+     * onCaptureStarted(), classic onShutter(), or the frame
+     * being taken from the zero-shutter-lag ring)
+     */
+    CAPTURE_STARTED,
+
+    /**
+     * The JPEG was handed over by the camera (or, for
+     * zero-shutter-lag, encoded)
+     */
+    IMAGE_AVAILABLE,
+
+    /**
+     * A JPEGWriter finished writing the picture to a file,
+     * synced unless its Durability is ASYNC. With GROUP_COMMIT
+     * or ASYNC, this comes after EVENT_POSTED.
+     */
+    FILE_SYNCED,
+
+    /**
+     * The ImageProcessor chain was done and the
+     * PictureTakenEvent was about to be posted
+     */
+    EVENT_POSTED
+  }
+
+  /**
+   * How long one ImageProcessor took with the picture.
+   */
+  public static class ProcessorSpan {
+    private final String tag;
+    private final long startNanos;
+    private final long endNanos;
+
+    ProcessorSpan(String tag, long startNanos, long endNanos) {
+      this.tag=tag;
+      this.startNanos=startNanos;
+      this.endNanos=endNanos;
+    }
+
+    /**
+     * @return the processor's tag
+     */
+    public String getTag() {
+      return(tag);
+    }
+
+    /**
+     * @return System.nanoTime() when the processor started
+     */
+    public long getStartNanos() {
+      return(startNanos);
+    }
+
+    /**
+     * @return System.nanoTime() when the processor finished
+     */
+    public long getEndNanos() {
+      return(endNanos);
+    }
+
+    /**
+     * @return how long the processor took, in nanoseconds
+     */
+    public long getDurationNanos() {
+      return(endNanos-startNanos);
+    }
+  }
+
+  private final long[] stamps=new long[Stage.values().length];
+  private final ArrayList<ProcessorSpan> spans=
+    new ArrayList<ProcessorSpan>();
+
+  /**
+   * Constructor, for a picture being requested now.
+   */
+  CaptureTimeline() {
+    Arrays.fill(stamps, -1L);
+    mark(Stage.REQUESTED);
+  }
+
+  /**
+   * @return a new timeline for another picture from the same
+   * request (e.g., the next picture in a burst), with the
+   * stages up to EXPOSURE_CONVERGED copied from this one
+   */
+  synchronized CaptureTimeline forFrame() {
+    CaptureTimeline result=new CaptureTimeline();
+
+    System.arraycopy(stamps, 0, result.stamps, 0,
+      Stage.EXPOSURE_CONVERGED.ordinal()+1);
+
+    return(result);
+  }
+
+  /**
+   * Records that a stage happened now.
+   */
+  void mark(Stage stage) {
+    mark(stage, System.nanoTime());
+  }
+
+  /**
+   * Records that a stage happened at a given time, replacing
+   * any earlier record of that stage.
+   *
+   * @param stage the stage
+   * @param nanos when, per System.nanoTime()
+   */
+  synchronized void mark(Stage stage, long nanos) {
+    stamps[stage.ordinal()]=nanos;
+  }
+
+  synchronized void addProcessorSpan(String tag, long startNanos,
+                                     long endNanos) {
+    spans.add(new ProcessorSpan(tag, startNanos, endNanos));
+  }
+
+  /**
+   * @param stage the stage of interest
+   * @return System.nanoTime() when the stage happened, or -1 if
+   * it has not (or will not)
+   */
+  synchronized public long getNanos(Stage stage) {
+    return(stamps[stage.ordinal()]);
+  }
+
+  /**
+   * @param stage the stage of interest
+   * @return true if the stage has happened
+   */
+  public boolean hasReached(Stage stage) {
+    return(getNanos(stage)>=0);
+  }
+
+  /**
+   * @param from the earlier stage
+   * @param to the later stage
+   * @return nanoseconds between the two stages, or -1 if
+   * either has not happened
+   */
+  synchronized public long getElapsedNanos(Stage from, Stage to) {
+    long start=stamps[from.ordinal()];
+    long end=stamps[to.ordinal()];
+
+    if (start<0 || end<0) {
+      return(-1L);
+    }
+
+    return(end-start);
+  }
+
+  /**
+   * @param stage the stage of interest
+   * @return milliseconds from the request to the stage, or -1
+   * if the stage has not happened
+   */
+  public long getMillisFromRequest(Stage stage) {
+    long nanos=getElapsedNanos(Stage.REQUESTED, stage);
+
+    return(nanos<0 ? -1L : TimeUnit.NANOSECONDS.toMillis(nanos));
+  }
+
+  /**
+   * @return how long each ImageProcessor took, in the order
+   * they ran
+   */
+  synchronized public List<ProcessorSpan> getProcessorSpans() {
+    return(new ArrayList<ProcessorSpan>(spans));
+  }
+
+  @Override
+  synchronized public String toString() {
+    StringBuilder buf=new StringBuilder("CaptureTimeline[");
+
+    for (Stage stage : Stage.values()) {
+      if (stage!=Stage.REQUESTED && stamps[stage.ordinal()]>=0) {
+        buf.append(stage)
+          .append('=')
+          .append((stamps[stage.ordinal()]-stamps[0])/1000)
+          .append("us ");
+      }
+    }
+
+    for (ProcessorSpan span : spans) {
+      buf.append(span.getTag())
+        .append('=')
+        .append(span.getDurationNanos()/1000)
+        .append("us ");
+    }
+
+    return(buf.toString().trim()+"]");
+  }
+}
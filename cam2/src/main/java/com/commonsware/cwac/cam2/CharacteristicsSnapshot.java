@@ -0,0 +1,249 @@
+/***
+ Copyright (c) 2016 CommonsWare, LLC
+
+ Licensed under the Apache License, Version 2.0 (the "License"); you may
+ not use this file except in compliance with the License. You may obtain
+ a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+package com.commonsware.cwac.cam2;
+
+import android.annotation.TargetApi;
+import android.graphics.Rect;
+import android.hardware.camera2.CameraCharacteristics;
+import android.hardware.camera2.CameraMetadata;
+import android.os.Build;
+
+/**
+ * Immutable copy of the CameraCharacteristics values that
+ * CameraTwoEngine consults while a session is running, pulled
+ * out once when the session is opened. CameraManager hands back
+ * a fresh CameraCharacteristics (via IPC) on every call, which
+ * is too slow to do per zoom step or per picture.
+ */
+@TargetApi(Build.VERSION_CODES.LOLLIPOP)
+class CharacteristicsSnapshot {
+  /**
+   * INFO_SUPPORTED_HARDWARE_LEVEL_3, which is newer than our
+   * compileSdkVersion
+   */
+  static final int HARDWARE_LEVEL_3=3;
+  private final CameraCharacteristics cc;
+  private final float maxDigitalZoom;
+  private final int activeArrayWidth;
+  private final int activeArrayHeight;
+  private final int sensorOrientation;
+  private final int[] aeModes;
+  private final int[] afModes;
+  private final int hardwareLevel;
+
+  /**
+   * The characteristics values a snapshot is taken from. Each
+   * may be null if the camera does not report it.
+   */
+  interface Source {
+    Float getMaxDigitalZoom();
+    Rect getActiveArraySize();
+    Integer getSensorOrientation();
+    int[] getAeModes();
+    int[] getAfModes();
+    Integer getHardwareLevel();
+  }
+
+  /**
+   * Extracts the values from a CameraCharacteristics.
+   *
+   * @param cc the camera's characteristics
+   * @return the snapshot
+   */
+  static CharacteristicsSnapshot from(final CameraCharacteristics cc) {
+    return(from(cc, new Source() {
+      @Override
+      public Float getMaxDigitalZoom() {
+        return(cc.get(CameraCharacteristics.SCALER_AVAILABLE_MAX_DIGITAL_ZOOM));
+      }
+
+      @Override
+      public Rect getActiveArraySize() {
+        return(cc.get(CameraCharacteristics.SENSOR_INFO_ACTIVE_ARRAY_SIZE));
+      }
+
+      @Override
+      public Integer getSensorOrientation() {
+        return(cc.get(CameraCharacteristics.SENSOR_ORIENTATION));
+      }
+
+      @Override
+      public int[] getAeModes() {
+        return(cc.get(CameraCharacteristics.CONTROL_AE_AVAILABLE_MODES));
+      }
+
+      @Override
+      public int[] getAfModes() {
+        return(cc.get(CameraCharacteristics.CONTROL_AF_AVAILABLE_MODES));
+      }
+
+      @Override
+      public Integer getHardwareLevel() {
+        return(cc.get(CameraCharacteristics.INFO_SUPPORTED_HARDWARE_LEVEL));
+      }
+    }));
+  }
+
+  /**
+   * Extracts the values from a Source, reading each once.
+   *
+   * @param cc the characteristics the source reads, handed to
+   *           plugins; may be null
+   * @param source where to read the values
+   * @return the snapshot
+   */
+  static CharacteristicsSnapshot from(CameraCharacteristics cc,
+                                      Source source) {
+    Float maxZoom=source.getMaxDigitalZoom();
+    Rect activeArray=source.getActiveArraySize();
+    Integer orientation=source.getSensorOrientation();
+    Integer hardwareLevel=source.getHardwareLevel();
+
+    return(new CharacteristicsSnapshot(cc,
+      maxZoom==null ? 1.0f : maxZoom,
+      activeArray==null ? 0 : activeArray.width(),
+      activeArray==null ? 0 : activeArray.height(),
+      orientation==null ? 0 : orientation,
+      source.getAeModes(), source.getAfModes(),
+      hardwareLevel==null ?
+        CameraMetadata.INFO_SUPPORTED_HARDWARE_LEVEL_LEGACY :
+        hardwareLevel));
+  }
+
+  /**
+   * Constructor, mostly for use by from(), but also usable to
+   * build snapshots without a real camera.
+   *
+   * @param cc the characteristics the values came from, handed
+   *           to plugins; may be null
+   * @param maxDigitalZoom SCALER_AVAILABLE_MAX_DIGITAL_ZOOM
+   * @param activeArrayWidth width of SENSOR_INFO_ACTIVE_ARRAY_SIZE
+   * @param activeArrayHeight height of SENSOR_INFO_ACTIVE_ARRAY_SIZE
+   * @param sensorOrientation SENSOR_ORIENTATION
+   * @param aeModes CONTROL_AE_AVAILABLE_MODES
+   * @param afModes CONTROL_AF_AVAILABLE_MODES
+   * @param hardwareLevel INFO_SUPPORTED_HARDWARE_LEVEL
+   */
+  CharacteristicsSnapshot(CameraCharacteristics cc,
+                          float maxDigitalZoom,
+                          int activeArrayWidth, int activeArrayHeight,
+                          int sensorOrientation, int[] aeModes,
+                          int[] afModes, int hardwareLevel) {
+    this.cc=cc;
+    this.maxDigitalZoom=maxDigitalZoom;
+    this.activeArrayWidth=activeArrayWidth;
+    this.activeArrayHeight=activeArrayHeight;
+    this.sensorOrientation=sensorOrientation;
+    this.aeModes=(aeModes==null ? new int[0] : aeModes.clone());
+    this.afModes=(afModes==null ? new int[0] : afModes.clone());
+    this.hardwareLevel=hardwareLevel;
+  }
+
+  /**
+   * @return the characteristics this snapshot was taken from,
+   * for passing along to CameraTwoConfigurator implementations
+   */
+  CameraCharacteristics getCharacteristics() {
+    return(cc);
+  }
+
+  float getMaxDigitalZoom() {
+    return(maxDigitalZoom);
+  }
+
+  boolean supportsZoom() {
+    return(maxDigitalZoom>1.0f);
+  }
+
+  int getActiveArrayWidth() {
+    return(activeArrayWidth);
+  }
+
+  int getActiveArrayHeight() {
+    return(activeArrayHeight);
+  }
+
+  int getSensorOrientation() {
+    return(sensorOrientation);
+  }
+
+  int[] getAeModes() {
+    return(aeModes.clone());
+  }
+
+  int[] getAfModes() {
+    return(afModes.clone());
+  }
+
+  int getHardwareLevel() {
+    return(hardwareLevel);
+  }
+
+  /**
+   * A ZSL ring needs a YUV stream at the picture size next to
+   * the preview (and the JPEG stream). Only FULL and LEVEL_3
+   * devices guarantee a maximum-size YUV stream alongside the
+   * preview at all; LIMITED and LEGACY ones do not, and may
+   * fail to configure the session or quietly slow the preview
+   * down. Even on FULL devices, the JPEG stream makes it a
+   * combination that may fail, so the engine still needs to
+   * cope with that.
+   *
+   * @param withAnalysis true if the session also has a stream
+   *                     of frames for a FrameAnalyzer, making
+   *                     four streams, which only LEVEL_3 devices
+   *                     come close to promising
+   * @return true if it is worth trying to stream ZSL frames
+   */
+  boolean supportsZslStream(boolean withAnalysis) {
+    if (withAnalysis) {
+      return(hardwareLevel==HARDWARE_LEVEL_3);
+    }
+
+    return(hardwareLevel==CameraMetadata.INFO_SUPPORTED_HARDWARE_LEVEL_FULL ||
+      hardwareLevel==HARDWARE_LEVEL_3);
+  }
+
+  /**
+   * Converts a zoom level (0-100, as used by CameraEngine) into
+   * the ratio to crop the sensor by.
+   *
+   * @param zoomLevel 0 for no zoom, 100 for maximum zoom
+   * @return the zoom ratio, from 1 to getMaxDigitalZoom()
+   */
+  float zoomRatioForLevel(int zoomLevel) {
+    return(1.0f+((float)zoomLevel*(maxDigitalZoom-1.0f)/100.0f));
+  }
+
+  /**
+   * Builds the SCALER_CROP_REGION for a zoom ratio, centered
+   * on the active array.
+   *
+   * @param zoomTo the zoom ratio
+   * @return the crop region
+   */
+  Rect cropRegionForZoom(float zoomTo) {
+    int sensorCenterX=activeArrayWidth/2;
+    int sensorCenterY=activeArrayHeight/2;
+    int deltaX=(int)(0.5f*activeArrayWidth/zoomTo);
+    int deltaY=(int)(0.5f*activeArrayHeight/zoomTo);
+
+    return(new Rect(
+      sensorCenterX-deltaX,
+      sensorCenterY-deltaY,
+      sensorCenterX+deltaX,
+      sensorCenterY+deltaY));
+  }
+}
@@ -22,18 +22,19 @@ import android.graphics.YuvImage;
 import android.hardware.Camera;
 import android.media.MediaRecorder;
 import android.os.Build;
+import android.os.SystemClock;
 import android.util.Log;
 
 import com.commonsware.cwac.cam2.util.Size;
 
+import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.List;
-
-import de.greenrobot.event.EventBus;
+import java.util.concurrent.RejectedExecutionException;
 
 /**
  * Implementation of a CameraEngine that supports the
@@ -41,17 +42,17 @@ import de.greenrobot.event.EventBus;
  */
 @SuppressWarnings("deprecation")
 public class ClassicCameraEngine extends CameraEngine
-    implements MediaRecorder.OnInfoListener,
-    Camera.PreviewCallback, Camera.OnZoomChangeListener {
+    implements MediaRecorder.OnInfoListener {
   private final Context ctxt;
+  private final DescriptorCache cache;
   private List<Descriptor> descriptors=null;
   private MediaRecorder recorder;
   private VideoTransaction xact;
-  private int previewWidth, previewHeight;
-  private int previewFormat;
+  private CameraSession videoSession;
 
   public ClassicCameraEngine(Context ctxt) {
     this.ctxt=ctxt.getApplicationContext();
+    cache=DescriptorCache.forEngine(this.ctxt, "classic");
   }
 
   /**
@@ -65,47 +66,34 @@ public class ClassicCameraEngine extends CameraEngine
   /**
    * {@inheritDoc}
    */
-  public void loadCameraDescriptors(final CameraSelectionCriteria criteria) {
-    getThreadPool().execute(new Runnable() {
+  @Override
+  public void loadCameraDescriptors(CameraSelectionCriteria criteria) {
+    loadCameraDescriptors(criteria, null);
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  public void loadCameraDescriptors(final CameraSelectionCriteria criteria,
+                                    final EventChannel channel) {
+    executeForEngine(new Runnable() {
       @Override
       public void run() {
         if (descriptors == null) {
-          int count=Camera.getNumberOfCameras();
-          List<Descriptor> result=new ArrayList<Descriptor>();
-          Camera.CameraInfo info=new Camera.CameraInfo();
-
-          for (int cameraId=0; cameraId < count; cameraId++) {
-            Camera.getCameraInfo(cameraId, info);
-            Descriptor descriptor=new Descriptor(cameraId, info);
-
-            Camera camera=Camera.open(descriptor.getCameraId());
-            Camera.Parameters params=camera.getParameters();
-            ArrayList<Size> sizes=new ArrayList<Size>();
-
-            for (Camera.Size size : params.getSupportedPreviewSizes()) {
-              if (size.height<2160 && size.width<2160) {
-                sizes.add(new Size(size.width, size.height));
-              }
-            }
-
-            descriptor.setPreviewSizes(sizes);
-
-            sizes=new ArrayList<Size>();
+          try {
+            descriptors=loadDescriptors();
+          }
+          catch (Exception e) {
+            postEvent(channel,
+              new CameraEngine.CameraDescriptorsEvent(e));
 
-            for (Camera.Size size : params.getSupportedPictureSizes()) {
-              if (!"samsung".equals(Build.MANUFACTURER) ||
-                  !"jflteuc".equals(Build.PRODUCT) ||
-                  size.width<2048) {
-                sizes.add(new Size(size.width, size.height));
-              }
+            if (isDebug()) {
+              Log.e(getClass().getSimpleName(),
+                "Exception accessing camera", e);
             }
 
-            descriptor.setPictureSizes(sizes);
-            camera.release();
-            result.add(descriptor);
+            return;
           }
-
-          descriptors=result;
         }
 
         List<CameraDescriptor> result=new ArrayList<CameraDescriptor>();
@@ -134,7 +122,7 @@ public class ClassicCameraEngine extends CameraEngine
           }
         });
 
-        getBus().post(new CameraEngine.CameraDescriptorsEvent(result));
+        postEvent(channel, new CameraEngine.CameraDescriptorsEvent(result));
       }
     });
   }
@@ -144,17 +132,54 @@ public class ClassicCameraEngine extends CameraEngine
    */
   @Override
   public void close(final CameraSession session) {
-    Descriptor descriptor=(Descriptor)session.getDescriptor();
-    Camera camera=descriptor.getCamera();
+    final long requestedAt=System.nanoTime();
 
-    if (camera != null) {
-      camera.stopPreview();
-      camera.release();
-      descriptor.setCamera(null);
-    }
+    getCommandQueue(session).submit("close", new Runnable() {
+      @Override
+      public void run() {
+        long startedAt=System.nanoTime();
+        Descriptor descriptor=(Descriptor)session.getDescriptor();
+        Camera camera=descriptor.getCamera();
+        Exception failure=null;
+
+        try {
+          if (camera != null) {
+            PreviewCallback previewCallback=
+              ((Session)session).previewCallback;
+
+            try {
+              if (previewCallback!=null) {
+                camera.setPreviewCallbackWithBuffer(null);
+                previewCallback.buffers.close();
+              }
+
+              camera.stopPreview();
+            }
+            finally {
+              descriptor.setCamera(null);
+              camera.release();
+            }
+          }
+        }
+        catch (Exception e) {
+          failure=e;
+
+          if (isDebug()) {
+            Log.e(getClass().getSimpleName(), "Exception closing camera", e);
+          }
+        }
+        finally {
+          session.destroy();
+        }
 
-    session.destroy();
-    getBus().post(new ClosedEvent());
+        if (failure==null) {
+          postEvent(session, new ClosedEvent(requestedAt, startedAt));
+        }
+        else {
+          postEvent(session, new ClosedEvent(failure));
+        }
+      }
+    });
   }
 
   /**
@@ -162,40 +187,116 @@ public class ClassicCameraEngine extends CameraEngine
    */
   @Override
   public void takePicture(final CameraSession session, final PictureTransaction xact) {
-    getThreadPool().execute(new Runnable() {
+    takePictures(session, 1, 0L, xact);
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public void takeBurst(CameraSession session, int count,
+                        float framesPerSecond,
+                        PictureTransaction xact) {
+    checkBurst(count, xact);
+
+    long interval=0L;
+
+    if (framesPerSecond>0.0f) {
+      interval=(long)(1000.0f/framesPerSecond);
+    }
+
+    takePictures(session, count, interval, xact);
+  }
+
+  private void takePictures(final CameraSession session,
+                            final int count, final long interval,
+                            final PictureTransaction xact) {
+    final CaptureTimeline timeline=new CaptureTimeline();
+
+    // each frame is done once its picture arrives, so a close or
+    // zoom requested during the shutter waits until then
+
+    getCommandQueue(session).submitAsync("capture",
+      new CommandQueue.AsyncCommand() {
       @Override
-      public void run() {
+      public void run(CommandQueue.Completion done) {
         Descriptor descriptor=(Descriptor)session.getDescriptor();
         Camera camera=descriptor.getCamera();
 
-        if (savePreviewFile()!=null) {
-          camera.setOneShotPreviewCallback(ClassicCameraEngine.this);
+        savePreviewFrame((Session)session, camera);
+        capture(camera, new TakePictureTransaction(session, xact, 0,
+          count, interval, SystemClock.elapsedRealtime(), timeline,
+          done));
+      }
+
+      @Override
+      void onError(Exception e) {
+        postEvent(session, new PictureTakenEvent(e));
+      }
+    });
+  }
 
-          Camera.Parameters parameters=camera.getParameters();
+  /**
+   * Saves the next preview frame, for debugging, if a file was
+   * set via setDebugSavePreviewFile(). If preview frames are
+   * already streaming to a FrameAnalyzer, the frame comes from
+   * that stream; otherwise, a one-shot preview callback gets it,
+   * so there are no preview callbacks outside of captures.
+   */
+  private void savePreviewFrame(Session session, Camera camera) {
+    final File file=savePreviewFile();
 
-          previewWidth=parameters.getPreviewSize().width;
-          previewHeight=parameters.getPreviewSize().height;
-          previewFormat=parameters.getPreviewFormat();
-        }
+    if (file==null || camera==null) {
+      return;
+    }
 
-        try {
-          camera.takePicture(new Camera.ShutterCallback() {
-                               @Override
-                               public void onShutter() {
-                                 // empty plays a sound -- go figure
-                               }
-                             }, null,
-              new TakePictureTransaction(session.getContext(), xact));
-        }
-        catch (Exception e) {
-          getBus().post(new PictureTakenEvent(e));
+    PreviewCallback previewCallback=session.previewCallback;
 
-          if (isDebug()) {
-            Log.e(getClass().getSimpleName(), "Exception taking picture", e);
+    if (previewCallback!=null) {
+      previewCallback.saveNextFrame(file);
+    }
+    else {
+      Camera.Parameters params=camera.getParameters();
+      final Camera.Size size=params.getPreviewSize();
+      final int format=params.getPreviewFormat();
+
+      camera.setOneShotPreviewCallback(new Camera.PreviewCallback() {
+        @Override
+        public void onPreviewFrame(byte[] data, Camera camera) {
+          if (data!=null) {
+            save(data, size.width, size.height, format, file, null);
           }
         }
+      });
+    }
+  }
+
+  private void capture(Camera camera,
+                       final TakePictureTransaction callback) {
+    try {
+      camera.takePicture(new Camera.ShutterCallback() {
+                           @Override
+                           public void onShutter() {
+                             // non-null plays a sound -- go figure
+
+                             callback.timeline
+                               .mark(CaptureTimeline.Stage.CAPTURE_STARTED);
+                           }
+                         }, null, callback);
+    }
+    catch (Exception e) {
+      callback.done.complete();
+      postEvent(callback.session, new PictureTakenEvent(e));
+
+      if (isDebug()) {
+        Log.e(getClass().getSimpleName(), "Exception taking picture", e);
       }
-    });
+
+      // carry on with the rest of the burst, so later frames
+      // keep their indices
+
+      callback.captureNext(camera);
+    }
   }
 
   /**
@@ -204,58 +305,78 @@ public class ClassicCameraEngine extends CameraEngine
   @Override
   public void open(final CameraSession session,
                    final SurfaceTexture texture) {
-    getThreadPool().execute(new Runnable() {
+    awaitPreviousSession(session);
+    getCommandQueue(session).submit("open", new Runnable() {
       @Override
       public void run() {
         Descriptor descriptor=(Descriptor)session.getDescriptor();
         Camera camera=descriptor.getCamera();
 
-        if (camera == null) {
-          camera=Camera.open(descriptor.getCameraId());
-          descriptor.setCamera(camera);
-        }
+        // everything, Camera.open() included, can fail if the
+        // camera is busy or disconnected, and the fragment is
+        // waiting to hear either way
 
-        Camera.Parameters params=camera.getParameters();
-        List<String> rawFlashModes=params.getSupportedFlashModes();
+        try {
+          if (camera == null) {
+            camera=Camera.open(descriptor.getCameraId());
+            descriptor.setCamera(camera);
+          }
 
-        eligibleFlashModes.clear();
+          Camera.Parameters params=camera.getParameters();
+
+          if (!descriptor.isValidated()) {
+            revalidate(descriptor, params);
+          }
 
-        if (rawFlashModes!=null && preferredFlashModes!=null) {
-          for (FlashMode flashMode : preferredFlashModes) {
-            for (String rawFlashMode : rawFlashModes) {
-              if (rawFlashMode.equals(
-                flashMode.getClassicMode())) {
-                eligibleFlashModes.add(flashMode);
-                break;
+          ((Session)session).isSmoothZoomSupported=
+            params.isSmoothZoomSupported();
+
+          List<String> rawFlashModes=params.getSupportedFlashModes();
+
+          eligibleFlashModes.clear();
+
+          if (rawFlashModes!=null && preferredFlashModes!=null) {
+            for (FlashMode flashMode : preferredFlashModes) {
+              for (String rawFlashMode : rawFlashModes) {
+                if (rawFlashMode.equals(
+                  flashMode.getClassicMode())) {
+                  eligibleFlashModes.add(flashMode);
+                  break;
+                }
               }
             }
-          }
 
-          if (eligibleFlashModes.isEmpty()) {
-            for (String rawFlashMode : rawFlashModes) {
-              FlashMode flashMode=
-                FlashMode.lookupClassicMode(rawFlashMode);
+            if (eligibleFlashModes.isEmpty()) {
+              for (String rawFlashMode : rawFlashModes) {
+                FlashMode flashMode=
+                  FlashMode.lookupClassicMode(rawFlashMode);
 
-              if (flashMode!=null) {
-                eligibleFlashModes.add(flashMode);
+                if (flashMode!=null) {
+                  eligibleFlashModes.add(flashMode);
+                }
               }
             }
+
+            session.setCurrentFlashMode(eligibleFlashModes.get(0));
           }
 
-          session.setCurrentFlashMode(eligibleFlashModes.get(0));
-        }
+          Camera.Parameters configured=
+            ((Session)session).configureStillCamera(false);
 
-        try {
-          camera.setParameters(((Session)session).configureStillCamera(
-            false));
+          camera.setParameters(configured);
           camera.setPreviewTexture(texture);
+          startPreviewCallbacks((Session)session, camera, configured);
           camera.startPreview();
-          getBus().post(new OpenedEvent());
+          postEvent(session, new OpenedEvent());
         }
         catch (Exception e) {
-          camera.release();
           descriptor.setCamera(null);
-          getBus().post(new OpenedEvent(e));
+
+          if (camera!=null) {
+            camera.release();
+          }
+
+          postEvent(session, new OpenedEvent(e));
 
           if (isDebug()) {
             Log.e(getClass().getSimpleName(), "Exception opening camera", e);
@@ -265,6 +386,54 @@ public class ClassicCameraEngine extends CameraEngine
     });
   }
 
+  /**
+   * Sets up preview frame callbacks for the FrameAnalyzer, if
+   * there is one. The frames land in a PreviewBufferPool,
+   * allocated here, and each buffer keeps its own Frame, so
+   * nothing is allocated per frame.
+   */
+  private void startPreviewCallbacks(Session session,
+                                     final Camera camera,
+                                     Camera.Parameters params) {
+    FrameDispatcher dispatcher=getFrameDispatcher();
+
+    if (dispatcher==null) {
+      return;
+    }
+
+    int format=params.getPreviewFormat();
+
+    if (format!=ImageFormat.NV21) {
+      if (isDebug()) {
+        Log.w(getClass().getSimpleName(),
+          "Cannot analyze preview format "+format);
+      }
+
+      return;
+    }
+
+    Camera.Size size=params.getPreviewSize();
+    PreviewBufferPool buffers=new PreviewBufferPool(size.width,
+      size.height, format,
+      PreviewBufferPool.getBufferSize(size.width, size.height, format),
+      PreviewBufferPool.DEFAULT_BUFFER_COUNT,
+      new PreviewBufferPool.Recycler() {
+        @Override
+        public void recycle(byte[] buffer) {
+          try {
+            camera.addCallbackBuffer(buffer);
+          }
+          catch (RuntimeException e) {
+            // camera was released while the buffer was in use
+          }
+        }
+      });
+
+    session.previewCallback=new PreviewCallback(buffers, dispatcher);
+    buffers.start();
+    camera.setPreviewCallbackWithBuffer(session.previewCallback);
+  }
+
   @Override
   public void recordVideo(CameraSession session,
                           VideoTransaction xact) throws Exception {
@@ -291,6 +460,7 @@ public class ClassicCameraEngine extends CameraEngine
         recorder.prepare();
         recorder.start();
         this.xact=xact;
+        this.videoSession=session;
       }
       catch (IOException e) {
         recorder.release();
@@ -315,16 +485,18 @@ public class ClassicCameraEngine extends CameraEngine
       tempRecorder.release();
 
       if (!abandon) {
+        indexVideo(xact);
         camera.reconnect();
         camera.startPreview();
       }
     }
 
     if (!abandon) {
-      getBus().post(new VideoTakenEvent(xact));
+      postEvent(session, new VideoTakenEvent(xact));
     }
 
     xact=null;
+    videoSession=null;
   }
 
 /*
@@ -368,40 +540,23 @@ public class ClassicCameraEngine extends CameraEngine
       if (tempRecorder != null) {
         tempRecorder.stop();
         tempRecorder.release();
+        indexVideo(xact);
       }
 
-      getBus().post(new VideoTakenEvent(xact));
+      postEvent(videoSession, new VideoTakenEvent(xact));
     }
   }
 
-  @Override
-  public void onPreviewFrame(final byte[] data, final Camera camera) {
-    new Thread() {
-      @Override
-      public void run() {
-        YuvImage yuv=new YuvImage(data, previewFormat,
-          previewWidth, previewHeight, null);
-
-        try {
-          if (savePreviewFile().exists()) {
-            savePreviewFile().delete();
-          }
-
-          FileOutputStream fos=
-            new FileOutputStream(savePreviewFile());
-
-          yuv.compressToJpeg(new Rect(0, 0, previewWidth, previewHeight),
-            90, fos);
-          fos.flush();
-          fos.getFD().sync();
-          fos.close();
-        }
-        catch (Exception e) {
-          Log.e(getClass().getSimpleName(),
-            "Exception saving preview frame", e);
-        }
-      }
-    }.start();
+  /**
+   * Queues a video for the MediaStore, if its transaction asks
+   * for that. Called once the MediaRecorder is stopped and
+   * released, at which point the file is complete.
+   */
+  private void indexVideo(VideoTransaction xact) {
+    if (xact!=null && xact.shouldUpdateMediaStore()) {
+      MediaIndexer.get(ctxt)
+        .scan(xact.getOutputPath().getAbsolutePath(), "video/mp4");
+    }
   }
 
   /**
@@ -421,54 +576,435 @@ public class ClassicCameraEngine extends CameraEngine
     return(params.isZoomSupported());
   }
 
+  /**
+   * {@inheritDoc}
+   *
+   * The zoom is applied on the session's CommandQueue, where
+   * it replaces any zoom that has not been applied yet.
+   */
   @Override
-  public boolean zoomTo(CameraSession session, int zoomLevel) {
-    Descriptor descriptor=(Descriptor)session.getDescriptor();
-    Camera camera=descriptor.getCamera();
-    Camera.Parameters params=camera.getParameters();
-    int zoom=zoomLevel*params.getMaxZoom()/100;
-    boolean result=false;
+  public boolean zoomTo(final CameraSession session,
+                        final int zoomLevel) {
+    getCommandQueue(session).submitCoalesced("zoom", new Runnable() {
+      @Override
+      public void run() {
+        Descriptor descriptor=(Descriptor)session.getDescriptor();
+        Camera camera=descriptor.getCamera();
 
-    if (params.isSmoothZoomSupported()) {
-      camera.setZoomChangeListener(this);
-      camera.startSmoothZoom(zoom);
-      result=true;
+        if (camera==null) {
+          return;
+        }
+
+        Camera.Parameters params=camera.getParameters();
+        int zoom=zoomLevel*params.getMaxZoom()/100;
+
+        if (params.isSmoothZoomSupported()) {
+          camera.setZoomChangeListener(new ZoomChangeListener(session));
+          camera.startSmoothZoom(zoom);
+        }
+        else if (params.isZoomSupported()) {
+          params.setZoom(zoom);
+          camera.setParameters(params);
+        }
+      }
+    });
+
+    return(((Session)session).isSmoothZoomSupported);
+  }
+
+  /**
+   * Reports the end of a smooth zoom to the session that asked
+   * for it, rather than to everyone on the engine's bus.
+   */
+  private class ZoomChangeListener implements Camera.OnZoomChangeListener {
+    private final CameraSession session;
+
+    ZoomChangeListener(CameraSession session) {
+      this.session=session;
     }
-    else if (params.isZoomSupported()) {
-      params.setZoom(zoom);
-      camera.setParameters(params);
+
+    @Override
+    public void onZoomChange(int zoomValue, boolean stopped,
+                             Camera camera) {
+      if (stopped) {
+        postEvent(session, new SmoothZoomCompletedEvent());
+      }
+    }
+  }
+
+  /**
+   * Builds descriptors from the on-disk cache, if it still
+   * agrees with the camera count and facings, which are
+   * available without opening the cameras; the sizes are
+   * checked later, when a camera is opened anyway. Otherwise,
+   * opens each camera to find out its sizes.
+   */
+  private List<Descriptor> loadDescriptors() throws Exception {
+    List<Descriptor> result=new ArrayList<Descriptor>();
+    Camera.CameraInfo info=new Camera.CameraInfo();
+
+    for (DescriptorCache.Entry entry : cache.loadOrProbe(new Source())) {
+      int cameraId=Integer.parseInt(entry.id);
+
+      Camera.getCameraInfo(cameraId, info);
+
+      Descriptor descriptor=new Descriptor(cameraId, info);
+
+      descriptor.setPreviewSizes(entry.previewSizes);
+      descriptor.setPictureSizes(entry.pictureSizes);
+      descriptor.setValidated(entry.validated);
+      result.add(descriptor);
     }
 
     return(result);
   }
 
-  @Override
-  public void onZoomChange(int zoomValue, boolean stopped,
-                           Camera camera) {
-    if (stopped) {
-      EventBus.getDefault().post(new SmoothZoomCompletedEvent());
+  private static class Source implements DescriptorCache.Source {
+    private final Camera.CameraInfo info=new Camera.CameraInfo();
+
+    @Override
+    public List<String> getCameraIds() {
+      int count=Camera.getNumberOfCameras();
+      List<String> result=new ArrayList<String>(count);
+
+      for (int cameraId=0; cameraId<count; cameraId++) {
+        result.add(Integer.toString(cameraId));
+      }
+
+      return(result);
+    }
+
+    @Override
+    public boolean matches(DescriptorCache.Entry entry) {
+      Camera.getCameraInfo(Integer.parseInt(entry.id), info);
+
+      return(entry.facing==info.facing);
+    }
+
+    @Override
+    public DescriptorCache.Entry probe(String id) {
+      int cameraId=Integer.parseInt(id);
+
+      Camera.getCameraInfo(cameraId, info);
+
+      Camera camera=Camera.open(cameraId);
+
+      try {
+        Camera.Parameters params=camera.getParameters();
+
+        return(new DescriptorCache.Entry(id, info.facing,
+          buildPreviewSizes(params), buildPictureSizes(params)));
+      }
+      finally {
+        camera.release();
+      }
     }
   }
 
+  private void saveDescriptors(List<Descriptor> descriptors) {
+    List<DescriptorCache.Entry> entries=
+      new ArrayList<DescriptorCache.Entry>();
+
+    for (Descriptor descriptor : descriptors) {
+      entries.add(new DescriptorCache.Entry(
+        Integer.toString(descriptor.getCameraId()),
+        descriptor.facing, descriptor.getPreviewSizes(),
+        descriptor.getPictureSizes()));
+    }
+
+    if (!cache.save(entries) && isDebug()) {
+      Log.w(getClass().getSimpleName(), "Could not save descriptor cache");
+    }
+  }
+
+  /**
+   * Compares cached sizes against what the now-open camera
+   * reports, updating the descriptor and the cache if the
+   * cache was wrong.
+   */
+  private void revalidate(Descriptor descriptor,
+                          Camera.Parameters params) {
+    ArrayList<Size> previewSizes=buildPreviewSizes(params);
+    ArrayList<Size> pictureSizes=buildPictureSizes(params);
+
+    descriptor.setValidated(true);
+
+    if (!previewSizes.equals(descriptor.getPreviewSizes()) ||
+      !pictureSizes.equals(descriptor.getPictureSizes())) {
+      descriptor.setPreviewSizes(previewSizes);
+      descriptor.setPictureSizes(pictureSizes);
+
+      if (descriptors!=null) {
+        saveDescriptors(descriptors);
+      }
+    }
+  }
+
+  private static ArrayList<Size> buildPreviewSizes(Camera.Parameters params) {
+    ArrayList<Size> sizes=new ArrayList<Size>();
+
+    for (Camera.Size size : params.getSupportedPreviewSizes()) {
+      if (size.height<2160 && size.width<2160) {
+        sizes.add(new Size(size.width, size.height));
+      }
+    }
+
+    return(sizes);
+  }
+
+  private static ArrayList<Size> buildPictureSizes(Camera.Parameters params) {
+    ArrayList<Size> sizes=new ArrayList<Size>();
+
+    for (Camera.Size size : params.getSupportedPictureSizes()) {
+      if (!"samsung".equals(Build.MANUFACTURER) ||
+          !"jflteuc".equals(Build.PRODUCT) ||
+          size.width<2048) {
+        sizes.add(new Size(size.width, size.height));
+      }
+    }
+
+    return(sizes);
+  }
+
   private class TakePictureTransaction implements Camera.PictureCallback {
     private final PictureTransaction xact;
-    private final Context ctxt;
-
-    TakePictureTransaction(Context ctxt, PictureTransaction xact) {
-      this.ctxt=ctxt.getApplicationContext();
+    private final CameraSession session;
+    private final int index;
+    private final int count;
+    private final long interval;
+    private final long burstStart;
+    final CaptureTimeline timeline;
+    final CommandQueue.Completion done;
+
+    TakePictureTransaction(CameraSession session,
+                           PictureTransaction xact, int index,
+                           int count, long interval, long burstStart,
+                           CaptureTimeline timeline,
+                           CommandQueue.Completion done) {
+      this.session=session;
       this.xact=xact;
+      this.index=index;
+      this.count=count;
+      this.interval=interval;
+      this.burstStart=burstStart;
+      this.timeline=timeline;
+      this.done=done;
     }
 
+    /**
+     * Called on the main application thread, so the picture is
+     * handled on the engine's pool. The capture command is still
+     * running, so nothing else touches the camera meanwhile.
+     */
     @Override
     public void onPictureTaken(final byte[] bytes, final Camera camera) {
-      getThreadPool().execute(new Runnable() {
+      timeline.mark(CaptureTimeline.Stage.IMAGE_AVAILABLE);
+
+      Runnable task=new Runnable() {
         @Override
         public void run() {
+          handlePicture(bytes, camera);
+        }
+      };
+
+      try {
+        CameraScheduler.get()
+          .execute(CameraScheduler.Workload.CAMERA_CONTROL, task);
+      }
+      catch (RejectedExecutionException e) {
+        task.run();
+      }
+    }
+
+    private void handlePicture(byte[] bytes, Camera camera) {
+      try {
+        ImageContext imageContext=
+          new ImageContext(session.getContext(), bytes);
+
+        imageContext.setFrame(index, count);
+        imageContext.setTimeline(timeline);
+        processPicture(session, xact, imageContext);
+
+        // the picture is on its way, so a preview that will not
+        // restart does not lose it
+
+        try {
           camera.startPreview();
-          getBus().post(new PictureTakenEvent(xact,
-            xact.process(new ImageContext(ctxt, bytes))));
         }
-      });
+        catch (RuntimeException e) {
+          if (isDebug()) {
+            Log.e(getClass().getSimpleName(),
+              "Exception restarting preview", e);
+          }
+        }
+      }
+      finally {
+        done.complete();
+      }
+
+      captureNext(camera);
+    }
+
+    /**
+     * The classic API has no bursts, so chain takePicture()
+     * calls, paced to the requested rate. The wait happens on
+     * the scheduler, not on the command queue, so the session
+     * stays responsive between frames.
+     */
+    void captureNext(final Camera camera) {
+      final int next=index+1;
+
+      if (next<count) {
+        long delay=
+          burstStart+next*interval-SystemClock.elapsedRealtime();
+
+        CameraScheduler.get().schedule(
+          CameraScheduler.Workload.CAMERA_CONTROL, new Runnable() {
+            @Override
+            public void run() {
+              getCommandQueue(session).submitAsync("capture",
+                new CommandQueue.AsyncCommand() {
+                @Override
+                public void run(CommandQueue.Completion done) {
+                  Descriptor descriptor=
+                    (Descriptor)session.getDescriptor();
+
+                  // the session may have closed while we waited
+
+                  if (descriptor.getCamera()==camera) {
+                    capture(camera, new TakePictureTransaction(session,
+                      xact, next, count, interval, burstStart,
+                      timeline.forFrame(), done));
+                  }
+                  else {
+                    done.complete();
+                  }
+                }
+
+                @Override
+                void onError(Exception e) {
+                  postEvent(session, new PictureTakenEvent(e));
+                }
+              });
+            }
+          }, Math.max(0L, delay));
+      }
+    }
+  }
+
+  /**
+   * Receives preview frames into a PreviewBufferPool and hands
+   * each to its consumers: the FrameDispatcher, and the debug
+   * preview save, if one was requested for this capture. The
+   * buffer goes back to the camera once they are all done.
+   */
+  private static class PreviewCallback implements Camera.PreviewCallback {
+    final PreviewBufferPool buffers;
+    private final FrameDispatcher dispatcher;
+    private volatile File saveTo=null;
+
+    PreviewCallback(PreviewBufferPool buffers,
+                    FrameDispatcher dispatcher) {
+      this.buffers=buffers;
+      this.dispatcher=dispatcher;
+    }
+
+    /**
+     * Saves the next preview frame as a JPEG, for debugging.
+     *
+     * @param file where to save the frame
+     */
+    void saveNextFrame(File file) {
+      saveTo=file;
+    }
+
+    @Override
+    public void onPreviewFrame(byte[] data, Camera camera) {
+      if (data==null) {
+        return;
+      }
+
+      PreviewBufferPool.PreviewBuffer buffer=buffers.onFilled(data);
+
+      if (buffer==null) {
+        return;
+      }
+
+      try {
+        buffer.retain();
+
+        // the classic API has no sensor timestamps, so the
+        // arrival time is the best there is (see
+        // Frame.getTimestamp())
+
+        if (!dispatcher.offer(buffer.toFrame(System.nanoTime()),
+          buffer.releaser)) {
+          buffer.release();
+        }
+
+        File file=saveTo;
+
+        if (file!=null) {
+          saveTo=null;
+          buffer.retain();
+          save(buffer.getData(), buffers.getWidth(), buffers.getHeight(),
+            buffers.getFormat(), file, buffer.releaser);
+        }
+      }
+      finally {
+        buffer.release();
+      }
+    }
+  }
+
+  /**
+   * Saves a preview frame as a JPEG, for debugging, on the
+   * DISK_IO pool.
+   *
+   * @param onDone run once the frame bytes are no longer
+   *               needed, or null
+   */
+  private static void save(final byte[] data, final int width,
+                           final int height, final int format,
+                           final File file, final Runnable onDone) {
+    try {
+      CameraScheduler.get().execute(CameraScheduler.Workload.DISK_IO,
+        new Runnable() {
+          @Override
+          public void run() {
+            try {
+              YuvImage yuv=new YuvImage(data, format, width, height,
+                null);
+
+              if (file.exists()) {
+                file.delete();
+              }
+
+              FileOutputStream fos=new FileOutputStream(file);
+
+              yuv.compressToJpeg(new Rect(0, 0, width, height), 90, fos);
+              fos.flush();
+              fos.getFD().sync();
+              fos.close();
+            }
+            catch (Exception e) {
+              Log.e(getClass().getSimpleName(),
+                "Exception saving preview frame", e);
+            }
+            finally {
+              if (onDone!=null) {
+                onDone.run();
+              }
+            }
+          }
+        });
+    }
+    catch (RejectedExecutionException e) {
+      Log.e("CWAC-Cam2", "Could not save preview frame", e);
+
+      if (onDone!=null) {
+        onDone.run();
+      }
     }
   }
 
@@ -478,12 +1014,21 @@ public class ClassicCameraEngine extends CameraEngine
     private ArrayList<Size> pictureSizes;
     private ArrayList<Size> previewSizes;
     private final int facing;
+    private boolean validated=false;
 
     private Descriptor(int cameraId, Camera.CameraInfo info) {
       this.cameraId=cameraId;
       this.facing=info.facing;
     }
 
+    private boolean isValidated() {
+      return(validated);
+    }
+
+    private void setValidated(boolean validated) {
+      this.validated=validated;
+    }
+
     public int getCameraId() {
       return (cameraId);
     }
@@ -536,6 +1081,9 @@ public class ClassicCameraEngine extends CameraEngine
   }
 
   private static class Session extends CameraSession {
+    volatile boolean isSmoothZoomSupported=false;
+    volatile PreviewCallback previewCallback=null;
+
     private Session(Context ctxt, CameraDescriptor descriptor) {
       super(ctxt, descriptor);
     }
@@ -0,0 +1,454 @@
+/***
+ Copyright (c) 2016 CommonsWare, LLC
+
+ Licensed under the Apache License, Version 2.0 (the "License"); you may
+ not use this file except in compliance with the License. You may obtain
+ a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+package com.commonsware.cwac.cam2;
+
+import android.util.Log;
+
+import com.commonsware.cwac.cam2.util.LatencyHistogram;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * The commands for one CameraSession (open, close, capture,
+ * zoom, and so on), run one at a time, in the order they were
+ * submitted, on threads borrowed from the engine's thread pool.
+ * Submitting a command never blocks.
+ *
+ * A command can be asynchronous, in which case the next
+ * command waits until it reports that it is done (e.g., once
+ * the camera2 API calls back to say that the camera is open),
+ * or until ASYNC_TIMEOUT_MS passes, whichever comes first.
+ *
+ * A coalesced command replaces a command of the same name
+ * that is still waiting its turn, so (for example) a flurry of
+ * zoom changes results in just the latest one being applied.
+ *
+ * If a command throws, or the thread pool rejects it because
+ * it is saturated, the exception is logged and handed to the
+ * command's onError(), and the queue moves on to the next one.
+ * Exceptions are never thrown out of the pool's threads.
+ *
+ * For each kind of command, the queue keeps track of how long
+ * commands waited for their turn and how long they took.
+ */
+public class CommandQueue {
+  /**
+   * How long an asynchronous command may run before the queue
+   * moves on without it
+   */
+  public static final long ASYNC_TIMEOUT_MS=2500;
+
+  /**
+   * Handed to an asynchronous command, to report that it is
+   * done. Calls after the first are ignored.
+   */
+  interface Completion {
+    void complete();
+  }
+
+  /**
+   * A command that finishes some time after its run() method
+   * returns.
+   */
+  abstract static class AsyncCommand {
+    abstract void run(Completion done);
+
+    /**
+     * Called, on whatever thread found the problem, if run()
+     * throws or if the command could not be started at all. The
+     * queue has already logged the exception and moved on.
+     *
+     * @param e what went wrong
+     */
+    void onError(Exception e) {
+      // nothing by default
+    }
+  }
+
+  private final Executor backing;
+  private final ArrayDeque<Command> pending=new ArrayDeque<Command>();
+  private final LinkedHashMap<String, CommandStats> stats=
+    new LinkedHashMap<String, CommandStats>();
+  private Command active=null;
+
+  CommandQueue(Executor backing) {
+    this.backing=backing;
+  }
+
+  /**
+   * Queues a command.
+   *
+   * @param name the kind of command, for statistics
+   * @param command the work
+   */
+  void submit(String name, Runnable command) {
+    submit(name, null, command);
+  }
+
+  /**
+   * Queues a command that supersedes earlier ones of the same
+   * name: if one of those has not started yet, it is replaced by
+   * this one, which keeps its place in the queue.
+   *
+   * @param name the kind of command, for statistics and for
+   *             finding commands to replace
+   * @param command the work
+   */
+  void submitCoalesced(String name, Runnable command) {
+    submit(name, name, command);
+  }
+
+  private void submit(String name, Object coalesceKey,
+                      final Runnable command) {
+    enqueue(new Command(name, coalesceKey, 0, new AsyncCommand() {
+      @Override
+      public void run(Completion done) {
+        try {
+          command.run();
+        }
+        finally {
+          done.complete();
+        }
+      }
+    }));
+  }
+
+  /**
+   * Queues an asynchronous command. Commands after it wait
+   * until it calls complete() on the Completion that it is
+   * given, or until ASYNC_TIMEOUT_MS passes.
+   *
+   * @param name the kind of command, for statistics
+   * @param command the work
+   */
+  void submitAsync(String name, AsyncCommand command) {
+    submitAsync(name, ASYNC_TIMEOUT_MS, command);
+  }
+
+  /**
+   * Queues an asynchronous command that may legitimately take
+   * longer than ASYNC_TIMEOUT_MS, such as a slow burst.
+   *
+   * @param name the kind of command, for statistics
+   * @param timeoutMs how long to wait for the command to
+   *                  complete before moving on
+   * @param command the work
+   */
+  void submitAsync(String name, long timeoutMs, AsyncCommand command) {
+    enqueue(new Command(name, null, timeoutMs, command));
+  }
+
+  /**
+   * @return number of commands waiting for their turn, not
+   * counting the one running now
+   */
+  synchronized public int getQueueDepth() {
+    return(pending.size());
+  }
+
+  /**
+   * @param name the kind of command
+   * @return statistics for that kind of command, or null if no
+   * such command has been submitted
+   */
+  public CommandStats getStats(String name) {
+    synchronized(stats) {
+      CommandStats result=stats.get(name);
+
+      return(result==null ? null : result.snapshot());
+    }
+  }
+
+  /**
+   * @return statistics for every kind of command submitted so
+   * far, in the order they were first seen
+   */
+  public List<CommandStats> getStats() {
+    ArrayList<CommandStats> result=new ArrayList<CommandStats>();
+
+    synchronized(stats) {
+      for (CommandStats s : stats.values()) {
+        result.add(s.snapshot());
+      }
+    }
+
+    return(result);
+  }
+
+  @Override
+  public String toString() {
+    StringBuilder buf=new StringBuilder("CommandQueue[queued=");
+
+    buf.append(getQueueDepth());
+
+    for (CommandStats s : getStats()) {
+      buf.append(", ").append(s);
+    }
+
+    return(buf.append(']').toString());
+  }
+
+  private void enqueue(Command command) {
+    Command next=null;
+
+    synchronized(this) {
+      if (command.coalesceKey!=null) {
+        for (Iterator<Command> i=pending.iterator(); i.hasNext();) {
+          Command queued=i.next();
+
+          if (command.coalesceKey.equals(queued.coalesceKey)) {
+            queued.body=command.body;
+            getStatsFor(command.name).recordCoalesced();
+
+            return;
+          }
+        }
+      }
+
+      pending.offer(command);
+
+      if (active==null) {
+        next=pending.poll();
+        active=next;
+      }
+    }
+
+    if (next!=null) {
+      dispatch(next);
+    }
+  }
+
+  private void onCompleted(Command command) {
+    Command next;
+
+    synchronized(this) {
+      if (active!=command) {
+        return;
+      }
+
+      next=pending.poll();
+      active=next;
+    }
+
+    if (next!=null) {
+      dispatch(next);
+    }
+  }
+
+  private void dispatch(Command command) {
+    try {
+      backing.execute(command);
+    }
+    catch (RejectedExecutionException e) {
+      getStatsFor(command.name).recordRejected();
+      command.skip(e);
+    }
+  }
+
+  private CommandStats getStatsFor(String name) {
+    synchronized(stats) {
+      CommandStats result=stats.get(name);
+
+      if (result==null) {
+        result=new CommandStats(name);
+        stats.put(name, result);
+      }
+
+      return(result);
+    }
+  }
+
+  private class Command implements Runnable, Completion {
+    final String name;
+    final Object coalesceKey;
+    final long timeoutMs;
+    volatile AsyncCommand body;
+    final long enqueuedAt=System.nanoTime();
+    private final AtomicBoolean isComplete=new AtomicBoolean(false);
+    private volatile long startedAt;
+
+    Command(String name, Object coalesceKey, long timeoutMs,
+            AsyncCommand body) {
+      this.name=name;
+      this.coalesceKey=coalesceKey;
+      this.timeoutMs=timeoutMs;
+      this.body=body;
+    }
+
+    @Override
+    public void run() {
+      startedAt=System.nanoTime();
+
+      if (timeoutMs>0) {
+        CameraScheduler.get().schedule(
+          CameraScheduler.Workload.CAMERA_CONTROL, new Runnable() {
+            @Override
+            public void run() {
+              if (!isComplete.get()) {
+                Log.w("CWAC-Cam2", "Timed out waiting for "+name);
+                getStatsFor(name).recordTimeout();
+                complete();
+              }
+            }
+          }, timeoutMs);
+      }
+
+      AsyncCommand current=body;
+
+      try {
+        current.run(this);
+      }
+      catch (RuntimeException e) {
+        Log.e("CWAC-Cam2", "Exception in "+name, e);
+        complete();
+        current.onError(e);
+      }
+    }
+
+    @Override
+    public void complete() {
+      if (isComplete.compareAndSet(false, true)) {
+        long now=System.nanoTime();
+
+        getStatsFor(name).record(startedAt-enqueuedAt, now-startedAt);
+        onCompleted(this);
+      }
+    }
+
+    /**
+     * Moves the queue on without this command having run.
+     */
+    void skip(Exception e) {
+      Log.e("CWAC-Cam2", "Skipping "+name, e);
+
+      if (isComplete.compareAndSet(false, true)) {
+        onCompleted(this);
+      }
+
+      body.onError(e);
+    }
+  }
+
+  /**
+   * Statistics for one kind of command.
+   */
+  public static class CommandStats {
+    private final String name;
+    private final LatencyHistogram waitLatency;
+    private final LatencyHistogram runLatency;
+    private long coalescedCount=0;
+    private long timeoutCount=0;
+    private long rejectedCount=0;
+
+    CommandStats(String name) {
+      this(name, new LatencyHistogram(), new LatencyHistogram());
+    }
+
+    private CommandStats(String name, LatencyHistogram waitLatency,
+                         LatencyHistogram runLatency) {
+      this.name=name;
+      this.waitLatency=waitLatency;
+      this.runLatency=runLatency;
+    }
+
+    /**
+     * @return the kind of command
+     */
+    public String getName() {
+      return(name);
+    }
+
+    /**
+     * @return how long commands waited for their turn
+     */
+    public LatencyHistogram getWaitLatency() {
+      return(waitLatency);
+    }
+
+    /**
+     * @return how long commands took, from starting to
+     * reporting that they were done
+     */
+    public LatencyHistogram getRunLatency() {
+      return(runLatency);
+    }
+
+    /**
+     * @return number of commands that were replaced by a later
+     * one before they could run
+     */
+    synchronized public long getCoalescedCount() {
+      return(coalescedCount);
+    }
+
+    /**
+     * @return number of asynchronous commands that the queue
+     * gave up waiting for
+     */
+    synchronized public long getTimeoutCount() {
+      return(timeoutCount);
+    }
+
+    /**
+     * @return number of commands skipped because the thread
+     * pool was saturated
+     */
+    synchronized public long getRejectedCount() {
+      return(rejectedCount);
+    }
+
+    @Override
+    synchronized public String toString() {
+      return(name+": wait=("+waitLatency+") run=("+runLatency+
+        ") coalesced="+coalescedCount+" timeouts="+timeoutCount+
+        " rejected="+rejectedCount);
+    }
+
+    void record(long waitNanos, long runNanos) {
+      waitLatency.record(waitNanos);
+      runLatency.record(runNanos);
+    }
+
+    synchronized void recordCoalesced() {
+      coalescedCount++;
+    }
+
+    synchronized void recordTimeout() {
+      timeoutCount++;
+    }
+
+    synchronized void recordRejected() {
+      rejectedCount++;
+    }
+
+    synchronized CommandStats snapshot() {
+      CommandStats result=new CommandStats(name,
+        waitLatency.snapshot(), runLatency.snapshot());
+
+      result.coalescedCount=coalescedCount;
+      result.timeoutCount=timeoutCount;
+      result.rejectedCount=rejectedCount;
+
+      return(result);
+    }
+  }
+}
@@ -17,6 +17,7 @@ package com.commonsware.cwac.cam2;
 import android.app.ActionBar;
 import android.app.Activity;
 import android.app.Fragment;
+import android.graphics.Bitmap;
 import android.os.Build;
 import android.os.Bundle;
 import android.view.LayoutInflater;
@@ -27,7 +28,8 @@ import android.view.View;
 import android.view.ViewGroup;
 import android.widget.ImageView;
 
-public class ConfirmationFragment extends Fragment {
+public class ConfirmationFragment extends Fragment
+  implements ImageContext.ThumbnailCallback {
   private Float quality;
 
   public interface Contract {
@@ -37,6 +39,8 @@ public class ConfirmationFragment extends Fragment {
 
   private ImageView iv;
   private ImageContext imageContext;
+  private ImageContext shownContext;
+  private Bitmap shownThumbnail;
 
   public static ConfirmationFragment newInstance() {
     ConfirmationFragment result=new ConfirmationFragment();
@@ -128,6 +132,10 @@ public class ConfirmationFragment extends Fragment {
   }
 
   public void setImage(ImageContext imageContext, Float quality) {
+    if (this.imageContext!=null && this.imageContext!=imageContext) {
+      this.imageContext.release();
+    }
+
     this.imageContext=imageContext;
     this.quality=quality;
 
@@ -141,6 +149,37 @@ public class ConfirmationFragment extends Fragment {
   }
 
   private void loadImage(Float quality) {
-    iv.setImageBitmap(imageContext.buildPreviewThumbnail(getActivity(), quality));
+    if (imageContext==null) {
+      showThumbnail(null, null);
+    }
+    else {
+      imageContext.buildPreviewThumbnail(getActivity(), quality, this);
+    }
+  }
+
+  @Override
+  public void onThumbnail(ImageContext imageContext, Bitmap thumbnail) {
+    // ignore thumbnails for pictures that have since been replaced
+
+    if (iv!=null && imageContext==this.imageContext) {
+      showThumbnail(imageContext, thumbnail);
+    }
+  }
+
+  private void showThumbnail(ImageContext imageContext,
+                             Bitmap thumbnail) {
+    iv.setImageBitmap(thumbnail);
+
+    // the old thumbnail is off-screen now, so the bitmap can be
+    // decoded into next time; the cache drops it first, so it
+    // is never handed out again as a thumbnail
+
+    if (shownContext!=null && shownContext!=imageContext &&
+      shownThumbnail!=thumbnail) {
+      ThumbnailCache.get().offerForReuse(shownThumbnail);
+    }
+
+    shownContext=imageContext;
+    shownThumbnail=thumbnail;
   }
 }
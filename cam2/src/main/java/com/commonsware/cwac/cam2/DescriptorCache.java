@@ -0,0 +1,301 @@
+/***
+ Copyright (c) 2016 CommonsWare, LLC
+
+ Licensed under the Apache License, Version 2.0 (the "License"); you may
+ not use this file except in compliance with the License. You may obtain
+ a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+package com.commonsware.cwac.cam2;
+
+import android.content.Context;
+import android.os.Build;
+
+import com.commonsware.cwac.cam2.util.Size;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * On-disk cache of what an engine learned about the device's
+ * cameras, so a fresh process does not need to open every
+ * camera just to find out its preview and picture sizes.
+ *
+ * The cache is a small binary file in the app's cache directory,
+ * one per engine. It records the build fingerprint it was
+ * written under and is ignored after an OS update, or if it
+ * was written by a different version of this class. Engines
+ * are expected to check the entries against cheap-to-obtain
+ * camera information (e.g., camera count and facing) before
+ * trusting them, and to rewrite the cache if a camera turns out
+ * to have different sizes once it is actually opened.
+ */
+class DescriptorCache {
+  private static final int MAGIC=0x43574443; // CWDC
+  private static final int VERSION=1;
+  private final File file;
+  private final String fingerprint;
+
+  /**
+   * What the cache knows about one camera.
+   */
+  static class Entry {
+    final String id;
+    final int facing;
+    final ArrayList<Size> previewSizes;
+    final ArrayList<Size> pictureSizes;
+
+    /**
+     * True if the entry came from the camera itself, rather than
+     * from the cache file; not stored in the file
+     */
+    boolean validated=false;
+
+    Entry(String id, int facing, ArrayList<Size> previewSizes,
+          ArrayList<Size> pictureSizes) {
+      this.id=id;
+      this.facing=facing;
+      this.previewSizes=previewSizes;
+      this.pictureSizes=pictureSizes;
+    }
+  }
+
+  /**
+   * Where an engine gets its camera information, split into
+   * what is cheap to obtain and what is not.
+   */
+  interface Source {
+    /**
+     * @return the ids of the device's cameras, in order, found
+     * without opening any of them
+     */
+    List<String> getCameraIds() throws Exception;
+
+    /**
+     * @param entry a cached entry for a camera that is still
+     *              present
+     * @return true if the entry agrees with whatever else can be
+     * learned about the camera cheaply (e.g., its facing)
+     */
+    boolean matches(Entry entry) throws Exception;
+
+    /**
+     * Learns everything about one camera, the expensive way
+     * (e.g., by opening it).
+     *
+     * @param id the id of the camera
+     * @return what was learned
+     */
+    Entry probe(String id) throws Exception;
+  }
+
+  /**
+   * Creates the cache for an engine, in the app's cache
+   * directory, tied to the current build fingerprint.
+   *
+   * @param ctxt any Context will do
+   * @param engine short name of the engine, used in the filename
+   * @return the cache
+   */
+  static DescriptorCache forEngine(Context ctxt, String engine) {
+    return(new DescriptorCache(
+      new File(ctxt.getCacheDir(), "cwac-cam2-"+engine+".bin"),
+      Build.FINGERPRINT));
+  }
+
+  DescriptorCache(File file, String fingerprint) {
+    this.file=file;
+    this.fingerprint=(fingerprint==null ? "" : fingerprint);
+  }
+
+  /**
+   * @return the cached entries, or null if there is no usable
+   * cache (missing, corrupt, stale version or fingerprint)
+   */
+  List<Entry> load() {
+    if (!file.exists()) {
+      return(null);
+    }
+
+    try {
+      InputStream in=new BufferedInputStream(new FileInputStream(file));
+
+      try {
+        return(read(in, fingerprint));
+      }
+      finally {
+        in.close();
+      }
+    }
+    catch (IOException e) {
+      return(null);
+    }
+  }
+
+  /**
+   * Returns the cached entries if they still describe the
+   * cameras listed by the source, without probing any of them.
+   * Otherwise, probes every camera and rewrites the cache.
+   *
+   * @param source where to get camera information
+   * @return one entry per camera, in the source's order
+   * @throws Exception if the source could not list or probe the
+   * cameras
+   */
+  List<Entry> loadOrProbe(Source source) throws Exception {
+    List<String> ids=source.getCameraIds();
+    List<Entry> entries=load();
+
+    if (entries!=null && entries.size()==ids.size()) {
+      boolean usable=true;
+
+      for (int i=0;i<ids.size() && usable;i++) {
+        Entry entry=entries.get(i);
+
+        usable=entry.id.equals(ids.get(i)) && source.matches(entry);
+      }
+
+      if (usable) {
+        return(entries);
+      }
+    }
+
+    entries=new ArrayList<Entry>();
+
+    for (String id : ids) {
+      Entry entry=source.probe(id);
+
+      entry.validated=true;
+      entries.add(entry);
+    }
+
+    save(entries);
+
+    return(entries);
+  }
+
+  /**
+   * Replaces the cache contents. The file is written in full
+   * under a temporary name and then renamed, so readers never
+   * see a partial cache.
+   *
+   * @param entries what to cache
+   * @return true if the cache was written, false otherwise
+   */
+  boolean save(List<Entry> entries) {
+    File tmp=new File(file.getPath()+".tmp");
+
+    try {
+      OutputStream out=new BufferedOutputStream(new FileOutputStream(tmp));
+
+      try {
+        write(out, fingerprint, entries);
+      }
+      finally {
+        out.close();
+      }
+
+      if (tmp.renameTo(file)) {
+        return(true);
+      }
+    }
+    catch (IOException e) {
+      // fall through
+    }
+
+    tmp.delete();
+
+    return(false);
+  }
+
+  /**
+   * Removes the cache, so the next load() finds nothing.
+   */
+  void invalidate() {
+    file.delete();
+  }
+
+  static void write(OutputStream os, String fingerprint,
+                    List<Entry> entries) throws IOException {
+    DataOutputStream out=new DataOutputStream(os);
+
+    out.writeInt(MAGIC);
+    out.writeShort(VERSION);
+    out.writeUTF(fingerprint);
+    out.writeShort(entries.size());
+
+    for (Entry entry : entries) {
+      out.writeUTF(entry.id);
+      out.writeInt(entry.facing);
+      writeSizes(out, entry.previewSizes);
+      writeSizes(out, entry.pictureSizes);
+    }
+
+    out.flush();
+  }
+
+  static List<Entry> read(InputStream is, String fingerprint)
+    throws IOException {
+    DataInputStream in=new DataInputStream(is);
+
+    if (in.readInt()!=MAGIC || in.readShort()!=VERSION ||
+      !in.readUTF().equals(fingerprint)) {
+      return(null);
+    }
+
+    int count=in.readShort();
+    ArrayList<Entry> result=new ArrayList<Entry>(count);
+
+    for (int i=0;i<count;i++) {
+      String id=in.readUTF();
+      int facing=in.readInt();
+      ArrayList<Size> previewSizes=readSizes(in);
+      ArrayList<Size> pictureSizes=readSizes(in);
+
+      result.add(new Entry(id, facing, previewSizes, pictureSizes));
+    }
+
+    return(result);
+  }
+
+  private static void writeSizes(DataOutputStream out,
+                                 List<Size> sizes) throws IOException {
+    out.writeShort(sizes.size());
+
+    for (Size size : sizes) {
+      out.writeShort(size.getWidth());
+      out.writeShort(size.getHeight());
+    }
+  }
+
+  private static ArrayList<Size> readSizes(DataInputStream in)
+    throws IOException {
+    int count=in.readShort();
+    ArrayList<Size> result=new ArrayList<Size>(count);
+
+    for (int i=0;i<count;i++) {
+      int width=in.readUnsignedShort();
+      int height=in.readUnsignedShort();
+
+      result.add(new Size(width, height));
+    }
+
+    return(result);
+  }
+}
@@ -0,0 +1,154 @@
+/***
+ Copyright (c) 2016 CommonsWare, LLC
+
+ Licensed under the Apache License, Version 2.0 (the "License"); you may
+ not use this file except in compliance with the License. You may obtain
+ a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+
+package com.commonsware.cwac.cam2;
+
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+
+import de.greenrobot.event.EventBus;
+
+/**
+ * A path for camera events to take: CameraEngine.Listeners,
+ * called directly on their executors, then an EventBus for
+ * onEvent...() subscribers.
+ *
+ * Each CameraEngine has one for events that are not tied to a
+ * session. A CameraSession built with an EventChannel of its own
+ * gets its events (and those of its pictures) delivered there
+ * instead, so several camera UIs sharing an engine do not see
+ * each other's events. CameraController does this with a
+ * private EventBus; subscribe to CameraController.getBus().
+ *
+ * Instances are thread-safe.
+ */
+public class EventChannel {
+  private final CopyOnWriteArrayList<Registration> listeners=
+    new CopyOnWriteArrayList<Registration>();
+  private volatile EventBus bus;
+
+  /**
+   * Constructor.
+   *
+   * @param bus the bus to post events to, or null for
+   *            listeners only
+   */
+  public EventChannel(EventBus bus) {
+    this.bus=bus;
+  }
+
+  /**
+   * @param bus the bus to post events to, or null for
+   *            listeners only
+   */
+  public void setBus(EventBus bus) {
+    this.bus=bus;
+  }
+
+  /**
+   * @return the bus events are posted to, or null if there is
+   * none
+   */
+  public EventBus getBus() {
+    return(bus);
+  }
+
+  /**
+   * Adds a listener for the events on this channel. Events go
+   * to listeners first, then to the EventBus (if any).
+   *
+   * @param listener the listener
+   * @param executor where to call the listener, such as a
+   *                 MainThreadExecutor
+   */
+  public void addListener(CameraEngine.Listener listener,
+                          Executor executor) {
+    listeners.add(new Registration(listener, executor));
+  }
+
+  /**
+   * Removes a listener added via addListener(). Events already
+   * handed to its executor may still be delivered.
+   *
+   * @param listener the listener
+   */
+  public void removeListener(CameraEngine.Listener listener) {
+    for (Registration registration : listeners) {
+      if (registration.listener==listener) {
+        listeners.remove(registration);
+      }
+    }
+  }
+
+  /**
+   * Delivers an event to the listeners, then posts it to the
+   * EventBus.
+   *
+   * @param event the event
+   */
+  public void post(Object event) {
+    for (Registration registration : listeners) {
+      registration.deliver(event);
+    }
+
+    EventBus b=bus;
+
+    if (b!=null) {
+      b.post(event);
+    }
+  }
+
+  private static class Registration {
+    final CameraEngine.Listener listener;
+    final Executor executor;
+
+    Registration(CameraEngine.Listener listener, Executor executor) {
+      this.listener=listener;
+      this.executor=executor;
+    }
+
+    void deliver(final Object event) {
+      executor.execute(new Runnable() {
+        @Override
+        public void run() {
+          if (event instanceof CameraEngine.PictureTakenEvent) {
+            listener.onPictureTaken((CameraEngine.PictureTakenEvent)event);
+          }
+          else if (event instanceof CameraEngine.SmoothZoomCompletedEvent) {
+            listener.onSmoothZoomCompleted((CameraEngine.SmoothZoomCompletedEvent)event);
+          }
+          else if (event instanceof CameraEngine.OpenedEvent) {
+            listener.onOpened((CameraEngine.OpenedEvent)event);
+          }
+          else if (event instanceof CameraEngine.ClosedEvent) {
+            listener.onClosed((CameraEngine.ClosedEvent)event);
+          }
+          else if (event instanceof CameraEngine.CameraDescriptorsEvent) {
+            listener.onCameraDescriptors((CameraEngine.CameraDescriptorsEvent)event);
+          }
+          else if (event instanceof CameraEngine.VideoTakenEvent) {
+            listener.onVideoTaken((CameraEngine.VideoTakenEvent)event);
+          }
+          else if (event instanceof CameraEngine.DeepImpactEvent) {
+            listener.onDeepImpact((CameraEngine.DeepImpactEvent)event);
+          }
+          else if (event instanceof CameraEngine.CameraTwoGenericEvent) {
+            listener.onCameraTwoError((CameraEngine.CameraTwoGenericEvent)event);
+          }
+        }
+      });
+    }
+  }
+}
@@ -0,0 +1,144 @@
+/***
+ Copyright (c) 2016 CommonsWare, LLC
+
+ Licensed under the Apache License, Version 2.0 (the "License"); you may
+ not use this file except in compliance with the License. You may obtain
+ a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+package com.commonsware.cwac.cam2;
+
+import android.content.Context;
+
+import com.commonsware.cwac.cam2.util.ExifOrientationWriter;
+import com.commonsware.cwac.cam2.util.JpegHeaderParser;
+import com.commonsware.cwac.cam2.util.JpegTransformer;
+
+/**
+ * ImageProcessor that sets the EXIF orientation of the picture,
+ * by editing the JPEG's EXIF data rather than by decoding,
+ * rotating, and re-encoding the image. Use this ahead of a
+ * JPEGWriter when the camera does not honor the requested
+ * rotation (e.g., some devices ignore setRotation() for
+ * front-facing cameras).
+ *
+ * The orientation to set comes from the PROP_ORIENTATION
+ * property of the PictureTransaction, if present, otherwise
+ * from the value supplied to the constructor.
+ *
+ * For consumers that ignore EXIF orientation, the processor can
+ * instead rotate or flip the image itself, losslessly, via
+ * JpegTransformer, and set the orientation to normal. This takes
+ * longer and uses more memory than setting the tag, though far
+ * less than decoding, and falls back to setting the tag for
+ * JPEGs that JpegTransformer cannot handle (e.g., progressive
+ * ones, or ones that are not a whole number of MCUs along a
+ * flipped edge).
+ */
+public class ExifOrientationProcessor extends AbstractImageProcessor {
+  /**
+   * Property key for the EXIF orientation (int, 1-8) to set.
+   * Look up the value for this property in the PictureTransaction.
+   */
+  public static final String PROP_ORIENTATION="exifOrientation";
+  private final int orientation;
+  private final boolean transformPixels;
+
+  /**
+   * Constructor.
+   *
+   * @param ctxt any Context will do
+   * @param orientation EXIF orientation (1-8) to set, if the
+   *                    PictureTransaction does not say otherwise;
+   *                    see ExifOrientationWriter.orientationForRotation()
+   */
+  public ExifOrientationProcessor(Context ctxt, int orientation) {
+    this(ctxt, null, orientation);
+  }
+
+  /**
+   * Constructor.
+   *
+   * @param ctxt any Context will do
+   * @param tag tag to identify this processor in the chain
+   * @param orientation EXIF orientation (1-8) to set, if the
+   *                    PictureTransaction does not say otherwise
+   */
+  public ExifOrientationProcessor(Context ctxt, String tag,
+                                  int orientation) {
+    this(ctxt, tag, orientation, false);
+  }
+
+  /**
+   * Constructor.
+   *
+   * @param ctxt any Context will do
+   * @param tag tag to identify this processor in the chain
+   * @param orientation EXIF orientation (1-8) to set, if the
+   *                    PictureTransaction does not say otherwise
+   * @param transformPixels true to rotate or flip the image
+   *                        itself where possible, false to only
+   *                        set the EXIF orientation
+   */
+  public ExifOrientationProcessor(Context ctxt, String tag,
+                                  int orientation,
+                                  boolean transformPixels) {
+    super(ctxt, tag);
+    this.orientation=orientation;
+    this.transformPixels=transformPixels;
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public void process(PictureTransaction xact, ImageContext imageContext) {
+    int desired=xact.getProperties().getInt(PROP_ORIENTATION,
+      orientation);
+    byte[] jpeg=imageContext.getJpegBuffer();
+
+    if (jpeg==null) {
+      return;
+    }
+
+    JpegTransformer.Transform transform=
+      JpegTransformer.Transform.forExifOrientation(desired);
+
+    if (transformPixels && transform!=null) {
+      byte[] transformed=new JpegTransformer().transform(jpeg,
+        imageContext.getJpegLength(), transform, false);
+
+      if (transformed!=null) {
+        JpegHeaderParser header=new JpegHeaderParser();
+
+        // any orientation tag from the camera no longer applies
+
+        if (header.parse(transformed, 0, transformed.length) &&
+          header.getOrientationOffset()>=0) {
+          new ExifOrientationWriter().setOrientation(transformed,
+            transformed.length, 1);
+        }
+
+        imageContext.setJpeg(transformed);
+
+        return;
+      }
+    }
+
+    byte[] result=new ExifOrientationWriter().setOrientation(jpeg,
+      imageContext.getJpegLength(), desired);
+
+    if (result==jpeg) {
+      imageContext.onJpegModified();
+    }
+    else if (result!=null) {
+      imageContext.setJpeg(result);
+    }
+  }
+}
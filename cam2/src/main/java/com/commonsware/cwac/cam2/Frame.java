@@ -0,0 +1,210 @@
+/***
+ Copyright (c) 2016 CommonsWare, LLC
+
+ Licensed under the Apache License, Version 2.0 (the "License"); you may
+ not use this file except in compliance with the License. You may obtain
+ a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+package com.commonsware.cwac.cam2;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A YUV 4:2:0 preview frame, as handed to a FrameAnalyzer: a
+ * full-resolution Y (luminance) plane, followed by U and V
+ * (chrominance) planes at half the width and height. Each plane
+ * says how its bytes are laid out, following the same
+ * conventions as android.media.Image.Plane, so one analyzer can
+ * handle frames from either camera API.
+ *
+ * Tests can build frames directly, either from NV21 data via
+ * fromNv21() or plane by plane.
+ *
+ * Like its buffers, a Frame is only good for the duration of
+ * FrameAnalyzer.analyze(): an engine may hand the same Frame
+ * object back later with a new timestamp, to avoid allocating
+ * one per preview frame.
+ */
+public class Frame {
+  /**
+   * Index of the Y plane in getPlanes()
+   */
+  public static final int Y=0;
+
+  /**
+   * Index of the U (Cb) plane in getPlanes()
+   */
+  public static final int U=1;
+
+  /**
+   * Index of the V (Cr) plane in getPlanes()
+   */
+  public static final int V=2;
+
+  private final int width;
+  private final int height;
+  private final Plane[] planes;
+  private long timestamp;
+
+  /**
+   * Constructor.
+   *
+   * @param width frame width, in pixels
+   * @param height frame height, in pixels
+   * @param timestamp when the frame was captured, in
+   *                  nanoseconds, in the camera's timebase
+   * @param planes the Y, U, and V planes, in that order
+   */
+  public Frame(int width, int height, long timestamp,
+               Plane[] planes) {
+    if (planes.length!=3) {
+      throw new IllegalArgumentException("Frames need Y, U, and V planes");
+    }
+
+    this.width=width;
+    this.height=height;
+    this.timestamp=timestamp;
+    this.planes=planes;
+  }
+
+  /**
+   * Wraps a frame in NV21 format, the default for preview
+   * frames from android.hardware.Camera: the Y plane, followed
+   * by interleaved V and U bytes. No bytes are copied.
+   *
+   * @param nv21 the frame data
+   * @param width frame width, in pixels
+   * @param height frame height, in pixels
+   * @param timestamp when the frame was captured, in
+   *                  nanoseconds
+   * @return the frame
+   */
+  public static Frame fromNv21(byte[] nv21, int width, int height,
+                               long timestamp) {
+    int ySize=width*height;
+    ByteBuffer y=ByteBuffer.wrap(nv21, 0, ySize).slice();
+    ByteBuffer v=ByteBuffer.wrap(nv21, ySize, ySize/2).slice();
+    ByteBuffer u=ByteBuffer.wrap(nv21, ySize+1, ySize/2-1).slice();
+
+    return(new Frame(width, height, timestamp,
+      new Plane[] { new Plane(y, width, 1),
+        new Plane(u, width, 2), new Plane(v, width, 2) }));
+  }
+
+  /**
+   * @return frame width, in pixels
+   */
+  public int getWidth() {
+    return(width);
+  }
+
+  /**
+   * @return frame height, in pixels
+   */
+  public int getHeight() {
+    return(height);
+  }
+
+  /**
+   * @return when the frame was captured, in nanoseconds, in the
+   * camera's timebase; only differences between timestamps are
+   * meaningful. Frames from CameraTwoEngine carry the sensor
+   * timestamp. android.hardware.Camera does not report one, so
+   * frames from ClassicCameraEngine carry System.nanoTime() as
+   * of their arrival instead, which lags the exposure by the
+   * camera's pipeline delay and is not comparable with camera2
+   * timestamps.
+   */
+  public long getTimestamp() {
+    return(timestamp);
+  }
+
+  /**
+   * Reuses this frame for a new preview frame that arrived in
+   * the same buffers.
+   *
+   * @param timestamp when the new frame was captured, in
+   *                  nanoseconds
+   */
+  void setTimestamp(long timestamp) {
+    this.timestamp=timestamp;
+  }
+
+  /**
+   * @return the Y, U, and V planes (see Y, U, and V)
+   */
+  public Plane[] getPlanes() {
+    return(planes);
+  }
+
+  /**
+   * @param x column, from 0 to getWidth()-1
+   * @param y row, from 0 to getHeight()-1
+   * @return luminance of the pixel, 0-255
+   */
+  public int getLuminance(int x, int y) {
+    return(planes[Y].get(x, y));
+  }
+
+  /**
+   * One plane of a Frame. Byte (x, y) of the plane is at
+   * y*getRowStride()+x*getPixelStride() in the buffer.
+   */
+  public static class Plane {
+    private final ByteBuffer buffer;
+    private final int rowStride;
+    private final int pixelStride;
+
+    /**
+     * Constructor.
+     *
+     * @param buffer the plane's bytes, starting at index 0
+     * @param rowStride distance between rows, in bytes
+     * @param pixelStride distance between pixels in a row, in
+     *                    bytes
+     */
+    public Plane(ByteBuffer buffer, int rowStride, int pixelStride) {
+      this.buffer=buffer;
+      this.rowStride=rowStride;
+      this.pixelStride=pixelStride;
+    }
+
+    /**
+     * @return the plane's bytes; use absolute gets, as the
+     * buffer may be shared
+     */
+    public ByteBuffer getBuffer() {
+      return(buffer);
+    }
+
+    /**
+     * @return distance between rows, in bytes
+     */
+    public int getRowStride() {
+      return(rowStride);
+    }
+
+    /**
+     * @return distance between pixels in a row, in bytes
+     */
+    public int getPixelStride() {
+      return(pixelStride);
+    }
+
+    /**
+     * @param x column within the plane
+     * @param y row within the plane
+     * @return the byte at that position, 0-255
+     */
+    public int get(int x, int y) {
+      return(buffer.get(y*rowStride+x*pixelStride) & 0xFF);
+    }
+  }
+}
@@ -0,0 +1,37 @@
+/***
+ Copyright (c) 2016 CommonsWare, LLC
+
+ Licensed under the Apache License, Version 2.0 (the "License"); you may
+ not use this file except in compliance with the License. You may obtain
+ a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+package com.commonsware.cwac.cam2;
+
+/**
+ * Interface for a class that examines preview frames as they
+ * stream from the camera, such as to look for barcodes or to
+ * score sharpness. Register one via
+ * CameraEngine.setFrameAnalyzer().
+ *
+ * Frames are handed over one at a time, on a background
+ * thread. Frames that arrive while the analyzer is still busy
+ * with an earlier one are dropped, so a slow analyzer sees
+ * fewer frames rather than falling behind.
+ */
+public interface FrameAnalyzer {
+  /**
+   * Examine a preview frame. The frame's buffers belong to the
+   * camera and are only valid until this method returns; copy
+   * anything that needs to outlive the call.
+   *
+   * @param frame the preview frame
+   */
+  void analyze(Frame frame);
+}
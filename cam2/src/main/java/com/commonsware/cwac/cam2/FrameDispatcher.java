@@ -0,0 +1,166 @@
+/***
+ Copyright (c) 2016 CommonsWare, LLC
+
+ Licensed under the Apache License, Version 2.0 (the "License"); you may
+ not use this file except in compliance with the License. You may obtain
+ a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+package com.commonsware.cwac.cam2;
+
+import android.util.Log;
+
+import com.commonsware.cwac.cam2.util.LatencyHistogram;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Hands preview frames to a FrameAnalyzer, one at a time, on
+ * a background thread. A frame offered while the analyzer is
+ * still working on the last one is dropped on the spot, so the
+ * camera gets its buffer back right away.
+ *
+ * Only one frame is in flight at a time, so the same task
+ * carries each frame to the executor, and dispatching a frame
+ * allocates nothing.
+ *
+ * Keeps count of frames analyzed and dropped, and of how long
+ * the analyzer takes per frame. Obtain the instance for an
+ * engine from CameraEngine.getFrameDispatcher().
+ */
+public class FrameDispatcher {
+  private final FrameAnalyzer analyzer;
+  private final Executor executor;
+  private final AtomicBoolean isBusy=new AtomicBoolean(false);
+  private final AtomicLong analyzedCount=new AtomicLong();
+  private final AtomicLong droppedCount=new AtomicLong();
+  private final LatencyHistogram latency=new LatencyHistogram();
+  private final Runnable task=new Runnable() {
+    @Override
+    public void run() {
+      analyze();
+    }
+  };
+  private Frame frame;
+  private Runnable onDone;
+
+  /**
+   * Constructor.
+   *
+   * @param analyzer the analyzer to feed
+   * @param executor where to run the analyzer
+   */
+  public FrameDispatcher(FrameAnalyzer analyzer, Executor executor) {
+    this.analyzer=analyzer;
+    this.executor=executor;
+  }
+
+  /**
+   * Offers a frame to the analyzer.
+   *
+   * @param frame the frame
+   * @param onDone run once the analyzer is done with the
+   *               frame, to hand its buffers back, if the frame
+   *               was accepted; the next frame is not accepted
+   *               until it has run
+   * @return true if the frame was accepted, false if it was
+   * dropped because the analyzer was busy or the executor
+   * refused it (in which case onDone is not run, and the caller
+   * still owns the frame)
+   */
+  public boolean offer(Frame frame, Runnable onDone) {
+    if (!isBusy.compareAndSet(false, true)) {
+      droppedCount.incrementAndGet();
+
+      return(false);
+    }
+
+    this.frame=frame;
+    this.onDone=onDone;
+
+    try {
+      executor.execute(task);
+    }
+    catch (RejectedExecutionException e) {
+      this.frame=null;
+      this.onDone=null;
+      droppedCount.incrementAndGet();
+      isBusy.set(false);
+
+      return(false);
+    }
+
+    return(true);
+  }
+
+  private void analyze() {
+    Frame current=frame;
+    Runnable done=onDone;
+    long start=System.nanoTime();
+
+    frame=null;
+    onDone=null;
+
+    try {
+      analyzer.analyze(current);
+    }
+    catch (RuntimeException e) {
+      Log.e("CWAC-Cam2", "Exception analyzing frame", e);
+    }
+    finally {
+      latency.record(System.nanoTime()-start);
+      analyzedCount.incrementAndGet();
+
+      try {
+        done.run();
+      }
+      finally {
+        isBusy.set(false);
+      }
+    }
+  }
+
+  /**
+   * @return the analyzer being fed
+   */
+  public FrameAnalyzer getAnalyzer() {
+    return(analyzer);
+  }
+
+  /**
+   * @return number of frames the analyzer has finished with
+   */
+  public long getAnalyzedCount() {
+    return(analyzedCount.get());
+  }
+
+  /**
+   * @return number of frames dropped because the analyzer was
+   * busy
+   */
+  public long getDroppedCount() {
+    return(droppedCount.get());
+  }
+
+  /**
+   * @return how long the analyzer took per frame
+   */
+  public LatencyHistogram getLatency() {
+    return(latency.snapshot());
+  }
+
+  @Override
+  public String toString() {
+    return("FrameDispatcher[analyzed="+getAnalyzedCount()+
+      ", dropped="+getDroppedCount()+", latency=("+latency+")]");
+  }
+}
@@ -20,6 +20,13 @@ import android.content.pm.ApplicationInfo;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
 
+import com.commonsware.cwac.cam2.util.BufferPool;
+import com.commonsware.cwac.cam2.util.JpegHeaderParser;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+
 /**
  * Represents a picture taken by the camera, to be passed through
  * the ImageProcessor chain.
@@ -29,17 +36,90 @@ import android.graphics.BitmapFactory;
  * call getBitmap(true) to force creation of a Bitmap for those
  * JPEG bytes, but this is memory-intensive and should be avoided
  * where possible.
+ *
+ * The JPEG bytes may live in a buffer leased from a BufferPool,
+ * in which case the buffer can be larger than the JPEG itself.
+ * Use getJpegBuffer() and getJpegLength() to work with the
+ * bytes without copying them. Whoever is the last to need the
+ * picture (typically the PictureTakenEvent subscriber) should
+ * call release() to return the buffer to the pool.
+ *
+ * The bytes may instead still be in the camera's own (direct)
+ * ByteBuffer, through the ImageProcessor chain and on to the
+ * PictureTakenEvent subscriber, until the last release() hands
+ * the buffer back to the camera. Code that only reads the JPEG
+ * should use getJpegByteBuffer(), which does not copy. Calling
+ * getJpeg() or getJpegBuffer() copies the bytes onto the Java
+ * heap (once) and hands the camera buffer back.
+ *
+ * An ImageContext is reference-counted: it starts with one
+ * reference, retain() adds one, and release() drops one, with
+ * the buffers being freed when the last reference is dropped.
+ * Thumbnails are best built with the methods that take a
+ * ThumbnailCallback, which decode on a background thread.
  */
 public class ImageContext {
-  private static final double LOG_2=Math.log(2.0d);
+  private static final int RESULT_THUMBNAIL_LIMIT=750000;
+  private static final int MAX_SAMPLE_SIZE=64;
+  private static final AtomicLong NEXT_ID=new AtomicLong();
+  private final long id=NEXT_ID.incrementAndGet();
   private Context ctxt;
   private byte[] jpeg;
+  private int jpegLength;
+  private BufferPool pool;
+  private ByteBuffer jpegByteBuffer;
+  private Runnable onRelease;
+  private JpegHeaderParser header;
   private Bitmap bmp;
-  private Bitmap thumbnail;
+  private volatile boolean hasThumbnails=false;
+  private int refCount=1;
+  private final WriteHold writes=new WriteHold();
+  private final WriteHold backgroundWrites=new WriteHold();
+  private int frameIndex=0;
+  private volatile CaptureTimeline timeline;
+  private volatile EventChannel eventChannel;
+  private int frameCount=1;
 
   ImageContext(Context ctxt, byte[] jpeg) {
+    this(ctxt, jpeg, jpeg.length, null);
+  }
+
+  ImageContext(Context ctxt, byte[] jpeg, int jpegLength,
+               BufferPool pool) {
     this.ctxt=ctxt.getApplicationContext();
-    setJpeg(jpeg);
+    setJpeg(jpeg, jpegLength, pool);
+  }
+
+  /**
+   * Constructor for an ImageContext wrapping a buffer owned by
+   * someone else, such as a camera2 Image plane.
+   *
+   * @param ctxt an Android Context
+   * @param jpeg the JPEG data, from position() to limit()
+   * @param onRelease invoked once the buffer is no longer needed
+   * @param pool where to lease a heap buffer from, if the
+   *             bytes need to be copied out of jpeg
+   */
+  ImageContext(Context ctxt, ByteBuffer jpeg, Runnable onRelease,
+               BufferPool pool) {
+    this.ctxt=ctxt.getApplicationContext();
+    this.jpegByteBuffer=jpeg;
+    this.jpegLength=jpeg.remaining();
+    this.onRelease=onRelease;
+    this.pool=pool;
+  }
+
+  /**
+   * Receives a thumbnail built in the background, on the
+   * main application thread.
+   */
+  public interface ThumbnailCallback {
+    /**
+     * @param imageContext the picture the thumbnail is of
+     * @param thumbnail the thumbnail, or null if it could not
+     *                  be built
+     */
+    void onThumbnail(ImageContext imageContext, Bitmap thumbnail);
   }
 
   /**
@@ -51,21 +131,329 @@ public class ImageContext {
   }
 
   /**
+   * @return the position of this picture within its burst,
+   * starting at 0; 0 for pictures not taken in a burst
+   */
+  public int getFrameIndex() {
+    return(frameIndex);
+  }
+
+  /**
+   * @return the number of pictures in this picture's burst;
+   * 1 for pictures not taken in a burst
+   */
+  public int getFrameCount() {
+    return(frameCount);
+  }
+
+  void setFrame(int frameIndex, int frameCount) {
+    this.frameIndex=frameIndex;
+    this.frameCount=frameCount;
+  }
+
+  /**
+   * @return when each stage of taking this picture happened, or
+   * null if the engine did not record it
+   */
+  public CaptureTimeline getTimeline() {
+    return(timeline);
+  }
+
+  void setTimeline(CaptureTimeline timeline) {
+    this.timeline=timeline;
+  }
+
+  /**
+   * @return where events about this picture go, or null if it
+   * did not come from a CameraEngine
+   */
+  EventChannel getEventChannel() {
+    return(eventChannel);
+  }
+
+  void setEventChannel(EventChannel eventChannel) {
+    this.eventChannel=eventChannel;
+  }
+
+  /**
+   * Returns the JPEG data as an array of exactly the JPEG's
+   * length. If the data is held in a larger pooled buffer, this
+   * copies it out (once) and gives the pooled buffer back, so
+   * prefer getJpegBuffer() and getJpegLength() where possible.
+   *
    * @return the byte[] of JPEG-encoded data for the picture
    */
-  public byte[] getJpeg() {
+  synchronized public byte[] getJpeg() {
+    copyToHeap();
+
+    if (jpeg!=null && jpeg.length!=jpegLength) {
+      byte[] exact=new byte[jpegLength];
+
+      System.arraycopy(jpeg, 0, exact, 0, jpegLength);
+
+      if (pool!=null) {
+        pool.release(jpeg);
+        pool=null;
+      }
+
+      jpeg=exact;
+    }
+
+    return(jpeg);
+  }
+
+  /**
+   * @return the buffer holding the JPEG data, which may be
+   * longer than the JPEG itself; only the first getJpegLength()
+   * bytes are valid
+   */
+  synchronized public byte[] getJpegBuffer() {
+    copyToHeap();
+
     return(jpeg);
   }
 
+  /**
+   * @return the number of valid bytes in getJpegBuffer()
+   */
+  synchronized public int getJpegLength() {
+    return(jpegLength);
+  }
+
+  /**
+   * Returns a read-only view of the JPEG data, without copying
+   * it, whether the data is on the Java heap or in a camera
+   * buffer. Each call returns a new view, positioned at the
+   * start of the JPEG, so callers are free to consume it. The
+   * view is only valid while you hold a reference to the
+   * ImageContext.
+   *
+   * @return a ByteBuffer with the JPEG from position() to limit()
+   * @throws IllegalStateException if the picture has been
+   * released
+   */
+  synchronized public ByteBuffer getJpegByteBuffer() {
+    ByteBuffer buffer=jpegByteBuffer;
+
+    if (buffer!=null) {
+      return(buffer.asReadOnlyBuffer());
+    }
+
+    byte[] bytes=jpeg;
+
+    if (bytes==null) {
+      throw new IllegalStateException("ImageContext has been released");
+    }
+
+    return(ByteBuffer.wrap(bytes, 0, jpegLength).asReadOnlyBuffer());
+  }
+
+  /**
+   * Parses the JPEG's headers (without decoding the image) to
+   * find its dimensions and EXIF orientation. The result is
+   * kept until the JPEG is replaced.
+   *
+   * @return the parsed headers, or null if the JPEG could not
+   * be parsed
+   */
+  synchronized public JpegHeaderParser getJpegHeader() {
+    if (header==null) {
+      JpegHeaderParser parser=new JpegHeaderParser();
+
+      if (parser.parse(getJpegByteBuffer())) {
+        header=parser;
+      }
+    }
+
+    return(header);
+  }
+
   /**
    * Updates the JPEG data, invalidating any previous Bitmap.
    *
    * @param jpeg the new JPEG data
    */
   public void setJpeg(byte[] jpeg) {
-    this.jpeg=jpeg;
-    this.bmp=null;
-    this.thumbnail=null;
+    setJpeg(jpeg, jpeg.length, null);
+  }
+
+  /**
+   * Updates the JPEG data, invalidating any previous Bitmap.
+   * Any previous pooled or camera buffer is released.
+   *
+   * @param jpeg buffer holding the new JPEG data
+   * @param jpegLength number of valid bytes in the buffer
+   * @param pool the pool that jpeg was leased from, or null
+   */
+  void setJpeg(byte[] jpeg, int jpegLength, BufferPool pool) {
+    synchronized(this) {
+      if (this.pool!=null && this.jpeg!=null && this.jpeg!=jpeg) {
+        this.pool.release(this.jpeg);
+      }
+
+      releaseByteBuffer();
+      this.jpeg=jpeg;
+      this.jpegLength=jpegLength;
+      this.pool=pool;
+      this.header=null;
+      this.bmp=null;
+    }
+
+    evictThumbnails();
+  }
+
+  /**
+   * Called when the bytes in getJpegBuffer() have been changed
+   * in place, to drop anything derived from the old bytes.
+   */
+  void onJpegModified() {
+    synchronized(this) {
+      header=null;
+      bmp=null;
+    }
+
+    evictThumbnails();
+  }
+
+  /**
+   * Adds a reference to the picture, so it stays intact until
+   * a matching call to release().
+   *
+   * @throws IllegalStateException if the picture has already
+   * been released
+   */
+  synchronized public void retain() {
+    if (refCount<=0) {
+      throw new IllegalStateException("ImageContext has been released");
+    }
+
+    refCount++;
+  }
+
+  /**
+   * Drops a reference to the picture. Once the last reference
+   * is dropped, any pooled buffer is returned for use by a later
+   * picture, and the ImageContext no longer has any JPEG data.
+   * Calling this after the last reference is gone is harmless.
+   */
+  public void release() {
+    synchronized(this) {
+      if (refCount<=0 || --refCount>0) {
+        return;
+      }
+
+      if (pool!=null && jpeg!=null) {
+        pool.release(jpeg);
+      }
+
+      releaseByteBuffer();
+      jpeg=null;
+      jpegLength=0;
+      pool=null;
+      header=null;
+      bmp=null;
+    }
+
+    evictThumbnails();
+  }
+
+  /**
+   * Called by an ImageProcessor that is still writing the
+   * picture out after its process() returns. The
+   * PictureTakenEvent is held back until each call to
+   * beginWrite() has been matched by a call to endWrite().
+   * This does not keep the JPEG data intact; use retain() for
+   * that.
+   */
+  public void beginWrite() {
+    writes.begin();
+  }
+
+  /**
+   * Called once a write announced via beginWrite() is complete,
+   * whether or not it succeeded.
+   *
+   * @throws IllegalStateException if there was no matching
+   * call to beginWrite()
+   */
+  public void endWrite() {
+    writes.end();
+  }
+
+  /**
+   * Runs the Runnable once there are no writes pending, which
+   * may be right away, on this thread, or later, on whichever
+   * thread calls the last endWrite().
+   *
+   * @param written what to run
+   */
+  void whenWritten(Runnable written) {
+    writes.whenDone(written);
+  }
+
+  /**
+   * Called by an ImageProcessor that is still writing the
+   * picture out after its process() returns, but that does not
+   * hold back the PictureTakenEvent. The CameraEngine's
+   * MetricsSink hears about the picture only once each call to
+   * beginBackgroundWrite() has been matched by a call to
+   * endBackgroundWrite(), so the timeline it gets is complete.
+   */
+  public void beginBackgroundWrite() {
+    backgroundWrites.begin();
+  }
+
+  /**
+   * Called once a write announced via beginBackgroundWrite()
+   * is complete, whether or not it succeeded.
+   *
+   * @throws IllegalStateException if there was no matching
+   * call to beginBackgroundWrite()
+   */
+  public void endBackgroundWrite() {
+    backgroundWrites.end();
+  }
+
+  /**
+   * Runs the Runnable once there are no background writes
+   * pending, which may be right away, on this thread, or later,
+   * on whichever thread calls the last endBackgroundWrite().
+   *
+   * @param written what to run
+   */
+  void whenBackgroundWritten(Runnable written) {
+    backgroundWrites.whenDone(written);
+  }
+
+  /**
+   * Copies the JPEG out of the camera's buffer, so the buffer
+   * can go back to the camera right away, for engines whose
+   * camera is short of buffers. This copies at most once; if
+   * the bytes are already on the Java heap, it does nothing.
+   */
+  void detach() {
+    copyToHeap();
+  }
+
+  synchronized private void copyToHeap() {
+    if (jpegByteBuffer!=null) {
+      byte[] bytes=(pool==null ? new byte[jpegLength] : pool.acquire(jpegLength));
+
+      jpegByteBuffer.duplicate().get(bytes, 0, jpegLength);
+      releaseByteBuffer();
+      jpeg=bytes;
+    }
+  }
+
+  private void releaseByteBuffer() {
+    if (jpegByteBuffer!=null) {
+      jpegByteBuffer=null;
+
+      if (onRelease!=null) {
+        onRelease.run();
+        onRelease=null;
+      }
+    }
   }
 
   /**
@@ -85,77 +473,265 @@ public class ImageContext {
     return(bmp);
   }
 
+  /**
+   * Builds a thumbnail suitable for showing the picture on
+   * screen, on the current thread. Prefer the version that
+   * takes a ThumbnailCallback.
+   *
+   * @param ctxt any Context will do
+   * @param quality fraction of the app's heap limit that the
+   *                thumbnail may use, or null for a default
+   * @return the thumbnail
+   */
   public Bitmap buildPreviewThumbnail(Context ctxt, Float quality) {
-    // TODO: move this into PictureTransaction work somewhere, so done
-    // on a background thread
+    return(buildThumbnail(getPreviewLimit(ctxt, quality)));
+  }
 
-    if (thumbnail==null) {
-      int limit=2000000;
+  /**
+   * Builds a thumbnail suitable for showing the picture on
+   * screen, on a background thread.
+   *
+   * @param ctxt any Context will do
+   * @param quality fraction of the app's heap limit that the
+   *                thumbnail may use, or null for a default
+   * @param cb told about the thumbnail, on the main thread
+   */
+  public void buildPreviewThumbnail(Context ctxt, Float quality,
+                                    ThumbnailCallback cb) {
+    buildThumbnail(getPreviewLimit(ctxt, quality), cb);
+  }
 
-      if (quality!=null && quality>0.0f && quality<1.0f) {
-        ActivityManager am=(ActivityManager)ctxt.getSystemService(Context.ACTIVITY_SERVICE);
-        int flags=ctxt.getApplicationInfo().flags;
-        int memoryClass=am.getMemoryClass();
+  /**
+   * Builds a small thumbnail, suitable for returning in an
+   * Intent extra, on the current thread. Prefer the version
+   * that takes a ThumbnailCallback.
+   *
+   * @return the thumbnail
+   */
+  public Bitmap buildResultThumbnail() {
+    return(buildThumbnail(RESULT_THUMBNAIL_LIMIT));
+  }
 
-        if ((flags & ApplicationInfo.FLAG_LARGE_HEAP)!=0) {
-          memoryClass=am.getLargeMemoryClass();
-        }
+  /**
+   * Builds a small thumbnail, suitable for returning in an
+   * Intent extra, on a background thread.
+   *
+   * @param cb told about the thumbnail, on the main thread
+   */
+  public void buildResultThumbnail(ThumbnailCallback cb) {
+    buildThumbnail(RESULT_THUMBNAIL_LIMIT, cb);
+  }
+
+  private static int getPreviewLimit(Context ctxt, Float quality) {
+    int limit=2000000;
 
-        limit=(int)(1024*1024*memoryClass*quality);
+    if (quality!=null && quality>0.0f && quality<1.0f) {
+      ActivityManager am=(ActivityManager)ctxt.getSystemService(Context.ACTIVITY_SERVICE);
+      int flags=ctxt.getApplicationInfo().flags;
+      int memoryClass=am.getMemoryClass();
+
+      if ((flags & ApplicationInfo.FLAG_LARGE_HEAP)!=0) {
+        memoryClass=am.getLargeMemoryClass();
       }
 
-      thumbnail=createBitmap(null, limit);
+      limit=(int)(1024*1024*memoryClass*quality);
     }
 
-    return(thumbnail);
+    return(limit);
   }
 
-  public Bitmap buildResultThumbnail() {
-    // TODO: move this onto background thread
+  private void buildThumbnail(final int limit,
+                              final ThumbnailCallback cb) {
+    final ThumbnailCache cache=ThumbnailCache.get();
+
+    retain(); // until the decode is done
+
+    try {
+      cache.execute(new Runnable() {
+        @Override
+        public void run() {
+          Bitmap result=null;
+
+          try {
+            result=buildThumbnail(limit);
+          }
+          finally {
+            release();
+          }
+
+          deliverThumbnail(cache, cb, result);
+        }
+      });
+    }
+    catch (RejectedExecutionException e) {
+      // no thumbnail, as if the decode had failed
+
+      release();
+      deliverThumbnail(cache, cb, null);
+    }
+  }
+
+  private void deliverThumbnail(ThumbnailCache cache,
+                                final ThumbnailCallback cb,
+                                final Bitmap thumbnail) {
+    cache.deliver(new Runnable() {
+      @Override
+      public void run() {
+        cb.onThumbnail(ImageContext.this, thumbnail);
+      }
+    });
+  }
+
+  private Bitmap buildThumbnail(int limit) {
+    ThumbnailCache cache=ThumbnailCache.get();
+    Bitmap result=cache.get(id, limit);
+
+    if (result==null) {
+      result=createBitmap(limit, true);
+
+      if (result!=null) {
+        cache.put(id, limit, result);
+        hasThumbnails=true;
+      }
+    }
+
+    return(result);
+  }
 
-    return(createBitmap(null, 750000));
+  private void evictThumbnails() {
+    if (hasThumbnails) {
+      hasThumbnails=false;
+      ThumbnailCache.get().evict(id);
+    }
   }
 
-  private Bitmap createBitmap(Bitmap inBitmap, int limit) {
-    double ratio=(double)jpeg.length * 10.0d / (double)limit;
-    int inSampleSize;
+  /**
+   * Decodes the JPEG at the largest scale (by powers of two)
+   * whose bitmap fits in the limit, found from the JPEG's
+   * dimensions rather than by trial and error.
+   */
+  private Bitmap createBitmap(int limit, boolean reuse) {
+    JpegHeaderParser header=getJpegHeader();
+    byte[] jpeg;
+    int length;
+
+    synchronized(this) {
+      jpeg=getJpegBuffer();
+      length=jpegLength;
+    }
+
+    if (jpeg==null) {
+      return(null);
+    }
 
-    if (ratio > 1.0d) {
-      inSampleSize=1 << (int)(Math.ceil(Math.log(ratio) / LOG_2));
-    } else {
-      inSampleSize=1;
+    int width, height;
+
+    if (header!=null) {
+      width=header.getWidth();
+      height=header.getHeight();
+    }
+    else {
+      BitmapFactory.Options bounds=new BitmapFactory.Options();
+
+      bounds.inJustDecodeBounds=true;
+      BitmapFactory.decodeByteArray(jpeg, 0, length, bounds);
+      width=bounds.outWidth;
+      height=bounds.outHeight;
+    }
+
+    int inSampleSize=1;
+
+    if (limit>0 && width>0 && height>0) {
+      while ((long)(width/inSampleSize)*(height/inSampleSize)*4>limit) {
+        inSampleSize*=2;
+      }
     }
 
-    return(createBitmap(inSampleSize, inBitmap, limit));
+    return(createBitmap(jpeg, length, width, height, inSampleSize,
+      reuse));
   }
 
-  private Bitmap createBitmap(int inSampleSize, Bitmap inBitmap,
-                              int limit) {
+  private Bitmap createBitmap(byte[] jpeg, int length, int width,
+                              int height, int inSampleSize,
+                              boolean reuse) {
+    if (inSampleSize>MAX_SAMPLE_SIZE) {
+      return(null);
+    }
+
     BitmapFactory.Options opts=new BitmapFactory.Options();
 
     opts.inSampleSize=inSampleSize;
-    opts.inBitmap=inBitmap;
 
-    Bitmap result;
+    if (reuse) {
+      opts.inMutable=true;
+      opts.inBitmap=ThumbnailCache.get().takeReusable(
+        (width+inSampleSize-1)/inSampleSize,
+        (height+inSampleSize-1)/inSampleSize);
+    }
 
     try {
-      result=
-        BitmapFactory.decodeByteArray(jpeg, 0, jpeg.length, opts);
-
-      if (limit>0 && result.getByteCount()>limit) {
-        return(createBitmap(inSampleSize+1, inBitmap,
-          limit));
+      return(BitmapFactory.decodeByteArray(jpeg, 0, length, opts));
+    }
+    catch (IllegalArgumentException e) {
+      if (opts.inBitmap!=null) {
+        // inBitmap turned out not to be usable
+        return(createBitmap(jpeg, length, width, height, inSampleSize,
+          false));
       }
+
+      throw e;
     }
     catch (OutOfMemoryError e) {
-      return(createBitmap(inSampleSize+1, inBitmap,
-        limit));
+      return(createBitmap(jpeg, length, width, height, inSampleSize*2,
+        reuse));
     }
-
-    return(result);
   }
 
   private void updateBitmap() {
-    bmp=createBitmap(1, bmp, -1); // no limit other than OOM
+    bmp=createBitmap(-1, false); // no limit other than OOM
+  }
+
+  /**
+   * Counts writes still in progress, and runs a Runnable once
+   * the last one is done.
+   */
+  private static class WriteHold {
+    private int pending=0;
+    private Runnable onDone;
+
+    synchronized void begin() {
+      pending++;
+    }
+
+    void end() {
+      Runnable done;
+
+      synchronized(this) {
+        if (pending<=0) {
+          throw new IllegalStateException("Write ended without beginning");
+        }
+
+        if (--pending>0 || onDone==null) {
+          return;
+        }
+
+        done=onDone;
+        onDone=null;
+      }
+
+      done.run();
+    }
+
+    void whenDone(Runnable done) {
+      synchronized(this) {
+        if (pending>0) {
+          onDone=done;
+
+          return;
+        }
+      }
+
+      done.run();
+    }
   }
 }
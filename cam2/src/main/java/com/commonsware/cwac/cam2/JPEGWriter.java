@@ -15,19 +15,36 @@
 package com.commonsware.cwac.cam2;
 
 import android.content.Context;
-import android.media.MediaScannerConnection;
 import android.net.Uri;
+import android.util.Log;
 
 import java.io.File;
 import java.io.FileOutputStream;
+import java.io.IOException;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.concurrent.RejectedExecutionException;
 
-import de.greenrobot.event.EventBus;
 
 /**
  * ImageProcessor that writes a JPEG file out to some form
  * of local storage. At present, it supports writing out to a
  * local filesystem path.
+ *
+ * Files are written under a temporary name and renamed into
+ * place once complete, so the requested path never holds a
+ * partial picture. How long process() waits for the picture to
+ * reach storage depends on the Durability mode. In the
+ * GROUP_COMMIT mode, the PictureTakenEvent is held back until
+ * the picture is synced and under its final name. In the ASYNC
+ * mode, the picture is copied and written in the background,
+ * and the PictureTakenEvent does not wait for it; use a
+ * Callback to find out when each picture has been written. The
+ * engine's MetricsSink hears about the picture once it is
+ * written, in every mode.
  */
 public class JPEGWriter extends AbstractImageProcessor {
   /**
@@ -45,6 +62,66 @@ public class JPEGWriter extends AbstractImageProcessor {
    */
   public static final String PROP_UPDATE_MEDIA_STORE="update";
 
+  /**
+   * Default time window over which GROUP_COMMIT collects
+   * files before syncing them, in milliseconds
+   */
+  public static final long DEFAULT_GROUP_COMMIT_WINDOW_MS=100;
+
+  /**
+   * How hard JPEGWriter works to ensure that a picture is on
+   * storage before moving on.
+   */
+  public enum Durability {
+    /**
+     * Each file is synced to storage before process() returns.
+     * Safest, and slowest.
+     */
+    FSYNC_PER_FILE,
+
+    /**
+     * process() writes the file, but the sync is deferred: files
+     * written within a time window are synced together at the
+     * end of the window, so the storage journal can commit them
+     * in one go. The file appears under its final name once
+     * synced, and only then is the PictureTakenEvent posted.
+     */
+    GROUP_COMMIT,
+
+    /**
+     * A copy of the picture is written on a background thread
+     * and never explicitly synced, leaving it to the OS to flush.
+     * Fastest, but a crash or power loss may lose recent
+     * pictures, and the PictureTakenEvent may arrive before the
+     * file exists.
+     */
+    ASYNC
+  }
+
+  /**
+   * Told when a picture written in the GROUP_COMMIT or ASYNC
+   * modes is complete. Called on a background thread.
+   */
+  public interface Callback {
+    /**
+     * @param path where the picture was written
+     * @param e what went wrong, or null if the write succeeded
+     */
+    void onWriteComplete(String path, Exception e);
+  }
+
+  private static final Stats[] STATS=new Stats[Durability.values().length];
+  private final ArrayList<PendingFile> pendingCommit=new ArrayList<PendingFile>();
+  private volatile Durability durability=Durability.FSYNC_PER_FILE;
+  private volatile long groupCommitWindowMs=DEFAULT_GROUP_COMMIT_WINDOW_MS;
+  private volatile Callback callback;
+
+  static {
+    for (Durability mode : Durability.values()) {
+      STATS[mode.ordinal()]=new Stats();
+    }
+  }
+
   /**
    * {@inheritDoc}
    */
@@ -59,6 +136,67 @@ public class JPEGWriter extends AbstractImageProcessor {
     super(ctxt, tag);
   }
 
+  /**
+   * Constructor.
+   *
+   * @param ctxt any Context will do
+   * @param tag tag to identify this processor, or null for the
+   *            default
+   * @param durability how to ensure pictures reach storage
+   * @param callback told when GROUP_COMMIT and ASYNC writes
+   *                 complete; may be null
+   */
+  public JPEGWriter(Context ctxt, String tag, Durability durability,
+                    Callback callback) {
+    super(ctxt, tag);
+    setDurability(durability);
+    setCallback(callback);
+  }
+
+  /**
+   * @param durability how to ensure pictures reach storage;
+   *                   defaults to FSYNC_PER_FILE
+   */
+  public void setDurability(Durability durability) {
+    this.durability=durability;
+  }
+
+  /**
+   * @return the current durability mode
+   */
+  public Durability getDurability() {
+    return(durability);
+  }
+
+  /**
+   * @param windowMs how long GROUP_COMMIT collects files
+   *                 before syncing them
+   */
+  public void setGroupCommitWindow(long windowMs) {
+    this.groupCommitWindowMs=windowMs;
+  }
+
+  /**
+   * @param callback told when GROUP_COMMIT and ASYNC writes
+   *                 complete; may be null
+   */
+  public void setCallback(Callback callback) {
+    this.callback=callback;
+  }
+
+  /**
+   * Returns the write statistics for a durability mode, across
+   * all JPEGWriter instances. Latency runs from the start of
+   * process() until the picture is under its final name (and,
+   * other than for ASYNC, synced).
+   *
+   * @param mode the durability mode of interest
+   * @return a snapshot of that mode's statistics
+   */
+  public static WriteStats getStats(Durability mode) {
+    return(STATS[mode.ordinal()].snapshot());
+  }
+
   /**
    * {@inheritDoc}
    */
@@ -72,36 +210,417 @@ public class JPEGWriter extends AbstractImageProcessor {
     if (output!=null) {
       try {
         if (output.getScheme().equals("file")) {
-          String path=output.getPath();
-          File f=new File(path);
+          String path=
+            buildFramePath(output.getPath(), imageContext.getFrameIndex(),
+              imageContext.getFrameCount());
 
-          f.getParentFile().mkdirs();
-
-          FileOutputStream fos=new FileOutputStream(f);
-
-          fos.write(imageContext.getJpeg());
-          fos.flush();
-          fos.getFD().sync();
-          fos.close();
-
-          if (updateMediaStore) {
-            MediaScannerConnection.scanFile(imageContext.getContext(),
-                new String[]{path}, new String[]{"image/jpeg"},
-                null);
-          }
+          writeFile(new File(path), imageContext, updateMediaStore);
         }
         else {
+          // bursts to content Uris are rejected by takeBurst(),
+          // so this is the only picture bound for this Uri
+
           OutputStream out=getContext().getContentResolver().openOutputStream(output);
 
-          out.write(imageContext.getJpeg());
+          write(out, imageContext.getJpegByteBuffer());
           out.flush();
           out.close();
         }
       }
       catch (Exception e) {
         // throw new UnsupportedOperationException("Exception when trying to write JPEG", e);
-        EventBus.getDefault().post(new CameraEngine.DeepImpactEvent(e));
+        postDeepImpact(imageContext.getEventChannel(), e);
+      }
+    }
+  }
+
+  /**
+   * Writes the picture to a file per the durability mode. Split
+   * out of process() so the benchmarks can write files on a
+   * plain JVM, where Uri is not available.
+   */
+  void writeFile(File f, final ImageContext imageContext,
+                 boolean updateMediaStore) throws IOException {
+    final long start=System.nanoTime();
+    final Durability mode=durability;
+    final PendingFile pending=
+      new PendingFile(f, mode, start, updateMediaStore, imageContext);
+
+    f.getParentFile().mkdirs();
+
+    if (mode==Durability.ASYNC) {
+      // a copy of our own, as the picture's buffer may go back
+      // to its pool (or camera) before the write gets to it,
+      // whether by a release() or by a later setJpeg()
+
+      final ByteBuffer jpeg=ByteBuffer.allocate(imageContext.getJpegLength());
+
+      jpeg.put(imageContext.getJpegByteBuffer());
+      jpeg.flip();
+
+      // the event does not wait for the write, but the metrics do
+
+      imageContext.beginBackgroundWrite();
+
+      try {
+        CameraScheduler.get().execute(CameraScheduler.Workload.DISK_IO,
+          new Runnable() {
+            @Override
+            public void run() {
+              try {
+                pending.open();
+                pending.bytes=write(pending.out, jpeg);
+                pending.out.close();
+                pending.commit();
+                complete(pending, null);
+              }
+              catch (IOException e) {
+                pending.abandon();
+                complete(pending, e);
+              }
+            }
+          });
+      }
+      catch (RejectedExecutionException e) {
+        imageContext.endBackgroundWrite();
+
+        throw e;
+      }
+    }
+    else {
+      try {
+        pending.open();
+        pending.bytes=write(pending.out, imageContext.getJpegByteBuffer());
+        pending.out.flush();
+      }
+      catch (IOException e) {
+        pending.abandon();
+
+        throw e;
+      }
+
+      if (mode==Durability.FSYNC_PER_FILE) {
+        try {
+          pending.sync();
+          pending.commit();
+        }
+        catch (IOException e) {
+          pending.abandon();
+
+          throw e;
+        }
+
+        complete(pending, null);
+      }
+      else {
+        // the bytes are in the file, so the picture itself is no
+        // longer needed, but its event waits for the commit
+
+        imageContext.beginWrite();
+        enqueueCommit(pending);
+      }
+    }
+  }
+
+  private void enqueueCommit(PendingFile pending) {
+    synchronized(pendingCommit) {
+      pendingCommit.add(pending);
+
+      if (pendingCommit.size()==1) {
+        CameraScheduler.get().schedule(CameraScheduler.Workload.DISK_IO,
+          new Runnable() {
+            @Override
+            public void run() {
+              commitPending();
+            }
+          }, groupCommitWindowMs);
+      }
+    }
+  }
+
+  private void commitPending() {
+    ArrayList<PendingFile> batch;
+
+    synchronized(pendingCommit) {
+      batch=new ArrayList<PendingFile>(pendingCommit);
+      pendingCommit.clear();
+    }
+
+    // sync everything first, so the journal commits cover the
+    // whole batch, then make the files visible
+
+    Exception[] errors=new Exception[batch.size()];
+
+    for (int i=0;i<batch.size();i++) {
+      try {
+        batch.get(i).sync();
+      }
+      catch (IOException e) {
+        errors[i]=e;
+      }
+    }
+
+    for (int i=0;i<batch.size();i++) {
+      PendingFile pending=batch.get(i);
+
+      if (errors[i]==null) {
+        try {
+          pending.commit();
+        }
+        catch (IOException e) {
+          errors[i]=e;
+        }
+      }
+
+      if (errors[i]!=null) {
+        pending.abandon();
+      }
+
+      complete(pending, errors[i]);
+    }
+  }
+
+  private void complete(PendingFile pending, Exception e) {
+    if (e==null) {
+      STATS[pending.mode.ordinal()].record(pending.bytes,
+        System.nanoTime()-pending.start);
+
+      if (pending.timeline!=null) {
+        pending.timeline.mark(CaptureTimeline.Stage.FILE_SYNCED);
       }
+
+      if (pending.updateMediaStore) {
+        MediaIndexer.get(pending.ctxt)
+          .scan(pending.target.getAbsolutePath(), "image/jpeg");
+      }
+    }
+    else if (pending.mode!=Durability.FSYNC_PER_FILE) {
+      postDeepImpact(pending.eventChannel, e);
+    }
+
+    Callback cb=callback;
+
+    if (cb!=null && pending.mode!=Durability.FSYNC_PER_FILE) {
+      cb.onWriteComplete(pending.target.getAbsolutePath(), e);
+    }
+
+    if (pending.mode==Durability.GROUP_COMMIT) {
+      pending.imageContext.endWrite();
+    }
+    else if (pending.mode==Durability.ASYNC) {
+      pending.imageContext.endBackgroundWrite();
+    }
+  }
+
+  /**
+   * Reports a failed write to whoever took the picture, via the
+   * picture's EventChannel. A picture that did not come from a
+   * CameraEngine has no channel, so the failure is only logged
+   * (and reported to the Callback, if there is one).
+   */
+  private static void postDeepImpact(EventChannel eventChannel,
+                                     Exception e) {
+    if (eventChannel==null) {
+      Log.e("CWAC-Cam2", "Exception writing picture", e);
+    }
+    else {
+      eventChannel.post(new CameraEngine.DeepImpactEvent(e));
+    }
+  }
+
+  /**
+   * Works out where a picture that is part of a burst should
+   * be written, by adding the frame index to the file name
+   * ahead of the extension (e.g., foo.jpg becomes foo-2.jpg).
+   * Pictures that are not part of a burst use the path as-is.
+   *
+   * @param path the path requested for the picture
+   * @param frameIndex the picture's position in the burst
+   * @param frameCount the number of pictures in the burst
+   * @return the path to write the picture to
+   */
+  public static String buildFramePath(String path, int frameIndex,
+                                      int frameCount) {
+    if (frameCount<=1) {
+      return(path);
+    }
+
+    int slash=path.lastIndexOf('/');
+    int dot=path.lastIndexOf('.');
+
+    if (dot<=slash) {
+      return(path+"-"+frameIndex);
+    }
+
+    return(path.substring(0, dot)+"-"+frameIndex+path.substring(dot));
+  }
+
+  /**
+   * Writes the JPEG through a channel, so a direct ByteBuffer
+   * from the camera goes straight to the file, with no copy onto
+   * the Java heap.
+   *
+   * @return the number of bytes written
+   */
+  private static long write(OutputStream out, ByteBuffer jpeg)
+    throws IOException {
+    WritableByteChannel channel;
+
+    if (out instanceof FileOutputStream) {
+      channel=((FileOutputStream)out).getChannel();
+    }
+    else {
+      channel=Channels.newChannel(out);
+    }
+
+    long result=jpeg.remaining();
+
+    while (jpeg.hasRemaining()) {
+      channel.write(jpeg);
+    }
+
+    return(result);
+  }
+
+  /**
+   * A picture on its way to storage: written (or being written)
+   * under a temporary name, to be renamed when complete.
+   */
+  private static class PendingFile {
+    final File target;
+    final File temp;
+    final Durability mode;
+    final long start;
+    final boolean updateMediaStore;
+    final ImageContext imageContext;
+    final Context ctxt;
+    final CaptureTimeline timeline;
+    final EventChannel eventChannel;
+    FileOutputStream out;
+    long bytes;
+
+    PendingFile(File target, Durability mode, long start,
+                boolean updateMediaStore, ImageContext imageContext) {
+      this.target=target;
+      this.temp=new File(target.getParentFile(), "."+target.getName()+".tmp");
+      this.mode=mode;
+      this.start=start;
+      this.updateMediaStore=updateMediaStore;
+      this.imageContext=imageContext;
+      this.ctxt=imageContext.getContext();
+      this.timeline=imageContext.getTimeline();
+      this.eventChannel=imageContext.getEventChannel();
+    }
+
+    void open() throws IOException {
+      out=new FileOutputStream(temp);
+    }
+
+    void sync() throws IOException {
+      out.getFD().sync();
+      out.close();
+    }
+
+    void commit() throws IOException {
+      if (!temp.renameTo(target)) {
+        throw new IOException("Could not rename "+temp+" to "+target);
+      }
+    }
+
+    void abandon() {
+      if (out!=null) {
+        try {
+          out.close();
+        }
+        catch (IOException e) {
+          // nothing more we can do
+        }
+      }
+
+      temp.delete();
+    }
+  }
+
+  private static class Stats {
+    private long count=0;
+    private long bytes=0;
+    private long totalNanos=0;
+    private long maxNanos=0;
+
+    synchronized void record(long bytes, long nanos) {
+      count++;
+      this.bytes+=bytes;
+      totalNanos+=nanos;
+
+      if (nanos>maxNanos) {
+        maxNanos=nanos;
+      }
+    }
+
+    synchronized WriteStats snapshot() {
+      return(new WriteStats(count, bytes, totalNanos, maxNanos));
+    }
+  }
+
+  /**
+   * Point-in-time statistics for pictures written in one
+   * durability mode.
+   */
+  public static class WriteStats {
+    private final long count;
+    private final long bytes;
+    private final long totalNanos;
+    private final long maxNanos;
+
+    WriteStats(long count, long bytes, long totalNanos,
+               long maxNanos) {
+      this.count=count;
+      this.bytes=bytes;
+      this.totalNanos=totalNanos;
+      this.maxNanos=maxNanos;
+    }
+
+    /**
+     * @return number of pictures written
+     */
+    public long getCount() {
+      return(count);
+    }
+
+    /**
+     * @return total bytes written
+     */
+    public long getBytes() {
+      return(bytes);
+    }
+
+    /**
+     * @return mean write latency, in nanoseconds, or 0 if
+     * nothing has been written
+     */
+    public long getAverageLatencyNanos() {
+      return(count==0 ? 0 : totalNanos/count);
+    }
+
+    /**
+     * @return longest write latency, in nanoseconds
+     */
+    public long getMaxLatencyNanos() {
+      return(maxNanos);
+    }
+
+    /**
+     * @return bytes written per second of write latency, or 0
+     * if nothing has been written
+     */
+    public double getBytesPerSecond() {
+      return(totalNanos==0 ? 0.0d : bytes*1000000000.0d/totalNanos);
+    }
+
+    @Override
+    public String toString() {
+      return("WriteStats[n="+count+" avg="+getAverageLatencyNanos()/1000+
+        "us max="+maxNanos/1000+"us "+(long)getBytesPerSecond()+"B/s]");
     }
   }
 }
@@ -0,0 +1,155 @@
+/***
+ Copyright (c) 2016 CommonsWare, LLC
+
+ Licensed under the Apache License, Version 2.0 (the "License"); you may
+ not use this file except in compliance with the License. You may obtain
+ a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+package com.commonsware.cwac.cam2;
+
+import android.content.Context;
+import android.media.MediaScannerConnection;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Gets files indexed by the MediaStore, in batches. Paths
+ * handed to scan() are queued, with duplicates merged, and every
+ * flush interval the paths that are due are handed to the
+ * MediaScannerConnection in a single scanFile() call, rather
+ * than one call (and one binder round trip) per file. Flushes
+ * run on the CameraScheduler's DISK_IO pool.
+ */
+public class MediaIndexer {
+  /**
+   * Default time between flushes, in milliseconds
+   */
+  public static final long DEFAULT_FLUSH_INTERVAL_MS=500;
+  private static MediaIndexer INSTANCE=null;
+  private final Context app;
+  private final LinkedHashMap<String, String> pending=
+    new LinkedHashMap<String, String>();
+  private volatile long flushIntervalMs=DEFAULT_FLUSH_INTERVAL_MS;
+  private boolean isFlushScheduled=false;
+  private long submittedCount=0;
+  private long mergedCount=0;
+  private long batchCount=0;
+
+  private final Runnable flush=new Runnable() {
+    @Override
+    public void run() {
+      flush();
+    }
+  };
+
+  /**
+   * @param ctxt any Context will do
+   * @return the MediaIndexer for this process
+   */
+  synchronized public static MediaIndexer get(Context ctxt) {
+    if (INSTANCE==null) {
+      INSTANCE=new MediaIndexer(ctxt.getApplicationContext());
+    }
+
+    return(INSTANCE);
+  }
+
+  private MediaIndexer(Context app) {
+    this.app=app;
+  }
+
+  /**
+   * Queues a file to be indexed at the next flush.
+   *
+   * @param path the file's path
+   * @param mimeType the file's MIME type
+   */
+  synchronized public void scan(String path, String mimeType) {
+    if (pending.put(path, mimeType)!=null) {
+      mergedCount++;
+    }
+
+    scheduleFlush();
+  }
+
+  /**
+   * @param intervalMs time between flushes
+   */
+  public void setFlushInterval(long intervalMs) {
+    this.flushIntervalMs=intervalMs;
+  }
+
+  /**
+   * @return number of files waiting to be handed to the
+   * MediaScannerConnection
+   */
+  synchronized public int getPendingCount() {
+    return(pending.size());
+  }
+
+  /**
+   * @return number of files handed to the MediaScannerConnection
+   */
+  synchronized public long getSubmittedCount() {
+    return(submittedCount);
+  }
+
+  /**
+   * @return number of scan() requests merged into one already
+   * queued for the same path
+   */
+  synchronized public long getMergedCount() {
+    return(mergedCount);
+  }
+
+  /**
+   * @return number of scanFile() calls made
+   */
+  synchronized public long getBatchCount() {
+    return(batchCount);
+  }
+
+  private void scheduleFlush() {
+    if (!isFlushScheduled) {
+      isFlushScheduled=true;
+      CameraScheduler.get().schedule(CameraScheduler.Workload.DISK_IO,
+        flush, flushIntervalMs);
+    }
+  }
+
+  private void flush() {
+    ArrayList<String> paths=new ArrayList<String>();
+    ArrayList<String> mimeTypes=new ArrayList<String>();
+
+    synchronized(this) {
+      isFlushScheduled=false;
+
+      for (Map.Entry<String, String> entry : pending.entrySet()) {
+        paths.add(entry.getKey());
+        mimeTypes.add(entry.getValue());
+      }
+
+      pending.clear();
+
+      if (!paths.isEmpty()) {
+        submittedCount+=paths.size();
+        batchCount++;
+      }
+    }
+
+    if (!paths.isEmpty()) {
+      MediaScannerConnection.scanFile(app,
+        paths.toArray(new String[paths.size()]),
+        mimeTypes.toArray(new String[mimeTypes.size()]), null);
+    }
+  }
+}
@@ -0,0 +1,36 @@
+/***
+ Copyright (c) 2016 CommonsWare, LLC
+
+ Licensed under the Apache License, Version 2.0 (the "License"); you may
+ not use this file except in compliance with the License. You may obtain
+ a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+
+package com.commonsware.cwac.cam2;
+
+/**
+ * Receives the CaptureTimeline of every picture an engine takes,
+ * across sessions, such as to aggregate latencies for reporting.
+ * CaptureMetrics is a ready-made implementation. Hand one to
+ * CameraEngine.setMetricsSink().
+ */
+public interface MetricsSink {
+  /**
+   * Called once the picture is complete, on the thread that
+   * completes it. Keep it quick. Normally, that is just before
+   * the PictureTakenEvent is posted, on the thread that posts
+   * it. With a JPEGWriter in ASYNC mode, it is once the file is
+   * written, which may be after the event, on the thread that
+   * wrote the file, so the timeline has FILE_SYNCED.
+   *
+   * @param timeline the picture's timeline
+   */
+  void onPictureTaken(CaptureTimeline timeline);
+}
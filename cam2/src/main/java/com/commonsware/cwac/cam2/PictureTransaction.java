@@ -34,13 +34,30 @@ public class PictureTransaction {
   }
 
   ImageContext process(ImageContext imageContext) {
+    CaptureTimeline timeline=imageContext.getTimeline();
+
     for (ImageProcessor processor : processors) {
+      long start=System.nanoTime();
+
       processor.process(this, imageContext);
+
+      if (timeline!=null) {
+        timeline.addProcessorSpan(processor.getTag(), start,
+          System.nanoTime());
+      }
     }
 
     return(imageContext);
   }
 
+  int getProcessorCount() {
+    return(processors.size());
+  }
+
+  ImageProcessor getProcessor(int index) {
+    return(processors.get(index));
+  }
+
   ImageProcessor findProcessorByTag(String tag) {
     for (ImageProcessor processor : processors) {
       if (processor.getTag().equals(tag)) {
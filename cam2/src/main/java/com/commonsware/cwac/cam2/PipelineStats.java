@@ -0,0 +1,96 @@
+/***
+ Copyright (c) 2016 CommonsWare, LLC
+
+ Licensed under the Apache License, Version 2.0 (the "License"); you may
+ not use this file except in compliance with the License. You may obtain
+ a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+package com.commonsware.cwac.cam2;
+
+/**
+ * Point-in-time snapshot of a ProcessingPipeline, for each
+ * stage reporting how many pictures are waiting and how long
+ * the stage's processors have been taking.
+ */
+public class PipelineStats {
+  private final int[] queueDepths;
+  private final long[] processed;
+  private final long[] totalNanos;
+  private final long[] maxNanos;
+
+  PipelineStats(int[] queueDepths, long[] processed,
+                long[] totalNanos, long[] maxNanos) {
+    this.queueDepths=queueDepths;
+    this.processed=processed;
+    this.totalNanos=totalNanos;
+    this.maxNanos=maxNanos;
+  }
+
+  /**
+   * @return the number of stages the pipeline has created, which
+   * is the length of the longest processor chain seen so far
+   */
+  public int getStageCount() {
+    return(queueDepths.length);
+  }
+
+  /**
+   * @param stage index of the stage
+   * @return number of pictures waiting for the stage
+   */
+  public int getQueueDepth(int stage) {
+    return(queueDepths[stage]);
+  }
+
+  /**
+   * @param stage index of the stage
+   * @return number of pictures the stage has processed
+   */
+  public long getProcessedCount(int stage) {
+    return(processed[stage]);
+  }
+
+  /**
+   * @param stage index of the stage
+   * @return mean time the stage's processor took per picture,
+   * in nanoseconds, or 0 if it has processed nothing yet
+   */
+  public long getAverageNanos(int stage) {
+    return(processed[stage]==0 ? 0 : totalNanos[stage]/processed[stage]);
+  }
+
+  /**
+   * @param stage index of the stage
+   * @return longest time the stage's processor took for a
+   * picture, in nanoseconds
+   */
+  public long getMaxNanos(int stage) {
+    return(maxNanos[stage]);
+  }
+
+  @Override
+  public String toString() {
+    StringBuilder buf=new StringBuilder("PipelineStats[");
+
+    for (int i=0;i<getStageCount();i++) {
+      if (i>0) {
+        buf.append(", ");
+      }
+
+      buf.append(i)
+        .append(": depth=").append(getQueueDepth(i))
+        .append(" n=").append(getProcessedCount(i))
+        .append(" avg=").append(getAverageNanos(i)/1000).append("us")
+        .append(" max=").append(getMaxNanos(i)/1000).append("us");
+    }
+
+    return(buf.append(']').toString());
+  }
+}
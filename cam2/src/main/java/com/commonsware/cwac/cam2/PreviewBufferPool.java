@@ -0,0 +1,258 @@
+/***
+ Copyright (c) 2016 CommonsWare, LLC
+
+ Licensed under the Apache License, Version 2.0 (the "License"); you may
+ not use this file except in compliance with the License. You may obtain
+ a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+package com.commonsware.cwac.cam2;
+
+import android.graphics.ImageFormat;
+
+/**
+ * A fixed set of preview frame buffers, allocated once per
+ * session and cycled between the camera and whatever consumes
+ * preview frames (a FrameAnalyzer, the debug preview save), so
+ * streaming preview frames allocates nothing per frame.
+ *
+ * A buffer delivered by the camera is reference-counted: each
+ * consumer that holds onto it retains it, and it goes back to
+ * the camera (via the Recycler) only once every consumer has
+ * released it. While all buffers are out, the camera skips
+ * frames.
+ */
+class PreviewBufferPool {
+  /**
+   * Default number of buffers: one being filled by the camera,
+   * one being consumed, and one spare
+   */
+  static final int DEFAULT_BUFFER_COUNT=3;
+
+  /**
+   * Hands a buffer back to the camera, such as via
+   * Camera.addCallbackBuffer().
+   */
+  interface Recycler {
+    void recycle(byte[] buffer);
+  }
+
+  private final int width;
+  private final int height;
+  private final int format;
+  private final PreviewBuffer[] buffers;
+  private final Recycler recycler;
+  private boolean isClosed=false;
+  private long deliveredCount=0;
+
+  /**
+   * Constructor.
+   *
+   * @param width preview width, in pixels
+   * @param height preview height, in pixels
+   * @param format preview format, as an ImageFormat constant
+   * @param bufferSize size of each buffer, normally from
+   *                   getBufferSize()
+   * @param count number of buffers to allocate
+   * @param recycler hands buffers to the camera
+   */
+  PreviewBufferPool(int width, int height, int format,
+                    int bufferSize, int count, Recycler recycler) {
+    this.width=width;
+    this.height=height;
+    this.format=format;
+    this.recycler=recycler;
+    buffers=new PreviewBuffer[count];
+
+    for (int i=0;i<count;i++) {
+      buffers[i]=new PreviewBuffer(new byte[bufferSize]);
+    }
+  }
+
+  /**
+   * @param width preview width, in pixels
+   * @param height preview height, in pixels
+   * @param format preview format, as an ImageFormat constant
+   * @return number of bytes needed to hold one preview frame
+   */
+  static int getBufferSize(int width, int height, int format) {
+    return(width*height*ImageFormat.getBitsPerPixel(format)/8);
+  }
+
+  /**
+   * Hands every buffer to the camera.
+   */
+  void start() {
+    for (PreviewBuffer buffer : buffers) {
+      recycler.recycle(buffer.data);
+    }
+  }
+
+  /**
+   * Stops handing buffers back to the camera, such as when
+   * the camera is released. Buffers still held by consumers
+   * stay valid until they are released.
+   */
+  synchronized void close() {
+    isClosed=true;
+  }
+
+  /**
+   * Takes charge of a buffer that the camera has filled. The
+   * caller holds one reference to it, and has to release it.
+   *
+   * @param data the buffer passed to onPreviewFrame()
+   * @return the buffer, or null if it is not from this pool
+   */
+  synchronized PreviewBuffer onFilled(byte[] data) {
+    for (PreviewBuffer buffer : buffers) {
+      if (buffer.data==data) {
+        buffer.refCount=1;
+        deliveredCount++;
+
+        return(buffer);
+      }
+    }
+
+    return(null);
+  }
+
+  /**
+   * @return preview width, in pixels
+   */
+  int getWidth() {
+    return(width);
+  }
+
+  /**
+   * @return preview height, in pixels
+   */
+  int getHeight() {
+    return(height);
+  }
+
+  /**
+   * @return preview format, as an ImageFormat constant
+   */
+  int getFormat() {
+    return(format);
+  }
+
+  /**
+   * @return number of frames delivered by the camera so far
+   */
+  synchronized long getDeliveredCount() {
+    return(deliveredCount);
+  }
+
+  /**
+   * @return number of buffers held by consumers right now,
+   * rather than by the camera
+   */
+  synchronized int getOutstandingCount() {
+    int result=0;
+
+    for (PreviewBuffer buffer : buffers) {
+      if (buffer.refCount>0) {
+        result++;
+      }
+    }
+
+    return(result);
+  }
+
+  private void release(PreviewBuffer buffer) {
+    boolean recycle;
+
+    synchronized(this) {
+      if (buffer.refCount<=0) {
+        throw new IllegalStateException("Preview buffer released too many times");
+      }
+
+      buffer.refCount--;
+      recycle=(buffer.refCount==0 && !isClosed);
+    }
+
+    if (recycle) {
+      recycler.recycle(buffer.data);
+    }
+  }
+
+  /**
+   * One preview frame buffer. Retain it for as long as the
+   * bytes are needed, then release it.
+   */
+  class PreviewBuffer {
+    private final byte[] data;
+    private final Frame frame;
+    private int refCount=0;
+
+    /**
+     * Releases this buffer when run, for handing to code that
+     * takes a completion callback (e.g., FrameDispatcher)
+     */
+    final Runnable releaser=new Runnable() {
+      @Override
+      public void run() {
+        release();
+      }
+    };
+
+    private PreviewBuffer(byte[] data) {
+      this.data=data;
+
+      if (format==ImageFormat.NV21) {
+        frame=Frame.fromNv21(data, width, height, 0);
+      }
+      else {
+        frame=null;
+      }
+    }
+
+    /**
+     * @return the frame bytes, valid until the buffer is
+     * released
+     */
+    byte[] getData() {
+      return(data);
+    }
+
+    /**
+     * @param timestamp when the frame was captured, in
+     *                  nanoseconds
+     * @return a Frame view of the buffer, or null if the
+     * preview format is not NV21; the same Frame each time,
+     * with the new timestamp
+     */
+    Frame toFrame(long timestamp) {
+      if (frame!=null) {
+        frame.setTimestamp(timestamp);
+      }
+
+      return(frame);
+    }
+
+    /**
+     * Adds a reference to this buffer.
+     */
+    void retain() {
+      synchronized(PreviewBufferPool.this) {
+        refCount++;
+      }
+    }
+
+    /**
+     * Drops a reference to this buffer, handing it back to the
+     * camera if that was the last one.
+     */
+    void release() {
+      PreviewBufferPool.this.release(this);
+    }
+  }
+}
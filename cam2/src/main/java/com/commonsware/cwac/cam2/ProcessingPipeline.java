@@ -0,0 +1,311 @@
+/***
+ Copyright (c) 2016 CommonsWare, LLC
+
+ Licensed under the Apache License, Version 2.0 (the "License"); you may
+ not use this file except in compliance with the License. You may obtain
+ a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+package com.commonsware.cwac.cam2;
+
+import java.util.ArrayList;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs the ImageProcessor chains of pictures as a pipeline,
+ * rather than one picture at a time. The Nth processor of every
+ * PictureTransaction runs on stage N, and each stage has its own
+ * thread and a bounded queue. So, while one picture is being
+ * written by a JPEGWriter at the end of its chain, the next
+ * picture can be going through the earlier processors.
+ *
+ * Within a stage, pictures are processed in the order in which
+ * they were submitted. When the queue of a later stage is full,
+ * the stage ahead of it blocks until there is room, so a slow
+ * stage throttles the ones ahead of it rather than piling up
+ * pictures in memory. Stage 0 never blocks the engine, which
+ * submits from camera threads: pictures wait there instead,
+ * and with camera2 they wait in the camera's own buffers, so
+ * the camera itself is what slows down.
+ *
+ * Attach an instance to a CameraEngine via
+ * setProcessingPipeline() to opt into pipelined processing.
+ */
+public class ProcessingPipeline {
+  /**
+   * Default number of pictures that may wait at each stage
+   */
+  public static final int DEFAULT_QUEUE_CAPACITY=2;
+  private final int queueCapacity;
+  private final ArrayList<Stage> stages=new ArrayList<Stage>();
+  private boolean isShutdown=false;
+
+  /**
+   * Callback for the outcome of running a picture through
+   * the pipeline. Called on a pipeline thread, or on the
+   * submitting thread if the pipeline refuses the picture.
+   */
+  public interface Callback {
+    /**
+     * Every processor in the chain has run on the picture.
+     *
+     * @param xact the picture's transaction
+     * @param imageContext the picture
+     */
+    void onProcessed(PictureTransaction xact, ImageContext imageContext);
+
+    /**
+     * A processor failed, or a stage refused the picture, and
+     * the rest of the chain was skipped.
+     *
+     * @param xact the picture's transaction
+     * @param imageContext the picture
+     * @param e what went wrong
+     */
+    void onError(PictureTransaction xact, ImageContext imageContext,
+                 Exception e);
+  }
+
+  /**
+   * Constructor, using DEFAULT_QUEUE_CAPACITY.
+   */
+  public ProcessingPipeline() {
+    this(DEFAULT_QUEUE_CAPACITY);
+  }
+
+  /**
+   * Constructor.
+   *
+   * @param queueCapacity how many pictures may wait at each stage
+   *                      after the first before the stage
+   *                      ahead of it blocks
+   */
+  public ProcessingPipeline(int queueCapacity) {
+    if (queueCapacity<1) {
+      throw new IllegalArgumentException("Queue capacity must be at least 1");
+    }
+
+    this.queueCapacity=queueCapacity;
+  }
+
+  /**
+   * Runs the picture through the transaction's processors,
+   * then calls the callback. This does not block, so it is safe
+   * to call from a camera thread. If the pipeline has been shut
+   * down, the callback's onError() is called right away.
+   *
+   * @param xact the transaction holding the processor chain
+   * @param imageContext the picture
+   * @param cb told when the picture is done
+   */
+  public void submit(PictureTransaction xact, ImageContext imageContext,
+                     Callback cb) {
+    if (xact.getProcessorCount()==0) {
+      cb.onProcessed(xact, imageContext);
+    }
+    else {
+      enqueue(new Step(0, xact, imageContext, cb));
+    }
+  }
+
+  /**
+   * @return a snapshot of queue depths and timings per stage
+   */
+  public PipelineStats getStats() {
+    Stage[] snapshot;
+
+    synchronized(stages) {
+      snapshot=stages.toArray(new Stage[stages.size()]);
+    }
+
+    int[] queueDepths=new int[snapshot.length];
+    long[] processed=new long[snapshot.length];
+    long[] totalNanos=new long[snapshot.length];
+    long[] maxNanos=new long[snapshot.length];
+
+    for (int i=0;i<snapshot.length;i++) {
+      Stage stage=snapshot[i];
+
+      synchronized(stage) {
+        queueDepths[i]=stage.executor.getQueue().size();
+        processed[i]=stage.processed;
+        totalNanos[i]=stage.totalNanos;
+        maxNanos[i]=stage.maxNanos;
+      }
+    }
+
+    return(new PipelineStats(queueDepths, processed, totalNanos,
+      maxNanos));
+  }
+
+  /**
+   * Stops the stage threads once the pictures already queued
+   * have been processed.
+   */
+  public void shutdown() {
+    synchronized(stages) {
+      isShutdown=true;
+
+      for (Stage stage : stages) {
+        stage.executor.shutdown();
+      }
+    }
+  }
+
+  private Stage getStage(int index) {
+    synchronized(stages) {
+      while (stages.size()<=index) {
+        Stage stage=new Stage(stages.size(), queueCapacity);
+
+        // a stage first needed after shutdown() refuses work,
+        // like the rest
+
+        if (isShutdown) {
+          stage.executor.shutdown();
+        }
+
+        stages.add(stage);
+      }
+
+      return(stages.get(index));
+    }
+  }
+
+  /**
+   * Hands the step to its stage, or to the callback's onError()
+   * if the stage refuses it, because the pipeline is shut down
+   * or the wait for room was interrupted.
+   */
+  private void enqueue(Step step) {
+    try {
+      getStage(step.index).enqueue(step);
+    }
+    catch (RejectedExecutionException e) {
+      step.cb.onError(step.xact, step.imageContext, e);
+    }
+  }
+
+  private class Step implements Runnable {
+    private final int index;
+    private final PictureTransaction xact;
+    private final ImageContext imageContext;
+    private final Callback cb;
+
+    Step(int index, PictureTransaction xact, ImageContext imageContext,
+         Callback cb) {
+      this.index=index;
+      this.xact=xact;
+      this.imageContext=imageContext;
+      this.cb=cb;
+    }
+
+    @Override
+    public void run() {
+      Stage stage=getStage(index);
+      ImageProcessor processor=xact.getProcessor(index);
+      CaptureTimeline timeline=imageContext.getTimeline();
+      long start=System.nanoTime();
+
+      try {
+        processor.process(xact, imageContext);
+      }
+      catch (Exception e) {
+        cb.onError(xact, imageContext, e);
+
+        return;
+      }
+      finally {
+        long end=System.nanoTime();
+
+        stage.record(end-start);
+
+        if (timeline!=null) {
+          timeline.addProcessorSpan(processor.getTag(), start, end);
+        }
+      }
+
+      int next=index+1;
+
+      if (next<xact.getProcessorCount()) {
+        enqueue(new Step(next, xact, imageContext, cb));
+      }
+      else {
+        cb.onProcessed(xact, imageContext);
+      }
+    }
+  }
+
+  private static class Stage {
+    final ThreadPoolExecutor executor;
+    long processed=0;
+    long totalNanos=0;
+    long maxNanos=0;
+
+    Stage(final int index, int queueCapacity) {
+      // stage 0 is fed by the engine, on a camera thread, which
+      // must never wait on us
+
+      BlockingQueue<Runnable> queue=(index==0 ?
+        new LinkedBlockingQueue<Runnable>() :
+        new ArrayBlockingQueue<Runnable>(queueCapacity));
+
+      executor=new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS,
+        queue,
+        new ThreadFactory() {
+          @Override
+          public Thread newThread(Runnable r) {
+            return(new Thread(r, "CWAC-Cam2-Pipeline-"+index));
+          }
+        },
+        new BlockingPolicy());
+    }
+
+    void enqueue(Step step) {
+      executor.execute(step);
+    }
+
+    synchronized void record(long nanos) {
+      processed++;
+      totalNanos+=nanos;
+
+      if (nanos>maxNanos) {
+        maxNanos=nanos;
+      }
+    }
+  }
+
+  /**
+   * Applies backpressure by making the previous stage wait for
+   * room in the stage's queue.
+   */
+  private static class BlockingPolicy implements RejectedExecutionHandler {
+    @Override
+    public void rejectedExecution(Runnable r,
+                                  ThreadPoolExecutor executor) {
+      if (executor.isShutdown()) {
+        throw new RejectedExecutionException("Pipeline is shut down");
+      }
+
+      try {
+        executor.getQueue().put(r);
+      }
+      catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new RejectedExecutionException("Interrupted waiting for pipeline", e);
+      }
+    }
+  }
+}
@@ -16,6 +16,11 @@ public class SimpleCameraTwoConfigurator
     return null;
   }
 
+  @Override
+  public ImageReader buildZslImageReader() {
+    return null;
+  }
+
   @Override
   public void addToCaptureRequest(CameraSession session,
                                   CameraCharacteristics cc,
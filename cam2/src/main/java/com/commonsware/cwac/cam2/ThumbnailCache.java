@@ -0,0 +1,194 @@
+/***
+ Copyright (c) 2016 CommonsWare, LLC
+
+ Licensed under the Apache License, Version 2.0 (the "License"); you may
+ not use this file except in compliance with the License. You may obtain
+ a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+package com.commonsware.cwac.cam2;
+
+import android.annotation.TargetApi;
+import android.graphics.Bitmap;
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.LruCache;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * Holds the thumbnails built by ImageContext: a small LRU of
+ * finished thumbnails, bounded by bytes, plus a few bitmaps that
+ * are no longer on screen, to be decoded into (via inBitmap)
+ * rather than allocating new ones. Thumbnails are decoded on
+ * the CameraScheduler's IMAGE_PROCESSING pool.
+ */
+class ThumbnailCache {
+  private static final int MAX_CACHE_BYTES=16*1024*1024;
+  private static final int MAX_REUSABLE=3;
+  private static ThumbnailCache INSTANCE=null;
+  private final LruCache<Key, Bitmap> cache;
+  private final ArrayList<Bitmap> reusable=new ArrayList<Bitmap>();
+  private final Handler mainHandler=new Handler(Looper.getMainLooper());
+
+  synchronized static ThumbnailCache get() {
+    if (INSTANCE==null) {
+      long max=Math.min(Runtime.getRuntime().maxMemory()/16,
+        MAX_CACHE_BYTES);
+
+      INSTANCE=new ThumbnailCache((int)max);
+    }
+
+    return(INSTANCE);
+  }
+
+  private ThumbnailCache(int maxBytes) {
+    cache=new LruCache<Key, Bitmap>(maxBytes) {
+      @Override
+      protected int sizeOf(Key key, Bitmap value) {
+        return(value.getRowBytes()*value.getHeight());
+      }
+    };
+  }
+
+  /**
+   * @param id the ImageContext's id
+   * @param limit the byte limit the thumbnail was built for
+   * @return the cached thumbnail, or null if there is none
+   */
+  Bitmap get(long id, int limit) {
+    return(cache.get(new Key(id, limit)));
+  }
+
+  void put(long id, int limit, Bitmap thumbnail) {
+    cache.put(new Key(id, limit), thumbnail);
+  }
+
+  /**
+   * Drops the thumbnails of a picture that has been released
+   * or replaced. They are not recycled or reused, as they may
+   * still be on screen.
+   *
+   * @param id the ImageContext's id
+   */
+  void evict(long id) {
+    for (Key key : cache.snapshot().keySet()) {
+      if (key.id==id) {
+        cache.remove(key);
+      }
+    }
+  }
+
+  /**
+   * Hands over a thumbnail that is no longer displayed, so a
+   * later decode can reuse its memory. The thumbnail is dropped
+   * from the cache first, so get() never hands out a bitmap
+   * that is being decoded into.
+   */
+  void offerForReuse(Bitmap bitmap) {
+    if (bitmap==null || !bitmap.isMutable() ||
+      Build.VERSION.SDK_INT<Build.VERSION_CODES.KITKAT) {
+      return;
+    }
+
+    for (Map.Entry<Key, Bitmap> entry : cache.snapshot().entrySet()) {
+      if (entry.getValue()==bitmap) {
+        cache.remove(entry.getKey());
+      }
+    }
+
+    synchronized(reusable) {
+      if (!reusable.contains(bitmap)) {
+        if (reusable.size()>=MAX_REUSABLE) {
+          reusable.remove(0);
+        }
+
+        reusable.add(bitmap);
+      }
+    }
+  }
+
+  /**
+   * Finds a bitmap that a decode of the given size can go into,
+   * removing it from the reusable set.
+   *
+   * @param width width of the decoded image
+   * @param height height of the decoded image
+   * @return a bitmap to use as inBitmap, or null if none fit
+   */
+  @TargetApi(Build.VERSION_CODES.KITKAT)
+  Bitmap takeReusable(int width, int height) {
+    if (Build.VERSION.SDK_INT<Build.VERSION_CODES.KITKAT) {
+      return(null);
+    }
+
+    int needed=width*height*4; // ARGB_8888
+
+    synchronized(reusable) {
+      for (Iterator<Bitmap> i=reusable.iterator(); i.hasNext();) {
+        Bitmap candidate=i.next();
+
+        if (candidate.isRecycled()) {
+          i.remove();
+        }
+        else if (candidate.getConfig()==Bitmap.Config.ARGB_8888 &&
+          candidate.getAllocationByteCount()>=needed) {
+          i.remove();
+
+          return(candidate);
+        }
+      }
+    }
+
+    return(null);
+  }
+
+  void execute(Runnable r) {
+    CameraScheduler.get()
+      .execute(CameraScheduler.Workload.IMAGE_PROCESSING, r);
+  }
+
+  void deliver(Runnable r) {
+    mainHandler.post(r);
+  }
+
+  /**
+   * Identifies a thumbnail by its picture's id, rather than by
+   * the ImageContext itself, so the cache does not keep released
+   * pictures reachable.
+   */
+  static class Key {
+    final long id;
+    final int limit;
+
+    Key(long id, int limit) {
+      this.id=id;
+      this.limit=limit;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (!(o instanceof Key)) {
+        return(false);
+      }
+
+      Key other=(Key)o;
+
+      return(id==other.id && limit==other.limit);
+    }
+
+    @Override
+    public int hashCode() {
+      return(31*(int)(id^(id>>>32))+limit);
+    }
+  }
+}
@@ -21,6 +21,7 @@ public class VideoTransaction {
   int quality=1;
   int sizeLimit=0;
   int durationLimit=0;
+  boolean updateMediaStore=false;
 
   private VideoTransaction() {
     // please use the Builder
@@ -42,6 +43,10 @@ public class VideoTransaction {
     return(durationLimit);
   }
 
+  public boolean shouldUpdateMediaStore() {
+    return(updateMediaStore);
+  }
+
   public static class Builder {
     VideoTransaction result=new VideoTransaction();
 
@@ -72,5 +77,11 @@ public class VideoTransaction {
 
       return(this);
     }
+
+    public Builder updateMediaStore(boolean updateMediaStore) {
+      result.updateMediaStore=updateMediaStore;
+
+      return(this);
+    }
   }
 }
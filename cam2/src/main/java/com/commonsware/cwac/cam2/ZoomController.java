@@ -0,0 +1,152 @@
+/***
+ Copyright (c) 2016 CommonsWare, LLC
+
+ Licensed under the Apache License, Version 2.0 (the "License"); you may
+ not use this file except in compliance with the License. You may obtain
+ a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+package com.commonsware.cwac.cam2;
+
+import android.graphics.Rect;
+import android.os.Handler;
+import android.os.SystemClock;
+
+/**
+ * Applies zoom changes for a camera2 session. The crop regions
+ * for all zoom levels (0-100) are worked out up front, and
+ * rapid-fire changes, such as from a pinch gesture, are
+ * coalesced: at most one change is applied per frame interval,
+ * and only the most recent one requested. Obtain the instance
+ * for a session from CameraTwoEngine.getZoomController().
+ */
+public class ZoomController {
+  /**
+   * Default minimum time between applied zoom changes, about
+   * one frame at 30fps
+   */
+  public static final long DEFAULT_INTERVAL_MS=33;
+  private static final int MAX_LEVEL=100;
+
+  /**
+   * Receives the crop region to put into effect, on the
+   * controller's Handler thread.
+   */
+  interface Applier {
+    void apply(Rect cropRegion);
+  }
+
+  private final Rect[] cropRegions=new Rect[MAX_LEVEL+1];
+  private final Handler handler;
+  private final long intervalMs;
+  private final Applier applier;
+  private int pendingLevel=-1;
+  private boolean isScheduled=false;
+  private long lastAppliedAt=0;
+  private long appliedCount=0;
+  private long droppedCount=0;
+
+  private final Runnable flush=new Runnable() {
+    @Override
+    public void run() {
+      int level;
+
+      synchronized(ZoomController.this) {
+        isScheduled=false;
+        level=pendingLevel;
+        pendingLevel=-1;
+
+        if (level<0) {
+          return;
+        }
+
+        lastAppliedAt=SystemClock.uptimeMillis();
+        appliedCount++;
+      }
+
+      applier.apply(cropRegions[level]);
+    }
+  };
+
+  ZoomController(CharacteristicsSnapshot cc, Handler handler,
+                 long intervalMs, Applier applier) {
+    this.handler=handler;
+    this.intervalMs=intervalMs;
+    this.applier=applier;
+
+    for (int i=0;i<=MAX_LEVEL;i++) {
+      cropRegions[i]=cc.cropRegionForZoom(cc.zoomRatioForLevel(i));
+    }
+  }
+
+  /**
+   * @param zoomLevel 0 for no zoom, 100 for maximum zoom
+   * @return the precomputed crop region for that level
+   */
+  Rect getCropRegion(int zoomLevel) {
+    return(cropRegions[clamp(zoomLevel)]);
+  }
+
+  /**
+   * Requests a zoom change. If a change was applied less than
+   * a frame interval ago, this one waits for the interval to
+   * end, and is replaced by any later request made before then.
+   *
+   * @param zoomLevel 0 for no zoom, 100 for maximum zoom
+   */
+  synchronized void zoomTo(int zoomLevel) {
+    if (pendingLevel>=0) {
+      droppedCount++;
+    }
+
+    pendingLevel=clamp(zoomLevel);
+
+    if (!isScheduled) {
+      long delay=lastAppliedAt+intervalMs-SystemClock.uptimeMillis();
+
+      isScheduled=true;
+      handler.postDelayed(flush, Math.max(0, delay));
+    }
+  }
+
+  /**
+   * Drops any pending zoom change, such as when the session
+   * is closing.
+   */
+  synchronized void cancel() {
+    handler.removeCallbacks(flush);
+
+    if (pendingLevel>=0) {
+      droppedCount++;
+    }
+
+    pendingLevel=-1;
+    isScheduled=false;
+  }
+
+  /**
+   * @return number of zoom changes put into effect
+   */
+  synchronized public long getAppliedCount() {
+    return(appliedCount);
+  }
+
+  /**
+   * @return number of zoom changes skipped because a newer one
+   * replaced them (or the session closed) before they could be
+   * applied
+   */
+  synchronized public long getDroppedCount() {
+    return(droppedCount);
+  }
+
+  private static int clamp(int zoomLevel) {
+    return(Math.max(0, Math.min(MAX_LEVEL, zoomLevel)));
+  }
+}
@@ -0,0 +1,226 @@
+/***
+ Copyright (c) 2016 CommonsWare, LLC
+
+ Licensed under the Apache License, Version 2.0 (the "License"); you may
+ not use this file except in compliance with the License. You may obtain
+ a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+package com.commonsware.cwac.cam2;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+
+/**
+ * The most recent preview frames for zero-shutter-lag capture,
+ * along with what the camera reported about each: whether it
+ * was in focus and whether its exposure had settled. Frames and
+ * their results arrive separately, in either order, and are
+ * matched up by sensor timestamp.
+ *
+ * Holding a frame ties up a camera buffer, so the ring never
+ * holds more than its capacity; the oldest frame is released
+ * to make room for a new one.
+ *
+ * @param <T> the type of frame (e.g., android.media.Image)
+ */
+abstract class ZslRing<T> {
+  private final int capacity;
+  private final ArrayDeque<Entry<T>> frames=new ArrayDeque<Entry<T>>();
+  private final long[] resultTimestamps;
+  private final boolean[] resultUsable;
+  private int nextResult=0;
+  private long latestTimestamp=-1;
+  private long hitCount=0;
+  private long missCount=0;
+
+  /**
+   * Constructor.
+   *
+   * @param capacity the most frames to hold at once
+   */
+  ZslRing(int capacity) {
+    if (capacity<1) {
+      throw new IllegalArgumentException("ZSL ring needs room for at least one frame");
+    }
+
+    this.capacity=capacity;
+
+    // results can run a bit ahead of or behind their frames
+
+    resultTimestamps=new long[capacity*2];
+    resultUsable=new boolean[capacity*2];
+    Arrays.fill(resultTimestamps, -1);
+  }
+
+  /**
+   * Called when a frame is evicted or discarded, to hand its
+   * buffer back to the camera.
+   *
+   * @param frame the frame no longer held by the ring
+   */
+  abstract void release(T frame);
+
+  /**
+   * @return the most frames held at once
+   */
+  int getCapacity() {
+    return(capacity);
+  }
+
+  /**
+   * Adds a frame, releasing the oldest one if the ring is full.
+   *
+   * @param timestamp the frame's sensor timestamp
+   * @param frame the frame
+   */
+  void addFrame(long timestamp, T frame) {
+    T evicted=null;
+
+    synchronized(this) {
+      if (frames.size()>=capacity) {
+        evicted=frames.poll().frame;
+      }
+
+      frames.offer(new Entry<T>(timestamp, frame));
+      latestTimestamp=Math.max(latestTimestamp, timestamp);
+    }
+
+    if (evicted!=null) {
+      release(evicted);
+    }
+  }
+
+  /**
+   * Records what the camera reported about a frame.
+   *
+   * @param timestamp the frame's sensor timestamp
+   * @param isFocused true if the frame is in focus
+   * @param isExposed true if auto-exposure had converged
+   */
+  synchronized void addResult(long timestamp, boolean isFocused,
+                              boolean isExposed) {
+    resultTimestamps[nextResult]=timestamp;
+    resultUsable[nextResult]=isFocused && isExposed;
+    nextResult=(nextResult+1)%resultTimestamps.length;
+    latestTimestamp=Math.max(latestTimestamp, timestamp);
+  }
+
+  /**
+   * @return the sensor timestamp of the newest frame or result
+   * seen so far, or -1 if there has not been one, to stand in
+   * for "now" when the shutter is pressed
+   */
+  synchronized long getLatestTimestamp() {
+    return(latestTimestamp);
+  }
+
+  /**
+   * Removes and returns the usable frame closest in time to
+   * the shutter press. The caller takes over the frame and
+   * needs to release it.
+   *
+   * @param pressedAt when the shutter was pressed, as a sensor
+   *                  timestamp (see getLatestTimestamp())
+   * @return the frame, or null if no frame in the ring is both
+   * in focus and properly exposed
+   */
+  synchronized T take(long pressedAt) {
+    Entry<T> best=null;
+
+    for (Entry<T> entry : frames) {
+      if (isUsable(entry.timestamp) &&
+        (best==null || distance(entry.timestamp, pressedAt)<
+          distance(best.timestamp, pressedAt))) {
+        best=entry;
+      }
+    }
+
+    if (best==null) {
+      missCount++;
+
+      return(null);
+    }
+
+    frames.remove(best);
+    hitCount++;
+
+    return(best.frame);
+  }
+
+  /**
+   * Releases every frame in the ring and forgets all results.
+   */
+  void clear() {
+    ArrayDeque<Entry<T>> evicted;
+
+    synchronized(this) {
+      evicted=new ArrayDeque<Entry<T>>(frames);
+      frames.clear();
+      Arrays.fill(resultTimestamps, -1);
+      latestTimestamp=-1;
+    }
+
+    for (Entry<T> entry : evicted) {
+      release(entry.frame);
+    }
+  }
+
+  /**
+   * @return number of frames held right now
+   */
+  synchronized int getFrameCount() {
+    return(frames.size());
+  }
+
+  /**
+   * @return number of times take() found a usable frame
+   */
+  synchronized long getHitCount() {
+    return(hitCount);
+  }
+
+  /**
+   * @return number of times take() came up empty, so the
+   * picture had to be taken the slow way
+   */
+  synchronized long getMissCount() {
+    return(missCount);
+  }
+
+  @Override
+  synchronized public String toString() {
+    return("ZslRing[frames="+frames.size()+"/"+capacity+
+      ", hits="+hitCount+", misses="+missCount+"]");
+  }
+
+  private boolean isUsable(long timestamp) {
+    for (int i=0;i<resultTimestamps.length;i++) {
+      if (resultTimestamps[i]==timestamp) {
+        return(resultUsable[i]);
+      }
+    }
+
+    return(false);
+  }
+
+  private static long distance(long timestamp, long pressedAt) {
+    return(Math.abs(timestamp-pressedAt));
+  }
+
+  private static class Entry<T> {
+    final long timestamp;
+    final T frame;
+
+    Entry(long timestamp, T frame) {
+      this.timestamp=timestamp;
+      this.frame=frame;
+    }
+  }
+}
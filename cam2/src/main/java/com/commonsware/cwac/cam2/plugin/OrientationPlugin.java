@@ -45,16 +45,21 @@ public class OrientationPlugin implements CameraPlugin {
   private OrientationEventListener orientationEventListener;
   private int lastOrientation=OrientationEventListener.ORIENTATION_UNKNOWN;
 
-  public OrientationPlugin(Context ctxt) {
+  /**
+   * Constructor.
+   *
+   * @param ctxt any Context will do
+   * @param bus where to post OrientationChangedEvents, such as
+   *            CameraController.getBus()
+   */
+  public OrientationPlugin(Context ctxt, final EventBus bus) {
     this.ctxt=ctxt.getApplicationContext();
 
     orientationEventListener=new OrientationEventListener(ctxt) {
       @Override
       public void onOrientationChanged(int orientation) {
         if (lastOrientation!=orientation) {
-          EventBus
-            .getDefault()
-            .post(new CameraEngine.OrientationChangedEvent(orientation));
+          bus.post(new CameraEngine.OrientationChangedEvent(orientation));
         }
 
         lastOrientation=orientation;
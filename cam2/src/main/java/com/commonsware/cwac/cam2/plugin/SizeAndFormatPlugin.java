@@ -15,6 +15,7 @@
 package com.commonsware.cwac.cam2.plugin;
 
 import android.annotation.TargetApi;
+import android.graphics.ImageFormat;
 import android.hardware.Camera;
 import android.media.CamcorderProfile;
 import android.media.ImageReader;
@@ -36,9 +37,22 @@ import com.commonsware.cwac.cam2.util.Size;
  * needs to be in the plugin chain for the CameraSession.
  */
 public class SizeAndFormatPlugin implements CameraPlugin {
+  /**
+   * Default cap on memory used for zero-shutter-lag frames
+   */
+  public static final long DEFAULT_ZSL_MAX_BYTES=64*1024*1024;
+
+  /**
+   * Buffers of the zero-shutter-lag ImageReader that are not
+   * part of the ring: one for the frame being acquired, one for
+   * the frame being turned into a picture
+   */
+  private static final int ZSL_SPARE_IMAGES=2;
   final private Size pictureSize;
   final private Size previewSize;
   private final int pictureFormat;
+  private final int zslRingSize;
+  private final long zslMaxBytes;
 
   /**
    * Constructor.
@@ -50,9 +64,40 @@ public class SizeAndFormatPlugin implements CameraPlugin {
    *                      (e.g., ImageFormat.JPEG)
    */
   public SizeAndFormatPlugin(Size previewSize, Size pictureSize, int pictureFormat) {
+    this(previewSize, pictureSize, pictureFormat, 0, 0);
+  }
+
+  /**
+   * Constructor that also asks for zero-shutter-lag capture on
+   * the camera2 API: the engine keeps the last few
+   * full-resolution frames from the camera, and a picture is
+   * taken from the one closest to the shutter press that is in
+   * focus and properly exposed, rather than by having the camera
+   * capture a new one. This costs memory (about 1.5 bytes per
+   * pixel per frame) and requires a camera that can stream YUV
+   * frames at the picture size alongside the preview. If no
+   * suitable frame is on hand, or for bursts, pictures are taken
+   * normally.
+   *
+   * @param previewSize the size of preview images
+   * @param pictureSize the size of pictures to be taken
+   * @param pictureFormat the format of pictures to be taken, in
+   *                      the form of an ImageFormat constant
+   *                      (e.g., ImageFormat.JPEG)
+   * @param zslRingSize how many recent frames to keep, or 0 to
+   *                    disable zero-shutter-lag capture
+   * @param zslMaxBytes the most memory to use for those frames
+   *                    (e.g., DEFAULT_ZSL_MAX_BYTES); fewer
+   *                    frames are kept if need be
+   */
+  public SizeAndFormatPlugin(Size previewSize, Size pictureSize,
+                             int pictureFormat, int zslRingSize,
+                             long zslMaxBytes) {
     this.previewSize=previewSize;
     this.pictureSize=pictureSize;
     this.pictureFormat=pictureFormat;
+    this.zslRingSize=zslRingSize;
+    this.zslMaxBytes=zslMaxBytes;
   }
 
   /**
@@ -159,5 +204,29 @@ public class SizeAndFormatPlugin implements CameraPlugin {
       return(ImageReader.newInstance(pictureSize.getWidth(),
           pictureSize.getHeight(), pictureFormat, 2));
     }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public ImageReader buildZslImageReader() {
+      if (zslRingSize<1 || pictureFormat!=ImageFormat.JPEG) {
+        return(null);
+      }
+
+      long frameBytes=(long)pictureSize.getWidth()*
+        pictureSize.getHeight()*
+        ImageFormat.getBitsPerPixel(ImageFormat.YUV_420_888)/8;
+      long maxImages=Math.min(zslRingSize+ZSL_SPARE_IMAGES,
+        zslMaxBytes/frameBytes);
+
+      if (maxImages<=ZSL_SPARE_IMAGES) {
+        return(null);
+      }
+
+      return(ImageReader.newInstance(pictureSize.getWidth(),
+        pictureSize.getHeight(), ImageFormat.YUV_420_888,
+        (int)maxImages));
+    }
   }
 }
@@ -0,0 +1,242 @@
+/***
+ Copyright (c) 2016 CommonsWare, LLC
+
+ Licensed under the Apache License, Version 2.0 (the "License"); you may
+ not use this file except in compliance with the License. You may obtain
+ a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+package com.commonsware.cwac.cam2.util;
+
+import java.util.ArrayDeque;
+
+/**
+ * Size-classed pool of byte[] buffers, used to avoid allocating
+ * a fresh multi-megabyte array for every picture.
+ *
+ * Requested sizes are rounded up to a size class. Above the
+ * minimum class, there are four classes per power of two, so
+ * a leased buffer is never more than 25% larger than what was
+ * asked for. Buffers handed back via release() are kept for
+ * reuse until the pool holds more than its byte limit, at which
+ * point buffers from the least-recently-used size class are
+ * evicted.
+ *
+ * Instances are thread-safe. Once warmed up, acquire() and
+ * release() do not allocate.
+ */
+public class BufferPool {
+  /**
+   * Default limit on the total size of idle pooled buffers
+   */
+  public static final int DEFAULT_MAX_BYTES=32*1024*1024;
+  private static final int MIN_SHIFT=16; // 64KB
+  private static final int MAX_SHIFT=30;
+  private static final int CLASS_COUNT=(MAX_SHIFT-MIN_SHIFT)*4+1;
+  @SuppressWarnings("unchecked")
+  private final ArrayDeque<byte[]>[] free=new ArrayDeque[CLASS_COUNT];
+  private final long[] lastUsed=new long[CLASS_COUNT];
+  private final int maxBytes;
+  private long tick=0;
+  private long pooledBytes=0;
+  private long hits=0;
+  private long misses=0;
+  private long evictions=0;
+
+  /**
+   * Constructor, using DEFAULT_MAX_BYTES as the limit.
+   */
+  public BufferPool() {
+    this(DEFAULT_MAX_BYTES);
+  }
+
+  /**
+   * Constructor.
+   *
+   * @param maxBytes the most bytes of idle buffers to retain
+   */
+  public BufferPool(int maxBytes) {
+    this.maxBytes=maxBytes;
+  }
+
+  /**
+   * Leases a buffer of at least the requested size. The buffer
+   * may be larger than requested, so callers need to track
+   * the length of the valid data themselves.
+   *
+   * @param minSize the minimum number of bytes needed
+   * @return a buffer, from the pool if possible
+   */
+  public byte[] acquire(int minSize) {
+    int index=classIndex(minSize);
+
+    synchronized(this) {
+      lastUsed[index]=++tick;
+
+      ArrayDeque<byte[]> bucket=free[index];
+
+      if (bucket!=null && !bucket.isEmpty()) {
+        byte[] result=bucket.pollLast();
+
+        pooledBytes-=result.length;
+        hits++;
+
+        return(result);
+      }
+
+      misses++;
+    }
+
+    return(new byte[classSize(index)]);
+  }
+
+  /**
+   * Returns a buffer to the pool. Buffers that were not
+   * leased from a BufferPool (i.e., whose length is not
+   * a size class) are ignored. Do not use the buffer after
+   * releasing it.
+   *
+   * @param buffer the buffer to return
+   */
+  public void release(byte[] buffer) {
+    if (buffer==null || buffer.length==0) {
+      return;
+    }
+
+    int index=classIndex(buffer.length);
+
+    if (classSize(index)!=buffer.length) {
+      return;
+    }
+
+    synchronized(this) {
+      if (buffer.length>maxBytes) {
+        evictions++;
+
+        return;
+      }
+
+      while (pooledBytes+buffer.length>maxBytes) {
+        evictOne(index);
+      }
+
+      ArrayDeque<byte[]> bucket=free[index];
+
+      if (bucket==null) {
+        bucket=new ArrayDeque<byte[]>();
+        free[index]=bucket;
+      }
+
+      bucket.addLast(buffer);
+      pooledBytes+=buffer.length;
+      lastUsed[index]=++tick;
+    }
+  }
+
+  /**
+   * Drops all idle buffers. Outstanding leases are unaffected.
+   */
+  synchronized public void clear() {
+    for (ArrayDeque<byte[]> bucket : free) {
+      if (bucket!=null) {
+        bucket.clear();
+      }
+    }
+
+    pooledBytes=0;
+  }
+
+  /**
+   * @return number of acquire() calls satisfied from the pool
+   */
+  synchronized public long getHitCount() {
+    return(hits);
+  }
+
+  /**
+   * @return number of acquire() calls that had to allocate
+   */
+  synchronized public long getMissCount() {
+    return(misses);
+  }
+
+  /**
+   * @return number of idle buffers dropped to stay within
+   * the byte limit
+   */
+  synchronized public long getEvictionCount() {
+    return(evictions);
+  }
+
+  /**
+   * @return the number of bytes of idle buffers held by the pool
+   */
+  synchronized public long getPooledBytes() {
+    return(pooledBytes);
+  }
+
+  /**
+   * @param size a requested buffer size
+   * @return the size of the buffer that acquire() would return
+   */
+  public static int roundToSizeClass(int size) {
+    return(classSize(classIndex(size)));
+  }
+
+  private void evictOne(int keep) {
+    int victim=-1;
+
+    // oldest size class other than the one being released into
+
+    for (int i=0;i<CLASS_COUNT;i++) {
+      ArrayDeque<byte[]> bucket=free[i];
+
+      if (i!=keep && bucket!=null && !bucket.isEmpty() &&
+        (victim==-1 || lastUsed[i]<lastUsed[victim])) {
+        victim=i;
+      }
+    }
+
+    if (victim==-1) {
+      victim=keep;
+    }
+
+    byte[] evicted=free[victim].pollFirst();
+
+    pooledBytes-=evicted.length;
+    evictions++;
+  }
+
+  private static int classIndex(int size) {
+    if (size<=(1<<MIN_SHIFT)) {
+      return(0);
+    }
+
+    int shift=31-Integer.numberOfLeadingZeros(size-1);
+
+    if (shift>=MAX_SHIFT) {
+      throw new IllegalArgumentException("Buffer size too large: "+size);
+    }
+
+    int quarter=((size-1)>>(shift-2)) & 3;
+
+    return((shift-MIN_SHIFT)*4+quarter+1);
+  }
+
+  private static int classSize(int index) {
+    if (index==0) {
+      return(1<<MIN_SHIFT);
+    }
+
+    int i=index-1;
+    int shift=MIN_SHIFT+i/4;
+
+    return((5+(i%4))<<(shift-2));
+  }
+}
@@ -0,0 +1,240 @@
+/***
+ Copyright (c) 2016 CommonsWare, LLC
+
+ Licensed under the Apache License, Version 2.0 (the "License"); you may
+ not use this file except in compliance with the License. You may obtain
+ a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+package com.commonsware.cwac.cam2.util;
+
+/**
+ * Sets the EXIF orientation tag of a JPEG by editing its bytes,
+ * without decoding or re-encoding the image.
+ *
+ * If the JPEG already has an orientation tag, its value is
+ * overwritten in place. If the JPEG has EXIF data but no
+ * orientation tag, a copy of the first IFD with the tag added is
+ * appended to the EXIF segment, and the TIFF header is pointed
+ * at it; all other offsets in the EXIF data stay valid. If the
+ * JPEG has no EXIF data, a minimal EXIF segment holding just the
+ * orientation is inserted.
+ */
+public class ExifOrientationWriter {
+  private static final int TAG_ORIENTATION=0x0112;
+  private static final int TYPE_SHORT=3;
+  private static final int MAX_SEGMENT_LENGTH=0xFFFF;
+  private final JpegHeaderParser parser=new JpegHeaderParser();
+
+  /**
+   * Converts a clockwise rotation into the EXIF orientation that
+   * asks viewers to apply it.
+   *
+   * @param degrees 0, 90, 180, or 270 (other multiples of 90
+   *                are normalized)
+   * @return the EXIF orientation value
+   */
+  public static int orientationForRotation(int degrees) {
+    switch (((degrees%360)+360)%360) {
+      case 90:
+        return(6);
+      case 180:
+        return(3);
+      case 270:
+        return(8);
+      default:
+        return(1);
+    }
+  }
+
+  /**
+   * Sets the orientation of a JPEG.
+   *
+   * @param jpeg buffer holding the JPEG, starting at index 0
+   * @param length number of bytes of JPEG in the buffer
+   * @param orientation the EXIF orientation to set (1-8)
+   * @return jpeg itself, if the tag was updated in place; a new
+   * array of exactly the new JPEG's length, if the EXIF data had
+   * to grow; or null if the JPEG could not be parsed or the EXIF
+   * segment has no room for the tag
+   */
+  public byte[] setOrientation(byte[] jpeg, int length,
+                               int orientation) {
+    if (orientation<1 || orientation>8) {
+      throw new IllegalArgumentException("Invalid EXIF orientation: "+orientation);
+    }
+
+    if (!parser.parse(jpeg, 0, length)) {
+      return(null);
+    }
+
+    int offset=parser.getOrientationOffset();
+
+    if (offset>=0) {
+      putU16(jpeg, offset, orientation, parser.isExifLittleEndian());
+
+      return(jpeg);
+    }
+
+    if (parser.getExifOffset()>=0) {
+      return(addToExif(jpeg, length, orientation));
+    }
+
+    return(insertExif(jpeg, length, orientation));
+  }
+
+  private byte[] insertExif(byte[] jpeg, int length, int orientation) {
+    // EXIF normally comes right after SOI, but if there is a JFIF
+    // APP0 segment, it goes after that, as readers expect JFIF
+    // first
+
+    int insertAt=2;
+
+    if (length>=6 && u8(jpeg, 2)==0xFF && u8(jpeg, 3)==0xE0) {
+      insertAt=4+getU16(jpeg, 4, false);
+    }
+
+    byte[] app1={
+      (byte)0xFF, (byte)0xE1, 0, 34,
+      'E', 'x', 'i', 'f', 0, 0,
+      'M', 'M', 0, 42, 0, 0, 0, 8, // TIFF header, IFD0 at 8
+      0, 1, // one entry
+      0x01, 0x12, 0, TYPE_SHORT, 0, 0, 0, 1, 0, (byte)orientation, 0, 0,
+      0, 0, 0, 0 // no next IFD
+    };
+    byte[] result=new byte[length+app1.length];
+
+    System.arraycopy(jpeg, 0, result, 0, insertAt);
+    System.arraycopy(app1, 0, result, insertAt, app1.length);
+    System.arraycopy(jpeg, insertAt, result, insertAt+app1.length,
+      length-insertAt);
+
+    return(result);
+  }
+
+  private byte[] addToExif(byte[] jpeg, int length, int orientation) {
+    boolean le=parser.isExifLittleEndian();
+    int app1=parser.getExifOffset();
+    int tiff=parser.getTiffOffset();
+    int segmentLength=getU16(jpeg, app1+2, false);
+    int segmentEnd=app1+2+segmentLength;
+    long ifdOffset=getU32(jpeg, tiff+4, le);
+
+    if (ifdOffset<8 || tiff+ifdOffset+2>segmentEnd) {
+      return(null);
+    }
+
+    int ifd=tiff+(int)ifdOffset;
+    int count=getU16(jpeg, ifd, le);
+    int oldIfdEnd=ifd+2+count*12;
+
+    if (oldIfdEnd+4>segmentEnd) {
+      return(null);
+    }
+
+    // new IFD goes at the end of the TIFF data, on a word boundary
+
+    int pad=(segmentEnd-tiff) & 1;
+    int newIfdLength=2+(count+1)*12+4;
+    int growth=pad+newIfdLength;
+
+    if (segmentLength+growth>MAX_SEGMENT_LENGTH) {
+      return(null);
+    }
+
+    byte[] result=new byte[length+growth];
+
+    System.arraycopy(jpeg, 0, result, 0, segmentEnd);
+
+    int newIfd=segmentEnd+pad;
+    int out=newIfd+2;
+    boolean added=false;
+
+    putU16(result, newIfd, count+1, le);
+
+    for (int i=0;i<count;i++) {
+      int entry=ifd+2+i*12;
+
+      if (!added && getU16(jpeg, entry, le)>TAG_ORIENTATION) {
+        putOrientation(result, out, orientation, le);
+        out+=12;
+        added=true;
+      }
+
+      System.arraycopy(jpeg, entry, result, out, 12);
+      out+=12;
+    }
+
+    if (!added) {
+      putOrientation(result, out, orientation, le);
+      out+=12;
+    }
+
+    System.arraycopy(jpeg, oldIfdEnd, result, out, 4); // next IFD
+    System.arraycopy(jpeg, segmentEnd, result, newIfd+newIfdLength,
+      length-segmentEnd);
+    putU16(result, app1+2, segmentLength+growth, false);
+    putU32(result, tiff+4, newIfd-tiff, le);
+
+    return(result);
+  }
+
+  private static void putOrientation(byte[] buf, int entry,
+                                     int orientation, boolean le) {
+    putU16(buf, entry, TAG_ORIENTATION, le);
+    putU16(buf, entry+2, TYPE_SHORT, le);
+    putU32(buf, entry+4, 1, le);
+    putU16(buf, entry+8, orientation, le);
+    putU16(buf, entry+10, 0, le);
+  }
+
+  private static int u8(byte[] buf, int pos) {
+    return(buf[pos] & 0xFF);
+  }
+
+  private static int getU16(byte[] buf, int pos, boolean le) {
+    if (le) {
+      return(u8(buf, pos) | (u8(buf, pos+1)<<8));
+    }
+
+    return((u8(buf, pos)<<8) | u8(buf, pos+1));
+  }
+
+  private static long getU32(byte[] buf, int pos, boolean le) {
+    if (le) {
+      return(((long)getU16(buf, pos+2, true)<<16) | getU16(buf, pos, true));
+    }
+
+    return(((long)getU16(buf, pos, false)<<16) | getU16(buf, pos+2, false));
+  }
+
+  private static void putU16(byte[] buf, int pos, int value,
+                             boolean le) {
+    if (le) {
+      buf[pos]=(byte)value;
+      buf[pos+1]=(byte)(value>>8);
+    }
+    else {
+      buf[pos]=(byte)(value>>8);
+      buf[pos+1]=(byte)value;
+    }
+  }
+
+  private static void putU32(byte[] buf, int pos, long value,
+                             boolean le) {
+    if (le) {
+      putU16(buf, pos, (int)(value & 0xFFFF), true);
+      putU16(buf, pos+2, (int)(value>>16), true);
+    }
+    else {
+      putU16(buf, pos, (int)(value>>16), false);
+      putU16(buf, pos+2, (int)(value & 0xFFFF), false);
+    }
+  }
+}
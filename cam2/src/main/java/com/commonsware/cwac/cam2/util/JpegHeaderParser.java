@@ -0,0 +1,364 @@
+/***
+ Copyright (c) 2016 CommonsWare, LLC
+
+ Licensed under the Apache License, Version 2.0 (the "License"); you may
+ not use this file except in compliance with the License. You may obtain
+ a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+package com.commonsware.cwac.cam2.util;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Reads the basics of a JPEG from its headers: the dimensions
+ * and chroma sampling from the start-of-frame (SOF) segment, and
+ * the orientation tag from the EXIF (APP1) segment, if there is
+ * one. Nothing is decoded and nothing is allocated, so this is
+ * cheap enough to use any time those details are needed.
+ *
+ * An instance can be reused for any number of JPEGs, but is
+ * not thread-safe. Getters report on the last parse() call.
+ */
+public class JpegHeaderParser {
+  /**
+   * Orientation value meaning there is no EXIF orientation tag
+   */
+  public static final int ORIENTATION_UNKNOWN=0;
+  private static final int MAX_COMPONENTS=4;
+  private static final int TAG_ORIENTATION=0x0112;
+  private static final int TYPE_SHORT=3;
+  private byte[] array;
+  private ByteBuffer buffer;
+  private int start;
+  private int end;
+  private int width;
+  private int height;
+  private int componentCount;
+  private final int[] hSampling=new int[MAX_COMPONENTS];
+  private final int[] vSampling=new int[MAX_COMPONENTS];
+  private int orientation;
+  private int orientationOffset;
+  private int app1Offset;
+  private int tiffOffset;
+  private boolean littleEndian;
+
+  /**
+   * Parses a JPEG held in a byte array.
+   *
+   * @param jpeg the array
+   * @param offset where the JPEG starts in the array
+   * @param length number of bytes of JPEG
+   * @return true if a start-of-frame segment was found, false
+   * if this does not look like a JPEG
+   */
+  public boolean parse(byte[] jpeg, int offset, int length) {
+    array=jpeg;
+    buffer=null;
+
+    try {
+      return(parse(offset, offset+length));
+    }
+    finally {
+      array=null;
+    }
+  }
+
+  /**
+   * Parses a JPEG held in a ByteBuffer, from its position()
+   * to its limit(). The buffer's position is not changed.
+   *
+   * @param jpeg the buffer
+   * @return true if a start-of-frame segment was found, false
+   * if this does not look like a JPEG
+   */
+  public boolean parse(ByteBuffer jpeg) {
+    array=null;
+    buffer=jpeg;
+
+    try {
+      return(parse(jpeg.position(), jpeg.limit()));
+    }
+    finally {
+      buffer=null;
+    }
+  }
+
+  /**
+   * @return the image width in pixels, or 0 if unknown
+   */
+  public int getWidth() {
+    return(width);
+  }
+
+  /**
+   * @return the image height in pixels, or 0 if unknown
+   */
+  public int getHeight() {
+    return(height);
+  }
+
+  /**
+   * @return number of color components (1 for grayscale, 3 for
+   * YCbCr), or 0 if unknown
+   */
+  public int getComponentCount() {
+    return(componentCount);
+  }
+
+  /**
+   * @param component index of the component, starting at 0
+   * @return the component's horizontal sampling factor
+   */
+  public int getHorizontalSampling(int component) {
+    return(hSampling[component]);
+  }
+
+  /**
+   * @param component index of the component, starting at 0
+   * @return the component's vertical sampling factor
+   */
+  public int getVerticalSampling(int component) {
+    return(vSampling[component]);
+  }
+
+  /**
+   * @return the EXIF orientation (1-8), or ORIENTATION_UNKNOWN
+   * if the JPEG has no orientation tag
+   */
+  public int getOrientation() {
+    return(orientation);
+  }
+
+  /**
+   * @return the offset of the orientation tag's 16-bit value,
+   * relative to the start of the JPEG, or -1 if there is no
+   * orientation tag
+   */
+  public int getOrientationOffset() {
+    return(orientationOffset);
+  }
+
+  /**
+   * @return the offset of the EXIF APP1 marker, relative to the
+   * start of the JPEG, or -1 if there is no EXIF segment
+   */
+  public int getExifOffset() {
+    return(app1Offset);
+  }
+
+  /**
+   * @return the offset of the TIFF header within the EXIF
+   * segment, relative to the start of the JPEG, or -1 if there
+   * is no EXIF segment
+   */
+  public int getTiffOffset() {
+    return(tiffOffset);
+  }
+
+  /**
+   * @return true if the EXIF data is little-endian ("II"),
+   * false if it is big-endian ("MM") or absent
+   */
+  public boolean isExifLittleEndian() {
+    return(littleEndian);
+  }
+
+  /**
+   * Converts an EXIF orientation into the clockwise rotation
+   * needed to display the image upright, ignoring any mirroring.
+   *
+   * @param orientation an EXIF orientation value
+   * @return 0, 90, 180, or 270
+   */
+  public static int getRotationDegrees(int orientation) {
+    switch (orientation) {
+      case 3:
+      case 4:
+        return(180);
+      case 5:
+      case 6:
+        return(90);
+      case 7:
+      case 8:
+        return(270);
+      default:
+        return(0);
+    }
+  }
+
+  private boolean parse(int from, int to) {
+    start=from;
+    end=to;
+    width=0;
+    height=0;
+    componentCount=0;
+    orientation=ORIENTATION_UNKNOWN;
+    orientationOffset=-1;
+    app1Offset=-1;
+    tiffOffset=-1;
+    littleEndian=false;
+
+    if (end-start<4 || u8(start)!=0xFF || u8(start+1)!=0xD8) {
+      return(false);
+    }
+
+    int pos=start+2;
+
+    while (pos+4<=end) {
+      if (u8(pos)!=0xFF) {
+        return(false);
+      }
+
+      int marker=u8(pos+1);
+
+      if (marker==0xFF) { // fill byte
+        pos++;
+        continue;
+      }
+
+      if (marker==0x01 || (marker>=0xD0 && marker<=0xD7)) {
+        pos+=2; // standalone markers, no length
+        continue;
+      }
+
+      if (marker==0xD9 || marker==0xDA) {
+        break; // end of image, or start of scan
+      }
+
+      int length=u16(pos+2, false);
+      int segment=pos+4;
+      int segmentEnd=pos+2+length;
+
+      if (length<2 || segmentEnd>end) {
+        return(false);
+      }
+
+      if (marker==0xE1 && app1Offset<0) {
+        parseApp1(pos, segment, segmentEnd);
+      }
+      else if (isStartOfFrame(marker)) {
+        return(parseStartOfFrame(segment, segmentEnd));
+      }
+
+      pos=segmentEnd;
+    }
+
+    return(false);
+  }
+
+  private static boolean isStartOfFrame(int marker) {
+    return(marker>=0xC0 && marker<=0xCF && marker!=0xC4 &&
+      marker!=0xC8 && marker!=0xCC);
+  }
+
+  private boolean parseStartOfFrame(int pos, int segmentEnd) {
+    if (pos+6>segmentEnd) {
+      return(false);
+    }
+
+    height=u16(pos+1, false);
+    width=u16(pos+3, false);
+
+    int components=u8(pos+5);
+
+    if (pos+6+components*3>segmentEnd) {
+      return(false);
+    }
+
+    componentCount=components;
+
+    for (int i=0;i<Math.min(components, MAX_COMPONENTS);i++) {
+      int factors=u8(pos+6+i*3+1);
+
+      hSampling[i]=factors>>4;
+      vSampling[i]=factors & 0x0F;
+    }
+
+    return(true);
+  }
+
+  private void parseApp1(int marker, int pos, int segmentEnd) {
+    // "Exif\0\0", then the TIFF header
+
+    if (pos+14>segmentEnd || u8(pos)!='E' || u8(pos+1)!='x' ||
+      u8(pos+2)!='i' || u8(pos+3)!='f' || u8(pos+4)!=0 ||
+      u8(pos+5)!=0) {
+      return;
+    }
+
+    int tiff=pos+6;
+    int order=u16(tiff, false);
+
+    if (order==0x4949) {
+      littleEndian=true;
+    }
+    else if (order!=0x4D4D) {
+      return;
+    }
+
+    if (u16(tiff+2, littleEndian)!=42) {
+      littleEndian=false;
+
+      return;
+    }
+
+    app1Offset=marker-start;
+    tiffOffset=tiff-start;
+
+    long ifd=u32(tiff+4, littleEndian);
+
+    if (ifd<8 || tiff+ifd+2>segmentEnd) {
+      return;
+    }
+
+    int entries=tiff+(int)ifd;
+    int count=u16(entries, littleEndian);
+
+    for (int i=0;i<count;i++) {
+      int entry=entries+2+i*12;
+
+      if (entry+12>segmentEnd) {
+        return;
+      }
+
+      if (u16(entry, littleEndian)==TAG_ORIENTATION &&
+        u16(entry+2, littleEndian)==TYPE_SHORT) {
+        orientation=u16(entry+8, littleEndian);
+        orientationOffset=entry+8-start;
+
+        return;
+      }
+    }
+  }
+
+  private int u8(int pos) {
+    if (array!=null) {
+      return(array[pos] & 0xFF);
+    }
+
+    return(buffer.get(pos) & 0xFF);
+  }
+
+  private int u16(int pos, boolean littleEndian) {
+    if (littleEndian) {
+      return(u8(pos) | (u8(pos+1)<<8));
+    }
+
+    return((u8(pos)<<8) | u8(pos+1));
+  }
+
+  private long u32(int pos, boolean littleEndian) {
+    if (littleEndian) {
+      return(((long)u16(pos+2, true)<<16) | u16(pos, true));
+    }
+
+    return(((long)u16(pos, false)<<16) | u16(pos+2, false));
+  }
+}
@@ -0,0 +1,1103 @@
+/***
+ Copyright (c) 2016 CommonsWare, LLC
+
+ Licensed under the Apache License, Version 2.0 (the "License"); you may
+ not use this file except in compliance with the License. You may obtain
+ a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+
+package com.commonsware.cwac.cam2.util;
+
+import java.util.Arrays;
+
+/**
+ * Rotates or flips a JPEG without decoding it to pixels, by
+ * rearranging its quantized DCT coefficients, in the manner of
+ * jpegtran. The image quality is unchanged: every 8x8 block
+ * keeps its exact coefficients, just moved, transposed, and with
+ * some signs flipped.
+ *
+ * Only baseline (and extended sequential) Huffman-coded JPEGs
+ * with 8-bit samples and a single scan are supported, which is
+ * what cameras produce. The output is re-encoded with the
+ * standard Huffman tables and without restart markers; all other
+ * segments (EXIF and so on) are copied as-is.
+ *
+ * Blocks can only be moved whole, so a flip needs the image to
+ * be a whole number of MCUs (typically 16 pixels) along the
+ * flipped axis. Otherwise, the partial MCUs on that edge are
+ * either trimmed off or the transform is refused.
+ *
+ * The coefficients of the whole image are held in memory, about
+ * 2 bytes per pixel per color component at full resolution, so
+ * about 3 bytes per pixel for typical 4:2:0 pictures.
+ *
+ * An instance can be reused for any number of JPEGs, but is
+ * not thread-safe.
+ */
+public class JpegTransformer {
+  /**
+   * The eight ways to orient an image, other than leaving it
+   * alone. Each is a transpose (or not), followed by flips.
+   */
+  public enum Transform {
+    FLIP_HORIZONTAL(false, true, false),
+    ROTATE_180(false, true, true),
+    FLIP_VERTICAL(false, false, true),
+    TRANSPOSE(true, false, false),
+    ROTATE_90(true, true, false),
+    TRANSVERSE(true, true, true),
+    ROTATE_270(true, false, true);
+
+    final boolean transpose;
+    final boolean flipX;
+    final boolean flipY;
+
+    Transform(boolean transpose, boolean flipX, boolean flipY) {
+      this.transpose=transpose;
+      this.flipX=flipX;
+      this.flipY=flipY;
+    }
+
+    /**
+     * @param orientation an EXIF orientation value
+     * @return the transform that turns an image with that
+     * orientation upright (rotations are clockwise), or null for
+     * orientation 1 and for invalid values
+     */
+    public static Transform forExifOrientation(int orientation) {
+      switch (orientation) {
+        case 2:
+          return(FLIP_HORIZONTAL);
+        case 3:
+          return(ROTATE_180);
+        case 4:
+          return(FLIP_VERTICAL);
+        case 5:
+          return(TRANSPOSE);
+        case 6:
+          return(ROTATE_90);
+        case 7:
+          return(TRANSVERSE);
+        case 8:
+          return(ROTATE_270);
+        default:
+          return(null);
+      }
+    }
+  }
+
+  /**
+   * Position in the 8x8 block of each coefficient, in the
+   * zigzag order that JPEG stores them in
+   */
+  private static final int[] NATURAL_ORDER={
+    0, 1, 8, 16, 9, 2, 3, 10, 17, 24, 32, 25, 18, 11, 4, 5,
+    12, 19, 26, 33, 40, 48, 41, 34, 27, 20, 13, 6, 7, 14, 21, 28,
+    35, 42, 49, 56, 57, 50, 43, 36, 29, 22, 15, 23, 30, 37, 44, 51,
+    58, 59, 52, 45, 38, 31, 39, 46, 53, 60, 61, 54, 47, 55, 62, 63
+  };
+
+  // the typical Huffman tables, from Annex K.3 of the JPEG spec
+
+  private static final int[] DC_LUMINANCE_BITS={
+    0, 1, 5, 1, 1, 1, 1, 1, 1, 0, 0, 0, 0, 0, 0, 0
+  };
+  private static final int[] DC_LUMINANCE_VALUES={
+    0, 1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11
+  };
+  private static final int[] DC_CHROMINANCE_BITS={
+    0, 3, 1, 1, 1, 1, 1, 1, 1, 1, 1, 0, 0, 0, 0, 0
+  };
+  private static final int[] DC_CHROMINANCE_VALUES=DC_LUMINANCE_VALUES;
+  private static final int[] AC_LUMINANCE_BITS={
+    0, 2, 1, 3, 3, 2, 4, 3, 5, 5, 4, 4, 0, 0, 1, 0x7d
+  };
+  private static final int[] AC_LUMINANCE_VALUES={
+    0x01, 0x02, 0x03, 0x00, 0x04, 0x11, 0x05, 0x12,
+    0x21, 0x31, 0x41, 0x06, 0x13, 0x51, 0x61, 0x07,
+    0x22, 0x71, 0x14, 0x32, 0x81, 0x91, 0xa1, 0x08,
+    0x23, 0x42, 0xb1, 0xc1, 0x15, 0x52, 0xd1, 0xf0,
+    0x24, 0x33, 0x62, 0x72, 0x82, 0x09, 0x0a, 0x16,
+    0x17, 0x18, 0x19, 0x1a, 0x25, 0x26, 0x27, 0x28,
+    0x29, 0x2a, 0x34, 0x35, 0x36, 0x37, 0x38, 0x39,
+    0x3a, 0x43, 0x44, 0x45, 0x46, 0x47, 0x48, 0x49,
+    0x4a, 0x53, 0x54, 0x55, 0x56, 0x57, 0x58, 0x59,
+    0x5a, 0x63, 0x64, 0x65, 0x66, 0x67, 0x68, 0x69,
+    0x6a, 0x73, 0x74, 0x75, 0x76, 0x77, 0x78, 0x79,
+    0x7a, 0x83, 0x84, 0x85, 0x86, 0x87, 0x88, 0x89,
+    0x8a, 0x92, 0x93, 0x94, 0x95, 0x96, 0x97, 0x98,
+    0x99, 0x9a, 0xa2, 0xa3, 0xa4, 0xa5, 0xa6, 0xa7,
+    0xa8, 0xa9, 0xaa, 0xb2, 0xb3, 0xb4, 0xb5, 0xb6,
+    0xb7, 0xb8, 0xb9, 0xba, 0xc2, 0xc3, 0xc4, 0xc5,
+    0xc6, 0xc7, 0xc8, 0xc9, 0xca, 0xd2, 0xd3, 0xd4,
+    0xd5, 0xd6, 0xd7, 0xd8, 0xd9, 0xda, 0xe1, 0xe2,
+    0xe3, 0xe4, 0xe5, 0xe6, 0xe7, 0xe8, 0xe9, 0xea,
+    0xf1, 0xf2, 0xf3, 0xf4, 0xf5, 0xf6, 0xf7, 0xf8,
+    0xf9, 0xfa
+  };
+  private static final int[] AC_CHROMINANCE_BITS={
+    0, 2, 1, 2, 4, 4, 3, 4, 7, 5, 4, 4, 0, 1, 2, 0x77
+  };
+  private static final int[] AC_CHROMINANCE_VALUES={
+    0x00, 0x01, 0x02, 0x03, 0x11, 0x04, 0x05, 0x21,
+    0x31, 0x06, 0x12, 0x41, 0x51, 0x07, 0x61, 0x71,
+    0x13, 0x22, 0x32, 0x81, 0x08, 0x14, 0x42, 0x91,
+    0xa1, 0xb1, 0xc1, 0x09, 0x23, 0x33, 0x52, 0xf0,
+    0x15, 0x62, 0x72, 0xd1, 0x0a, 0x16, 0x24, 0x34,
+    0xe1, 0x25, 0xf1, 0x17, 0x18, 0x19, 0x1a, 0x26,
+    0x27, 0x28, 0x29, 0x2a, 0x35, 0x36, 0x37, 0x38,
+    0x39, 0x3a, 0x43, 0x44, 0x45, 0x46, 0x47, 0x48,
+    0x49, 0x4a, 0x53, 0x54, 0x55, 0x56, 0x57, 0x58,
+    0x59, 0x5a, 0x63, 0x64, 0x65, 0x66, 0x67, 0x68,
+    0x69, 0x6a, 0x73, 0x74, 0x75, 0x76, 0x77, 0x78,
+    0x79, 0x7a, 0x82, 0x83, 0x84, 0x85, 0x86, 0x87,
+    0x88, 0x89, 0x8a, 0x92, 0x93, 0x94, 0x95, 0x96,
+    0x97, 0x98, 0x99, 0x9a, 0xa2, 0xa3, 0xa4, 0xa5,
+    0xa6, 0xa7, 0xa8, 0xa9, 0xaa, 0xb2, 0xb3, 0xb4,
+    0xb5, 0xb6, 0xb7, 0xb8, 0xb9, 0xba, 0xc2, 0xc3,
+    0xc4, 0xc5, 0xc6, 0xc7, 0xc8, 0xc9, 0xca, 0xd2,
+    0xd3, 0xd4, 0xd5, 0xd6, 0xd7, 0xd8, 0xd9, 0xda,
+    0xe2, 0xe3, 0xe4, 0xe5, 0xe6, 0xe7, 0xe8, 0xe9,
+    0xea, 0xf2, 0xf3, 0xf4, 0xf5, 0xf6, 0xf7, 0xf8,
+    0xf9, 0xfa
+  };
+  private static final int MAX_COMPONENTS=4;
+  private static final int MAX_PADDING_BYTES=64;
+  private static final EncodeTable[] ENCODE_DC={
+    new EncodeTable(DC_LUMINANCE_BITS, DC_LUMINANCE_VALUES),
+    new EncodeTable(DC_CHROMINANCE_BITS, DC_CHROMINANCE_VALUES)
+  };
+  private static final EncodeTable[] ENCODE_AC={
+    new EncodeTable(AC_LUMINANCE_BITS, AC_LUMINANCE_VALUES),
+    new EncodeTable(AC_CHROMINANCE_BITS, AC_CHROMINANCE_VALUES)
+  };
+  private final DecodeTable[] dcTables=new DecodeTable[4];
+  private final DecodeTable[] acTables=new DecodeTable[4];
+  private Component[] components;
+  private int width;
+  private int height;
+  private int maxH;
+  private int maxV;
+  private int restartInterval;
+  private Output out;
+
+  // entropy decoder state
+
+  private byte[] data;
+  private int pos;
+  private int end;
+  private int bits;
+  private int bitCount;
+  private int padding;
+  private boolean atMarker;
+
+  /**
+   * Transforms a JPEG.
+   *
+   * @param jpeg buffer holding the JPEG, starting at index 0
+   * @param length number of bytes of JPEG in the buffer
+   * @param transform what to do to the image
+   * @param trim true to drop partial MCUs along a flipped edge,
+   *             false to refuse to transform such images
+   * @return the transformed JPEG, or null if this JPEG cannot be
+   * transformed (unsupported encoding, partial MCUs along a
+   * flipped edge and trim is false, or corrupt data)
+   */
+  public byte[] transform(byte[] jpeg, int length, Transform transform,
+                          boolean trim) {
+    try {
+      return(run(jpeg, length, transform, trim));
+    }
+    catch (UnsupportedJpegException e) {
+      return(null);
+    }
+    finally {
+      data=null;
+      out=null;
+      components=null;
+      Arrays.fill(dcTables, null);
+      Arrays.fill(acTables, null);
+    }
+  }
+
+  private byte[] run(byte[] jpeg, int length, Transform transform,
+                     boolean trim) throws UnsupportedJpegException {
+    data=jpeg;
+    end=length;
+    components=null;
+    restartInterval=0;
+    out=new Output(length+1024);
+
+    if (length<4 || u8(0)!=0xFF || u8(1)!=0xD8) {
+      throw new UnsupportedJpegException();
+    }
+
+    out.write(0xFF);
+    out.write(0xD8);
+
+    int p=2;
+
+    while (true) {
+      p=nextMarker(p);
+
+      int marker=u8(p+1);
+
+      if (marker==0xD9 || marker==0x01 ||
+        (marker>=0xD0 && marker<=0xD7)) {
+        throw new UnsupportedJpegException(); // no image
+      }
+
+      int segmentEnd=p+2+u16(p+2);
+
+      if (segmentEnd>end || segmentEnd<p+4) {
+        throw new UnsupportedJpegException();
+      }
+
+      if (marker==0xC0 || marker==0xC1) {
+        readStartOfFrame(p+4, segmentEnd);
+        writeStartOfFrame(marker, transform, trim);
+      }
+      else if (marker>=0xC2 && marker<=0xCF && marker!=0xC4 &&
+        marker!=0xCC) {
+        throw new UnsupportedJpegException(); // progressive, etc.
+      }
+      else if (marker==0xC4) {
+        readHuffmanTables(p+4, segmentEnd);
+      }
+      else if (marker==0xDB) {
+        writeQuantizationTables(p+4, segmentEnd, transform.transpose);
+      }
+      else if (marker==0xDD) {
+        restartInterval=u16(p+4);
+      }
+      else if (marker==0xDA) {
+        Component[] scan=readStartOfScan(p+4, segmentEnd);
+
+        decodeScan(scan, segmentEnd);
+        writeScan(scan, transform);
+        out.write(0xFF);
+        out.write(0xD9);
+
+        return(out.toByteArray());
+      }
+      else {
+        out.write(data, p, segmentEnd-p);
+      }
+
+      p=segmentEnd;
+    }
+  }
+
+  private int nextMarker(int p) throws UnsupportedJpegException {
+    if (p+4>end || u8(p)!=0xFF) {
+      throw new UnsupportedJpegException();
+    }
+
+    while (u8(p+1)==0xFF) { // fill bytes
+      p++;
+
+      if (p+4>end) {
+        throw new UnsupportedJpegException();
+      }
+    }
+
+    return(p);
+  }
+
+  private void readStartOfFrame(int p, int segmentEnd)
+    throws UnsupportedJpegException {
+    if (components!=null || p+6>segmentEnd || u8(p)!=8) {
+      throw new UnsupportedJpegException();
+    }
+
+    height=u16(p+1);
+    width=u16(p+3);
+
+    int count=u8(p+5);
+
+    if (width==0 || height==0 || count<1 || count>MAX_COMPONENTS ||
+      p+6+count*3>segmentEnd) {
+      throw new UnsupportedJpegException();
+    }
+
+    components=new Component[count];
+    maxH=1;
+    maxV=1;
+
+    for (int i=0;i<count;i++) {
+      int at=p+6+i*3;
+      Component c=new Component();
+
+      c.id=u8(at);
+      c.h=u8(at+1)>>4;
+      c.v=u8(at+1) & 0x0F;
+      c.tq=u8(at+2);
+
+      if (c.h<1 || c.h>4 || c.v<1 || c.v>4) {
+        throw new UnsupportedJpegException();
+      }
+
+      maxH=Math.max(maxH, c.h);
+      maxV=Math.max(maxV, c.v);
+      components[i]=c;
+    }
+
+    for (Component c : components) {
+      if (count==1) {
+        // a lone component is not interleaved, so has no MCU
+        // padding
+
+        c.blocksWide=(ceil(width*c.h, maxH)+7)/8;
+        c.blocksHigh=(ceil(height*c.v, maxV)+7)/8;
+      }
+      else {
+        c.blocksWide=ceil(width, 8*maxH)*c.h;
+        c.blocksHigh=ceil(height, 8*maxV)*c.v;
+      }
+
+      c.coefficients=new short[c.blocksWide*c.blocksHigh*64];
+    }
+  }
+
+  private void writeStartOfFrame(int marker, Transform transform,
+                                 boolean trim)
+    throws UnsupportedJpegException {
+    int outWidth=(transform.transpose ? height : width);
+    int outHeight=(transform.transpose ? width : height);
+    int mcuWidth=8*(transform.transpose ? maxV : maxH);
+    int mcuHeight=8*(transform.transpose ? maxH : maxV);
+
+    if (components.length==1) {
+      mcuWidth=8;
+      mcuHeight=8;
+    }
+
+    if (transform.flipX && outWidth%mcuWidth!=0) {
+      if (!trim || outWidth<mcuWidth) {
+        throw new UnsupportedJpegException();
+      }
+
+      outWidth-=outWidth%mcuWidth;
+    }
+
+    if (transform.flipY && outHeight%mcuHeight!=0) {
+      if (!trim || outHeight<mcuHeight) {
+        throw new UnsupportedJpegException();
+      }
+
+      outHeight-=outHeight%mcuHeight;
+    }
+
+    int outMaxH=(transform.transpose ? maxV : maxH);
+    int outMaxV=(transform.transpose ? maxH : maxV);
+
+    out.write(0xFF);
+    out.write(marker);
+    out.writeU16(8+components.length*3);
+    out.write(8);
+    out.writeU16(outHeight);
+    out.writeU16(outWidth);
+    out.write(components.length);
+
+    for (Component c : components) {
+      int h=(transform.transpose ? c.v : c.h);
+      int v=(transform.transpose ? c.h : c.v);
+
+      if (components.length==1) {
+        c.outBlocksWide=(ceil(outWidth*h, outMaxH)+7)/8;
+        c.outBlocksHigh=(ceil(outHeight*v, outMaxV)+7)/8;
+      }
+      else {
+        c.outBlocksWide=ceil(outWidth, 8*outMaxH)*h;
+        c.outBlocksHigh=ceil(outHeight, 8*outMaxV)*v;
+      }
+
+      c.outH=h;
+      c.outV=v;
+      out.write(c.id);
+      out.write((h<<4) | v);
+      out.write(c.tq);
+    }
+  }
+
+  private void readHuffmanTables(int p, int segmentEnd)
+    throws UnsupportedJpegException {
+    while (p<segmentEnd) {
+      if (p+17>segmentEnd) {
+        throw new UnsupportedJpegException();
+      }
+
+      int tc=u8(p)>>4;
+      int th=u8(p) & 0x0F;
+      int[] counts=new int[16];
+      int total=0;
+
+      for (int i=0;i<16;i++) {
+        counts[i]=u8(p+1+i);
+        total+=counts[i];
+      }
+
+      if (tc>1 || th>3 || total>256 || p+17+total>segmentEnd) {
+        throw new UnsupportedJpegException();
+      }
+
+      int[] values=new int[total];
+
+      for (int i=0;i<total;i++) {
+        values[i]=u8(p+17+i);
+      }
+
+      DecodeTable table=new DecodeTable(counts, values);
+
+      if (tc==0) {
+        dcTables[th]=table;
+      }
+      else {
+        acTables[th]=table;
+      }
+
+      p+=17+total;
+    }
+  }
+
+  /**
+   * Copies quantization tables to the output, transposed if
+   * the coefficients are being transposed, as each table entry
+   * has to stay with its coefficient.
+   */
+  private void writeQuantizationTables(int p, int segmentEnd,
+                                       boolean transpose)
+    throws UnsupportedJpegException {
+    int start=p-4;
+
+    out.write(data, start, 4);
+
+    while (p<segmentEnd) {
+      int precision=u8(p)>>4;
+      int size=(precision==0 ? 1 : 2);
+
+      if (precision>1 || p+1+64*size>segmentEnd) {
+        throw new UnsupportedJpegException();
+      }
+
+      out.write(u8(p));
+
+      for (int k=0;k<64;k++) {
+        int source=k;
+
+        if (transpose) {
+          source=zigzagIndex(transposed(NATURAL_ORDER[k]));
+        }
+
+        out.write(data, p+1+source*size, size);
+      }
+
+      p+=1+64*size;
+    }
+  }
+
+  private Component[] readStartOfScan(int p, int segmentEnd)
+    throws UnsupportedJpegException {
+    if (components==null) {
+      throw new UnsupportedJpegException();
+    }
+
+    int count=u8(p);
+
+    // only single-scan images, with every component in the scan
+
+    if (count!=components.length || p+1+count*2+3>segmentEnd) {
+      throw new UnsupportedJpegException();
+    }
+
+    Component[] scan=new Component[count];
+
+    for (int i=0;i<count;i++) {
+      int id=u8(p+1+i*2);
+      int tables=u8(p+2+i*2);
+      Component c=null;
+
+      for (Component candidate : components) {
+        if (candidate.id==id) {
+          c=candidate;
+        }
+      }
+
+      if (c==null || (tables>>4)>3 || (tables & 0x0F)>3 ||
+        dcTables[tables>>4]==null || acTables[tables & 0x0F]==null) {
+        throw new UnsupportedJpegException();
+      }
+
+      c.dc=dcTables[tables>>4];
+      c.ac=acTables[tables & 0x0F];
+      scan[i]=c;
+    }
+
+    int spectral=p+1+count*2;
+
+    if (u8(spectral)!=0 || u8(spectral+1)!=63 ||
+      u8(spectral+2)!=0) {
+      throw new UnsupportedJpegException();
+    }
+
+    return(scan);
+  }
+
+  private void decodeScan(Component[] scan, int from)
+    throws UnsupportedJpegException {
+    pos=from;
+    bits=0;
+    bitCount=0;
+    padding=0;
+    atMarker=false;
+
+    int mcusWide, mcusHigh;
+
+    if (scan.length==1) {
+      mcusWide=scan[0].blocksWide;
+      mcusHigh=scan[0].blocksHigh;
+    }
+    else {
+      mcusWide=ceil(width, 8*maxH);
+      mcusHigh=ceil(height, 8*maxV);
+    }
+
+    int mcus=mcusWide*mcusHigh;
+
+    for (int mcu=0;mcu<mcus;mcu++) {
+      if (restartInterval>0 && mcu>0 && mcu%restartInterval==0) {
+        restart(scan);
+      }
+
+      int mcuX=mcu%mcusWide;
+      int mcuY=mcu/mcusWide;
+
+      for (Component c : scan) {
+        if (scan.length==1) {
+          decodeBlock(c, mcuY*c.blocksWide+mcuX);
+        }
+        else {
+          for (int y=0;y<c.v;y++) {
+            for (int x=0;x<c.h;x++) {
+              decodeBlock(c,
+                (mcuY*c.v+y)*c.blocksWide+mcuX*c.h+x);
+            }
+          }
+        }
+      }
+    }
+  }
+
+  private void restart(Component[] scan)
+    throws UnsupportedJpegException {
+    bits=0;
+    bitCount=0;
+
+    if (pos+2>end || u8(pos)!=0xFF || u8(pos+1)<0xD0 ||
+      u8(pos+1)>0xD7) {
+      throw new UnsupportedJpegException();
+    }
+
+    pos+=2;
+    atMarker=false;
+    padding=0;
+
+    for (Component c : scan) {
+      c.predictor=0;
+    }
+  }
+
+  private void decodeBlock(Component c, int block)
+    throws UnsupportedJpegException {
+    short[] coefficients=c.coefficients;
+    int base=block*64;
+    int size=decode(c.dc);
+
+    if (size>11) {
+      throw new UnsupportedJpegException();
+    }
+
+    c.predictor+=extend(readBits(size), size);
+    coefficients[base]=(short)c.predictor;
+
+    for (int k=1;k<64;k++) {
+      int symbol=decode(c.ac);
+      int run=symbol>>4;
+
+      size=symbol & 0x0F;
+
+      if (size==0) {
+        if (run!=15) {
+          break; // end of block
+        }
+
+        k+=15; // sixteen zeroes
+      }
+      else {
+        k+=run;
+
+        if (k>63) {
+          throw new UnsupportedJpegException();
+        }
+
+        coefficients[base+NATURAL_ORDER[k]]=
+          (short)extend(readBits(size), size);
+      }
+    }
+  }
+
+  private void writeScan(Component[] scan, Transform transform) {
+    EncodeTable[] dc=new EncodeTable[scan.length];
+    EncodeTable[] ac=new EncodeTable[scan.length];
+
+    // standard tables, as the original ones may lack codes for
+    // the zero runs that transposed blocks have
+
+    out.write(0xFF);
+    out.write(0xC4);
+    out.writeU16(2+(scan.length==1 ? 1 : 2)*
+      (ENCODE_DC[0].length()+ENCODE_AC[0].length()));
+    ENCODE_DC[0].write(out, 0x00);
+    ENCODE_AC[0].write(out, 0x10);
+
+    if (scan.length>1) {
+      ENCODE_DC[1].write(out, 0x01);
+      ENCODE_AC[1].write(out, 0x11);
+    }
+
+    out.write(0xFF);
+    out.write(0xDA);
+    out.writeU16(6+scan.length*2);
+    out.write(scan.length);
+
+    for (int i=0;i<scan.length;i++) {
+      int table=(i==0 ? 0 : 1);
+
+      dc[i]=ENCODE_DC[table];
+      ac[i]=ENCODE_AC[table];
+      scan[i].predictor=0;
+      out.write(scan[i].id);
+      out.write((table<<4) | table);
+    }
+
+    out.write(0);
+    out.write(63);
+    out.write(0);
+
+    bits=0;
+    bitCount=0;
+
+    short[] block=new short[64];
+    int mcusWide, mcusHigh;
+
+    if (scan.length==1) {
+      mcusWide=scan[0].outBlocksWide;
+      mcusHigh=scan[0].outBlocksHigh;
+    }
+    else {
+      mcusWide=scan[0].outBlocksWide/scan[0].outH;
+      mcusHigh=scan[0].outBlocksHigh/scan[0].outV;
+    }
+
+    for (int mcuY=0;mcuY<mcusHigh;mcuY++) {
+      for (int mcuX=0;mcuX<mcusWide;mcuX++) {
+        for (int i=0;i<scan.length;i++) {
+          Component c=scan[i];
+
+          if (scan.length==1) {
+            transformBlock(c, mcuX, mcuY, transform, block);
+            encodeBlock(c, block, dc[i], ac[i]);
+          }
+          else {
+            for (int y=0;y<c.outV;y++) {
+              for (int x=0;x<c.outH;x++) {
+                transformBlock(c, mcuX*c.outH+x, mcuY*c.outV+y,
+                  transform, block);
+                encodeBlock(c, block, dc[i], ac[i]);
+              }
+            }
+          }
+        }
+      }
+    }
+
+    // pad the last byte with 1 bits
+
+    if (bitCount>0) {
+      writeBits(0x7F, 8-bitCount);
+    }
+  }
+
+  /**
+   * Fills block with the coefficients of the output block at
+   * (x, y), taken from wherever that block came from in the
+   * source image.
+   */
+  private void transformBlock(Component c, int x, int y,
+                              Transform transform, short[] block) {
+    if (transform.flipX) {
+      x=c.outBlocksWide-1-x;
+    }
+
+    if (transform.flipY) {
+      y=c.outBlocksHigh-1-y;
+    }
+
+    int sourceX=(transform.transpose ? y : x);
+    int sourceY=(transform.transpose ? x : y);
+
+    if (sourceX>=c.blocksWide || sourceY>=c.blocksHigh) {
+      Arrays.fill(block, (short)0);
+
+      return;
+    }
+
+    int base=(sourceY*c.blocksWide+sourceX)*64;
+
+    for (int i=0;i<64;i++) {
+      int source=(transform.transpose ? transposed(i) : i);
+      short value=c.coefficients[base+source];
+
+      // mirroring a block negates its odd frequencies along
+      // the mirrored axis, so mirroring both ways negates those
+      // that are odd along just one
+
+      boolean negate=(transform.flipX && (i & 1)==1)^
+        (transform.flipY && ((i>>3) & 1)==1);
+
+      if (negate) {
+        value=(short)-value;
+      }
+
+      block[i]=value;
+    }
+  }
+
+  private void encodeBlock(Component c, short[] block,
+                           EncodeTable dc, EncodeTable ac) {
+    int diff=block[0]-c.predictor;
+
+    c.predictor=block[0];
+    encodeValue(dc, 0, diff);
+
+    int run=0;
+
+    for (int k=1;k<64;k++) {
+      int value=block[NATURAL_ORDER[k]];
+
+      if (value==0) {
+        run++;
+      }
+      else {
+        while (run>15) {
+          writeBits(ac.codes[0xF0], ac.sizes[0xF0]);
+          run-=16;
+        }
+
+        encodeValue(ac, run<<4, value);
+        run=0;
+      }
+    }
+
+    if (run>0) {
+      writeBits(ac.codes[0], ac.sizes[0]); // end of block
+    }
+  }
+
+  private void encodeValue(EncodeTable table, int symbol, int value) {
+    int magnitude=(value<0 ? -value : value);
+    int size=0;
+
+    while (magnitude>0) {
+      size++;
+      magnitude>>=1;
+    }
+
+    writeBits(table.codes[symbol | size], table.sizes[symbol | size]);
+
+    if (size>0) {
+      writeBits(value<0 ? value-1 : value, size);
+    }
+  }
+
+  private void writeBits(int value, int count) {
+    bits=(bits<<count) | (value & ((1<<count)-1));
+    bitCount+=count;
+
+    while (bitCount>=8) {
+      int b=(bits>>(bitCount-8)) & 0xFF;
+
+      out.write(b);
+
+      if (b==0xFF) {
+        out.write(0); // byte stuffing
+      }
+
+      bitCount-=8;
+    }
+  }
+
+  private int decode(DecodeTable table) throws UnsupportedJpegException {
+    fill();
+
+    int look=(bits>>>(bitCount-8)) & 0xFF;
+    int entry=table.lookup[look];
+
+    if (entry!=0) {
+      bitCount-=entry>>8;
+
+      return(entry & 0xFF);
+    }
+
+    bitCount-=8;
+
+    int code=look;
+    int length=8;
+
+    while (length<16 && code>table.maxCode[length]) {
+      code=(code<<1) | readBits(1);
+      length++;
+    }
+
+    if (code>table.maxCode[length]) {
+      throw new UnsupportedJpegException();
+    }
+
+    return(table.values[table.valueIndex[length]+code-
+      table.minCode[length]]);
+  }
+
+  private int readBits(int count) throws UnsupportedJpegException {
+    if (count==0) {
+      return(0);
+    }
+
+    fill();
+    bitCount-=count;
+
+    return((bits>>>bitCount) & ((1<<count)-1));
+  }
+
+  /**
+   * Tops up the bit buffer to at least 25 bits. At a marker,
+   * zero bits are supplied instead, up to a limit, as the
+   * decoder reads ahead of the end of the data.
+   */
+  private void fill() throws UnsupportedJpegException {
+    while (bitCount<=24) {
+      int b=0;
+
+      if (atMarker || pos>=end) {
+        if (++padding>MAX_PADDING_BYTES) {
+          throw new UnsupportedJpegException(); // truncated
+        }
+      }
+      else {
+        b=u8(pos);
+
+        if (b==0xFF) {
+          int next=(pos+1<end ? u8(pos+1) : 0);
+
+          if (next==0) {
+            pos+=2;
+          }
+          else {
+            atMarker=true;
+            b=0;
+          }
+        }
+        else {
+          pos++;
+        }
+      }
+
+      bits=(bits<<8) | b;
+      bitCount+=8;
+    }
+  }
+
+  private static int extend(int value, int size) {
+    if (size==0) {
+      return(0);
+    }
+
+    return(value<(1<<(size-1)) ? value-(1<<size)+1 : value);
+  }
+
+  private static int transposed(int natural) {
+    return(((natural & 7)<<3) | (natural>>3));
+  }
+
+  private static int zigzagIndex(int natural) {
+    for (int k=0;k<64;k++) {
+      if (NATURAL_ORDER[k]==natural) {
+        return(k);
+      }
+    }
+
+    throw new IllegalArgumentException();
+  }
+
+  private static int ceil(int value, int divisor) {
+    return((value+divisor-1)/divisor);
+  }
+
+  private int u8(int at) {
+    return(data[at] & 0xFF);
+  }
+
+  private int u16(int at) {
+    return((u8(at)<<8) | u8(at+1));
+  }
+
+  private static class Component {
+    int id;
+    int h;
+    int v;
+    int tq;
+    int blocksWide;
+    int blocksHigh;
+    int outH;
+    int outV;
+    int outBlocksWide;
+    int outBlocksHigh;
+    short[] coefficients;
+    DecodeTable dc;
+    DecodeTable ac;
+    int predictor;
+  }
+
+  /**
+   * Huffman decoding table, per Annex F.2.2.3 of the JPEG spec,
+   * plus a lookup table for codes of up to 8 bits.
+   */
+  private static class DecodeTable {
+    final int[] lookup=new int[256];
+    final int[] maxCode=new int[17];
+    final int[] minCode=new int[17];
+    final int[] valueIndex=new int[17];
+    final int[] values;
+
+    DecodeTable(int[] counts, int[] values)
+      throws UnsupportedJpegException {
+      this.values=values;
+
+      int code=0;
+      int index=0;
+
+      for (int length=1;length<=16;length++) {
+        int count=counts[length-1];
+
+        valueIndex[length]=index;
+        minCode[length]=code;
+        maxCode[length]=(count==0 ? -1 : code+count-1);
+
+        if (code+count>(1<<length)) {
+          throw new UnsupportedJpegException(); // too many codes
+        }
+
+        for (int i=0;i<count;i++, code++, index++) {
+          if (length<=8) {
+            int shift=8-length;
+
+            for (int fill=0;fill<(1<<shift);fill++) {
+              lookup[(code<<shift) | fill]=(length<<8) | values[index];
+            }
+          }
+        }
+
+        code<<=1;
+      }
+    }
+  }
+
+  /**
+   * Huffman encoding table, per Annex C of the JPEG spec.
+   */
+  private static class EncodeTable {
+    final int[] codes=new int[256];
+    final int[] sizes=new int[256];
+    final int[] counts;
+    final int[] values;
+
+    EncodeTable(int[] counts, int[] values) {
+      this.counts=counts;
+      this.values=values;
+
+      int code=0;
+      int index=0;
+
+      for (int length=1;length<=16;length++) {
+        for (int i=0;i<counts[length-1];i++, code++, index++) {
+          codes[values[index]]=code;
+          sizes[values[index]]=length;
+        }
+
+        code<<=1;
+      }
+    }
+
+    int length() {
+      return(17+values.length);
+    }
+
+    void write(Output out, int classAndId) {
+      out.write(classAndId);
+
+      for (int count : counts) {
+        out.write(count);
+      }
+
+      for (int value : values) {
+        out.write(value);
+      }
+    }
+  }
+
+  private static class Output {
+    private byte[] buffer;
+    private int length=0;
+
+    Output(int capacity) {
+      buffer=new byte[capacity];
+    }
+
+    void write(int b) {
+      if (length==buffer.length) {
+        buffer=Arrays.copyOf(buffer, buffer.length*2);
+      }
+
+      buffer[length++]=(byte)b;
+    }
+
+    void writeU16(int value) {
+      write(value>>8);
+      write(value & 0xFF);
+    }
+
+    void write(byte[] source, int offset, int count) {
+      if (length+count>buffer.length) {
+        buffer=Arrays.copyOf(buffer,
+          Math.max(buffer.length*2, length+count));
+      }
+
+      System.arraycopy(source, offset, buffer, length, count);
+      length+=count;
+    }
+
+    byte[] toByteArray() {
+      return(Arrays.copyOf(buffer, length));
+    }
+  }
+
+  private static class UnsupportedJpegException extends Exception {
+  }
+}
@@ -0,0 +1,143 @@
+/***
+ Copyright (c) 2016 CommonsWare, LLC
+
+ Licensed under the Apache License, Version 2.0 (the "License"); you may
+ not use this file except in compliance with the License. You may obtain
+ a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+package com.commonsware.cwac.cam2.util;
+
+/**
+ * Histogram of durations, in power-of-two buckets of
+ * microseconds (bucket 0 is under 1us, bucket 1 is 1-2us,
+ * bucket 2 is 2-4us, and so on). Recording is cheap and does not
+ * allocate; percentiles are approximate, reported as the upper
+ * bound of the bucket they fall in.
+ *
+ * Instances are thread-safe.
+ */
+public class LatencyHistogram {
+  private static final int BUCKETS=40;
+  private final long[] counts=new long[BUCKETS];
+  private long total=0;
+  private long sumNanos=0;
+  private long maxNanos=0;
+
+  /**
+   * @param nanos a duration to add to the histogram
+   */
+  synchronized public void record(long nanos) {
+    long micros=Math.max(0, nanos)/1000;
+    int bucket=(micros==0 ? 0 : 64-Long.numberOfLeadingZeros(micros));
+
+    counts[Math.min(bucket, BUCKETS-1)]++;
+    total++;
+    sumNanos+=nanos;
+
+    if (nanos>maxNanos) {
+      maxNanos=nanos;
+    }
+  }
+
+  /**
+   * @return a copy of the histogram as it stands now
+   */
+  synchronized public LatencyHistogram snapshot() {
+    LatencyHistogram result=new LatencyHistogram();
+
+    System.arraycopy(counts, 0, result.counts, 0, BUCKETS);
+    result.total=total;
+    result.sumNanos=sumNanos;
+    result.maxNanos=maxNanos;
+
+    return(result);
+  }
+
+  /**
+   * Drops everything recorded so far.
+   */
+  synchronized public void reset() {
+    for (int i=0;i<BUCKETS;i++) {
+      counts[i]=0;
+    }
+
+    total=0;
+    sumNanos=0;
+    maxNanos=0;
+  }
+
+  /**
+   * @return number of durations recorded
+   */
+  synchronized public long getCount() {
+    return(total);
+  }
+
+  /**
+   * @return mean duration, in nanoseconds, or 0 if nothing has
+   * been recorded
+   */
+  synchronized public long getMeanNanos() {
+    return(total==0 ? 0 : sumNanos/total);
+  }
+
+  /**
+   * @return longest duration recorded, in nanoseconds
+   */
+  synchronized public long getMaxNanos() {
+    return(maxNanos);
+  }
+
+  /**
+   * @param bucket index of the bucket
+   * @return number of durations that fell in that bucket
+   */
+  synchronized public long getBucketCount(int bucket) {
+    return(counts[bucket]);
+  }
+
+  /**
+   * @return number of buckets
+   */
+  public int getBucketTotal() {
+    return(BUCKETS);
+  }
+
+  /**
+   * @param percentile 0-100
+   * @return upper bound, in microseconds, of the bucket holding
+   * that percentile, or 0 if nothing has been recorded
+   */
+  synchronized public long getPercentileMicros(double percentile) {
+    if (total==0) {
+      return(0);
+    }
+
+    long rank=(long)Math.ceil(total*percentile/100.0d);
+    long seen=0;
+
+    for (int i=0;i<BUCKETS;i++) {
+      seen+=counts[i];
+
+      if (seen>=rank && counts[i]>0) {
+        return(1L<<i);
+      }
+    }
+
+    return(1L<<(BUCKETS-1));
+  }
+
+  @Override
+  synchronized public String toString() {
+    return("n="+total+" mean="+getMeanNanos()/1000+"us p50="+
+      getPercentileMicros(50)+"us p99="+getPercentileMicros(99)+
+      "us max="+maxNanos/1000+"us");
+  }
+}
@@ -0,0 +1,44 @@
+/***
+ Copyright (c) 2016 CommonsWare, LLC
+
+ Licensed under the Apache License, Version 2.0 (the "License"); you may
+ not use this file except in compliance with the License. You may obtain
+ a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+
+package com.commonsware.cwac.cam2.util;
+
+import android.os.Handler;
+import android.os.Looper;
+
+import java.util.concurrent.Executor;
+
+/**
+ * Runs tasks on the main application thread: right away if
+ * called on the main thread, otherwise posted to it, in order.
+ * Use it with CameraEngine.addListener() for listeners that
+ * touch the UI.
+ */
+public class MainThreadExecutor implements Executor {
+  private final Handler handler=new Handler(Looper.getMainLooper());
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public void execute(Runnable task) {
+    if (Looper.myLooper()==Looper.getMainLooper()) {
+      task.run();
+    }
+    else {
+      handler.post(task);
+    }
+  }
+}
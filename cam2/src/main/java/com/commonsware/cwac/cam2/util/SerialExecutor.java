@@ -0,0 +1,141 @@
+/***
+ Copyright (c) 2016 CommonsWare, LLC
+
+ Licensed under the Apache License, Version 2.0 (the "License"); you may
+ not use this file except in compliance with the License. You may obtain
+ a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+package com.commonsware.cwac.cam2.util;
+
+import android.util.Log;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.Executor;
+
+/**
+ * Runs tasks one at a time, in the order they were submitted,
+ * on threads borrowed from another Executor. At most one task
+ * from a SerialExecutor is with the backing Executor at any
+ * time, so several SerialExecutors can share a multi-threaded
+ * pool: each keeps its own ordering, while work from different
+ * SerialExecutors runs in parallel.
+ *
+ * If the backing Executor refuses a task, that task is dropped.
+ * If the task was being handed over by execute(), the exception
+ * is rethrown to the caller, and any tasks queued behind it are
+ * handed over once another task is submitted. If it was being
+ * handed over by the backing Executor's thread, after the task
+ * ahead of it, the exception is logged and the next task is
+ * handed over instead, so nothing is thrown out of the backing
+ * Executor's threads.
+ *
+ * Instances are thread-safe.
+ */
+public class SerialExecutor implements Executor {
+  private final Executor backing;
+  private final ArrayDeque<Runnable> tasks=new ArrayDeque<Runnable>();
+  private Runnable active=null;
+
+  /**
+   * Constructor.
+   *
+   * @param backing the Executor whose threads run the tasks
+   */
+  public SerialExecutor(Executor backing) {
+    this.backing=backing;
+  }
+
+  /**
+   * Queues a task, to run once all previously-submitted tasks
+   * have completed.
+   *
+   * @param task the work
+   * @throws RuntimeException whatever the backing Executor
+   * throws, if it refuses the task
+   */
+  @Override
+  public void execute(final Runnable task) {
+    Runnable next;
+
+    synchronized(this) {
+      tasks.offer(new Runnable() {
+        @Override
+        public void run() {
+          try {
+            task.run();
+          }
+          finally {
+            scheduleNext();
+          }
+        }
+      });
+
+      if (active!=null) {
+        return;
+      }
+
+      next=tasks.poll();
+      active=next;
+    }
+
+    handOff(next);
+  }
+
+  /**
+   * @return number of tasks waiting for their turn, not
+   * counting the one running now
+   */
+  synchronized public int getQueueDepth() {
+    return(tasks.size());
+  }
+
+  private void scheduleNext() {
+    while (true) {
+      Runnable next;
+
+      synchronized(this) {
+        next=tasks.poll();
+        active=next;
+      }
+
+      if (next==null) {
+        return;
+      }
+
+      // hand off outside the lock, as the backing Executor may
+      // run the task on this thread (e.g., when its queue is full)
+
+      try {
+        backing.execute(next);
+
+        return;
+      }
+      catch (RuntimeException e) {
+        Log.e("CWAC-Cam2",
+          "Dropping task refused by the backing Executor", e);
+      }
+    }
+  }
+
+  private void handOff(Runnable next) {
+    try {
+      backing.execute(next);
+    }
+    catch (RuntimeException e) {
+      synchronized(this) {
+        if (active==next) {
+          active=null;
+        }
+      }
+
+      throw e;
+    }
+  }
+}
@@ -0,0 +1,138 @@
+/***
+ Copyright (c) 2016 CommonsWare, LLC
+
+ Licensed under the Apache License, Version 2.0 (the "License"); you may
+ not use this file except in compliance with the License. You may obtain
+ a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+
+package com.commonsware.cwac.cam2;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks what a CameraScheduler pool does with a task that finds
+ * the queue full, using a one-thread pool whose thread is stuck.
+ */
+public class CameraSchedulerTest {
+  private final CountDownLatch unstick=new CountDownLatch(1);
+  private final ArrayList<CameraScheduler.InstrumentedExecutor> pools=
+    new ArrayList<CameraScheduler.InstrumentedExecutor>();
+
+  @After
+  public void tearDown() {
+    unstick.countDown();
+
+    for (CameraScheduler.InstrumentedExecutor pool : pools) {
+      pool.shutdown();
+    }
+  }
+
+  @Test
+  public void rejectsOnceWaitRunsOut() throws Exception {
+    CameraScheduler.InstrumentedExecutor pool=buildFullPool(false);
+    final AtomicReference<Thread> ranOn=new AtomicReference<Thread>();
+
+    try {
+      pool.execute(new Runnable() {
+        @Override
+        public void run() {
+          ranOn.set(Thread.currentThread());
+        }
+      });
+      fail("Expected RejectedExecutionException");
+    }
+    catch (RejectedExecutionException e) {
+      // expected
+    }
+
+    assertNull(ranOn.get());
+    assertEquals(1, pool.getRejectedCount());
+  }
+
+  @Test
+  public void acceptsOnceRoomFrees() throws Exception {
+    CameraScheduler.InstrumentedExecutor pool=buildFullPool(false);
+    final CountDownLatch ran=new CountDownLatch(1);
+
+    // room frees up while the submitter waits
+
+    CameraScheduler.get().schedule(CameraScheduler.Workload.DISK_IO,
+      new Runnable() {
+        @Override
+        public void run() {
+          unstick.countDown();
+        }
+      }, CameraScheduler.REJECTION_WAIT_MS/5);
+
+    pool.execute(new Runnable() {
+      @Override
+      public void run() {
+        ran.countDown();
+      }
+    });
+
+    assertTrue(ran.await(5, TimeUnit.SECONDS));
+    assertEquals(1, pool.getRejectedCount());
+  }
+
+  @Test
+  public void frameAnalysisRunsOnCaller() throws Exception {
+    CameraScheduler.InstrumentedExecutor pool=buildFullPool(true);
+    final AtomicReference<Thread> ranOn=new AtomicReference<Thread>();
+
+    pool.execute(new Runnable() {
+      @Override
+      public void run() {
+        ranOn.set(Thread.currentThread());
+      }
+    });
+
+    assertSame(Thread.currentThread(), ranOn.get());
+    assertEquals(1, pool.getRejectedCount());
+  }
+
+  private CameraScheduler.InstrumentedExecutor buildFullPool(boolean callerRuns)
+    throws InterruptedException {
+    CameraScheduler.InstrumentedExecutor pool=
+      new CameraScheduler.InstrumentedExecutor("Test", 1, 1, 1,
+        callerRuns);
+    final CountDownLatch stuck=new CountDownLatch(1);
+    Runnable wait=new Runnable() {
+      @Override
+      public void run() {
+        stuck.countDown();
+
+        try {
+          unstick.await();
+        }
+        catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+      }
+    };
+
+    pools.add(pool);
+    pool.execute(wait);
+    assertTrue(stuck.await(5, TimeUnit.SECONDS));
+    pool.execute(wait); // fills the one-slot queue
+
+    return(pool);
+  }
+}
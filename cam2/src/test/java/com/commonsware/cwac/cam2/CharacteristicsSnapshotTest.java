@@ -0,0 +1,200 @@
+/***
+ Copyright (c) 2016 CommonsWare, LLC
+
+ Licensed under the Apache License, Version 2.0 (the "License"); you may
+ not use this file except in compliance with the License. You may obtain
+ a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+
+package com.commonsware.cwac.cam2;
+
+import android.graphics.Rect;
+import android.hardware.camera2.CameraMetadata;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Takes CharacteristicsSnapshots from a fake source, standing in
+ * for CameraCharacteristics, that counts how often it is read.
+ */
+public class CharacteristicsSnapshotTest {
+  @Test
+  public void readsEachValueOnce() {
+    FakeSource source=new FakeSource();
+    CharacteristicsSnapshot snapshot=
+      CharacteristicsSnapshot.from(null, source);
+
+    assertEquals(6, source.reads);
+
+    // zooming and taking pictures use the snapshot, not the
+    // source, however often they happen
+
+    for (int level=0;level<=100;level++) {
+      snapshot.zoomRatioForLevel(level);
+      snapshot.getSensorOrientation();
+      snapshot.getAeModes();
+      snapshot.getAfModes();
+      snapshot.supportsZslStream(false);
+    }
+
+    assertEquals(6, source.reads);
+  }
+
+  @Test
+  public void copiesValues() {
+    FakeSource source=new FakeSource();
+    CharacteristicsSnapshot snapshot=
+      CharacteristicsSnapshot.from(null, source);
+
+    assertEquals(4.0f, snapshot.getMaxDigitalZoom(), 0.0f);
+    assertTrue(snapshot.supportsZoom());
+    assertEquals(90, snapshot.getSensorOrientation());
+    assertArrayEquals(FakeSource.AE_MODES, snapshot.getAeModes());
+    assertArrayEquals(FakeSource.AF_MODES, snapshot.getAfModes());
+    assertNull(snapshot.getCharacteristics());
+  }
+
+  @Test
+  public void isImmutable() {
+    FakeSource source=new FakeSource();
+    CharacteristicsSnapshot snapshot=
+      CharacteristicsSnapshot.from(null, source);
+
+    source.aeModes[0]=-1;
+    snapshot.getAfModes()[0]=-1;
+
+    assertArrayEquals(FakeSource.AE_MODES, snapshot.getAeModes());
+    assertArrayEquals(FakeSource.AF_MODES, snapshot.getAfModes());
+  }
+
+  @Test
+  public void defaultsMissingValues() {
+    FakeSource source=new FakeSource();
+
+    source.maxDigitalZoom=null;
+    source.sensorOrientation=null;
+    source.aeModes=null;
+    source.afModes=null;
+    source.hardwareLevel=null;
+
+    CharacteristicsSnapshot snapshot=
+      CharacteristicsSnapshot.from(null, source);
+
+    assertEquals(1.0f, snapshot.getMaxDigitalZoom(), 0.0f);
+    assertFalse(snapshot.supportsZoom());
+    assertEquals(0, snapshot.getActiveArrayWidth());
+    assertEquals(0, snapshot.getActiveArrayHeight());
+    assertEquals(0, snapshot.getSensorOrientation());
+    assertEquals(0, snapshot.getAeModes().length);
+    assertEquals(0, snapshot.getAfModes().length);
+    assertEquals(CameraMetadata.INFO_SUPPORTED_HARDWARE_LEVEL_LEGACY,
+      snapshot.getHardwareLevel());
+    assertFalse(snapshot.supportsZslStream(false));
+  }
+
+  @Test
+  public void gatesZslByHardwareLevel() {
+    FakeSource source=new FakeSource();
+    int[] levels={
+      CameraMetadata.INFO_SUPPORTED_HARDWARE_LEVEL_LEGACY,
+      CameraMetadata.INFO_SUPPORTED_HARDWARE_LEVEL_LIMITED,
+      CameraMetadata.INFO_SUPPORTED_HARDWARE_LEVEL_FULL,
+      CharacteristicsSnapshot.HARDWARE_LEVEL_3
+    };
+    boolean[] alone={false, false, true, true};
+    boolean[] withAnalysis={false, false, false, true};
+
+    for (int i=0;i<levels.length;i++) {
+      source.hardwareLevel=levels[i];
+
+      CharacteristicsSnapshot snapshot=
+        CharacteristicsSnapshot.from(null, source);
+
+      assertEquals(alone[i], snapshot.supportsZslStream(false));
+      assertEquals(withAnalysis[i], snapshot.supportsZslStream(true));
+    }
+  }
+
+  @Test
+  public void mapsZoomLevels() {
+    CharacteristicsSnapshot snapshot=
+      CharacteristicsSnapshot.from(null, new FakeSource());
+
+    assertEquals(1.0f, snapshot.zoomRatioForLevel(0), 0.0001f);
+    assertEquals(2.5f, snapshot.zoomRatioForLevel(50), 0.0001f);
+    assertEquals(4.0f, snapshot.zoomRatioForLevel(100), 0.0001f);
+  }
+
+  private static class FakeSource
+    implements CharacteristicsSnapshot.Source {
+    static final int[] AE_MODES={
+      CameraMetadata.CONTROL_AE_MODE_ON,
+      CameraMetadata.CONTROL_AE_MODE_ON_AUTO_FLASH
+    };
+    static final int[] AF_MODES={
+      CameraMetadata.CONTROL_AF_MODE_AUTO,
+      CameraMetadata.CONTROL_AF_MODE_CONTINUOUS_PICTURE
+    };
+    Float maxDigitalZoom=4.0f;
+    Integer sensorOrientation=90;
+    int[] aeModes=AE_MODES.clone();
+    int[] afModes=AF_MODES.clone();
+    Integer hardwareLevel=
+      CameraMetadata.INFO_SUPPORTED_HARDWARE_LEVEL_FULL;
+    int reads=0;
+
+    @Override
+    public Float getMaxDigitalZoom() {
+      reads++;
+
+      return(maxDigitalZoom);
+    }
+
+    @Override
+    public Rect getActiveArraySize() {
+      reads++;
+
+      // Rect is not usable off-device, so the active array is
+      // left out
+
+      return(null);
+    }
+
+    @Override
+    public Integer getSensorOrientation() {
+      reads++;
+
+      return(sensorOrientation);
+    }
+
+    @Override
+    public int[] getAeModes() {
+      reads++;
+
+      return(aeModes);
+    }
+
+    @Override
+    public int[] getAfModes() {
+      reads++;
+
+      return(afModes);
+    }
+
+    @Override
+    public Integer getHardwareLevel() {
+      reads++;
+
+      return(hardwareLevel);
+    }
+  }
+}
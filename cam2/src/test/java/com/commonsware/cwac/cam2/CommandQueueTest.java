@@ -0,0 +1,101 @@
+/***
+ Copyright (c) 2016 CommonsWare, LLC
+
+ Licensed under the Apache License, Version 2.0 (the "License"); you may
+ not use this file except in compliance with the License. You may obtain
+ a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+
+package com.commonsware.cwac.cam2;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+import static org.junit.Assert.*;
+
+/**
+ * Runs a CommandQueue on an Executor that runs commands on the
+ * calling thread, so no timing is involved.
+ */
+public class CommandQueueTest {
+  @Test
+  public void skipsRejectedCommands() {
+    final ArrayList<String> ran=new ArrayList<String>();
+    CommandQueue queue=new CommandQueue(new Executor() {
+      private int count=0;
+
+      @Override
+      public void execute(Runnable command) {
+        if (count++==0) {
+          throw new RejectedExecutionException("saturated");
+        }
+
+        command.run();
+      }
+    });
+
+    queue.submit("open", new Recorder(ran, "open"));
+    queue.submit("zoom", new Recorder(ran, "zoom"));
+
+    assertEquals(1, ran.size());
+    assertEquals("zoom", ran.get(0));
+    assertEquals(1, queue.getStats("open").getRejectedCount());
+    assertEquals(0, queue.getQueueDepth());
+  }
+
+  @Test
+  public void routesFailuresToCommand() {
+    final ArrayList<String> ran=new ArrayList<String>();
+    final ArrayList<Exception> errors=new ArrayList<Exception>();
+    final RuntimeException failure=new IllegalStateException("failed");
+    CommandQueue queue=new CommandQueue(new Executor() {
+      @Override
+      public void execute(Runnable command) {
+        command.run();
+      }
+    });
+
+    queue.submitAsync("open", new CommandQueue.AsyncCommand() {
+      @Override
+      void run(CommandQueue.Completion done) {
+        throw failure;
+      }
+
+      @Override
+      void onError(Exception e) {
+        errors.add(e);
+      }
+    });
+    queue.submit("zoom", new Recorder(ran, "zoom"));
+
+    assertEquals(1, errors.size());
+    assertSame(failure, errors.get(0));
+    assertEquals(1, ran.size());
+    assertEquals("zoom", ran.get(0));
+  }
+
+  private static class Recorder implements Runnable {
+    private final ArrayList<String> ran;
+    private final String name;
+
+    Recorder(ArrayList<String> ran, String name) {
+      this.ran=ran;
+      this.name=name;
+    }
+
+    @Override
+    public void run() {
+      ran.add(name);
+    }
+  }
+}
@@ -0,0 +1,168 @@
+/***
+ Copyright (c) 2016 CommonsWare, LLC
+
+ Licensed under the Apache License, Version 2.0 (the "License"); you may
+ not use this file except in compliance with the License. You may obtain
+ a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+
+package com.commonsware.cwac.cam2;
+
+import com.commonsware.cwac.cam2.util.Size;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks that a warm DescriptorCache spares the engine from
+ * opening any camera, using a Source that counts the probes
+ * an engine would have to make.
+ */
+public class DescriptorCacheTest {
+  private static final String FINGERPRINT="test/build/1";
+  @Rule
+  public TemporaryFolder folder=new TemporaryFolder();
+  private File file;
+
+  @Before
+  public void setUp() {
+    file=new File(folder.getRoot(), "descriptors.bin");
+  }
+
+  @Test
+  public void coldCacheProbesEveryCamera() throws Exception {
+    CountingSource source=new CountingSource("0", "1");
+    List<DescriptorCache.Entry> entries=
+      new DescriptorCache(file, FINGERPRINT).loadOrProbe(source);
+
+    assertEquals(2, source.probes);
+    assertEquals(2, entries.size());
+    assertTrue(entries.get(0).validated);
+    assertTrue(file.exists());
+  }
+
+  @Test
+  public void warmCacheOpensNoCameras() throws Exception {
+    new DescriptorCache(file, FINGERPRINT)
+      .loadOrProbe(new CountingSource("0", "1"));
+
+    // as after a process restart: a new cache on the same file
+
+    CountingSource source=new CountingSource("0", "1");
+    List<DescriptorCache.Entry> entries=
+      new DescriptorCache(file, FINGERPRINT).loadOrProbe(source);
+
+    assertEquals(0, source.probes);
+    assertEquals(2, entries.size());
+
+    for (int i=0;i<entries.size();i++) {
+      DescriptorCache.Entry entry=entries.get(i);
+
+      assertEquals(Integer.toString(i), entry.id);
+      assertEquals(i, entry.facing);
+      assertEquals(CountingSource.PREVIEW_SIZES, entry.previewSizes);
+      assertEquals(CountingSource.PICTURE_SIZES, entry.pictureSizes);
+      assertFalse(entry.validated);
+    }
+  }
+
+  @Test
+  public void changedCamerasAreProbed() throws Exception {
+    new DescriptorCache(file, FINGERPRINT)
+      .loadOrProbe(new CountingSource("0", "1"));
+
+    CountingSource source=new CountingSource("0", "1", "2");
+
+    new DescriptorCache(file, FINGERPRINT).loadOrProbe(source);
+    assertEquals(3, source.probes);
+
+    source=new CountingSource("0", "1", "2");
+    source.facingChanged=true;
+    new DescriptorCache(file, FINGERPRINT).loadOrProbe(source);
+    assertEquals(3, source.probes);
+  }
+
+  @Test
+  public void newBuildIsProbed() throws Exception {
+    new DescriptorCache(file, FINGERPRINT)
+      .loadOrProbe(new CountingSource("0", "1"));
+
+    CountingSource source=new CountingSource("0", "1");
+
+    new DescriptorCache(file, "test/build/2").loadOrProbe(source);
+    assertEquals(2, source.probes);
+  }
+
+  @Test
+  public void corruptCacheIsProbed() throws Exception {
+    new DescriptorCache(file, FINGERPRINT)
+      .loadOrProbe(new CountingSource("0", "1"));
+    assertTrue(file.delete());
+    assertTrue(file.createNewFile());
+
+    CountingSource source=new CountingSource("0", "1");
+
+    new DescriptorCache(file, FINGERPRINT).loadOrProbe(source);
+    assertEquals(2, source.probes);
+  }
+
+  /**
+   * Stands in for the camera APIs: each camera's facing is its
+   * index, and every probe, which an engine would do by opening
+   * the camera, is counted.
+   */
+  private static class CountingSource implements DescriptorCache.Source {
+    static final ArrayList<Size> PREVIEW_SIZES=
+      new ArrayList<Size>(Arrays.asList(new Size(1280, 720),
+        new Size(640, 480)));
+    static final ArrayList<Size> PICTURE_SIZES=
+      new ArrayList<Size>(Arrays.asList(new Size(4032, 3024)));
+    private final List<String> ids;
+    int probes=0;
+    boolean facingChanged=false;
+
+    CountingSource(String... ids) {
+      this.ids=Arrays.asList(ids);
+    }
+
+    @Override
+    public List<String> getCameraIds() {
+      return(ids);
+    }
+
+    @Override
+    public boolean matches(DescriptorCache.Entry entry) {
+      return(entry.facing==getFacing(entry.id));
+    }
+
+    @Override
+    public DescriptorCache.Entry probe(String id) {
+      probes++;
+
+      return(new DescriptorCache.Entry(id, getFacing(id),
+        PREVIEW_SIZES, PICTURE_SIZES));
+    }
+
+    private int getFacing(String id) {
+      int facing=Integer.parseInt(id);
+
+      return(facingChanged ? facing+1 : facing);
+    }
+  }
+}
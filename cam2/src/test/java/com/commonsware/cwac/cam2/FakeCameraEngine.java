@@ -0,0 +1,498 @@
+/***
+ Copyright (c) 2016 CommonsWare, LLC
+
+ Licensed under the Apache License, Version 2.0 (the "License"); you may
+ not use this file except in compliance with the License. You may obtain
+ a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+package com.commonsware.cwac.cam2;
+
+import android.content.Context;
+import android.graphics.ImageFormat;
+import android.graphics.SurfaceTexture;
+
+import com.commonsware.cwac.cam2.util.Size;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A CameraEngine with no camera behind it, for tests and
+ * benchmarks on a plain JVM. It goes through the same
+ * CommandQueue and CameraScheduler machinery as the real
+ * engines, with configurable delays standing in for the
+ * hardware, so it can simulate a slow device.
+ *
+ * Pictures are whatever bytes are supplied to
+ * setPictureData(), run through the transaction's
+ * ImageProcessor chain like any other picture. If there is a
+ * FrameAnalyzer, an open session streams synthetic NV21
+ * preview frames to it, at the session's preview size (or
+ * 640x480), at setPreviewFrameRate() frames per second. Video
+ * recording records nothing, but stopping a recording posts a
+ * VideoTakenEvent for its transaction; stopping when nothing
+ * is recording posts nothing.
+ */
+public class FakeCameraEngine extends CameraEngine {
+  private static final Size DEFAULT_PREVIEW_SIZE=new Size(640, 480);
+  private final List<CameraDescriptor> descriptors=
+    new ArrayList<CameraDescriptor>();
+  private volatile long openLatencyMs=0;
+  private volatile long closeLatencyMs=0;
+  private volatile long captureLatencyMs=0;
+  private volatile float previewFrameRate=30.0f;
+  private volatile byte[] pictureData=new byte[0];
+  private volatile int failedFrame=-1;
+  private VideoTransaction videoXact;
+
+  /**
+   * Constructor.
+   *
+   * @param cameraCount number of cameras to pretend to have
+   */
+  public FakeCameraEngine(int cameraCount) {
+    for (int i=0;i<cameraCount;i++) {
+      descriptors.add(new Descriptor(i));
+    }
+  }
+
+  /**
+   * @param ms how long opening a camera takes
+   */
+  public void setOpenLatency(long ms) {
+    openLatencyMs=ms;
+  }
+
+  /**
+   * @param ms how long closing a camera takes
+   */
+  public void setCloseLatency(long ms) {
+    closeLatencyMs=ms;
+  }
+
+  /**
+   * @param ms how long taking each picture takes
+   */
+  public void setCaptureLatency(long ms) {
+    captureLatencyMs=ms;
+  }
+
+  /**
+   * @param index the frame of each burst whose capture should
+   *              fail, as if the camera had rejected it, or -1
+   *              (the default) for none
+   */
+  public void setFailedFrame(int index) {
+    failedFrame=index;
+  }
+
+  /**
+   * @param jpeg the bytes to deliver as each picture
+   */
+  public void setPictureData(byte[] jpeg) {
+    pictureData=jpeg;
+  }
+
+  /**
+   * @param framesPerSecond how often to hand synthetic preview
+   *                        frames to the FrameAnalyzer, if
+   *                        there is one; defaults to 30
+   */
+  public void setPreviewFrameRate(float framesPerSecond) {
+    previewFrameRate=framesPerSecond;
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public CameraSession.Builder buildSession(Context ctxt,
+                                            CameraDescriptor descriptor) {
+    return(new SessionBuilder(ctxt, descriptor));
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public void loadCameraDescriptors(CameraSelectionCriteria criteria) {
+    loadCameraDescriptors(criteria, null);
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public void loadCameraDescriptors(CameraSelectionCriteria criteria,
+                                    final EventChannel channel) {
+    executeForEngine(new Runnable() {
+      @Override
+      public void run() {
+        postEvent(channel, new CameraDescriptorsEvent(
+          new ArrayList<CameraDescriptor>(descriptors)));
+      }
+    });
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public void open(final CameraSession session, SurfaceTexture texture) {
+    awaitPreviousSession(session);
+    getCommandQueue(session).submitAsync("open",
+      new CommandQueue.AsyncCommand() {
+      @Override
+      public void run(final CommandQueue.Completion done) {
+        later(openLatencyMs, new Runnable() {
+          @Override
+          public void run() {
+            ((Session)session).isOpen=true;
+            startPreviewFrames((Session)session);
+            postEvent(session, new OpenedEvent());
+            done.complete();
+          }
+        });
+      }
+    });
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public void close(final CameraSession session) {
+    final long requestedAt=System.nanoTime();
+
+    getCommandQueue(session).submitAsync("close",
+      new CommandQueue.AsyncCommand() {
+      @Override
+      public void run(final CommandQueue.Completion done) {
+        final long startedAt=System.nanoTime();
+
+        later(closeLatencyMs, new Runnable() {
+          @Override
+          public void run() {
+            ((Session)session).isOpen=false;
+            session.destroy();
+            postEvent(session, new ClosedEvent(requestedAt, startedAt));
+            done.complete();
+          }
+        });
+      }
+    });
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public void takePicture(CameraSession session,
+                          PictureTransaction xact) {
+    takeBurst(session, 1, 0.0f, xact);
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public void takeBurst(final CameraSession session, final int count,
+                        float framesPerSecond,
+                        final PictureTransaction xact) {
+    checkBurst(count, xact);
+
+    final long interval=
+      framesPerSecond>0.0f ? (long)(1000.0f/framesPerSecond) : 0L;
+    final CaptureTimeline timeline=new CaptureTimeline();
+
+    getCommandQueue(session).submitAsync("capture",
+      CommandQueue.ASYNC_TIMEOUT_MS+count*(interval+captureLatencyMs),
+      new CommandQueue.AsyncCommand() {
+      @Override
+      public void run(CommandQueue.Completion done) {
+        capture(session, xact, timeline, 0, count, interval, done);
+      }
+    });
+  }
+
+  @Override
+  public void recordVideo(CameraSession session,
+                          VideoTransaction xact) {
+    synchronized(this) {
+      videoXact=xact;
+    }
+  }
+
+  @Override
+  public void stopVideoRecording(CameraSession session,
+                                 boolean abandon) {
+    VideoTransaction xact;
+
+    synchronized(this) {
+      xact=videoXact;
+      videoXact=null;
+    }
+
+    if (xact!=null && !abandon) {
+      postEvent(session, new VideoTakenEvent(xact));
+    }
+  }
+
+  @Override
+  public void handleOrientationChange(CameraSession session,
+                                      OrientationChangedEvent event) {
+    // nothing to rotate
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public boolean supportsDynamicFlashModes() {
+    return(false);
+  }
+
+  @Override
+  public boolean supportsZoom(CameraSession session) {
+    return(true);
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * The zoom level is recorded, to be read back via
+   * getZoomLevel().
+   */
+  @Override
+  public boolean zoomTo(final CameraSession session,
+                        final int zoomLevel) {
+    getCommandQueue(session).submitCoalesced("zoom", new Runnable() {
+      @Override
+      public void run() {
+        ((Session)session).zoomLevel=zoomLevel;
+      }
+    });
+
+    return(false);
+  }
+
+  /**
+   * @param session a session from this engine
+   * @return the last zoom level applied to the session
+   */
+  public int getZoomLevel(CameraSession session) {
+    return(((Session)session).zoomLevel);
+  }
+
+  /**
+   * @param session a session from this engine
+   * @return true if the session is open, false otherwise
+   */
+  public boolean isOpen(CameraSession session) {
+    return(((Session)session).isOpen);
+  }
+
+  private void capture(final CameraSession session,
+                       final PictureTransaction xact,
+                       final CaptureTimeline timeline,
+                       final int index, final int count,
+                       final long interval,
+                       final CommandQueue.Completion done) {
+    timeline.mark(CaptureTimeline.Stage.CAPTURE_STARTED);
+    later(captureLatencyMs, new Runnable() {
+      @Override
+      public void run() {
+        if (index==failedFrame) {
+          postEvent(session, new PictureTakenEvent(
+            new IllegalStateException("Capture of frame "+index+" failed")));
+        }
+        else {
+          ImageContext imageContext=
+            new ImageContext(session.getContext(), pictureData);
+
+          timeline.mark(CaptureTimeline.Stage.IMAGE_AVAILABLE);
+          imageContext.setTimeline(timeline);
+          imageContext.setFrame(index, count);
+          processPicture(session, xact, imageContext);
+        }
+
+        if (index+1<count) {
+          CameraScheduler.get().schedule(
+            CameraScheduler.Workload.CAMERA_CONTROL, new Runnable() {
+              @Override
+              public void run() {
+                capture(session, xact, timeline.forFrame(), index+1,
+                  count, interval, done);
+              }
+            }, interval);
+        }
+        else {
+          done.complete();
+        }
+      }
+    });
+  }
+
+  /**
+   * Streams synthetic preview frames to the FrameAnalyzer, if
+   * there is one, until the session is closed. Frames that the
+   * analyzer is too busy for are dropped, as with the real
+   * engines.
+   */
+  private void startPreviewFrames(final Session session) {
+    final FrameDispatcher dispatcher=getFrameDispatcher();
+
+    if (dispatcher==null || previewFrameRate<=0.0f) {
+      return;
+    }
+
+    Size size=session.getPreviewSize();
+
+    if (size==null) {
+      size=DEFAULT_PREVIEW_SIZE;
+    }
+
+    final SyntheticPreview preview=
+      new SyntheticPreview(size.getWidth(), size.getHeight());
+
+    CameraScheduler.get().execute(CameraScheduler.Workload.CAMERA_CONTROL,
+      new Runnable() {
+        @Override
+        public void run() {
+          if (!session.isOpen) {
+            return;
+          }
+
+          Frame frame=preview.next();
+
+          if (frame!=null && !dispatcher.offer(frame, preview.recycle)) {
+            preview.recycle.run();
+          }
+
+          later((long)(1000.0f/previewFrameRate), this);
+        }
+      });
+  }
+
+  /**
+   * Runs a task after a delay, standing in for the time that
+   * real hardware takes to call back.
+   */
+  private void later(long delayMs, Runnable task) {
+    if (delayMs>0) {
+      CameraScheduler.get().schedule(
+        CameraScheduler.Workload.CAMERA_CONTROL, task, delayMs);
+    }
+    else {
+      task.run();
+    }
+  }
+
+  static class Descriptor implements CameraDescriptor {
+    private final int cameraId;
+    private final ArrayList<Size> previewSizes=new ArrayList<Size>();
+    private final ArrayList<Size> pictureSizes=new ArrayList<Size>();
+
+    private Descriptor(int cameraId) {
+      this.cameraId=cameraId;
+      previewSizes.add(new Size(1920, 1080));
+      previewSizes.add(new Size(1280, 720));
+      previewSizes.add(new Size(640, 480));
+      pictureSizes.add(new Size(4032, 3024));
+      pictureSizes.add(new Size(1920, 1080));
+    }
+
+    public int getCameraId() {
+      return(cameraId);
+    }
+
+    @Override
+    public ArrayList<Size> getPreviewSizes() {
+      return(previewSizes);
+    }
+
+    @Override
+    public ArrayList<Size> getPictureSizes() {
+      return(pictureSizes);
+    }
+
+    @Override
+    public boolean isPictureFormatSupported(int format) {
+      return(ImageFormat.JPEG==format);
+    }
+  }
+
+  /**
+   * A moving gradient in a single NV21 buffer, which is
+   * unavailable while the analyzer has it, much like the
+   * classic engine's preview buffers.
+   */
+  private static class SyntheticPreview {
+    private final byte[] nv21;
+    private final int width;
+    private final int height;
+    private final Frame frame;
+    private boolean isBusy=false;
+    private int index=0;
+    final Runnable recycle=new Runnable() {
+      @Override
+      public void run() {
+        synchronized(SyntheticPreview.this) {
+          isBusy=false;
+        }
+      }
+    };
+
+    SyntheticPreview(int width, int height) {
+      this.width=width;
+      this.height=height;
+      nv21=new byte[width*height*3/2];
+      frame=Frame.fromNv21(nv21, width, height, 0);
+
+      for (int i=width*height;i<nv21.length;i++) {
+        nv21[i]=(byte)128;
+      }
+    }
+
+    synchronized Frame next() {
+      if (isBusy) {
+        return(null);
+      }
+
+      isBusy=true;
+      index++;
+
+      for (int row=0;row<height;row++) {
+        for (int col=0;col<width;col++) {
+          nv21[row*width+col]=(byte)(col+row+index);
+        }
+      }
+
+      frame.setTimestamp(System.nanoTime());
+
+      return(frame);
+    }
+  }
+
+  private static class Session extends CameraSession {
+    volatile boolean isOpen=false;
+    volatile int zoomLevel=0;
+
+    private Session(Context ctxt, CameraDescriptor descriptor) {
+      super(ctxt, descriptor);
+    }
+  }
+
+  private static class SessionBuilder extends CameraSession.Builder {
+    private SessionBuilder(Context ctxt, CameraDescriptor descriptor) {
+      super(new Session(ctxt, descriptor));
+    }
+  }
+}
@@ -0,0 +1,477 @@
+/***
+ Copyright (c) 2016 CommonsWare, LLC
+
+ Licensed under the Apache License, Version 2.0 (the "License"); you may
+ not use this file except in compliance with the License. You may obtain
+ a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+package com.commonsware.cwac.cam2;
+
+import android.content.Context;
+import android.content.ContextWrapper;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import de.greenrobot.event.EventBus;
+
+import static org.junit.Assert.*;
+
+/**
+ * Drives FakeCameraEngine, set up as a slow device, the way
+ * CameraController.switchCamera() drives an engine: close the
+ * current session, then open the next one.
+ */
+public class FakeCameraEngineTest {
+  private static final long FRAME_MS=16;
+  private static final long OPEN_MS=300;
+  private static final long CLOSE_MS=500;
+  private static final long CAPTURE_MS=50;
+  private FakeCameraEngine engine;
+  private EventBus bus;
+  private final LinkedBlockingQueue<Object> events=
+    new LinkedBlockingQueue<Object>();
+  private final List<CameraDescriptor> cameras=
+    Collections.synchronizedList(new ArrayList<CameraDescriptor>());
+
+  @Before
+  public void setUp() throws Exception {
+    engine=new FakeCameraEngine(2);
+    bus=new EventBus();
+    engine.setBus(bus);
+    bus.register(this);
+    engine.loadCameraDescriptors(null);
+    assertTrue(next() instanceof CameraEngine.CameraDescriptorsEvent);
+
+    engine.setOpenLatency(OPEN_MS);
+    engine.setCloseLatency(CLOSE_MS);
+  }
+
+  @After
+  public void tearDown() {
+    bus.unregister(this);
+  }
+
+  @SuppressWarnings("unused")
+  public void onEvent(CameraEngine.CameraDescriptorsEvent event) {
+    cameras.addAll(event.descriptors);
+    events.add(event);
+  }
+
+  @SuppressWarnings("unused")
+  public void onEvent(CameraEngine.OpenedEvent event) {
+    events.add(event);
+  }
+
+  @SuppressWarnings("unused")
+  public void onEvent(CameraEngine.ClosedEvent event) {
+    events.add(event);
+  }
+
+  @SuppressWarnings("unused")
+  public void onEvent(CameraEngine.PictureTakenEvent event) {
+    events.add(event);
+  }
+
+  @SuppressWarnings("unused")
+  public void onEvent(CameraEngine.VideoTakenEvent event) {
+    events.add(event);
+  }
+
+  @Test
+  public void switchDoesNotBlockCaller() throws Exception {
+    CameraSession back=buildSession(0);
+
+    engine.open(back, null);
+    assertTrue(next() instanceof CameraEngine.OpenedEvent);
+
+    CameraSession front=buildSession(1);
+
+    engine.close(back);
+    engine.open(front, null);
+
+    // both calls returned before the slow close got anywhere
+
+    assertTrue(events.isEmpty());
+    assertTrue(engine.isOpen(back));
+
+    // the new camera opens only once the old one is closed
+
+    Object first=next();
+    Object second=next();
+
+    assertTrue(first instanceof CameraEngine.ClosedEvent);
+    assertTrue(second instanceof CameraEngine.OpenedEvent);
+    assertFalse(engine.isOpen(back));
+    assertTrue(engine.isOpen(front));
+
+    CameraEngine.ClosedEvent closed=(CameraEngine.ClosedEvent)first;
+
+    assertNull(closed.exception);
+    assertTrue(closed.getTeardownMillis()>=CLOSE_MS-FRAME_MS);
+    assertTrue(closed.getTotalMillis()>=closed.getTeardownMillis());
+    assertTrue(closed.getWaitMillis()>=0);
+  }
+
+  @Test
+  public void closeDuringOpenDoesNotBlockCaller() throws Exception {
+    CameraSession session=buildSession(0);
+
+    engine.open(session, null);
+    engine.close(session);
+
+    // neither call waited for the slow open
+
+    assertTrue(events.isEmpty());
+    assertFalse(engine.isOpen(session));
+    assertTrue(next() instanceof CameraEngine.OpenedEvent);
+
+    CameraEngine.ClosedEvent closed=(CameraEngine.ClosedEvent)next();
+
+    // the close waited for the open to finish, then tore down
+
+    assertTrue(closed.getWaitMillis()>=OPEN_MS-FRAME_MS);
+    assertTrue(closed.getTotalMillis()>=OPEN_MS+CLOSE_MS-FRAME_MS);
+  }
+
+  @Test
+  public void zoomsAreCoalesced() throws Exception {
+    CameraSession session=buildSession(0);
+
+    engine.open(session, null);
+
+    for (int i=0;i<=100;i++) {
+      engine.zoomTo(session, i);
+    }
+
+    assertTrue(next() instanceof CameraEngine.OpenedEvent);
+
+    // all the zooms were queued behind the open, so all but
+    // the last were replaced
+
+    engine.close(session);
+    assertTrue(next() instanceof CameraEngine.ClosedEvent);
+    assertEquals(100, engine.getZoomLevel(session));
+
+    CommandQueue.CommandStats zoom=
+      engine.getCommandQueue(session).getStats("zoom");
+
+    assertEquals(1, zoom.getRunLatency().getCount());
+    assertEquals(100, zoom.getCoalescedCount());
+  }
+
+  @Test
+  public void stopsOnlyARecording() throws Exception {
+    CameraSession session=buildSession(0);
+    VideoTransaction xact=new VideoTransaction.Builder().build();
+
+    engine.setOpenLatency(0);
+    engine.open(session, null);
+    assertTrue(next() instanceof CameraEngine.OpenedEvent);
+
+    engine.stopVideoRecording(session, false);
+    engine.recordVideo(session, xact);
+    engine.stopVideoRecording(session, false);
+    engine.stopVideoRecording(session, false);
+
+    CameraEngine.VideoTakenEvent taken=
+      (CameraEngine.VideoTakenEvent)next();
+
+    assertSame(xact, taken.getVideoTransaction());
+
+    engine.close(session);
+    assertTrue(next() instanceof CameraEngine.ClosedEvent);
+  }
+
+  @Test
+  public void recordsCaptureTimeline() throws Exception {
+    CaptureMetrics metrics=new CaptureMetrics();
+    CameraSession session=buildSession(0);
+    PictureTransaction xact=new PictureTransaction.Builder()
+      .append(new SleepyProcessor())
+      .build();
+
+    engine.setOpenLatency(0);
+    engine.setCaptureLatency(CAPTURE_MS);
+    engine.setMetricsSink(metrics);
+    engine.open(session, null);
+    assertTrue(next() instanceof CameraEngine.OpenedEvent);
+
+    engine.takeBurst(session, 2, xact);
+
+    CaptureTimeline first=
+      ((CameraEngine.PictureTakenEvent)next()).getTimeline();
+    CaptureTimeline second=
+      ((CameraEngine.PictureTakenEvent)next()).getTimeline();
+
+    assertNotSame(first, second);
+    assertEquals(first.getNanos(CaptureTimeline.Stage.REQUESTED),
+      second.getNanos(CaptureTimeline.Stage.REQUESTED));
+
+    for (CaptureTimeline timeline : new CaptureTimeline[] {first, second}) {
+      assertTrue(timeline.getElapsedNanos(CaptureTimeline.Stage.CAPTURE_STARTED,
+        CaptureTimeline.Stage.IMAGE_AVAILABLE)>=
+        TimeUnit.MILLISECONDS.toNanos(CAPTURE_MS-FRAME_MS));
+      assertTrue(timeline.getElapsedNanos(CaptureTimeline.Stage.IMAGE_AVAILABLE,
+        CaptureTimeline.Stage.EVENT_POSTED)>=
+        TimeUnit.MILLISECONDS.toNanos(SleepyProcessor.SLEEP_MS));
+      assertFalse(timeline.hasReached(CaptureTimeline.Stage.FILE_SYNCED));
+      assertEquals(1, timeline.getProcessorSpans().size());
+      assertEquals(SleepyProcessor.TAG,
+        timeline.getProcessorSpans().get(0).getTag());
+    }
+
+    assertEquals(2,
+      metrics.getStageLatency(CaptureTimeline.Stage.EVENT_POSTED).getCount());
+    assertEquals(0,
+      metrics.getStageLatency(CaptureTimeline.Stage.FOCUS_LOCKED).getCount());
+    assertEquals(2,
+      metrics.getProcessorLatency(SleepyProcessor.TAG).getCount());
+    assertTrue(metrics.getPercentileMicros(CaptureTimeline.Stage.EVENT_POSTED, 99)>=
+      TimeUnit.MILLISECONDS.toMicros(CAPTURE_MS+SleepyProcessor.SLEEP_MS));
+
+    engine.close(session);
+    assertTrue(next() instanceof CameraEngine.ClosedEvent);
+  }
+
+  @Test
+  public void burstKeepsFrameOrderAndPace() throws Exception {
+    CameraSession session=buildSession(0);
+    PictureTransaction xact=new PictureTransaction.Builder().build();
+    int count=5;
+    float fps=20.0f;
+
+    engine.setOpenLatency(0);
+    engine.open(session, null);
+    assertTrue(next() instanceof CameraEngine.OpenedEvent);
+
+    long start=System.nanoTime();
+
+    engine.takeBurst(session, count, fps, xact);
+
+    for (int i=0;i<count;i++) {
+      CameraEngine.PictureTakenEvent event=
+        (CameraEngine.PictureTakenEvent)next();
+
+      assertNull(event.exception);
+      assertEquals(i, event.getFrameIndex());
+      assertEquals(count, event.getFrameCount());
+    }
+
+    // frames are never early, so the burst takes at least
+    // (count-1) intervals
+
+    long elapsedMs=
+      TimeUnit.NANOSECONDS.toMillis(System.nanoTime()-start);
+
+    assertTrue("burst took "+elapsedMs+"ms",
+      elapsedMs>=(long)((count-1)*1000.0f/fps));
+
+    engine.close(session);
+    assertTrue(next() instanceof CameraEngine.ClosedEvent);
+  }
+
+  @Test
+  public void failedFrameKeepsLaterIndices() throws Exception {
+    CameraSession session=buildSession(0);
+    PictureTransaction xact=new PictureTransaction.Builder().build();
+
+    engine.setOpenLatency(0);
+    engine.setFailedFrame(1);
+    engine.open(session, null);
+    assertTrue(next() instanceof CameraEngine.OpenedEvent);
+
+    engine.takeBurst(session, 4, xact);
+
+    // a failure is posted straight away, so it may overtake
+    // the earlier frame while that one is being processed
+
+    ArrayList<Integer> indices=new ArrayList<Integer>();
+    int failures=0;
+
+    for (int i=0;i<4;i++) {
+      CameraEngine.PictureTakenEvent event=
+        (CameraEngine.PictureTakenEvent)next();
+
+      if (event.exception==null) {
+        indices.add(event.getFrameIndex());
+      }
+      else {
+        failures++;
+      }
+    }
+
+    Collections.sort(indices);
+    assertEquals(1, failures);
+    assertEquals(Arrays.asList(0, 2, 3), indices);
+
+    engine.close(session);
+    assertTrue(next() instanceof CameraEngine.ClosedEvent);
+  }
+
+  @Test
+  public void rejectsEmptyBurst() throws Exception {
+    CameraSession session=buildSession(0);
+    PictureTransaction xact=new PictureTransaction.Builder().build();
+
+    engine.setOpenLatency(0);
+    engine.open(session, null);
+    assertTrue(next() instanceof CameraEngine.OpenedEvent);
+
+    for (int count : new int[] {0, -1}) {
+      try {
+        engine.takeBurst(session, count, xact);
+        fail("burst of "+count+" was accepted");
+      }
+      catch (IllegalArgumentException e) {
+        // expected
+      }
+    }
+
+    engine.close(session);
+    assertTrue(next() instanceof CameraEngine.ClosedEvent);
+    assertTrue(events.isEmpty());
+  }
+
+  @Test
+  public void failedProcessorPostsError() throws Exception {
+    CameraSession session=buildSession(0);
+    PictureTransaction xact=new PictureTransaction.Builder()
+      .append(new FailingProcessor())
+      .build();
+
+    engine.setOpenLatency(0);
+    engine.open(session, null);
+    assertTrue(next() instanceof CameraEngine.OpenedEvent);
+
+    engine.takePicture(session, xact);
+
+    CameraEngine.PictureTakenEvent event=
+      (CameraEngine.PictureTakenEvent)next();
+
+    assertSame(FailingProcessor.FAILURE, event.exception);
+    assertNull(event.getImageContext());
+
+    engine.close(session);
+    assertTrue(next() instanceof CameraEngine.ClosedEvent);
+  }
+
+  @Test
+  public void deliversToListeners() throws Exception {
+    final LinkedBlockingQueue<Object> heard=
+      new LinkedBlockingQueue<Object>();
+    final LinkedBlockingQueue<Thread> threads=
+      new LinkedBlockingQueue<Thread>();
+    ExecutorService executor=Executors.newSingleThreadExecutor();
+    CameraEngine.Listener listener=new CameraEngine.SimpleListener() {
+      @Override
+      public void onOpened(CameraEngine.OpenedEvent event) {
+        heard.add(event);
+        threads.add(Thread.currentThread());
+      }
+
+      @Override
+      public void onClosed(CameraEngine.ClosedEvent event) {
+        heard.add(event);
+        threads.add(Thread.currentThread());
+      }
+    };
+    CameraSession session=buildSession(0);
+
+    engine.setOpenLatency(0);
+    engine.setCloseLatency(0);
+    engine.addListener(listener, executor);
+    engine.open(session, null);
+
+    // the listener and the bus each get the same event
+
+    Object opened=heard.poll(5, TimeUnit.SECONDS);
+
+    assertTrue(opened instanceof CameraEngine.OpenedEvent);
+    assertSame(opened, next());
+
+    engine.removeListener(listener);
+    engine.close(session);
+    assertTrue(next() instanceof CameraEngine.ClosedEvent);
+    executor.shutdown();
+    assertTrue(executor.awaitTermination(5, TimeUnit.SECONDS));
+    assertTrue(heard.isEmpty());
+    assertEquals(1, threads.size());
+    assertNotSame(Thread.currentThread(), threads.peek());
+  }
+
+  private CameraSession buildSession(int index) {
+    Context ctxt=new ContextWrapper(null) {
+      // pictures need an application context, which a bare
+      // ContextWrapper does not have off-device
+      @Override
+      public Context getApplicationContext() {
+        return(this);
+      }
+    };
+
+    return(engine.buildSession(ctxt, cameras.get(index)).build());
+  }
+
+  private static class SleepyProcessor implements ImageProcessor {
+    static final String TAG="sleepy";
+    static final long SLEEP_MS=20;
+
+    @Override
+    public void process(PictureTransaction xact,
+                        ImageContext imageContext) {
+      try {
+        Thread.sleep(SLEEP_MS);
+      }
+      catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+
+    @Override
+    public String getTag() {
+      return(TAG);
+    }
+  }
+
+  private static class FailingProcessor implements ImageProcessor {
+    static final RuntimeException FAILURE=
+      new IllegalStateException("Processing failed");
+
+    @Override
+    public void process(PictureTransaction xact,
+                        ImageContext imageContext) {
+      throw FAILURE;
+    }
+
+    @Override
+    public String getTag() {
+      return("failing");
+    }
+  }
+
+  private Object next() throws InterruptedException {
+    Object result=events.poll(5, TimeUnit.SECONDS);
+
+    assertNotNull("timed out waiting for an event", result);
+
+    return(result);
+  }
+}
@@ -0,0 +1,273 @@
+/***
+ Copyright (c) 2016 CommonsWare, LLC
+
+ Licensed under the Apache License, Version 2.0 (the "License"); you may
+ not use this file except in compliance with the License. You may obtain
+ a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+package com.commonsware.cwac.cam2;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * Feeds synthetic YUV frames through a FrameDispatcher, the
+ * way the engines feed preview frames, to a simple sharpness
+ * analyzer.
+ */
+public class FrameDispatcherTest {
+  private static final int WIDTH=64;
+  private static final int HEIGHT=48;
+  private ExecutorService executor;
+
+  @Before
+  public void setUp() {
+    executor=Executors.newSingleThreadExecutor();
+  }
+
+  @After
+  public void tearDown() {
+    executor.shutdownNow();
+  }
+
+  @Test
+  public void wrapsNv21() {
+    byte[] nv21=buildNv21(false);
+
+    // chroma rows: V at even offsets, U at odd ones
+
+    nv21[WIDTH*HEIGHT+WIDTH+2]=(byte)200;
+    nv21[WIDTH*HEIGHT+WIDTH+3]=(byte)100;
+
+    Frame frame=Frame.fromNv21(nv21, WIDTH, HEIGHT, 42);
+
+    assertEquals(WIDTH, frame.getWidth());
+    assertEquals(HEIGHT, frame.getHeight());
+    assertEquals(42, frame.getTimestamp());
+    assertEquals(128, frame.getLuminance(3, 5));
+    assertEquals(200, frame.getPlanes()[Frame.V].get(1, 1));
+    assertEquals(100, frame.getPlanes()[Frame.U].get(1, 1));
+  }
+
+  @Test
+  public void analyzesFramesFromPlanes() throws Exception {
+    SharpnessAnalyzer analyzer=new SharpnessAnalyzer();
+    FrameDispatcher dispatcher=new FrameDispatcher(analyzer, executor);
+
+    assertTrue(dispatcher.offer(Frame.fromNv21(buildNv21(false),
+      WIDTH, HEIGHT, 0), analyzer.done));
+    analyzer.await();
+
+    double flat=analyzer.score;
+
+    // camera2-style frame, with padded rows and a separate
+    // plane per component
+
+    int rowStride=WIDTH+16;
+    byte[] y=new byte[rowStride*HEIGHT];
+    byte[] chroma=new byte[rowStride*HEIGHT/2];
+    byte[] nv21=buildNv21(true);
+
+    for (int row=0;row<HEIGHT;row++) {
+      System.arraycopy(nv21, row*WIDTH, y, row*rowStride, WIDTH);
+    }
+
+    Frame frame=new Frame(WIDTH, HEIGHT, 1, new Frame.Plane[] {
+      new Frame.Plane(ByteBuffer.wrap(y), rowStride, 1),
+      new Frame.Plane(ByteBuffer.wrap(chroma), rowStride, 2),
+      new Frame.Plane(ByteBuffer.wrap(chroma, 1, chroma.length-1)
+        .slice(), rowStride, 2) });
+
+    analyzer.reset();
+    awaitIdle();
+    assertTrue(dispatcher.offer(frame, analyzer.done));
+    analyzer.await();
+
+    assertEquals(0.0d, flat, 0.0d);
+    assertTrue(analyzer.score>flat);
+    assertEquals(2, dispatcher.getAnalyzedCount());
+    assertEquals(2, dispatcher.getLatency().getCount());
+  }
+
+  @Test
+  public void dropsFramesWhileBusy() throws Exception {
+    final CountDownLatch release=new CountDownLatch(1);
+    final CountDownLatch finished=new CountDownLatch(1);
+    final AtomicInteger recycled=new AtomicInteger();
+    final AtomicBoolean acceptedWhileRecycling=new AtomicBoolean(true);
+    final FrameDispatcher dispatcher=new FrameDispatcher(new FrameAnalyzer() {
+      @Override
+      public void analyze(Frame frame) {
+        try {
+          release.await();
+        }
+        catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+      }
+    }, executor);
+    Runnable recycle=new Runnable() {
+      @Override
+      public void run() {
+        // the buffer is not back yet, so neither is the analyzer
+
+        acceptedWhileRecycling.set(dispatcher.offer(
+          Frame.fromNv21(buildNv21(true), WIDTH, HEIGHT, 0), this));
+        recycled.incrementAndGet();
+        finished.countDown();
+      }
+    };
+
+    assertTrue(dispatcher.offer(Frame.fromNv21(buildNv21(true),
+      WIDTH, HEIGHT, 0), recycle));
+
+    for (int i=1;i<=10;i++) {
+      assertFalse(dispatcher.offer(Frame.fromNv21(buildNv21(true),
+        WIDTH, HEIGHT, i), recycle));
+    }
+
+    assertEquals(10, dispatcher.getDroppedCount());
+    assertEquals(0, recycled.get());
+
+    release.countDown();
+    assertTrue(finished.await(5, TimeUnit.SECONDS));
+    assertEquals(1, recycled.get());
+    assertFalse(acceptedWhileRecycling.get());
+
+    // once the analyzer is idle, frames are accepted again
+
+    awaitIdle();
+
+    assertTrue(dispatcher.offer(Frame.fromNv21(buildNv21(true),
+      WIDTH, HEIGHT, 11), new Runnable() {
+      @Override
+      public void run() {
+        // nothing to recycle
+      }
+    }));
+  }
+
+  @Test
+  public void dropsFramesTheExecutorRefuses() {
+    final AtomicInteger refused=new AtomicInteger();
+    FrameDispatcher dispatcher=new FrameDispatcher(new SharpnessAnalyzer(),
+      new Executor() {
+        @Override
+        public void execute(Runnable command) {
+          refused.incrementAndGet();
+
+          throw new RejectedExecutionException("saturated");
+        }
+      });
+    Runnable fail=new Runnable() {
+      @Override
+      public void run() {
+        fail("refused frame was recycled by the dispatcher");
+      }
+    };
+
+    // the dispatcher is not left busy, so each frame is offered
+    // to the executor
+
+    assertFalse(dispatcher.offer(Frame.fromNv21(buildNv21(false),
+      WIDTH, HEIGHT, 0), fail));
+    assertFalse(dispatcher.offer(Frame.fromNv21(buildNv21(false),
+      WIDTH, HEIGHT, 1), fail));
+    assertEquals(2, refused.get());
+    assertEquals(2, dispatcher.getDroppedCount());
+    assertEquals(0, dispatcher.getAnalyzedCount());
+  }
+
+  /**
+   * Waits for the dispatcher to finish with its frame, which
+   * is only after onDone has run. The executor has one thread,
+   * so a task queued behind the frame waits it out.
+   */
+  private void awaitIdle() throws Exception {
+    executor.submit(new Runnable() {
+      @Override
+      public void run() {
+        // nothing to do
+      }
+    }).get(5, TimeUnit.SECONDS);
+  }
+
+  /**
+   * @param isStriped true for alternating black and white
+   *                  columns, false for flat gray
+   */
+  private static byte[] buildNv21(boolean isStriped) {
+    byte[] result=new byte[WIDTH*HEIGHT*3/2];
+
+    for (int row=0;row<HEIGHT;row++) {
+      for (int col=0;col<WIDTH;col++) {
+        result[row*WIDTH+col]=
+          (byte)(isStriped ? (col%2==0 ? 0 : 255) : 128);
+      }
+    }
+
+    for (int i=WIDTH*HEIGHT;i<result.length;i++) {
+      result[i]=(byte)128;
+    }
+
+    return(result);
+  }
+
+  /**
+   * Scores sharpness as the mean absolute difference between
+   * horizontally-adjacent luminance values, a crude stand-in
+   * for the blur scoring a real analyzer would do.
+   */
+  private static class SharpnessAnalyzer implements FrameAnalyzer {
+    volatile double score=-1;
+    private volatile CountDownLatch latch=new CountDownLatch(1);
+    final Runnable done=new Runnable() {
+      @Override
+      public void run() {
+        latch.countDown();
+      }
+    };
+
+    @Override
+    public void analyze(Frame frame) {
+      long total=0;
+
+      for (int y=0;y<frame.getHeight();y++) {
+        for (int x=1;x<frame.getWidth();x++) {
+          total+=Math.abs(frame.getLuminance(x, y)-
+            frame.getLuminance(x-1, y));
+        }
+      }
+
+      score=(double)total/(frame.getHeight()*(frame.getWidth()-1));
+    }
+
+    void reset() {
+      latch=new CountDownLatch(1);
+    }
+
+    void await() throws InterruptedException {
+      assertTrue(latch.await(5, TimeUnit.SECONDS));
+    }
+  }
+}
@@ -0,0 +1,205 @@
+/***
+ Copyright (c) 2016 CommonsWare, LLC
+
+ Licensed under the Apache License, Version 2.0 (the "License"); you may
+ not use this file except in compliance with the License. You may obtain
+ a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+
+package com.commonsware.cwac.cam2;
+
+import android.content.Context;
+import android.content.ContextWrapper;
+
+import com.commonsware.cwac.cam2.util.BufferPool;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks that an ImageContext on a camera buffer is read in
+ * place, and hands the buffer back only on its last release().
+ */
+public class ImageContextTest {
+  private final Context ctxt=new ContextWrapper(null) {
+    // ImageContexts hold the application context, which a bare
+    // ContextWrapper does not have off-device
+    @Override
+    public Context getApplicationContext() {
+      return(this);
+    }
+  };
+  private final AtomicInteger handedBack=new AtomicInteger();
+  private final Runnable onRelease=new Runnable() {
+    @Override
+    public void run() {
+      handedBack.incrementAndGet();
+    }
+  };
+
+  @Test
+  public void readsCameraBufferInPlace() {
+    ByteBuffer camera=ByteBuffer.allocateDirect(1024);
+    ImageContext imageContext=
+      new ImageContext(ctxt, camera, onRelease, new BufferPool());
+
+    camera.put(10, (byte)42);
+
+    ByteBuffer view=imageContext.getJpegByteBuffer();
+
+    assertTrue(view.isDirect());
+    assertEquals(42, view.get(10));
+    assertEquals(1024, imageContext.getJpegLength());
+
+    imageContext.retain();
+    imageContext.release();
+    assertEquals(0, handedBack.get());
+
+    imageContext.release();
+    assertEquals(1, handedBack.get());
+  }
+
+  @Test
+  public void copiesOnlyOnce() {
+    BufferPool pool=new BufferPool();
+    ImageContext imageContext=new ImageContext(ctxt,
+      ByteBuffer.allocateDirect(1024), onRelease, pool);
+
+    imageContext.detach();
+    assertEquals(1, handedBack.get());
+
+    byte[] copy=imageContext.getJpegBuffer();
+
+    imageContext.detach();
+    assertSame(copy, imageContext.getJpegBuffer());
+    assertEquals(1, pool.getMissCount());
+
+    imageContext.release();
+    assertEquals(1, handedBack.get());
+    assertEquals(copy.length, pool.getPooledBytes());
+  }
+
+  @Test
+  public void copiesOnceAcrossThreads() throws Exception {
+    final BufferPool pool=new BufferPool();
+    final ImageContext imageContext=new ImageContext(ctxt,
+      ByteBuffer.allocateDirect(1024), onRelease, pool);
+    final CountDownLatch start=new CountDownLatch(1);
+    final byte[][] copies=new byte[8][];
+    Thread[] readers=new Thread[copies.length];
+
+    for (int i=0;i<readers.length;i++) {
+      final int index=i;
+
+      readers[i]=new Thread() {
+        @Override
+        public void run() {
+          try {
+            start.await();
+          }
+          catch (InterruptedException e) {
+            return;
+          }
+
+          copies[index]=imageContext.getJpegBuffer();
+        }
+      };
+      readers[i].start();
+    }
+
+    start.countDown();
+
+    for (Thread reader : readers) {
+      reader.join(5000);
+    }
+
+    // everyone sees the one copy, and the camera buffer went
+    // back just once
+
+    for (byte[] copy : copies) {
+      assertSame(copies[0], copy);
+    }
+
+    assertEquals(1, handedBack.get());
+    assertEquals(1, pool.getMissCount());
+  }
+
+  @Test(expected=IllegalStateException.class)
+  public void rejectsUseAfterRelease() {
+    ImageContext imageContext=new ImageContext(ctxt,
+      ByteBuffer.allocateDirect(1024), onRelease, null);
+
+    imageContext.release();
+    imageContext.getJpegByteBuffer();
+  }
+
+  @Test
+  public void waitsForPendingWrites() {
+    final AtomicInteger written=new AtomicInteger();
+    Runnable onWritten=new Runnable() {
+      @Override
+      public void run() {
+        written.incrementAndGet();
+      }
+    };
+    ImageContext imageContext=new ImageContext(ctxt, new byte[16]);
+
+    imageContext.beginWrite();
+    imageContext.beginWrite();
+    imageContext.whenWritten(onWritten);
+    imageContext.endWrite();
+    assertEquals(0, written.get());
+
+    imageContext.endWrite();
+    assertEquals(1, written.get());
+
+    imageContext.whenWritten(onWritten);
+    assertEquals(2, written.get());
+  }
+
+  @Test
+  public void keepsBackgroundWritesApart() {
+    final AtomicInteger written=new AtomicInteger();
+    final AtomicInteger backgroundWritten=new AtomicInteger();
+    ImageContext imageContext=new ImageContext(ctxt, new byte[16]);
+
+    imageContext.beginBackgroundWrite();
+    imageContext.whenWritten(new Runnable() {
+      @Override
+      public void run() {
+        written.incrementAndGet();
+      }
+    });
+    imageContext.whenBackgroundWritten(new Runnable() {
+      @Override
+      public void run() {
+        backgroundWritten.incrementAndGet();
+      }
+    });
+    assertEquals(1, written.get());
+    assertEquals(0, backgroundWritten.get());
+
+    imageContext.endBackgroundWrite();
+    assertEquals(1, backgroundWritten.get());
+
+    try {
+      imageContext.endBackgroundWrite();
+      fail("unmatched endBackgroundWrite() was accepted");
+    }
+    catch (IllegalStateException e) {
+      // expected
+    }
+  }
+}
@@ -0,0 +1,197 @@
+/***
+ Copyright (c) 2016 CommonsWare, LLC
+
+ Licensed under the Apache License, Version 2.0 (the "License"); you may
+ not use this file except in compliance with the License. You may obtain
+ a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+
+package com.commonsware.cwac.cam2;
+
+import android.content.Context;
+import android.content.ContextWrapper;
+
+import com.commonsware.cwac.cam2.util.BufferPool;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks what the deferred durability modes of JPEGWriter do
+ * with the picture once process() has returned.
+ */
+public class JPEGWriterTest {
+  private static final byte[] JPEG=new byte[4096];
+  @Rule
+  public TemporaryFolder folder=new TemporaryFolder();
+  private final Context ctxt=new ContextWrapper(null) {
+    // ImageContexts hold the application context, which a bare
+    // ContextWrapper does not have off-device
+    @Override
+    public Context getApplicationContext() {
+      return(this);
+    }
+  };
+
+  static {
+    for (int i=0;i<JPEG.length;i++) {
+      JPEG[i]=(byte)(i*31+7);
+    }
+  }
+
+  @Test
+  public void asyncWritesItsOwnCopy() throws Exception {
+    BufferPool pool=new BufferPool();
+    byte[] leased=pool.acquire(JPEG.length);
+    File file=new File(folder.getRoot(), "async.jpg");
+    WriteLatch latch=new WriteLatch();
+    JPEGWriter writer=new JPEGWriter(ctxt, null,
+      JPEGWriter.Durability.ASYNC, latch);
+
+    System.arraycopy(JPEG, 0, leased, 0, JPEG.length);
+
+    ImageContext imageContext=
+      new ImageContext(ctxt, leased, JPEG.length, pool);
+
+    writer.writeFile(file, imageContext, false);
+
+    // a later processor replaces the JPEG, so the buffer goes
+    // back to the pool, and on to another picture, before the
+    // write gets to it
+
+    imageContext.setJpeg(new byte[1]);
+    Arrays.fill(pool.acquire(JPEG.length), (byte)0);
+    imageContext.release();
+
+    latch.await();
+    assertArrayEquals(JPEG, read(file));
+  }
+
+  @Test
+  public void groupCommitHoldsEventUntilCommitted() throws Exception {
+    final File file=new File(folder.getRoot(), "group.jpg");
+    final AtomicBoolean existed=new AtomicBoolean();
+    final CountDownLatch posted=new CountDownLatch(1);
+    WriteLatch latch=new WriteLatch();
+    JPEGWriter writer=new JPEGWriter(ctxt, null,
+      JPEGWriter.Durability.GROUP_COMMIT, latch);
+    ImageContext imageContext=new ImageContext(ctxt, JPEG.clone());
+
+    writer.writeFile(file, imageContext, false);
+    imageContext.whenWritten(new Runnable() {
+      @Override
+      public void run() {
+        existed.set(file.exists());
+        posted.countDown();
+      }
+    });
+
+    assertTrue(posted.await(5, TimeUnit.SECONDS));
+    assertTrue(existed.get());
+    latch.await();
+    assertArrayEquals(JPEG, read(file));
+  }
+
+  @Test
+  public void asyncHoldsMetricsUntilWritten() throws Exception {
+    final File file=new File(folder.getRoot(), "metrics.jpg");
+    final CaptureTimeline timeline=new CaptureTimeline();
+    final AtomicBoolean synced=new AtomicBoolean();
+    final AtomicBoolean existed=new AtomicBoolean();
+    final AtomicBoolean posted=new AtomicBoolean();
+    final CountDownLatch reported=new CountDownLatch(1);
+    WriteLatch latch=new WriteLatch();
+    JPEGWriter writer=new JPEGWriter(ctxt, null,
+      JPEGWriter.Durability.ASYNC, latch);
+    ImageContext imageContext=new ImageContext(ctxt, JPEG.clone());
+
+    imageContext.setTimeline(timeline);
+    writer.writeFile(file, imageContext, false);
+
+    // the event goes out right away...
+
+    imageContext.whenWritten(new Runnable() {
+      @Override
+      public void run() {
+        posted.set(true);
+      }
+    });
+    assertTrue(posted.get());
+
+    // ...but the metrics wait for the file
+
+    imageContext.whenBackgroundWritten(new Runnable() {
+      @Override
+      public void run() {
+        synced.set(timeline.hasReached(CaptureTimeline.Stage.FILE_SYNCED));
+        existed.set(file.exists());
+        reported.countDown();
+      }
+    });
+
+    assertTrue(reported.await(5, TimeUnit.SECONDS));
+    assertTrue(synced.get());
+    assertTrue(existed.get());
+    latch.await();
+  }
+
+  private static byte[] read(File file) throws IOException {
+    byte[] result=new byte[(int)file.length()];
+    FileInputStream in=new FileInputStream(file);
+
+    try {
+      int offset=0;
+
+      while (offset<result.length) {
+        int count=in.read(result, offset, result.length-offset);
+
+        if (count<0) {
+          break;
+        }
+
+        offset+=count;
+      }
+    }
+    finally {
+      in.close();
+    }
+
+    return(result);
+  }
+
+  private static class WriteLatch implements JPEGWriter.Callback {
+    private final CountDownLatch done=new CountDownLatch(1);
+    private final AtomicReference<Exception> failure=
+      new AtomicReference<Exception>();
+
+    @Override
+    public void onWriteComplete(String path, Exception e) {
+      failure.set(e);
+      done.countDown();
+    }
+
+    void await() throws InterruptedException {
+      assertTrue(done.await(5, TimeUnit.SECONDS));
+      assertNull(failure.get());
+    }
+  }
+}
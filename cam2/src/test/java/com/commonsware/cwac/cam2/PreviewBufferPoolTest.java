@@ -0,0 +1,120 @@
+/***
+ Copyright (c) 2016 CommonsWare, LLC
+
+ Licensed under the Apache License, Version 2.0 (the "License"); you may
+ not use this file except in compliance with the License. You may obtain
+ a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+package com.commonsware.cwac.cam2;
+
+import android.graphics.ImageFormat;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Plays the part of the camera for a PreviewBufferPool: takes
+ * the buffers it is handed, "fills" them, and checks that they
+ * only come back once every consumer is done.
+ */
+public class PreviewBufferPoolTest {
+  private static final int WIDTH=32;
+  private static final int HEIGHT=24;
+  private final List<byte[]> withCamera=new ArrayList<byte[]>();
+  private PreviewBufferPool pool;
+
+  @Before
+  public void setUp() {
+    pool=new PreviewBufferPool(WIDTH, HEIGHT, ImageFormat.NV21,
+      WIDTH*HEIGHT*3/2, PreviewBufferPool.DEFAULT_BUFFER_COUNT,
+      new PreviewBufferPool.Recycler() {
+        @Override
+        public void recycle(byte[] buffer) {
+          withCamera.add(buffer);
+        }
+      });
+    pool.start();
+  }
+
+  @Test
+  public void handsOutPreallocatedBuffers() {
+    assertEquals(PreviewBufferPool.DEFAULT_BUFFER_COUNT,
+      withCamera.size());
+
+    for (byte[] buffer : withCamera) {
+      assertEquals(WIDTH*HEIGHT*3/2, buffer.length);
+    }
+
+    assertNull(pool.onFilled(new byte[WIDTH*HEIGHT*3/2]));
+  }
+
+  @Test
+  public void recyclesOnLastRelease() {
+    byte[] data=withCamera.remove(0);
+    PreviewBufferPool.PreviewBuffer buffer=pool.onFilled(data);
+
+    // two consumers, such as the analyzer and the debug save
+
+    buffer.retain();
+    buffer.retain();
+    buffer.release();
+    buffer.releaser.run();
+
+    assertEquals(1, pool.getOutstandingCount());
+    assertFalse(withCamera.contains(data));
+
+    buffer.release();
+
+    assertEquals(0, pool.getOutstandingCount());
+    assertSame(data, withCamera.get(withCamera.size()-1));
+    assertEquals(1, pool.getDeliveredCount());
+  }
+
+  @Test
+  public void reusesFrameViews() {
+    byte[] data=withCamera.remove(0);
+
+    data[WIDTH*2+5]=(byte)77;
+
+    PreviewBufferPool.PreviewBuffer buffer=pool.onFilled(data);
+    Frame first=buffer.toFrame(1);
+    Frame second=buffer.toFrame(2);
+
+    assertSame(first, second);
+    assertEquals(77, second.getLuminance(5, 2));
+    assertEquals(2, second.getTimestamp());
+    buffer.release();
+  }
+
+  @Test
+  public void stopsRecyclingOnceClosed() {
+    byte[] data=withCamera.remove(0);
+    PreviewBufferPool.PreviewBuffer buffer=pool.onFilled(data);
+
+    pool.close();
+    buffer.release();
+
+    assertFalse(withCamera.contains(data));
+  }
+
+  @Test(expected=IllegalStateException.class)
+  public void rejectsExtraRelease() {
+    PreviewBufferPool.PreviewBuffer buffer=
+      pool.onFilled(withCamera.remove(0));
+
+    buffer.release();
+    buffer.release();
+  }
+}
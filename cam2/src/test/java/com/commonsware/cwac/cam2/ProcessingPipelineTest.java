@@ -0,0 +1,156 @@
+/***
+ Copyright (c) 2016 CommonsWare, LLC
+
+ Licensed under the Apache License, Version 2.0 (the "License"); you may
+ not use this file except in compliance with the License. You may obtain
+ a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+
+package com.commonsware.cwac.cam2;
+
+import android.content.Context;
+import android.content.ContextWrapper;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks that handing pictures to a ProcessingPipeline never
+ * holds up the (camera) thread doing the handing, even when the
+ * first stage is stuck, and that order is kept.
+ */
+public class ProcessingPipelineTest {
+  private final Context ctxt=new ContextWrapper(null) {
+    // ImageContexts hold the application context, which a bare
+    // ContextWrapper does not have off-device
+    @Override
+    public Context getApplicationContext() {
+      return(this);
+    }
+  };
+  private final ProcessingPipeline pipeline=new ProcessingPipeline(1);
+  private final CountDownLatch stuck=new CountDownLatch(1);
+  private final CountDownLatch unstick=new CountDownLatch(1);
+
+  @After
+  public void tearDown() {
+    unstick.countDown();
+    pipeline.shutdown();
+  }
+
+  @Test
+  public void submitDoesNotBlockWhenFirstStageIsFull()
+    throws Exception {
+    final int pictures=20;
+    final CountDownLatch processed=new CountDownLatch(pictures);
+    final List<Integer> order=
+      Collections.synchronizedList(new ArrayList<Integer>());
+    PictureTransaction xact=new PictureTransaction.Builder()
+      .append(new StuckProcessor())
+      .build();
+
+    // the first picture sticks in stage 0, so everything else
+    // has to wait, well past the queue capacity
+
+    for (int i=0;i<pictures;i++) {
+      final int picture=i;
+
+      pipeline.submit(xact, new ImageContext(ctxt, new byte[16]),
+        new ProcessingPipeline.Callback() {
+          @Override
+          public void onProcessed(PictureTransaction xact,
+                                  ImageContext imageContext) {
+            order.add(picture);
+            processed.countDown();
+          }
+
+          @Override
+          public void onError(PictureTransaction xact,
+                              ImageContext imageContext,
+                              Exception e) {
+            fail(e.toString());
+          }
+        });
+
+      if (i==0) {
+        assertTrue(stuck.await(5, TimeUnit.SECONDS));
+      }
+    }
+
+    assertEquals(pictures-1, pipeline.getStats().getQueueDepth(0));
+    assertEquals(0, order.size());
+
+    unstick.countDown();
+    assertTrue(processed.await(5, TimeUnit.SECONDS));
+
+    for (int i=0;i<pictures;i++) {
+      assertEquals(i, (int)order.get(i));
+    }
+  }
+
+  @Test
+  public void reportsSubmitAfterShutdown() throws Exception {
+    final List<Exception> errors=
+      Collections.synchronizedList(new ArrayList<Exception>());
+    PictureTransaction xact=new PictureTransaction.Builder()
+      .append(new StuckProcessor())
+      .build();
+
+    pipeline.shutdown();
+    pipeline.submit(xact, new ImageContext(ctxt, new byte[16]),
+      new ProcessingPipeline.Callback() {
+        @Override
+        public void onProcessed(PictureTransaction xact,
+                                ImageContext imageContext) {
+          fail("processed after shutdown");
+        }
+
+        @Override
+        public void onError(PictureTransaction xact,
+                            ImageContext imageContext,
+                            Exception e) {
+          errors.add(e);
+        }
+      });
+
+    assertEquals(1, errors.size());
+    assertTrue(errors.get(0) instanceof RejectedExecutionException);
+    assertEquals(1, stuck.getCount());
+  }
+
+  private class StuckProcessor implements ImageProcessor {
+    @Override
+    public void process(PictureTransaction xact,
+                        ImageContext imageContext) {
+      stuck.countDown();
+
+      try {
+        unstick.await();
+      }
+      catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+
+    @Override
+    public String getTag() {
+      return("stuck");
+    }
+  }
+}
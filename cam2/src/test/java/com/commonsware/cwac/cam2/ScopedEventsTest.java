@@ -0,0 +1,230 @@
+/***
+ Copyright (c) 2016 CommonsWare, LLC
+
+ Licensed under the Apache License, Version 2.0 (the "License"); you may
+ not use this file except in compliance with the License. You may obtain
+ a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+
+package com.commonsware.cwac.cam2;
+
+import android.content.Context;
+import android.content.ContextWrapper;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import de.greenrobot.event.EventBus;
+
+import static org.junit.Assert.*;
+
+/**
+ * Runs two camera UIs' worth of controllers and sessions on one
+ * FakeCameraEngine, and checks that each only hears about its
+ * own events, rather than everything on the default EventBus.
+ */
+public class ScopedEventsTest {
+  private static final Executor DIRECT_EXECUTOR=new Executor() {
+    @Override
+    public void execute(Runnable task) {
+      task.run();
+    }
+  };
+
+  private FakeCameraEngine engine;
+  private final Events engineEvents=new Events();
+
+  @Before
+  public void setUp() {
+    engine=new FakeCameraEngine(2);
+    engine.setBus(new EventBus());
+    engine.getBus().register(engineEvents);
+    engine.setOpenLatency(0);
+    engine.setCloseLatency(0);
+  }
+
+  @After
+  public void tearDown() {
+    engine.getBus().unregister(engineEvents);
+  }
+
+  @Test
+  public void controllersOnlySeeTheirOwnEvents() throws Exception {
+    CameraController first=new CameraController(null, null, false, false);
+    CameraController second=new CameraController(null, null, false, false);
+    Events firstEvents=new Events();
+    Events secondEvents=new Events();
+
+    assertNotSame(first.getBus(), second.getBus());
+    first.getBus().register(firstEvents);
+    second.getBus().register(secondEvents);
+
+    // engine events would otherwise go to the main thread, which
+    // there is none of off-device
+
+    first.setListenerExecutor(DIRECT_EXECUTOR);
+    second.setListenerExecutor(DIRECT_EXECUTOR);
+    first.setEngine(engine, null);
+    second.setEngine(engine, null);
+
+    // each bus gets its controller's cameras and readiness, and
+    // nothing of the other's
+
+    assertReady(first, firstEvents);
+    assertReady(second, secondEvents);
+
+    first.destroy();
+    assertSame(first,
+      ((CameraController.ControllerDestroyedEvent)firstEvents.next())
+        .getDestroyedController());
+
+    second.destroy();
+    assertSame(second,
+      ((CameraController.ControllerDestroyedEvent)secondEvents.next())
+        .getDestroyedController());
+
+    assertNothingMore(firstEvents);
+    assertNothingMore(secondEvents);
+    assertNothingMore(engineEvents);
+  }
+
+  @Test
+  public void sessionsOnlySeeTheirOwnEvents() throws Exception {
+    EventChannel firstChannel=new EventChannel(new EventBus());
+    EventChannel secondChannel=new EventChannel(new EventBus());
+    Events firstEvents=new Events();
+    Events secondEvents=new Events();
+
+    firstChannel.getBus().register(firstEvents);
+    secondChannel.getBus().register(secondEvents);
+    engine.loadCameraDescriptors(null);
+
+    List<CameraDescriptor> cameras=
+      ((CameraEngine.CameraDescriptorsEvent)engineEvents.next()).descriptors;
+    CameraSession first=buildSession(cameras.get(0), firstChannel);
+    CameraSession second=buildSession(cameras.get(1), secondChannel);
+    PictureTransaction xact=new PictureTransaction.Builder().build();
+
+    engine.open(first, null);
+    engine.open(second, null);
+    engine.takePicture(first, xact);
+    engine.takePicture(second, xact);
+
+    // pictures are processed off of the command queue, so wait
+    // for them before closing, as CameraFragment would
+
+    for (Events events : new Events[] {firstEvents, secondEvents}) {
+      assertTrue(events.next() instanceof CameraEngine.OpenedEvent);
+      assertTrue(events.next() instanceof CameraEngine.PictureTakenEvent);
+    }
+
+    engine.close(first);
+    engine.close(second);
+    assertTrue(firstEvents.next() instanceof CameraEngine.ClosedEvent);
+    assertTrue(secondEvents.next() instanceof CameraEngine.ClosedEvent);
+
+    assertNothingMore(firstEvents);
+    assertNothingMore(secondEvents);
+    assertNothingMore(engineEvents);
+  }
+
+  private CameraSession buildSession(CameraDescriptor camera,
+                                     EventChannel channel) {
+    Context ctxt=new ContextWrapper(null) {
+      // pictures need an application context, which a bare
+      // ContextWrapper does not have off-device
+      @Override
+      public Context getApplicationContext() {
+        return(this);
+      }
+    };
+
+    return(engine.buildSession(ctxt, camera)
+      .setEventChannel(channel)
+      .build());
+  }
+
+  private static void assertReady(CameraController ctlr, Events events)
+    throws InterruptedException {
+    CameraController.ControllerReadyEvent ready=null;
+    int descriptorsEvents=0;
+
+    for (int i=0;i<2;i++) {
+      Object event=events.next();
+
+      if (event instanceof CameraController.ControllerReadyEvent) {
+        ready=(CameraController.ControllerReadyEvent)event;
+      }
+      else if (event instanceof CameraEngine.CameraDescriptorsEvent) {
+        descriptorsEvents++;
+      }
+    }
+
+    assertNotNull(ready);
+    assertTrue(ready.isEventForController(ctlr));
+    assertEquals(1, descriptorsEvents);
+  }
+
+  private static void assertNothingMore(Events events)
+    throws InterruptedException {
+    Object extra=events.queue.poll(100, TimeUnit.MILLISECONDS);
+
+    assertNull("unexpected event: "+extra, extra);
+  }
+
+  /**
+   * Collects events from one bus. EventBus only calls public
+   * methods on public classes.
+   */
+  public static class Events {
+    private final LinkedBlockingQueue<Object> queue=
+      new LinkedBlockingQueue<Object>();
+
+    public void onEvent(CameraEngine.CameraDescriptorsEvent event) {
+      queue.add(event);
+    }
+
+    public void onEvent(CameraEngine.OpenedEvent event) {
+      queue.add(event);
+    }
+
+    public void onEvent(CameraEngine.ClosedEvent event) {
+      queue.add(event);
+    }
+
+    public void onEvent(CameraEngine.PictureTakenEvent event) {
+      queue.add(event);
+    }
+
+    public void onEvent(CameraController.ControllerReadyEvent event) {
+      queue.add(event);
+    }
+
+    public void onEvent(CameraController.ControllerDestroyedEvent event) {
+      queue.add(event);
+    }
+
+    Object next() throws InterruptedException {
+      Object result=queue.poll(5, TimeUnit.SECONDS);
+
+      if (result==null) {
+        throw new IllegalStateException("Timed out waiting for an event");
+      }
+
+      return(result);
+    }
+  }
+}
@@ -0,0 +1,120 @@
+/***
+ Copyright (c) 2016 CommonsWare, LLC
+
+ Licensed under the Apache License, Version 2.0 (the "License"); you may
+ not use this file except in compliance with the License. You may obtain
+ a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+package com.commonsware.cwac.cam2;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks how ZslRing picks frames, with strings standing in
+ * for camera Images and a 33ms frame interval.
+ */
+public class ZslRingTest {
+  private static final long FRAME_NS=33000000L;
+  private final List<String> released=new ArrayList<String>();
+  private ZslRing<String> ring;
+
+  @Before
+  public void setUp() {
+    ring=new ZslRing<String>(3) {
+      @Override
+      void release(String frame) {
+        released.add(frame);
+      }
+    };
+  }
+
+  @Test
+  public void evictsOldestFrame() {
+    for (int i=0;i<5;i++) {
+      ring.addFrame(i*FRAME_NS, "frame"+i);
+    }
+
+    assertEquals(3, ring.getFrameCount());
+    assertEquals(2, released.size());
+    assertEquals("frame0", released.get(0));
+    assertEquals("frame1", released.get(1));
+  }
+
+  @Test
+  public void picksClosestUsableFrame() {
+    addFrame(0, true, true);
+    addFrame(1, true, true);
+    addFrame(2, false, true);   // hunting for focus
+    addFrame(3, true, false);   // exposure still moving
+
+    // frame0 was evicted, frames 2 and 3 are not usable
+
+    assertEquals("frame1", ring.take(ring.getLatestTimestamp()));
+    assertEquals(1, ring.getHitCount());
+    assertEquals(2, ring.getFrameCount());
+  }
+
+  @Test
+  public void prefersFrameNearestPress() {
+    addFrame(0, true, true);
+    addFrame(1, true, true);
+    addFrame(2, true, true);
+
+    long pressedAt=ring.getLatestTimestamp();
+
+    // the frame that was current at the press wins over older
+    // ones; once it has been taken, the next nearest is used
+
+    assertEquals("frame2", ring.take(pressedAt));
+    assertEquals("frame1", ring.take(pressedAt));
+  }
+
+  @Test
+  public void matchesResultsThatArriveFirst() {
+    ring.addResult(0, true, true);
+    ring.addFrame(0, "frame0");
+
+    assertEquals("frame0", ring.take(0));
+  }
+
+  @Test
+  public void missesWithoutUsableFrame() {
+    addFrame(0, false, false);
+    ring.addFrame(FRAME_NS, "no result yet");
+
+    assertNull(ring.take(ring.getLatestTimestamp()));
+    assertEquals(1, ring.getMissCount());
+    assertEquals(2, ring.getFrameCount());
+  }
+
+  @Test
+  public void clearReleasesEverything() {
+    addFrame(0, true, true);
+    addFrame(1, true, true);
+    ring.clear();
+
+    assertEquals(0, ring.getFrameCount());
+    assertEquals(2, released.size());
+    assertEquals(-1, ring.getLatestTimestamp());
+    assertNull(ring.take(0));
+  }
+
+  private void addFrame(int index, boolean isFocused,
+                        boolean isExposed) {
+    ring.addFrame(index*FRAME_NS, "frame"+index);
+    ring.addResult(index*FRAME_NS, isFocused, isExposed);
+  }
+}
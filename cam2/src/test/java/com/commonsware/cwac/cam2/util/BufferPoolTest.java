@@ -0,0 +1,172 @@
+/***
+ Copyright (c) 2016 CommonsWare, LLC
+
+ Licensed under the Apache License, Version 2.0 (the "License"); you may
+ not use this file except in compliance with the License. You may obtain
+ a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+
+package com.commonsware.cwac.cam2.util;
+
+import org.junit.Assume;
+import org.junit.Test;
+
+import java.lang.reflect.Method;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks the BufferPool's size classes and reuse, and that a
+ * warmed-up pool hands out picture-sized buffers without
+ * allocating.
+ */
+public class BufferPoolTest {
+  private static final int PICTURE_BYTES=3*1024*1024+12345;
+
+  @Test
+  public void roundsUpToSizeClasses() {
+    assertEquals(64*1024, BufferPool.roundToSizeClass(1));
+    assertEquals(64*1024, BufferPool.roundToSizeClass(64*1024));
+    assertEquals(80*1024, BufferPool.roundToSizeClass(64*1024+1));
+
+    for (int size=1000;size<200*1024*1024;size=size*3/2) {
+      int rounded=BufferPool.roundToSizeClass(size);
+
+      assertTrue(rounded>=size);
+
+      if (size>64*1024) {
+        assertTrue("class for "+size+" is "+rounded,
+          rounded<=size+size/4);
+      }
+    }
+  }
+
+  @Test
+  public void reusesReleasedBuffers() {
+    BufferPool pool=new BufferPool();
+    byte[] first=pool.acquire(PICTURE_BYTES);
+
+    assertEquals(BufferPool.roundToSizeClass(PICTURE_BYTES),
+      first.length);
+    pool.release(first);
+    assertEquals(first.length, pool.getPooledBytes());
+
+    // anything in the same size class gets the same buffer
+
+    assertSame(first, pool.acquire(PICTURE_BYTES+100));
+    assertEquals(1, pool.getHitCount());
+    assertEquals(1, pool.getMissCount());
+    assertEquals(0, pool.getPooledBytes());
+  }
+
+  @Test
+  public void ignoresForeignBuffers() {
+    BufferPool pool=new BufferPool();
+
+    pool.release(new byte[12345]);
+    pool.release(null);
+    assertEquals(0, pool.getPooledBytes());
+  }
+
+  @Test
+  public void evictsLeastRecentlyUsedClass() {
+    int small=BufferPool.roundToSizeClass(1024*1024);
+    int large=BufferPool.roundToSizeClass(4*1024*1024);
+    BufferPool pool=new BufferPool(2*large);
+    byte[] smallBuffer=pool.acquire(small);
+    byte[] largeBuffer=pool.acquire(large);
+
+    pool.release(smallBuffer);
+    pool.release(largeBuffer);
+    assertEquals(small+large, pool.getPooledBytes());
+
+    // a second large buffer only fits if the older small one
+    // goes
+
+    pool.release(new BufferPool().acquire(large));
+    assertEquals(2*large, pool.getPooledBytes());
+    assertEquals(1, pool.getEvictionCount());
+    assertNotSame(smallBuffer, pool.acquire(small));
+  }
+
+  @Test
+  public void warmPoolDoesNotAllocate() throws Exception {
+    AllocationCounter counter=AllocationCounter.forCurrentThread();
+
+    Assume.assumeTrue(counter!=null);
+
+    BufferPool pool=new BufferPool();
+    int cycles=1000;
+
+    for (int i=0;i<cycles;i++) {
+      cycle(pool);
+    }
+
+    long before=counter.get();
+
+    for (int i=0;i<cycles;i++) {
+      cycle(pool);
+    }
+
+    long allocated=counter.get()-before;
+
+    // without the pool, this would be about 3GB; allow a little
+    // for the counter's own reflection
+
+    assertTrue("allocated "+allocated+" bytes", allocated<4096);
+    assertEquals(1, pool.getMissCount());
+  }
+
+  private static void cycle(BufferPool pool) {
+    byte[] buffer=pool.acquire(PICTURE_BYTES);
+
+    buffer[0]++;
+    pool.release(buffer);
+  }
+
+  /**
+   * Reads the bytes allocated by a thread, where the JVM offers
+   * that (HotSpot does). Reflection keeps java.lang.management,
+   * which android.jar lacks, out of the compile.
+   */
+  static class AllocationCounter {
+    private final Object bean;
+    private final Method getAllocated;
+    private final long threadId;
+
+    private AllocationCounter(Object bean, Method getAllocated,
+                              long threadId) {
+      this.bean=bean;
+      this.getAllocated=getAllocated;
+      this.threadId=threadId;
+    }
+
+    static AllocationCounter forCurrentThread() {
+      try {
+        Object bean=Class.forName("java.lang.management.ManagementFactory")
+          .getMethod("getThreadMXBean")
+          .invoke(null);
+        Method getAllocated=Class.forName("com.sun.management.ThreadMXBean")
+          .getMethod("getThreadAllocatedBytes", long.class);
+        AllocationCounter result=new AllocationCounter(bean,
+          getAllocated, Thread.currentThread().getId());
+
+        return(result.get()<0 ? null : result);
+      }
+      catch (Exception e) {
+        return(null);
+      }
+    }
+
+    long get() throws Exception {
+      return((Long)getAllocated.invoke(bean, threadId));
+    }
+  }
+}
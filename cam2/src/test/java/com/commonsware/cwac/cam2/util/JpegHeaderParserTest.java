@@ -0,0 +1,251 @@
+/***
+ Copyright (c) 2016 CommonsWare, LLC
+
+ Licensed under the Apache License, Version 2.0 (the "License"); you may
+ not use this file except in compliance with the License. You may obtain
+ a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+
+package com.commonsware.cwac.cam2.util;
+
+import org.junit.Assume;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.*;
+
+/**
+ * Parses the sample JPEGs in src/test/resources/jpeg, whose
+ * expected details are listed in CORPUS.
+ */
+public class JpegHeaderParserTest {
+  private static final Sample[] CORPUS={
+    new Sample("baseline-420.jpg", 640, 480, 3, 2, 2, 0, false, false),
+    new Sample("baseline-422.jpg", 320, 240, 3, 2, 1, 0, false, false),
+    new Sample("baseline-444.jpg", 320, 240, 3, 1, 1, 0, false, false),
+    new Sample("grayscale-odd.jpg", 17, 13, 1, 1, 1, 0, false, false),
+    new Sample("progressive.jpg", 320, 240, 3, 2, 2, 0, false, false),
+    new Sample("exif-mm-rotate90.jpg", 640, 480, 3, 2, 2, 6, true, false),
+    new Sample("exif-ii-rotate270.jpg", 480, 640, 3, 2, 2, 8, true, true),
+    new Sample("exif-ii-no-orientation.jpg", 64, 48, 3, 2, 2, 0, true, true)
+  };
+  private static final int PADDING=7;
+
+  @Test
+  public void parsesArrays() throws IOException {
+    JpegHeaderParser parser=new JpegHeaderParser();
+
+    for (Sample sample : CORPUS) {
+      byte[] jpeg=sample.load();
+
+      // somewhere other than the start of the array
+
+      byte[] padded=new byte[jpeg.length+PADDING*2];
+
+      System.arraycopy(jpeg, 0, padded, PADDING, jpeg.length);
+      assertTrue(sample.name,
+        parser.parse(padded, PADDING, jpeg.length));
+      sample.check(parser, jpeg);
+    }
+  }
+
+  @Test
+  public void parsesBuffers() throws IOException {
+    JpegHeaderParser parser=new JpegHeaderParser();
+
+    for (Sample sample : CORPUS) {
+      byte[] jpeg=sample.load();
+      ByteBuffer buffer=ByteBuffer.allocateDirect(jpeg.length+PADDING);
+
+      buffer.position(PADDING);
+      buffer.put(jpeg);
+      buffer.position(PADDING);
+
+      assertTrue(sample.name, parser.parse(buffer));
+      assertEquals(PADDING, buffer.position());
+      sample.check(parser, jpeg);
+    }
+  }
+
+  @Test
+  public void resetsBetweenParses() throws IOException {
+    JpegHeaderParser parser=new JpegHeaderParser();
+    byte[] rotated=CORPUS[5].load();
+    byte[] plain=CORPUS[0].load();
+
+    assertTrue(parser.parse(rotated, 0, rotated.length));
+    assertEquals(6, parser.getOrientation());
+    assertTrue(parser.parse(plain, 0, plain.length));
+    assertEquals(JpegHeaderParser.ORIENTATION_UNKNOWN,
+      parser.getOrientation());
+    assertEquals(-1, parser.getExifOffset());
+  }
+
+  @Test
+  public void rejectsOtherData() throws IOException {
+    JpegHeaderParser parser=new JpegHeaderParser();
+    byte[] png={(byte)0x89, 'P', 'N', 'G', '\r', '\n', 0x1A, '\n'};
+    byte[] jpeg=CORPUS[0].load();
+
+    assertFalse(parser.parse(new byte[0], 0, 0));
+    assertFalse(parser.parse(png, 0, png.length));
+    assertEquals(0, parser.getWidth());
+
+    // cut off before the start-of-frame segment, including
+    // partway through a segment
+
+    for (int length=0;length<findStartOfFrame(jpeg);length++) {
+      assertFalse("length "+length, parser.parse(jpeg, 0, length));
+    }
+  }
+
+  @Test
+  public void allocatesNothing() throws Exception {
+    BufferPoolTest.AllocationCounter counter=
+      BufferPoolTest.AllocationCounter.forCurrentThread();
+
+    Assume.assumeTrue(counter!=null);
+
+    JpegHeaderParser parser=new JpegHeaderParser();
+    byte[] jpeg=CORPUS[6].load();
+    ByteBuffer buffer=ByteBuffer.wrap(jpeg);
+    int cycles=10000;
+
+    for (int i=0;i<cycles;i++) {
+      parser.parse(jpeg, 0, jpeg.length);
+      parser.parse(buffer);
+    }
+
+    long before=counter.get();
+
+    for (int i=0;i<cycles;i++) {
+      parser.parse(jpeg, 0, jpeg.length);
+      parser.parse(buffer);
+    }
+
+    long allocated=counter.get()-before;
+
+    // allow a little for the counter's own reflection
+
+    assertTrue("allocated "+allocated+" bytes", allocated<4096);
+  }
+
+  private static int findStartOfFrame(byte[] jpeg) {
+    for (int i=0;i<jpeg.length-1;i++) {
+      int marker=jpeg[i+1] & 0xFF;
+
+      if ((jpeg[i] & 0xFF)==0xFF && (marker==0xC0 || marker==0xC2)) {
+        return(i);
+      }
+    }
+
+    throw new IllegalStateException("No start-of-frame segment");
+  }
+
+  private static class Sample {
+    final String name;
+    final int width;
+    final int height;
+    final int components;
+    final int lumaH;
+    final int lumaV;
+    final int orientation;
+    final boolean hasExif;
+    final boolean littleEndian;
+
+    Sample(String name, int width, int height, int components,
+           int lumaH, int lumaV, int orientation, boolean hasExif,
+           boolean littleEndian) {
+      this.name=name;
+      this.width=width;
+      this.height=height;
+      this.components=components;
+      this.lumaH=lumaH;
+      this.lumaV=lumaV;
+      this.orientation=orientation;
+      this.hasExif=hasExif;
+      this.littleEndian=littleEndian;
+    }
+
+    byte[] load() throws IOException {
+      InputStream in=
+        JpegHeaderParserTest.class.getResourceAsStream("/jpeg/"+name);
+
+      assertNotNull("missing "+name, in);
+
+      try {
+        ByteArrayOutputStream out=new ByteArrayOutputStream();
+        byte[] chunk=new byte[8192];
+        int count;
+
+        while ((count=in.read(chunk))>=0) {
+          out.write(chunk, 0, count);
+        }
+
+        return(out.toByteArray());
+      }
+      finally {
+        in.close();
+      }
+    }
+
+    /**
+     * Checks the parser's results; offsets are checked against
+     * the JPEG's own bytes.
+     */
+    void check(JpegHeaderParser parser, byte[] jpeg) {
+      assertEquals(name, width, parser.getWidth());
+      assertEquals(name, height, parser.getHeight());
+      assertEquals(name, components, parser.getComponentCount());
+      assertEquals(name, lumaH, parser.getHorizontalSampling(0));
+      assertEquals(name, lumaV, parser.getVerticalSampling(0));
+
+      for (int i=1;i<components;i++) {
+        assertEquals(name, 1, parser.getHorizontalSampling(i));
+        assertEquals(name, 1, parser.getVerticalSampling(i));
+      }
+
+      assertEquals(name, orientation, parser.getOrientation());
+      assertEquals(name, littleEndian, parser.isExifLittleEndian());
+
+      if (hasExif) {
+        int app1=parser.getExifOffset();
+        int tiff=parser.getTiffOffset();
+
+        assertEquals(name, 0xFF, jpeg[app1] & 0xFF);
+        assertEquals(name, 0xE1, jpeg[app1+1] & 0xFF);
+        assertEquals(name, littleEndian ? 'I' : 'M', jpeg[tiff]);
+      }
+      else {
+        assertEquals(name, -1, parser.getExifOffset());
+        assertEquals(name, -1, parser.getTiffOffset());
+      }
+
+      int offset=parser.getOrientationOffset();
+
+      if (orientation==JpegHeaderParser.ORIENTATION_UNKNOWN) {
+        assertEquals(name, -1, offset);
+      }
+      else {
+        int value=littleEndian ?
+          (jpeg[offset] & 0xFF) | ((jpeg[offset+1] & 0xFF)<<8) :
+          ((jpeg[offset] & 0xFF)<<8) | (jpeg[offset+1] & 0xFF);
+
+        assertEquals(name, orientation, value);
+        assertEquals(name, orientation==6 ? 90 : 270,
+          JpegHeaderParser.getRotationDegrees(orientation));
+      }
+    }
+  }
+}
@@ -0,0 +1,221 @@
+/***
+ Copyright (c) 2016 CommonsWare, LLC
+
+ Licensed under the Apache License, Version 2.0 (the "License"); you may
+ not use this file except in compliance with the License. You may obtain
+ a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+
+package com.commonsware.cwac.cam2.util;
+
+import com.commonsware.cwac.cam2.util.JpegTransformer.Transform;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+/**
+ * Transforms the sample JPEGs in src/test/resources/jpeg. The
+ * expected output in jpeg/transform was checked when it was
+ * made by decoding it and comparing it with the decoded source,
+ * rotated or flipped pixel by pixel.
+ */
+public class JpegTransformerTest {
+  private static final String ORIENTATION="transform/orientation-96x64";
+  private static final String RESTART="transform/restart-64x48";
+
+  @Test
+  public void matchesReferences() throws IOException {
+    for (Transform transform : Transform.values()) {
+      checkReference(ORIENTATION, transform, false);
+    }
+
+    checkReference(RESTART, Transform.ROTATE_90, false);
+    checkReference("baseline-422", Transform.ROTATE_270, false);
+    checkReference("grayscale-odd", Transform.ROTATE_180, true);
+  }
+
+  @Test
+  public void composes() throws IOException {
+    JpegTransformer transformer=new JpegTransformer();
+    byte[] jpeg=load(ORIENTATION);
+    byte[] rotated90=transform(transformer, jpeg, Transform.ROTATE_90);
+    byte[] rotated180=transform(transformer, jpeg, Transform.ROTATE_180);
+
+    assertArrayEquals(rotated180,
+      transform(transformer, rotated90, Transform.ROTATE_90));
+    assertArrayEquals(transform(transformer, jpeg, Transform.ROTATE_270),
+      transform(transformer, rotated180, Transform.ROTATE_90));
+    assertArrayEquals(transform(transformer, jpeg, Transform.TRANSPOSE),
+      transform(transformer, rotated90, Transform.FLIP_HORIZONTAL));
+
+    // the output uses the standard Huffman tables, so undoing a
+    // transform of that output gives back the same bytes
+
+    for (Transform transform : Transform.values()) {
+      byte[] once=transform(transformer, rotated180, transform);
+      byte[] back=transform(transformer, once, inverse(transform));
+
+      assertArrayEquals(transform.name(), rotated180, back);
+    }
+  }
+
+  @Test
+  public void swapsDimensionsAndSampling() throws IOException {
+    JpegHeaderParser parser=new JpegHeaderParser();
+    byte[] jpeg=transform(new JpegTransformer(), load("baseline-422"),
+      Transform.ROTATE_90);
+
+    assertTrue(parser.parse(jpeg, 0, jpeg.length));
+    assertEquals(240, parser.getWidth());
+    assertEquals(320, parser.getHeight());
+    assertEquals(1, parser.getHorizontalSampling(0));
+    assertEquals(2, parser.getVerticalSampling(0));
+  }
+
+  @Test
+  public void keepsOtherSegments() throws IOException {
+    JpegHeaderParser parser=new JpegHeaderParser();
+    byte[] jpeg=transform(new JpegTransformer(),
+      load("exif-mm-rotate90"), Transform.ROTATE_90);
+
+    // updating the orientation is up to the caller
+
+    assertTrue(parser.parse(jpeg, 0, jpeg.length));
+    assertEquals(6, parser.getOrientation());
+    assertEquals(480, parser.getWidth());
+    assertEquals(640, parser.getHeight());
+  }
+
+  @Test
+  public void trimsPartialBlocksOnlyWhenAsked() throws IOException {
+    JpegTransformer transformer=new JpegTransformer();
+    JpegHeaderParser parser=new JpegHeaderParser();
+    byte[] jpeg=load("grayscale-odd");
+
+    assertNull(transformer.transform(jpeg, jpeg.length,
+      Transform.ROTATE_90, false));
+
+    // nothing moves on a transpose, so nothing needs trimming
+
+    byte[] transposed=transform(transformer, jpeg, Transform.TRANSPOSE);
+
+    assertTrue(parser.parse(transposed, 0, transposed.length));
+    assertEquals(13, parser.getWidth());
+    assertEquals(17, parser.getHeight());
+
+    byte[] rotated=transformer.transform(jpeg, jpeg.length,
+      Transform.ROTATE_90, true);
+
+    assertNotNull(rotated);
+    assertTrue(parser.parse(rotated, 0, rotated.length));
+    assertEquals(8, parser.getWidth());
+    assertEquals(17, parser.getHeight());
+  }
+
+  @Test
+  public void rejectsUnsupportedData() throws IOException {
+    JpegTransformer transformer=new JpegTransformer();
+    byte[] progressive=load("progressive");
+    byte[] jpeg=load(ORIENTATION);
+
+    assertNull(transformer.transform(progressive, progressive.length,
+      Transform.ROTATE_90, true));
+    assertNull(transformer.transform(new byte[0], 0,
+      Transform.ROTATE_90, true));
+
+    // cut off partway through the scan
+
+    assertNull(transformer.transform(jpeg, jpeg.length/2,
+      Transform.ROTATE_90, true));
+  }
+
+  @Test
+  public void mapsExifOrientations() {
+    assertNull(Transform.forExifOrientation(0));
+    assertNull(Transform.forExifOrientation(1));
+    assertEquals(Transform.FLIP_HORIZONTAL,
+      Transform.forExifOrientation(2));
+    assertEquals(Transform.ROTATE_180,
+      Transform.forExifOrientation(3));
+    assertEquals(Transform.FLIP_VERTICAL,
+      Transform.forExifOrientation(4));
+    assertEquals(Transform.TRANSPOSE,
+      Transform.forExifOrientation(5));
+    assertEquals(Transform.ROTATE_90,
+      Transform.forExifOrientation(6));
+    assertEquals(Transform.TRANSVERSE,
+      Transform.forExifOrientation(7));
+    assertEquals(Transform.ROTATE_270,
+      Transform.forExifOrientation(8));
+    assertNull(Transform.forExifOrientation(9));
+  }
+
+  private static void checkReference(String name, Transform transform,
+                                     boolean trim) throws IOException {
+    byte[] jpeg=load(name);
+    String suffix=transform.name().toLowerCase().replace('_', '-');
+    String expected=(name.startsWith("transform/") ? name :
+      "transform/"+name)+"."+suffix+(trim ? ".trimmed" : "");
+    byte[] result=
+      new JpegTransformer().transform(jpeg, jpeg.length, transform, trim);
+
+    assertNotNull(expected, result);
+    assertTrue(expected, Arrays.equals(load(expected), result));
+  }
+
+  private static byte[] transform(JpegTransformer transformer,
+                                  byte[] jpeg, Transform transform) {
+    byte[] result=transformer.transform(jpeg, jpeg.length, transform,
+      false);
+
+    assertNotNull(transform.name(), result);
+
+    return(result);
+  }
+
+  private static Transform inverse(Transform transform) {
+    if (transform==Transform.ROTATE_90) {
+      return(Transform.ROTATE_270);
+    }
+    else if (transform==Transform.ROTATE_270) {
+      return(Transform.ROTATE_90);
+    }
+
+    return(transform);
+  }
+
+  private static byte[] load(String name) throws IOException {
+    InputStream in=
+      JpegTransformerTest.class.getResourceAsStream("/jpeg/"+name+".jpg");
+
+    assertNotNull("missing "+name, in);
+
+    try {
+      ByteArrayOutputStream out=new ByteArrayOutputStream();
+      byte[] chunk=new byte[8192];
+      int count;
+
+      while ((count=in.read(chunk))>=0) {
+        out.write(chunk, 0, count);
+      }
+
+      return(out.toByteArray());
+    }
+    finally {
+      in.close();
+    }
+  }
+}
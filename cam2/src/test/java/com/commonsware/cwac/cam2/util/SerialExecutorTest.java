@@ -0,0 +1,256 @@
+/***
+ Copyright (c) 2016 CommonsWare, LLC
+
+ Licensed under the Apache License, Version 2.0 (the "License"); you may
+ not use this file except in compliance with the License. You may obtain
+ a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+package com.commonsware.cwac.cam2.util;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * Plain-JVM harness for the execution model used by the
+ * engines: camera operations go through a SerialExecutor per
+ * session on a shared multi-threaded pool, and picture
+ * processing goes to its own pool. Overlap is checked with
+ * latches that can only be released if the work overlaps, not
+ * with timings.
+ */
+public class SerialExecutorTest {
+  private static final int PICTURES=8;
+  private ExecutorService controlPool;
+  private ExecutorService processingPool;
+
+  @Before
+  public void setUp() {
+    controlPool=Executors.newFixedThreadPool(4);
+    processingPool=Executors.newFixedThreadPool(3);
+  }
+
+  @After
+  public void tearDown() {
+    controlPool.shutdownNow();
+    processingPool.shutdownNow();
+  }
+
+  @Test
+  public void keepsOrderPerSession() throws Exception {
+    final int sessions=4;
+    final int tasks=500;
+    final CountDownLatch done=new CountDownLatch(sessions*tasks);
+    final AtomicInteger overlaps=new AtomicInteger();
+    List<List<Integer>> results=new ArrayList<List<Integer>>();
+
+    for (int i=0;i<sessions;i++) {
+      final SerialExecutor serial=new SerialExecutor(controlPool);
+      final List<Integer> result=
+        Collections.synchronizedList(new ArrayList<Integer>());
+      final AtomicInteger running=new AtomicInteger();
+
+      results.add(result);
+
+      for (int j=0;j<tasks;j++) {
+        final int value=j;
+
+        serial.execute(new Runnable() {
+          @Override
+          public void run() {
+            if (running.incrementAndGet()>1) {
+              overlaps.incrementAndGet();
+            }
+
+            result.add(value);
+            running.decrementAndGet();
+            done.countDown();
+          }
+        });
+      }
+    }
+
+    assertTrue(done.await(10, TimeUnit.SECONDS));
+    assertEquals(0, overlaps.get());
+
+    for (List<Integer> result : results) {
+      assertEquals(tasks, result.size());
+
+      for (int j=0;j<tasks;j++) {
+        assertEquals(j, (int)result.get(j));
+      }
+    }
+  }
+
+  @Test
+  public void overlapsCaptureWithProcessing() throws Exception {
+    final CountDownLatch captured=new CountDownLatch(PICTURES);
+    final CountDownLatch processed=new CountDownLatch(PICTURES);
+    final SerialExecutor control=new SerialExecutor(controlPool);
+
+    // processing of the first picture cannot finish until every
+    // capture has happened, so this only completes if captures
+    // carry on while pictures are being processed
+
+    for (int i=0;i<PICTURES;i++) {
+      final boolean isFirst=(i==0);
+
+      control.execute(new Runnable() {
+        @Override
+        public void run() {
+          captured.countDown();
+          processingPool.execute(new Runnable() {
+            @Override
+            public void run() {
+              if (isFirst) {
+                await(captured);
+              }
+
+              processed.countDown();
+            }
+          });
+        }
+      });
+    }
+
+    assertTrue(processed.await(10, TimeUnit.SECONDS));
+  }
+
+  @Test
+  public void runsSessionsInParallel() throws Exception {
+    final CountDownLatch bothRunning=new CountDownLatch(2);
+    final CountDownLatch done=new CountDownLatch(2);
+
+    // each session's task waits for the other's to start, so
+    // this only completes if the two run at the same time
+
+    for (int i=0;i<2;i++) {
+      new SerialExecutor(controlPool).execute(new Runnable() {
+        @Override
+        public void run() {
+          bothRunning.countDown();
+
+          if (await(bothRunning)) {
+            done.countDown();
+          }
+        }
+      });
+    }
+
+    assertTrue(done.await(10, TimeUnit.SECONDS));
+  }
+
+  @Test
+  public void recoversFromRefusedHandOff() throws Exception {
+    final AtomicInteger handOffs=new AtomicInteger();
+    final CountDownLatch ran=new CountDownLatch(1);
+    SerialExecutor serial=new SerialExecutor(new Executor() {
+      @Override
+      public void execute(Runnable command) {
+        if (handOffs.incrementAndGet()==1) {
+          throw new RejectedExecutionException("saturated");
+        }
+
+        controlPool.execute(command);
+      }
+    });
+
+    try {
+      serial.execute(new Runnable() {
+        @Override
+        public void run() {
+          fail("refused task ran");
+        }
+      });
+      fail("Expected RejectedExecutionException");
+    }
+    catch (RejectedExecutionException e) {
+      // expected
+    }
+
+    serial.execute(new Runnable() {
+      @Override
+      public void run() {
+        ran.countDown();
+      }
+    });
+
+    assertTrue(ran.await(10, TimeUnit.SECONDS));
+    assertEquals(0, serial.getQueueDepth());
+  }
+
+  @Test
+  public void drainsPastRefusedHandOffFromWorker() throws Exception {
+    final AtomicInteger handOffs=new AtomicInteger();
+    final CountDownLatch release=new CountDownLatch(1);
+    final CountDownLatch ran=new CountDownLatch(1);
+    SerialExecutor serial=new SerialExecutor(new Executor() {
+      @Override
+      public void execute(Runnable command) {
+        if (handOffs.incrementAndGet()==2) {
+          throw new RejectedExecutionException("saturated");
+        }
+
+        controlPool.execute(command);
+      }
+    });
+
+    // the second hand-off comes from the pool thread finishing
+    // the first task, with the third task queued behind it
+
+    serial.execute(new Runnable() {
+      @Override
+      public void run() {
+        await(release);
+      }
+    });
+    serial.execute(new Runnable() {
+      @Override
+      public void run() {
+        fail("refused task ran");
+      }
+    });
+    serial.execute(new Runnable() {
+      @Override
+      public void run() {
+        ran.countDown();
+      }
+    });
+    release.countDown();
+
+    assertTrue(ran.await(10, TimeUnit.SECONDS));
+    assertEquals(3, handOffs.get());
+    assertEquals(0, serial.getQueueDepth());
+  }
+
+  private static boolean await(CountDownLatch latch) {
+    try {
+      return(latch.await(10, TimeUnit.SECONDS));
+    }
+    catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+
+      return(false);
+    }
+  }
+}